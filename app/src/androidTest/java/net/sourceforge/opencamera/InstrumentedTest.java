@@ -10,9 +10,13 @@ import static org.hamcrest.Matchers.endsWith;
 import static org.junit.Assert.*;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Point;
 import android.os.Build;
 import android.os.Looper;
 import android.preference.PreferenceManager;
@@ -24,6 +28,7 @@ import androidx.test.espresso.matcher.ViewMatchers;
 import androidx.test.ext.junit.rules.ActivityScenarioRule;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.ui.DrawPreview;
 import net.sourceforge.opencamera.ui.PopupView;
 
@@ -34,9 +39,13 @@ import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 interface PhotoTests {}
@@ -1439,6 +1448,343 @@ public class InstrumentedTest {
         });
     }
 
+    /** Tests that the Java auto-alignment (JavaMTBAligner) gives identical offsets to the RenderScript
+     *  auto-alignment, on the test samples from testHDR1, testHDR2, testHDR3 and testHDR33.
+     */
+    @Category(HDRTests.class)
+    @Test
+    public void testHDRJavaAlign() throws IOException, InterruptedException {
+        Log.d(TAG, "testHDRJavaAlign");
+
+        setToDefault();
+
+        mActivityRule.getScenario().onActivity(activity -> { // for simplicity, run the entire test on the UI thread
+            final String [] folders = {"saintpaul", "stlouis", "testHDR3", "testHDR33"};
+            final String [][] filenames = {
+                    {"input2.jpg", "input3.jpg", "input4.jpg"},
+                    {"input1.jpg", "input2.jpg", "input3.jpg"},
+                    {"input0.jpg", "input1.jpg", "input2.jpg"},
+                    {"input0.jpg", "input1.jpg", "input2.jpg"}
+            };
+            HDRProcessor hdrProcessor = activity.getApplicationInterface().getHDRProcessor();
+            try {
+                for(int i=0;i<folders.length;i++) {
+                    int [][] offsets_x = new int[2][];
+                    int [][] offsets_y = new int[2][];
+                    for(int j=0;j<2;j++) {
+                        hdrProcessor.setAlignBackend(j == 0 ? HDRProcessor.HDRAlignBackend.HDRALIGNBACKEND_RENDERSCRIPT : HDRProcessor.HDRAlignBackend.HDRALIGNBACKEND_JAVA);
+                        List<Bitmap> inputs = new ArrayList<>();
+                        for(String filename : filenames[i]) {
+                            inputs.add( TestUtils.getBitmapFromFile(activity, TestUtils.hdr_images_path + folders[i] + "/" + filename) );
+                        }
+                        long time_s = System.currentTimeMillis();
+                        TestUtils.subTestHDR(activity, inputs, "testHDRJavaAlign_" + folders[i] + "_" + j + "_output.jpg", false, 100, 1000000000L/100);
+                        Log.d(TAG, folders[i] + " backend " + hdrProcessor.getAlignBackend() + " time: " + (System.currentTimeMillis() - time_s));
+                        offsets_x[j] = hdrProcessor.offsets_x.clone();
+                        offsets_y[j] = hdrProcessor.offsets_y.clone();
+                    }
+                    assertArrayEquals(offsets_x[0], offsets_x[1]);
+                    assertArrayEquals(offsets_y[0], offsets_y[1]);
+                }
+            }
+            finally {
+                hdrProcessor.setAlignBackend(HDRProcessor.HDRAlignBackend.HDRALIGNBACKEND_RENDERSCRIPT);
+            }
+        });
+    }
+
+    /** Tests that the Java HDR merge (JavaHDRMerger) gives the same output as the RenderScript merge
+     *  (process_hdr.rs), to within rounding, on the test samples from testHDR1, testHDR2, testHDR3
+     *  and testHDR33, for each tonemapping algorithm.
+     */
+    @Category(HDRTests.class)
+    @Test
+    public void testHDRJavaMerge() throws IOException, InterruptedException {
+        Log.d(TAG, "testHDRJavaMerge");
+
+        setToDefault();
+
+        mActivityRule.getScenario().onActivity(activity -> { // for simplicity, run the entire test on the UI thread
+            if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+                Log.d(TAG, "renderscript requires Android Lollipop or better");
+                return;
+            }
+            final String [] folders = {"saintpaul", "stlouis", "testHDR3", "testHDR33"};
+            final String [][] filenames = {
+                    {"input2.jpg", "input3.jpg", "input4.jpg"},
+                    {"input1.jpg", "input2.jpg", "input3.jpg"},
+                    {"input0.jpg", "input1.jpg", "input2.jpg"},
+                    {"input0.jpg", "input1.jpg", "input2.jpg"}
+            };
+            final int max_diff_c = 4; // allow for differences in floating point rounding
+            HDRProcessor hdrProcessor = activity.getApplicationInterface().getHDRProcessor();
+            try {
+                for(int i=0;i<folders.length;i++) {
+                    for(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+                        Bitmap [] outputs = new Bitmap[2];
+                        for(int j=0;j<2;j++) {
+                            hdrProcessor.setMergeBackend(j == 0 ? HDRProcessor.HDRMergeBackend.HDRMERGEBACKEND_RENDERSCRIPT : HDRProcessor.HDRMergeBackend.HDRMERGEBACKEND_JAVA);
+                            List<Bitmap> inputs = new ArrayList<>();
+                            for(String filename : filenames[i]) {
+                                inputs.add( TestUtils.getBitmapFromFile(activity, TestUtils.hdr_images_path + folders[i] + "/" + filename) );
+                            }
+                            float hdr_alpha = ImageSaver.getHDRAlpha("preference_hdr_contrast_enhancement_smart", 1000000000L/100, inputs.size());
+                            long time_s = System.currentTimeMillis();
+                            try {
+                                hdrProcessor.processHDR(inputs, true, null, true, null, hdr_alpha, 4, true, tonemapping_algorithm, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA);
+                            }
+                            catch(HDRProcessorException e) {
+                                e.printStackTrace();
+                                throw new RuntimeException();
+                            }
+                            Log.d(TAG, folders[i] + " " + tonemapping_algorithm + " backend " + hdrProcessor.getMergeBackend() + " time: " + (System.currentTimeMillis() - time_s));
+                            outputs[j] = inputs.get(0);
+                        }
+
+                        int width = outputs[0].getWidth();
+                        int height = outputs[0].getHeight();
+                        assertEquals(width, outputs[1].getWidth());
+                        assertEquals(height, outputs[1].getHeight());
+                        int [] row0 = new int[width];
+                        int [] row1 = new int[width];
+                        int max_diff = 0;
+                        long total_diff = 0;
+                        for(int y=0;y<height;y++) {
+                            outputs[0].getPixels(row0, 0, width, 0, y, width, 1);
+                            outputs[1].getPixels(row1, 0, width, 0, y, width, 1);
+                            for(int x=0;x<width;x++) {
+                                for(int shift=0;shift<24;shift+=8) {
+                                    int diff = Math.abs(((row0[x] >> shift) & 0xff) - ((row1[x] >> shift) & 0xff));
+                                    max_diff = Math.max(max_diff, diff);
+                                    total_diff += diff;
+                                }
+                            }
+                        }
+                        double mean_diff = total_diff / (3.0 * width * height);
+                        Log.d(TAG, folders[i] + " " + tonemapping_algorithm + " max_diff: " + max_diff + " mean_diff: " + mean_diff);
+                        outputs[0].recycle();
+                        outputs[1].recycle();
+                        assertTrue(max_diff <= max_diff_c);
+                        assertTrue(mean_diff < 0.5);
+                    }
+                }
+            }
+            finally {
+                hdrProcessor.setMergeBackend(HDRProcessor.HDRMergeBackend.HDRMERGEBACKEND_RENDERSCRIPT);
+            }
+        });
+    }
+
+    /** Tests that BitmapPool reuses released bitmaps of the same size and config (both for
+     *  acquire() and decode()), and evicts the least recently released bitmaps when full.
+     */
+    @Category(PhotoTests.class)
+    @Test
+    public void testBitmapPool() {
+        Log.d(TAG, "testBitmapPool");
+
+        final int width = 400;
+        final int height = 300;
+        final long bitmap_bytes = 4L*width*height;
+        BitmapPool pool = new BitmapPool(2*bitmap_bytes);
+
+        // released bitmaps are reused, and cleared as for Bitmap.createBitmap()
+        Bitmap bitmap0 = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        bitmap0.eraseColor(Color.RED);
+        pool.release(bitmap0);
+        assertEquals(1, pool.getStats().n_bitmaps);
+        Bitmap bitmap1 = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap0, bitmap1);
+        assertEquals(Color.TRANSPARENT, bitmap1.getPixel(0, 0));
+        assertEquals(1, pool.getStats().n_hits);
+        assertEquals(1, pool.getStats().n_misses);
+        assertEquals(0, pool.getStats().n_bitmaps);
+
+        // a different size isn't reused
+        pool.release(bitmap1);
+        Bitmap bitmap2 = pool.acquire(height, width, Bitmap.Config.ARGB_8888);
+        assertNotSame(bitmap1, bitmap2);
+        assertEquals(2, pool.getStats().n_misses);
+
+        // the pool holds two bitmaps, so releasing a third evicts the least recently released
+        Bitmap bitmap3 = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap1, bitmap3);
+        Bitmap bitmap4 = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        pool.release(bitmap3);
+        pool.release(bitmap2);
+        pool.release(bitmap4);
+        assertEquals(2, pool.getStats().n_bitmaps);
+        assertEquals(2*bitmap_bytes, pool.getStats().bytes);
+        assertEquals(1, pool.getStats().n_evictions);
+        assertTrue(bitmap3.isRecycled());
+        assertFalse(bitmap2.isRecycled());
+        assertFalse(bitmap4.isRecycled());
+
+        // reusing a bitmap makes it the most recently released
+        Bitmap bitmap5 = pool.acquire(height, width, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap2, bitmap5);
+        pool.release(bitmap5);
+        pool.release(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+        assertEquals(2, pool.getStats().n_evictions);
+        assertTrue(bitmap4.isRecycled());
+        assertFalse(bitmap5.isRecycled());
+
+        // decoding into a pooled bitmap
+        Bitmap source = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.BLUE);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertTrue(source.compress(Bitmap.CompressFormat.JPEG, 90, stream));
+        source.recycle();
+        ImageBuffer jpeg = ImageBuffer.wrap(stream.toByteArray());
+        Bitmap pooled = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        pool.release(pooled);
+        Bitmap decoded = pool.decode(jpeg, new BitmapFactory.Options());
+        jpeg.release();
+        assertSame(pooled, decoded);
+        int color = decoded.getPixel(width/2, height/2);
+        assertTrue(Color.blue(color) > 240 && Color.red(color) < 16 && Color.green(color) < 16);
+        pool.release(decoded);
+
+        // bitmaps larger than the capacity aren't held
+        Bitmap large = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
+        pool.release(large);
+        assertTrue(large.isRecycled());
+        // unless the capacity is increased
+        pool.setCapacity(4*bitmap_bytes);
+        large = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
+        pool.release(large);
+        assertFalse(large.isRecycled());
+        assertEquals(4*bitmap_bytes, pool.getStats().bytes);
+
+        // empty the pool when the UI is hidden, and restore afterwards
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, pool.getStats().n_bitmaps);
+        assertEquals(0, pool.getStats().max_bytes);
+        assertTrue(large.isRecycled());
+        pool.restoreCapacity();
+        assertEquals(4*bitmap_bytes, pool.getStats().max_bytes);
+    }
+
+    /** Returns the ARGB pixels of a test image with smooth gradients, sharp edges and noise.
+     */
+    private static int [] createJpegTestPixels(int width, int height) {
+        int [] pixels = new int[width*height];
+        Random random = new Random(0);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int r = (255*x)/width;
+                int g = (255*y)/height;
+                int b = ((x/32 + y/32) % 2 == 0) ? 224 : 32;
+                int noise = random.nextInt(17) - 8;
+                r = Math.max(0, Math.min(255, r + noise));
+                g = Math.max(0, Math.min(255, g + noise));
+                pixels[y*width+x] = Color.argb(255, r, g, b);
+            }
+        }
+        return pixels;
+    }
+
+    /** Returns the mean absolute difference per channel between two bitmaps of the same size.
+     */
+    private static double meanAbsoluteDifference(Bitmap bitmap0, Bitmap bitmap1) {
+        assertEquals(bitmap0.getWidth(), bitmap1.getWidth());
+        assertEquals(bitmap0.getHeight(), bitmap1.getHeight());
+        int width = bitmap0.getWidth();
+        int height = bitmap0.getHeight();
+        int [] pixels0 = new int[width];
+        int [] pixels1 = new int[width];
+        long total = 0;
+        for(int y=0;y<height;y++) {
+            bitmap0.getPixels(pixels0, 0, width, 0, y, width, 1);
+            bitmap1.getPixels(pixels1, 0, width, 0, y, width, 1);
+            for(int x=0;x<width;x++) {
+                total += Math.abs(Color.red(pixels0[x]) - Color.red(pixels1[x]));
+                total += Math.abs(Color.green(pixels0[x]) - Color.green(pixels1[x]));
+                total += Math.abs(Color.blue(pixels0[x]) - Color.blue(pixels1[x]));
+            }
+        }
+        return total / (3.0*width*height);
+    }
+
+    /** Tests that JPEGs from ParallelJpegEncoder decode to the same image as those from
+     *  Bitmap.compress() (the native encoder) at the same quality, including for sizes that aren't
+     *  a multiple of the MCU size.
+     */
+    @Category(PhotoTests.class)
+    @Test
+    public void testParallelJpegEncoder() throws IOException {
+        Log.d(TAG, "testParallelJpegEncoder");
+
+        final int [][] sizes = new int[][]{{640, 480}, {1003, 677}};
+        for(int [] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            int [] pixels = createJpegTestPixels(width, height);
+            Bitmap original = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+            for(int quality : new int[]{75, 90}) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                assertTrue(original.compress(Bitmap.CompressFormat.JPEG, quality, stream));
+                byte [] native_jpeg = stream.toByteArray();
+                byte [] parallel_jpeg = new ParallelJpegEncoder().encode(pixels, width, height, quality);
+
+                Bitmap native_bitmap = BitmapFactory.decodeByteArray(native_jpeg, 0, native_jpeg.length);
+                Bitmap parallel_bitmap = BitmapFactory.decodeByteArray(parallel_jpeg, 0, parallel_jpeg.length);
+                assertNotNull(native_bitmap);
+                assertNotNull(parallel_bitmap);
+                double native_error = meanAbsoluteDifference(original, native_bitmap);
+                double parallel_error = meanAbsoluteDifference(original, parallel_bitmap);
+                double difference = meanAbsoluteDifference(native_bitmap, parallel_bitmap);
+                Log.d(TAG, width + "x" + height + " quality " + quality + ": native size " + native_jpeg.length + " error " + native_error +
+                        ", parallel size " + parallel_jpeg.length + " error " + parallel_error + ", difference " + difference);
+                // the encoders differ in rounding, DCT and chroma downsampling, but should give near identical images
+                assertTrue(difference < 2.0);
+                assertTrue(parallel_error < native_error + 1.0);
+                native_bitmap.recycle();
+                parallel_bitmap.recycle();
+            }
+            original.recycle();
+        }
+
+        // small images, and those that aren't sRGB, are left to the native encoder
+        assertFalse(ImageSaver.useParallelJpegEncoder(4000, 3000, true));
+        assertTrue(ImageSaver.useParallelJpegEncoder(8160, 6120, true));
+        assertFalse(ImageSaver.useParallelJpegEncoder(8160, 6120, false));
+    }
+
+    /** Logs the time taken to encode JPEGs of various sizes with ParallelJpegEncoder and with
+     *  Bitmap.compress(), to check ImageSaver.parallel_jpeg_min_pixels_c on a device.
+     */
+    @Category(PhotoTests.class)
+    @Test
+    public void testParallelJpegEncoderTimings() throws IOException {
+        Log.d(TAG, "testParallelJpegEncoderTimings");
+
+        final int [][] sizes = new int[][]{{2000, 1500}, {4000, 3000}, {5664, 4248}};
+        final int n_repeats = 3;
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder();
+        for(int [] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            int [] pixels = createJpegTestPixels(width, height);
+            Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+            long best_native_ms = Long.MAX_VALUE;
+            long best_parallel_ms = Long.MAX_VALUE;
+            for(int i=0;i<n_repeats;i++) {
+                long time_s = System.currentTimeMillis();
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream));
+                best_native_ms = Math.min(best_native_ms, System.currentTimeMillis() - time_s);
+
+                time_s = System.currentTimeMillis();
+                encoder.encode(pixels, width, height, 90);
+                best_parallel_ms = Math.min(best_parallel_ms, System.currentTimeMillis() - time_s);
+            }
+            Log.d(TAG, width + "x" + height + ": native " + best_native_ms + "ms, parallel " + best_parallel_ms + "ms, uses parallel: " +
+                    ImageSaver.useParallelJpegEncoder(width, height, true));
+            bitmap.recycle();
+        }
+    }
+
     /** Tests HDR algorithm on test samples "testHDR34".
      */
     @Category(HDRTests.class)
@@ -4610,6 +4956,91 @@ public class InstrumentedTest {
         });
     }
 
+    /** Tests that NRAccumulator, which merges the images as they arrive, gives the same result as
+     *  merging them in a batch with HDRProcessor.processAvg(), on test samples "testAvg1".
+     */
+    @Category(AvgTests.class)
+    @Test
+    public void testNRAccumulator() throws IOException, InterruptedException {
+        Log.d(TAG, "testNRAccumulator");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        setToDefault();
+
+        mActivityRule.getScenario().onActivity(activity -> { // for simplicity, run the entire test on the UI thread
+            List<String> inputs = new ArrayList<>();
+            inputs.add(TestUtils.avg_images_path + "testAvg1/input0.jpg");
+            inputs.add(TestUtils.avg_images_path + "testAvg1/input1.jpg");
+            inputs.add(TestUtils.avg_images_path + "testAvg1/input2.jpg");
+            final int iso = 1600;
+            final long exposure_time = 1000000000L/17;
+            final float zoom_factor = 1.0f;
+            HDRProcessor hdrProcessor = activity.getApplicationInterface().getHDRProcessor();
+
+            // both paths decode the same JPEG data, as the accumulator is given the JPEGs from the camera
+            List<byte []> jpegs = new ArrayList<>();
+            for(String input : inputs) {
+                Bitmap bitmap = TestUtils.getBitmapFromFile(activity, input);
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
+                bitmap.recycle();
+                jpegs.add(stream.toByteArray());
+            }
+
+            // batch, as ImageSaver does without an accumulator
+            Bitmap batch_bitmap;
+            try {
+                int inSampleSize = hdrProcessor.getAvgSampleSize(iso, exposure_time);
+                List<Bitmap> bitmaps = new ArrayList<>();
+                for(byte [] jpeg : jpegs) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    // see ImageSaver.setBitmapOptionsSampleSize()
+                    if( inSampleSize > 1 ) {
+                        options.inDensity = inSampleSize;
+                        options.inTargetDensity = 1;
+                    }
+                    bitmaps.add(BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options));
+                }
+                int width = bitmaps.get(0).getWidth();
+                int height = bitmaps.get(0).getHeight();
+                // processAvg recycles both bitmaps, updateAvg recycles the new bitmap
+                HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmaps.get(0), bitmaps.get(1), 1.0f, iso, exposure_time, zoom_factor);
+                for(int i=2;i<bitmaps.size();i++) {
+                    hdrProcessor.updateAvg(avg_data, width, height, bitmaps.get(i), (float)i, iso, exposure_time, zoom_factor);
+                }
+                batch_bitmap = hdrProcessor.avgBrighten(avg_data.allocation_out, width, height, iso, exposure_time);
+                avg_data.destroy();
+            }
+            catch(HDRProcessorException e) {
+                e.printStackTrace();
+                throw new RuntimeException();
+            }
+
+            NRAccumulator accumulator = new NRAccumulator(hdrProcessor, iso, exposure_time, zoom_factor);
+            for(byte [] jpeg : jpegs) {
+                ImageBuffer image = ImageBuffer.wrap(jpeg);
+                accumulator.add(image);
+                // the accumulator holds its own reference
+                image.release();
+            }
+            assertEquals(jpegs.size(), accumulator.getNImages());
+            Bitmap accumulator_bitmap = accumulator.finish();
+            assertNotNull(accumulator_bitmap);
+
+            double difference = meanAbsoluteDifference(batch_bitmap, accumulator_bitmap);
+            Log.d(TAG, "difference: " + difference);
+            // the images are merged in the same order with the same parameters, so the results should be identical, other
+            // than any differences in RenderScript's floating point precision
+            assertTrue(difference < 0.5);
+            batch_bitmap.recycle();
+            accumulator_bitmap.recycle();
+        });
+    }
+
     /** Tests Avg algorithm on test samples "testAvgtemp".
      *  Used for one-off testing, or to recreate NR images from the base exposures to test an updated alorithm.
      *  The test images should be copied to the test device into DCIM/testOpenCamera/testdata/hdrsamples/testAvgtemp/ .
@@ -4669,6 +5100,66 @@ public class InstrumentedTest {
         });
     }
 
+    /** Tests that the Java feature detector (JavaFeatureDetector) finds the same corners as the
+     *  RenderScript feature detector, on the test samples from testPanorama1 and testPanorama2.
+     *  The RenderScript detector returns the corners above a threshold that it searches for,
+     *  whilst the Java detector returns the strongest corners, so the Java detector should return
+     *  (up to floating point differences) a superset of the RenderScript corners.
+     */
+    @Category(PanoramaTests.class)
+    @Test
+    public void testPanoramaJavaFeatureDetector() throws IOException, InterruptedException {
+        Log.d(TAG, "testPanoramaJavaFeatureDetector");
+
+        setToDefault();
+
+        mActivityRule.getScenario().onActivity(activity -> { // for simplicity, run the entire test on the UI thread
+            final String [] filenames = {
+                    "testPanorama1/input0.jpg", "testPanorama1/input1.jpg", "testPanorama1/input2.jpg", "testPanorama1/input3.jpg",
+                    "testPanorama2/input0.jpg", "testPanorama2/input1.jpg", "testPanorama2/input2.jpg"
+            };
+            final int feature_descriptor_radius = 3; // should match PanoramaProcessor.autoAlignmentByFeature()
+            PanoramaProcessor panoramaProcessor = activity.getApplicationInterface().getPanoramaProcessor();
+            try {
+                for(String filename : filenames) {
+                    Bitmap bitmap = TestUtils.getBitmapFromFile(activity, TestUtils.panorama_images_path + filename);
+                    Point [][] points = new Point[2][];
+                    for(int j=0;j<2;j++) {
+                        panoramaProcessor.setFeatureDetectorBackend(j == 0 ? PanoramaProcessor.FeatureDetectorBackend.FEATUREDETECTORBACKEND_RENDERSCRIPT : PanoramaProcessor.FeatureDetectorBackend.FEATUREDETECTORBACKEND_JAVA);
+                        long time_s = System.currentTimeMillis();
+                        points[j] = panoramaProcessor.detectFeatures(bitmap, feature_descriptor_radius);
+                        Log.d(TAG, filename + " backend " + panoramaProcessor.getFeatureDetectorBackend() + " time: " + (System.currentTimeMillis() - time_s) + " corners: " + points[j].length);
+                    }
+                    bitmap.recycle();
+
+                    Set<Point> java_points = new HashSet<>();
+                    for(int i=0;i<points[1].length;i++) {
+                        Point point = points[1][i];
+                        assertTrue(point.x >= feature_descriptor_radius && point.x < bitmap.getWidth()-feature_descriptor_radius);
+                        assertTrue(point.y >= feature_descriptor_radius && point.y < bitmap.getHeight()-feature_descriptor_radius);
+                        if( i > 0 ) {
+                            // should be ordered by row then by column, as with the RenderScript detector
+                            Point prev = points[1][i-1];
+                            assertTrue(point.y > prev.y || ( point.y == prev.y && point.x > prev.x ));
+                        }
+                        java_points.add(point);
+                    }
+                    int n_common = 0;
+                    for(Point point : points[0]) {
+                        if( java_points.contains(point) )
+                            n_common++;
+                    }
+                    Log.d(TAG, "    " + n_common + " of " + points[0].length + " RenderScript corners also found by Java detector");
+                    assertTrue(points[1].length >= points[0].length);
+                    assertTrue(n_common >= 0.95*points[0].length);
+                }
+            }
+            finally {
+                panoramaProcessor.setFeatureDetectorBackend(PanoramaProcessor.FeatureDetectorBackend.FEATUREDETECTORBACKEND_RENDERSCRIPT);
+            }
+        });
+    }
+
     /** Tests panorama algorithm on test samples "testPanorama1".
      */
     @Category(PanoramaTests.class)
@@ -0,0 +1,293 @@
+package com.jeffmony.opencamera;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.ColorSpace;
+import android.os.Build;
+import android.util.Log;
+
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A pool of full resolution Bitmaps that are no longer needed, so that back to back HDR, NR or
+ *  panorama requests can reuse them (either as BitmapFactory.Options.inBitmap, or instead of
+ *  Bitmap.createBitmap()) rather than repeatedly allocating and freeing large amounts of memory.
+ *  Bitmaps are matched by their width, height and config. The pool holds at most a fixed number of
+ *  bytes, evicting (and recycling) the least recently released bitmaps first.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // the following should be synchronized to this
+    private long capacity;
+    private long max_bytes; // may be less than capacity, after trimMemory()
+    private final List<Bitmap> bitmaps = new ArrayList<>(); // from least to most recently released
+    private long bytes;
+    private long n_hits;
+    private long n_misses;
+    private long n_evictions;
+
+    /** Statistics for the pool.
+     */
+    public static class Stats {
+        public final long n_hits;
+        public final long n_misses;
+        public final long n_evictions;
+        public final int n_bitmaps;
+        public final long bytes;
+        public final long max_bytes;
+
+        Stats(long n_hits, long n_misses, long n_evictions, int n_bitmaps, long bytes, long max_bytes) {
+            this.n_hits = n_hits;
+            this.n_misses = n_misses;
+            this.n_evictions = n_evictions;
+            this.n_bitmaps = n_bitmaps;
+            this.bytes = bytes;
+            this.max_bytes = max_bytes;
+        }
+
+        /** Returns the fraction of requests that were satisfied from the pool.
+         */
+        public double getHitRate() {
+            long n_requests = n_hits + n_misses;
+            return n_requests == 0 ? 0.0 : n_hits / (double)n_requests;
+        }
+
+        @Override
+        public String toString() {
+            return "hits " + n_hits + " misses " + n_misses + " (hit rate " + getHitRate() + ") evictions " + n_evictions +
+                    " holding " + n_bitmaps + " bitmaps " + bytes + " / " + max_bytes + " bytes";
+        }
+    }
+
+    public BitmapPool(long capacity) {
+        if( capacity < 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        this.max_bytes = capacity;
+    }
+
+    /** Changes the capacity, e.g., when the resolution of the images being processed changes.
+     *  Bitmaps are evicted if the pool now holds too many bytes.
+     */
+    public void setCapacity(long capacity) {
+        if( capacity < 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("capacity must not be negative: " + capacity);
+        }
+        List<Bitmap> evicted = new ArrayList<>();
+        synchronized(this) {
+            if( capacity == this.capacity ) {
+                return;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "setCapacity: " + capacity);
+            if( max_bytes == this.capacity ) {
+                // not reduced by trimMemory()
+                max_bytes = capacity;
+            }
+            else {
+                max_bytes = Math.min(max_bytes, capacity);
+            }
+            this.capacity = capacity;
+            trimTo(max_bytes, evicted);
+        }
+        recycleAll(evicted);
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(n_hits, n_misses, n_evictions, bitmaps.size(), bytes, max_bytes);
+    }
+
+    private static long getBytes(Bitmap bitmap) {
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /** Removes and returns a pooled bitmap with the supplied size and config, or returns null.
+     * @param require_srgb If true, only return bitmaps in the sRGB color space (which is what
+     *                     Bitmap.createBitmap() returns).
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config, boolean require_srgb) {
+        for(int i=bitmaps.size()-1;i>=0;i--) {
+            Bitmap bitmap = bitmaps.get(i);
+            if( bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config ) {
+                continue;
+            }
+            if( require_srgb && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getColorSpace() != ColorSpace.get(ColorSpace.Named.SRGB) ) {
+                continue;
+            }
+            bitmaps.remove(i);
+            bytes -= getBytes(bitmap);
+            n_hits++;
+            return bitmap;
+        }
+        n_misses++;
+        return null;
+    }
+
+    /** Equivalent to Bitmap.createBitmap(width, height, config), but reuses a pooled bitmap if
+     *  possible. As with Bitmap.createBitmap(), the returned bitmap is mutable and cleared to
+     *  transparent.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config, true);
+        if( bitmap != null ) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /** Sets options.inBitmap to a pooled bitmap that a JPEG with the supplied size can be decoded
+     *  into, if one is available. The options must not have an inSampleSize greater than 1. If
+     *  decoding fails, the caller should pass options.inBitmap back to release().
+     * @return Whether options.inBitmap was set.
+     */
+    public boolean setInBitmap(BitmapFactory.Options options, int width, int height) {
+        if( options.inSampleSize > 1 || options.inBitmap != null ) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = take(width, height, config, false);
+        if( bitmap == null ) {
+            return false;
+        }
+        options.inBitmap = bitmap;
+        // required for inBitmap, and the decoded bitmap will be the reused (mutable) bitmap
+        options.inMutable = true;
+        return true;
+    }
+
+    /** Equivalent to BitmapFactory.decodeStream() on the supplied JPEG data, but decodes into a
+     *  pooled bitmap if one of the right size is available. In that case the returned bitmap is
+     *  mutable, even if options.inMutable is false. The supplied options aren't modified.
+     */
+    public Bitmap decode(ImageBuffer jpeg, BitmapFactory.Options options) {
+        if( options.inSampleSize <= 1 && options.inBitmap == null && !options.inJustDecodeBounds ) {
+            BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+            bounds_options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(jpeg.getInputStream(), null, bounds_options);
+            if( bounds_options.outWidth > 0 && bounds_options.outHeight > 0 ) {
+                BitmapFactory.Options reuse_options = new BitmapFactory.Options();
+                reuse_options.inPreferredConfig = options.inPreferredConfig;
+                if( setInBitmap(reuse_options, bounds_options.outWidth, bounds_options.outHeight) ) {
+                    Bitmap bitmap = null;
+                    try {
+                        bitmap = BitmapFactory.decodeStream(jpeg.getInputStream(), null, reuse_options);
+                    }
+                    catch(IllegalArgumentException e) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "can't decode into pooled bitmap: " + e.getMessage());
+                    }
+                    if( bitmap != null ) {
+                        return bitmap;
+                    }
+                    release(reuse_options.inBitmap);
+                }
+            }
+        }
+        return BitmapFactory.decodeStream(jpeg.getInputStream(), null, options);
+    }
+
+    /** Returns a bitmap that is no longer needed to the pool, instead of calling recycle(). The
+     *  bitmap is recycled instead if it can't be reused, or doesn't fit in the pool.
+     */
+    public void release(Bitmap bitmap) {
+        if( bitmap == null || bitmap.isRecycled() ) {
+            return;
+        }
+        if( !bitmap.isMutable() ) {
+            // can't be used as inBitmap, or in place of a new bitmap
+            bitmap.recycle();
+            return;
+        }
+        List<Bitmap> evicted = new ArrayList<>();
+        synchronized(this) {
+            if( bitmaps.contains(bitmap) ) {
+                // throw runtime exception, as this is a programming error
+                throw new RuntimeException("bitmap released twice");
+            }
+            long bitmap_bytes = getBytes(bitmap);
+            if( bitmap_bytes > max_bytes ) {
+                evicted.add(bitmap);
+            }
+            else {
+                bitmaps.add(bitmap);
+                bytes += bitmap_bytes;
+                trimTo(max_bytes, evicted);
+            }
+        }
+        recycleAll(evicted);
+    }
+
+    /** Removes least recently released bitmaps until the pool holds at most target_bytes.
+     */
+    private void trimTo(long target_bytes, List<Bitmap> evicted) {
+        while( bytes > target_bytes && bitmaps.size() > 0 ) {
+            Bitmap bitmap = bitmaps.remove(0);
+            bytes -= getBytes(bitmap);
+            n_evictions++;
+            evicted.add(bitmap);
+        }
+    }
+
+    private static void recycleAll(List<Bitmap> evicted) {
+        for(Bitmap bitmap : evicted) {
+            bitmap.recycle();
+        }
+    }
+
+    /** Shrinks the pool in response to ComponentCallbacks2.onTrimMemory(). The pool is emptied
+     *  when memory is critically low or the UI is hidden, and halved when memory is running low.
+     *  The full capacity is restored on the next call with a less severe level.
+     */
+    public void trimMemory(int level) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "trimMemory: " + level);
+        List<Bitmap> evicted = new ArrayList<>();
+        synchronized(this) {
+            if( level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ) {
+                max_bytes = 0;
+            }
+            else if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ) {
+                max_bytes = capacity/2;
+            }
+            else {
+                max_bytes = capacity;
+            }
+            trimTo(max_bytes, evicted);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "evicted " + evicted.size() + " bitmaps");
+        recycleAll(evicted);
+    }
+
+    /** Restores the pool's capacity after it was reduced by trimMemory().
+     */
+    public synchronized void restoreCapacity() {
+        max_bytes = capacity;
+    }
+
+    /** Empties the pool.
+     */
+    public void clear() {
+        List<Bitmap> evicted = new ArrayList<>();
+        synchronized(this) {
+            trimTo(0, evicted);
+        }
+        recycleAll(evicted);
+    }
+}
@@ -0,0 +1,637 @@
+package com.jeffmony.opencamera;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/** Edits the Exif tags of a JPEG without decoding it or rewriting the file: the Exif (APP1)
+ *  segment is rebuilt in memory, so that the caller can write out the JPEG in a single pass as
+ *  getHeader() followed by the original data from getResumeOffset().
+ *  The original TIFF data is kept unchanged at the start of the new segment, and the modified
+ *  IFDs (and any new values) are appended after it, with the header updated to point to the new
+ *  IFD0. This means that all offsets in the original data (e.g., for maker notes or the
+ *  thumbnail) remain valid without needing to be understood.
+ *  Only the tags that ImageSaver needs to modify are supported.
+ */
+public class ExifSplicer implements ExifTagEditor {
+    private static final String TAG = "ExifSplicer";
+
+    private static final int max_segment_length_c = 65535; // maximum length of a JPEG segment, including the length field
+    private static final byte [] exif_identifier = {'E', 'x', 'i', 'f', 0, 0};
+    private static final Charset ascii_charset = Charset.forName("US-ASCII");
+
+    private static final int IFD_0 = 0;
+    private static final int IFD_EXIF = 1;
+    private static final int IFD_GPS = 2;
+    private static final int n_ifds_c = 3;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+    private static final int [] type_sizes = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final int exif_ifd_pointer_c = 0x8769;
+    private static final int gps_ifd_pointer_c = 0x8825;
+    private static final int gps_version_id_c = 0x0000;
+
+    private static class TagInfo {
+        final String name;
+        final int ifd;
+        final int id;
+        final int type;
+
+        TagInfo(String name, int ifd, int id, int type) {
+            this.name = name;
+            this.ifd = ifd;
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    // n.b., we write UserComment and GPSProcessingMethod as ASCII, to match what ExifInterface.setAttribute() does
+    private static final TagInfo [] tag_infos = {
+            new TagInfo("Make", IFD_0, 0x010F, TYPE_ASCII),
+            new TagInfo("Model", IFD_0, 0x0110, TYPE_ASCII),
+            new TagInfo("Orientation", IFD_0, 0x0112, TYPE_SHORT),
+            new TagInfo("DateTime", IFD_0, 0x0132, TYPE_ASCII),
+            new TagInfo("Artist", IFD_0, 0x013B, TYPE_ASCII),
+            new TagInfo("Copyright", IFD_0, 0x8298, TYPE_ASCII),
+            new TagInfo("DateTimeOriginal", IFD_EXIF, 0x9003, TYPE_ASCII),
+            new TagInfo("DateTimeDigitized", IFD_EXIF, 0x9004, TYPE_ASCII),
+            new TagInfo("OffsetTime", IFD_EXIF, 0x9010, TYPE_ASCII),
+            new TagInfo("OffsetTimeOriginal", IFD_EXIF, 0x9011, TYPE_ASCII),
+            new TagInfo("OffsetTimeDigitized", IFD_EXIF, 0x9012, TYPE_ASCII),
+            new TagInfo("UserComment", IFD_EXIF, 0x9286, TYPE_ASCII),
+            new TagInfo("PixelXDimension", IFD_EXIF, 0xA002, TYPE_LONG),
+            new TagInfo("PixelYDimension", IFD_EXIF, 0xA003, TYPE_LONG),
+            new TagInfo("GPSLatitudeRef", IFD_GPS, 0x0001, TYPE_ASCII),
+            new TagInfo("GPSLatitude", IFD_GPS, 0x0002, TYPE_RATIONAL),
+            new TagInfo("GPSLongitudeRef", IFD_GPS, 0x0003, TYPE_ASCII),
+            new TagInfo("GPSLongitude", IFD_GPS, 0x0004, TYPE_RATIONAL),
+            new TagInfo("GPSAltitudeRef", IFD_GPS, 0x0005, TYPE_BYTE),
+            new TagInfo("GPSAltitude", IFD_GPS, 0x0006, TYPE_RATIONAL),
+            new TagInfo("GPSTimeStamp", IFD_GPS, 0x0007, TYPE_RATIONAL),
+            new TagInfo("GPSSpeedRef", IFD_GPS, 0x000C, TYPE_ASCII),
+            new TagInfo("GPSSpeed", IFD_GPS, 0x000D, TYPE_RATIONAL),
+            new TagInfo("GPSImgDirectionRef", IFD_GPS, 0x0010, TYPE_ASCII),
+            new TagInfo("GPSImgDirection", IFD_GPS, 0x0011, TYPE_RATIONAL),
+            new TagInfo("GPSProcessingMethod", IFD_GPS, 0x001B, TYPE_ASCII),
+            new TagInfo("GPSDateStamp", IFD_GPS, 0x001D, TYPE_ASCII),
+    };
+
+    private static class Entry {
+        final int type;
+        final int count;
+        final byte [] value; // for original entries, the 4 byte value/offset field; for new entries, the full value
+        final boolean is_new;
+
+        Entry(int type, int count, byte [] value, boolean is_new) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+            this.is_new = is_new;
+        }
+
+        int getLength() {
+            int size = type < type_sizes.length ? type_sizes[type] : 0;
+            return size * count;
+        }
+    }
+
+    private final ByteBuffer jpeg;
+    private int app1_start; // offset of the APP1 marker
+    private int app1_end; // offset just after the APP1 segment
+    private ByteBuffer tiff; // the TIFF data from the APP1 segment, with the correct byte order
+    private int ifd0_next_offset; // offset of IFD1 (or 0 if none)
+    private boolean remove_thumbnail;
+    @SuppressWarnings("unchecked")
+    private final TreeMap<Integer, Entry> [] ifds = new TreeMap[n_ifds_c];
+    @SuppressWarnings("unchecked")
+    private final TreeMap<Integer, Entry> [] modified = new TreeMap[n_ifds_c];
+    private byte [] header; // cached result of getHeader(), reset when a tag is modified
+
+    private ExifSplicer(ByteBuffer jpeg) throws IOException {
+        this.jpeg = jpeg;
+        for(int i=0;i<n_ifds_c;i++) {
+            ifds[i] = new TreeMap<>();
+            modified[i] = new TreeMap<>();
+        }
+        findExifSegment();
+        parseTiff();
+    }
+
+    /** Parses the Exif segment of the supplied JPEG. The buffer must remain unchanged whilst the
+     *  returned ExifSplicer is in use.
+     * @param jpeg The JPEG data, from its position to its limit.
+     * @return The ExifSplicer, or null if the JPEG has no Exif segment that we can edit.
+     */
+    public static ExifSplicer parse(ByteBuffer jpeg) {
+        try {
+            return new ExifSplicer(jpeg.slice());
+        }
+        catch(IOException | RuntimeException e) {
+            // RuntimeException covers invalid offsets leading to IndexOutOfBoundsException etc
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't parse exif: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private int readU8(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) & 0xff;
+    }
+
+    private int readU16(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+
+    private int readOffset(ByteBuffer buffer, int offset) throws IOException {
+        int value = buffer.getInt(offset);
+        if( value < 0 ) {
+            throw new IOException("invalid offset: " + value);
+        }
+        return value;
+    }
+
+    private void findExifSegment() throws IOException {
+        int length = jpeg.limit();
+        jpeg.order(ByteOrder.BIG_ENDIAN);
+        if( length < 4 || readU8(jpeg, 0) != 0xFF || readU8(jpeg, 1) != 0xD8 ) {
+            throw new IOException("not a jpeg");
+        }
+        int pos = 2;
+        while( pos + 4 <= length ) {
+            if( readU8(jpeg, pos) != 0xFF ) {
+                throw new IOException("expected marker at " + pos);
+            }
+            int marker = readU8(jpeg, pos+1);
+            if( marker == 0xFF ) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            else if( marker == 0xDA || marker == 0xD9 ) {
+                // start of scan or end of image
+                break;
+            }
+            int segment_length = readU16(jpeg, pos+2);
+            if( segment_length < 2 || pos + 2 + segment_length > length ) {
+                throw new IOException("invalid segment length " + segment_length + " at " + pos);
+            }
+            if( marker == 0xE1 && segment_length >= 2 + exif_identifier.length + 8 ) {
+                boolean is_exif = true;
+                for(int i=0;i<exif_identifier.length && is_exif;i++) {
+                    if( jpeg.get(pos+4+i) != exif_identifier[i] )
+                        is_exif = false;
+                }
+                if( is_exif ) {
+                    app1_start = pos;
+                    app1_end = pos + 2 + segment_length;
+                    int tiff_start = pos + 4 + exif_identifier.length;
+                    ByteBuffer view = jpeg.duplicate();
+                    view.position(tiff_start);
+                    view.limit(app1_end);
+                    tiff = view.slice();
+                    return;
+                }
+            }
+            pos += 2 + segment_length;
+        }
+        throw new IOException("no exif segment");
+    }
+
+    private void parseTiff() throws IOException {
+        int byte_order = tiff.getShort(0);
+        if( byte_order == 0x4949 )
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        else if( byte_order == 0x4D4D )
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        else
+            throw new IOException("invalid byte order");
+        if( readU16(tiff, 2) != 42 ) {
+            throw new IOException("invalid tiff header");
+        }
+        ifd0_next_offset = readIfd(readOffset(tiff, 4), ifds[IFD_0]);
+        Entry exif_pointer = ifds[IFD_0].get(exif_ifd_pointer_c);
+        if( exif_pointer != null ) {
+            readIfd(readPointer(exif_pointer), ifds[IFD_EXIF]);
+        }
+        Entry gps_pointer = ifds[IFD_0].get(gps_ifd_pointer_c);
+        if( gps_pointer != null ) {
+            readIfd(readPointer(gps_pointer), ifds[IFD_GPS]);
+        }
+    }
+
+    private int readPointer(Entry entry) throws IOException {
+        ByteBuffer value = ByteBuffer.wrap(entry.value).order(tiff.order());
+        return readOffset(value, 0);
+    }
+
+    /** Reads the entries of the IFD at the supplied offset, and returns the offset of the next IFD.
+     */
+    private int readIfd(int offset, TreeMap<Integer, Entry> entries) throws IOException {
+        int n_entries = readU16(tiff, offset);
+        for(int i=0;i<n_entries;i++) {
+            int entry_offset = offset + 2 + 12*i;
+            int id = readU16(tiff, entry_offset);
+            int type = readU16(tiff, entry_offset+2);
+            int count = readOffset(tiff, entry_offset+4);
+            byte [] value = new byte[4];
+            for(int j=0;j<4;j++) {
+                value[j] = tiff.get(entry_offset+8+j);
+            }
+            entries.put(id, new Entry(type, count, value, false));
+        }
+        return readOffset(tiff, offset + 2 + 12*n_entries);
+    }
+
+    private static TagInfo findTag(String name) {
+        for(TagInfo tag_info : tag_infos) {
+            if( tag_info.name.equals(name) )
+                return tag_info;
+        }
+        return null;
+    }
+
+    private Entry findEntry(TagInfo tag_info) {
+        Entry entry = modified[tag_info.ifd].get(tag_info.id);
+        if( entry == null )
+            entry = ifds[tag_info.ifd].get(tag_info.id);
+        return entry;
+    }
+
+    /** Returns the full value of the entry, in the byte order of the tiff data.
+     */
+    private byte [] getValue(Entry entry) {
+        if( entry.is_new ) {
+            return entry.value;
+        }
+        int length = entry.getLength();
+        if( length <= 4 ) {
+            byte [] value = new byte[length];
+            System.arraycopy(entry.value, 0, value, 0, length);
+            return value;
+        }
+        int offset = ByteBuffer.wrap(entry.value).order(tiff.order()).getInt(0);
+        if( offset < 0 || offset + length > tiff.limit() ) {
+            throw new IndexOutOfBoundsException("invalid value offset " + offset);
+        }
+        byte [] value = new byte[length];
+        ByteBuffer view = tiff.duplicate();
+        view.position(offset);
+        view.get(value);
+        return value;
+    }
+
+    @Override
+    public String getAttribute(String tag) {
+        TagInfo tag_info = findTag(tag);
+        if( tag_info == null )
+            return null;
+        Entry entry = findEntry(tag_info);
+        if( entry == null )
+            return null;
+        byte [] bytes;
+        try {
+            bytes = getValue(entry);
+        }
+        catch(IndexOutOfBoundsException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "invalid value for " + tag);
+            return null;
+        }
+        ByteBuffer value = ByteBuffer.wrap(bytes).order(tiff.order());
+        StringBuilder string = new StringBuilder();
+        switch( entry.type ) {
+            case TYPE_ASCII:
+            case TYPE_UNDEFINED:
+                int length = bytes.length;
+                while( length > 0 && bytes[length-1] == 0 ) {
+                    length--;
+                }
+                return new String(bytes, 0, length, ascii_charset);
+            case TYPE_BYTE:
+            case TYPE_SHORT:
+            case TYPE_LONG:
+                for(int i=0;i<entry.count;i++) {
+                    if( i > 0 )
+                        string.append(",");
+                    if( entry.type == TYPE_BYTE )
+                        string.append(readU8(value, i));
+                    else if( entry.type == TYPE_SHORT )
+                        string.append(readU16(value, 2*i));
+                    else
+                        string.append(value.getInt(4*i) & 0xffffffffL);
+                }
+                return string.toString();
+            case TYPE_RATIONAL:
+                for(int i=0;i<entry.count;i++) {
+                    if( i > 0 )
+                        string.append(",");
+                    string.append(value.getInt(8*i) & 0xffffffffL);
+                    string.append("/");
+                    string.append(value.getInt(8*i+4) & 0xffffffffL);
+                }
+                return string.toString();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean hasAttribute(String tag) {
+        return getAttribute(tag) != null;
+    }
+
+    @Override
+    public void setAttribute(String tag, String value) {
+        TagInfo tag_info = findTag(tag);
+        if( tag_info == null ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("unsupported tag: " + tag);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "setAttribute: " + tag);
+        try {
+            ByteBuffer bytes;
+            int count;
+            switch( tag_info.type ) {
+                case TYPE_ASCII: {
+                    byte [] string = (value + "\0").getBytes(ascii_charset);
+                    bytes = ByteBuffer.wrap(string);
+                    count = string.length;
+                    break;
+                }
+                case TYPE_BYTE:
+                case TYPE_SHORT:
+                case TYPE_LONG: {
+                    String [] values = value.split(",");
+                    count = values.length;
+                    bytes = ByteBuffer.allocate(count * type_sizes[tag_info.type]).order(tiff.order());
+                    for(String v : values) {
+                        long number = Long.parseLong(v.trim());
+                        if( tag_info.type == TYPE_BYTE )
+                            bytes.put((byte)number);
+                        else if( tag_info.type == TYPE_SHORT )
+                            bytes.putShort((short)number);
+                        else
+                            bytes.putInt((int)number);
+                    }
+                    break;
+                }
+                case TYPE_RATIONAL: {
+                    // as with ExifInterface, GPSTimeStamp may be given as "HH:mm:ss"
+                    boolean is_time = tag.equals("GPSTimeStamp") && value.contains(":");
+                    String [] values = value.split(is_time ? ":" : ",");
+                    count = values.length;
+                    bytes = ByteBuffer.allocate(8 * count).order(tiff.order());
+                    for(String v : values) {
+                        long numerator;
+                        long denominator;
+                        int index = v.indexOf('/');
+                        if( is_time ) {
+                            numerator = Long.parseLong(v.trim());
+                            denominator = 1;
+                        }
+                        else if( index >= 0 ) {
+                            numerator = Long.parseLong(v.substring(0, index).trim());
+                            denominator = Long.parseLong(v.substring(index+1).trim());
+                        }
+                        else {
+                            // same precision as ExifInterface uses when converting decimals
+                            denominator = 10000;
+                            numerator = (long)(Double.parseDouble(v.trim()) * denominator);
+                        }
+                        bytes.putInt((int)numerator);
+                        bytes.putInt((int)denominator);
+                    }
+                    break;
+                }
+                default:
+                    throw new RuntimeException("unsupported type: " + tag_info.type);
+            }
+            modified[tag_info.ifd].put(tag_info.id, new Entry(tag_info.type, count, bytes.array(), true));
+            header = null;
+        }
+        catch(NumberFormatException e) {
+            // same behaviour as ExifInterface, which ignores invalid values
+            if( MyDebug.LOG )
+                Log.e(TAG, "invalid value for " + tag + ": " + value);
+        }
+    }
+
+    /** Returns whether the Exif data has an IFD1 (usually containing a thumbnail image), and it
+     *  hasn't been removed with removeThumbnail().
+     */
+    public boolean hasThumbnail() {
+        return ifd0_next_offset != 0 && !remove_thumbnail;
+    }
+
+    /** Unlinks IFD1 from the header, so that the thumbnail image is no longer part of the Exif
+     *  data. This should be called if the image data is transformed, as the thumbnail would then no
+     *  longer match the image.
+     */
+    public void removeThumbnail() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "removeThumbnail");
+        remove_thumbnail = true;
+        header = null;
+    }
+
+    /** Sets the GPS tags from the location, in the same way as ExifInterface.setGpsInfo().
+     */
+    @Override
+    public void setGpsInfo(Location location) {
+        setGpsInfo(location.getProvider(), location.getLatitude(), location.getLongitude(), location.getAltitude(), location.getSpeed(), location.getTime());
+    }
+
+    /** As setGpsInfo(Location), but taking the individual values.
+     * @param speed Speed in metres per second.
+     * @param time  Time of the fix in milliseconds since 1970.
+     */
+    public void setGpsInfo(String provider, double latitude, double longitude, double altitude, float speed, long time) {
+        if( provider != null )
+            setAttribute("GPSProcessingMethod", provider);
+        setAttribute("GPSLatitude", convertDecimalToRationalString(latitude));
+        setAttribute("GPSLatitudeRef", latitude >= 0 ? "N" : "S");
+        setAttribute("GPSLongitude", convertDecimalToRationalString(longitude));
+        setAttribute("GPSLongitudeRef", longitude >= 0 ? "E" : "W");
+        setAttribute("GPSAltitude", Long.toString((long)(Math.abs(altitude) * 10000)) + "/10000");
+        setAttribute("GPSAltitudeRef", altitude >= 0 ? "0" : "1");
+        // convert to km/h
+        setAttribute("GPSSpeedRef", "K");
+        setAttribute("GPSSpeed", Long.toString((long)(speed * 3600.0 / 1000.0 * 10000)) + "/10000");
+        SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd", Locale.US);
+        date_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        time_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date(time);
+        setAttribute("GPSDateStamp", date_fmt.format(date));
+        setAttribute("GPSTimeStamp", time_fmt.format(date));
+    }
+
+    private static String convertDecimalToRationalString(double position) {
+        position = Math.abs(position);
+        double degrees = Math.floor(position);
+        double minutes = Math.floor((position - degrees) * 60.0);
+        double seconds = (position - degrees - minutes / 60.0) * 3600.0 * 1.0e7;
+        return (int)degrees + "/1," + (int)minutes + "/1," + Math.round(seconds) + "/10000000";
+    }
+
+    private static int align(int offset) {
+        return (offset + 1) & ~1; // TIFF requires values to start on a word boundary
+    }
+
+    private static int ifdSize(Map<Integer, Entry> entries) {
+        return 2 + 12*entries.size() + 4;
+    }
+
+    private static TreeMap<Integer, Entry> merge(TreeMap<Integer, Entry> original, TreeMap<Integer, Entry> changes) {
+        TreeMap<Integer, Entry> entries = new TreeMap<>(original);
+        entries.putAll(changes);
+        return entries;
+    }
+
+    private Entry createPointer(int offset) {
+        byte [] value = ByteBuffer.allocate(4).order(tiff.order()).putInt(offset).array();
+        return new Entry(TYPE_LONG, 1, value, true);
+    }
+
+    /** Returns the start of the new JPEG, up to and including the new Exif segment. The full JPEG
+     *  consists of this, followed by the original JPEG data from getResumeOffset().
+     * @return The header, or null if the modified tags don't fit in a single segment.
+     */
+    public byte [] getHeader() {
+        if( header == null ) {
+            header = createHeader();
+        }
+        return header;
+    }
+
+    private byte [] createHeader() {
+        boolean new_exif_ifd = modified[IFD_EXIF].size() > 0;
+        boolean new_gps_ifd = modified[IFD_GPS].size() > 0;
+        TreeMap<Integer, Entry> ifd0 = merge(ifds[IFD_0], modified[IFD_0]);
+        TreeMap<Integer, Entry> exif_ifd = new_exif_ifd ? merge(ifds[IFD_EXIF], modified[IFD_EXIF]) : null;
+        TreeMap<Integer, Entry> gps_ifd = new_gps_ifd ? merge(ifds[IFD_GPS], modified[IFD_GPS]) : null;
+        if( new_gps_ifd && !gps_ifd.containsKey(gps_version_id_c) ) {
+            gps_ifd.put(gps_version_id_c, new Entry(TYPE_BYTE, 4, new byte[]{2, 2, 0, 0}, true));
+        }
+
+        // lay out the new IFDs after the original tiff data, followed by any values that don't fit in the IFDs
+        int ifd0_offset = align(tiff.limit());
+        // n.b., add the pointers before computing sizes, the offsets are filled in below
+        if( new_exif_ifd )
+            ifd0.put(exif_ifd_pointer_c, createPointer(0));
+        if( new_gps_ifd )
+            ifd0.put(gps_ifd_pointer_c, createPointer(0));
+        int offset = ifd0_offset + ifdSize(ifd0);
+        int exif_ifd_offset = 0;
+        if( new_exif_ifd ) {
+            exif_ifd_offset = offset;
+            ifd0.put(exif_ifd_pointer_c, createPointer(exif_ifd_offset));
+            offset += ifdSize(exif_ifd);
+        }
+        int gps_ifd_offset = 0;
+        if( new_gps_ifd ) {
+            gps_ifd_offset = offset;
+            ifd0.put(gps_ifd_pointer_c, createPointer(gps_ifd_offset));
+            offset += ifdSize(gps_ifd);
+        }
+        int values_offset = offset;
+        int tiff_length = values_offset + valuesSize(ifd0) + (new_exif_ifd ? valuesSize(exif_ifd) : 0) + (new_gps_ifd ? valuesSize(gps_ifd) : 0);
+        int segment_length = 2 + exif_identifier.length + tiff_length;
+        if( segment_length > max_segment_length_c ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "exif too large for a single segment: " + segment_length);
+            return null;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(app1_start + 2 + segment_length);
+        // data before the Exif segment (i.e., SOI and any other segments) is unchanged
+        ByteBuffer prefix = jpeg.duplicate();
+        prefix.position(0);
+        prefix.limit(app1_start);
+        result.put(prefix);
+        result.order(ByteOrder.BIG_ENDIAN);
+        result.put((byte)0xFF);
+        result.put((byte)0xE1);
+        result.putShort((short)segment_length);
+        result.put(exif_identifier);
+        int tiff_start = result.position();
+        ByteBuffer original = tiff.duplicate();
+        original.position(0);
+        result.put(original);
+        result.order(tiff.order());
+        result.putInt(tiff_start + 4, ifd0_offset);
+        result.position(tiff_start + ifd0_offset);
+
+        int [] values_position = {values_offset};
+        writeIfd(result, tiff_start, ifd0, remove_thumbnail ? 0 : ifd0_next_offset, values_position);
+        if( new_exif_ifd )
+            writeIfd(result, tiff_start, exif_ifd, 0, values_position);
+        if( new_gps_ifd )
+            writeIfd(result, tiff_start, gps_ifd, 0, values_position);
+        return result.array();
+    }
+
+    private static int valuesSize(Map<Integer, Entry> entries) {
+        int size = 0;
+        for(Entry entry : entries.values()) {
+            if( entry.is_new && entry.value.length > 4 )
+                size += align(entry.value.length);
+        }
+        return size;
+    }
+
+    /** Writes an IFD at the header's current position, with any values that don't fit in the
+     *  entries written at values_position[0] (which is updated).
+     */
+    private static void writeIfd(ByteBuffer header, int tiff_start, TreeMap<Integer, Entry> entries, int next_offset, int [] values_position) {
+        header.putShort((short)entries.size());
+        for(Map.Entry<Integer, Entry> map_entry : entries.entrySet()) {
+            Entry entry = map_entry.getValue();
+            header.putShort((short)(int)map_entry.getKey());
+            header.putShort((short)entry.type);
+            header.putInt(entry.count);
+            if( !entry.is_new || entry.value.length == 4 ) {
+                header.put(entry.value);
+            }
+            else if( entry.value.length < 4 ) {
+                header.put(entry.value);
+                for(int i=entry.value.length;i<4;i++)
+                    header.put((byte)0);
+            }
+            else {
+                int value_offset = values_position[0];
+                header.putInt(value_offset);
+                int position = header.position();
+                header.position(tiff_start + value_offset);
+                header.put(entry.value);
+                header.position(position);
+                values_position[0] += align(entry.value.length);
+            }
+        }
+        header.putInt(next_offset);
+    }
+
+    /** The offset in the original JPEG data from which the data should be written after the
+     *  header.
+     */
+    public int getResumeOffset() {
+        return app1_end;
+    }
+}
@@ -0,0 +1,14 @@
+package com.jeffmony.opencamera;
+
+import android.location.Location;
+
+/** The subset of the ExifInterface methods used for modifying tags, so that the same code can
+ *  modify tags either via an ExifInterface, or via an ExifSplicer. Tag names are those used by
+ *  ExifInterface.
+ */
+public interface ExifTagEditor {
+    String getAttribute(String tag);
+    boolean hasAttribute(String tag);
+    void setAttribute(String tag, String value);
+    void setGpsInfo(Location location);
+}
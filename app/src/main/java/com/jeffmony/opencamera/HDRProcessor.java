@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;*/
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -12,7 +13,10 @@ import java.util.List;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 //import android.media.MediaScannerConnection;
 import android.os.Build;
 //import android.os.Environment;
@@ -29,11 +33,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
 
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
+
 public class HDRProcessor {
     private static final String TAG = "HDRProcessor";
 
     private final Context context;
     private final boolean is_test;
+    private BitmapPool bitmapPool;
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using HDR
 
     // we lazily create and cache scripts that would otherwise have to be repeatedly created in a single
@@ -47,6 +54,10 @@ public class HDRProcessor {
     private ScriptC_histogram_compute histogramScript;
     private ScriptC_avg_brighten avgBrightenScript;
     private ScriptC_calculate_sharpness sharpnessScript;*/
+    private JavaHDRMerger javaHDRMerger; // lazily created, only needed for HDRMERGEBACKEND_JAVA or processHDRTiled()
+    private JavaMTBAligner javaMTBAligner; // lazily created, only needed for HDRALIGNBACKEND_JAVA
+    private static final int merge_strip_height_c = 256; // number of rows merged at a time by JavaHDRMerger
+    private static final long max_align_pixels_c = 16000000; // maximum resolution of the reduced images used by processHDRTiled()
 
     // public for access by testing
     public int [] offsets_x = null;
@@ -71,12 +82,79 @@ public class HDRProcessor {
         DROALGORITHM_NONE,
         DROALGORITHM_GAINGAMMA
     }
+    /** Which implementation to use for merging the images in processHDR() (for 2 or more images).
+     */
+    public enum HDRMergeBackend {
+        HDRMERGEBACKEND_RENDERSCRIPT, // process_hdr.rs
+        HDRMERGEBACKEND_JAVA // JavaHDRMerger
+    }
+    private HDRMergeBackend merge_backend = HDRMergeBackend.HDRMERGEBACKEND_RENDERSCRIPT;
+    /** Which implementation to use for the median threshold bitmap alignment in autoAlignment().
+     */
+    public enum HDRAlignBackend {
+        HDRALIGNBACKEND_RENDERSCRIPT, // create_mtb.rs and align_mtb.rs
+        HDRALIGNBACKEND_JAVA // JavaMTBAligner
+    }
+    private HDRAlignBackend align_backend = HDRAlignBackend.HDRALIGNBACKEND_RENDERSCRIPT;
 
     public HDRProcessor(Context context, boolean is_test) {
         this.context = context;
         this.is_test = is_test;
     }
 
+    /** Sets a pool that full resolution bitmaps are allocated from, and returned to when they're
+     *  no longer needed. If not set (or null), bitmaps are created and recycled directly.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /** Creates a mutable ARGB_8888 bitmap, from the bitmap pool if available.
+     */
+    private Bitmap createBitmap(int width, int height) {
+        if( bitmapPool != null ) {
+            return bitmapPool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Frees a full resolution bitmap that is no longer needed, returning it to the bitmap pool if
+     *  available.
+     */
+    private void freeBitmap(Bitmap bitmap) {
+        if( bitmapPool != null ) {
+            bitmapPool.release(bitmap);
+        }
+        else {
+            bitmap.recycle();
+        }
+    }
+
+    /** Sets the implementation used to merge the images in processHDR(). The application always uses
+     *  the default of HDRMERGEBACKEND_RENDERSCRIPT; HDRMERGEBACKEND_JAVA is only selected by tests
+     *  (see testHDRJavaMerge), until it has been verified on devices. Note that processHDRTiled()
+     *  always uses JavaHDRMerger.
+     */
+    public void setMergeBackend(HDRMergeBackend merge_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setMergeBackend: " + merge_backend);
+        this.merge_backend = merge_backend;
+    }
+
+    public HDRMergeBackend getMergeBackend() {
+        return this.merge_backend;
+    }
+
+    public void setAlignBackend(HDRAlignBackend align_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setAlignBackend: " + align_backend);
+        this.align_backend = align_backend;
+    }
+
+    public HDRAlignBackend getAlignBackend() {
+        return this.align_backend;
+    }
+
     private void freeScripts() {
         if( MyDebug.LOG )
             Log.d(TAG, "freeScripts");
@@ -115,8 +193,9 @@ public class HDRProcessor {
      *  We use it to modify the pixels of images taken at the brighter or darker exposure
      *  levels, to estimate what the pixel should be at the "base" exposure.
      *  We estimate as y = parameter_A * x + parameter_B.
+     *  Package-private rather than private so that the fitting can be benchmarked.
      */
-    private static class ResponseFunction {
+    static class ResponseFunction {
         float parameter_A;
         float parameter_B;
 
@@ -514,20 +593,34 @@ public class HDRProcessor {
         //return 0.27*r + 0.67*g + 0.06*b;
     }
 
-    /** Core implementation of HDR algorithm.
-     *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
-     *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
-     *  Using the support libraries (set via project.properties renderscript.support.mode) would bloat the APK
-     *  by around 1799KB! We don't care about pre-Android 4.4 (HDR requires CameraController2 which requires
-     *  Android 5.0 anyway; even if we later added support for CameraController1, we can simply say HDR requires
-     *  Android 5.0).
+    /** The values computed by computeHDRParameters() that are needed to merge the images.
+     */
+    private static class HDRParameters {
+        final int base_bitmap;
+        final boolean use_hdr_n;
+        final ResponseFunction [] response_functions;
+        final JavaHDRMerger.TonemapParameters tonemap_parameters;
+
+        HDRParameters(int base_bitmap, boolean use_hdr_n, ResponseFunction [] response_functions, JavaHDRMerger.TonemapParameters tonemap_parameters) {
+            this.base_bitmap = base_bitmap;
+            this.use_hdr_n = use_hdr_n;
+            this.response_functions = response_functions;
+            this.tonemap_parameters = tonemap_parameters;
+        }
+    }
+
+    /** Performs the auto-alignment, and computes the response functions and tonemapping parameters, for
+     *  processHDRCore() and processHDRTiled(). The offsets are stored in offsets_x and offsets_y.
+     * @param allocations Allocations created from the bitmaps, used for the auto-alignment.
+     * @param align_width  The width to use for computing the maximum alignment offset, normally the same as the
+     *                     width of the bitmaps.
+     * @param align_height The height to use for computing the maximum alignment offset, normally the same as the
+     *                     height of the bitmaps.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void processHDRCore(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+    private HDRParameters computeHDRParameters(List<Bitmap> bitmaps, Allocation [] allocations, int align_width, int align_height, boolean assume_sorted, SortCallback sort_cb, TonemappingAlgorithm tonemapping_algorithm, long time_s) {
         if( MyDebug.LOG )
-            Log.d(TAG, "processHDRCore");
-
-        long time_s = System.currentTimeMillis();
+            Log.d(TAG, "computeHDRParameters");
 
         int n_bitmaps = bitmaps.size();
         int width = bitmaps.get(0).getWidth();
@@ -542,23 +635,13 @@ public class HDRProcessor {
         //float [] hdr = new float[3];
         //int [] rgb = new int[3];
 
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
-        // create allocations
-        Allocation [] allocations = new Allocation[n_bitmaps];
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
         //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
         final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
         // for even number of images, round up to brighter image
 
         // perform auto-alignment
         // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
-        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
+        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, align_width, align_height, time_s);
         int median_brightness = brightnessDetails.median_brightness;
         if( MyDebug.LOG ) {
             Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
@@ -645,108 +728,6 @@ public class HDRProcessor {
 
         // write new hdr image
 
-        // create RenderScript
-        /*if( processHDRScript == null ) {
-            processHDRScript = new ScriptC_process_hdr(rs);
-        }*/
-        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
-
-        // set allocations
-        processHDRScript.set_bitmap0(allocations[0]);
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_bitmap2(allocations[2]);
-        }
-
-        // set offsets
-        processHDRScript.set_offset_x0(offsets_x[0]);
-        processHDRScript.set_offset_y0(offsets_y[0]);
-        // no offset for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_offset_x2(offsets_x[2]);
-            processHDRScript.set_offset_y2(offsets_y[2]);
-        }
-
-        // set response functions
-        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
-        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
-        // no response function for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
-            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
-        }
-
-        if( use_hdr_n ) {
-            // now need to set values for image 1
-            processHDRScript.set_bitmap1(allocations[1]);
-            processHDRScript.set_offset_x1(offsets_x[1]);
-            processHDRScript.set_offset_y1(offsets_y[1]);
-            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
-            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
-        }
-
-        if( n_bitmaps > 3 ) {
-            processHDRScript.set_bitmap3(allocations[3]);
-            processHDRScript.set_offset_x3(offsets_x[3]);
-            processHDRScript.set_offset_y3(offsets_y[3]);
-            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
-            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
-
-            if( n_bitmaps > 4 ) {
-                processHDRScript.set_bitmap4(allocations[4]);
-                processHDRScript.set_offset_x4(offsets_x[4]);
-                processHDRScript.set_offset_y4(offsets_y[4]);
-                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
-                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
-
-                if( n_bitmaps > 5 ) {
-                    processHDRScript.set_bitmap5(allocations[5]);
-                    processHDRScript.set_offset_x5(offsets_x[5]);
-                    processHDRScript.set_offset_y5(offsets_y[5]);
-                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
-                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
-
-                    if( n_bitmaps > 6 ) {
-                        processHDRScript.set_bitmap6(allocations[6]);
-                        processHDRScript.set_offset_x6(offsets_x[6]);
-                        processHDRScript.set_offset_y6(offsets_y[6]);
-                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
-                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
-                    }
-                }
-            }
-        }
-
-        // set globals
-
-        // set tonemapping algorithm
-        switch( tonemapping_algorithm ) {
-            case TONEMAPALGORITHM_CLAMP:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: clamp");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
-                break;
-            case TONEMAPALGORITHM_EXPONENTIAL:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: exponential");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
-                break;
-            case TONEMAPALGORITHM_REINHARD:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: reinhard");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
-                break;
-            case TONEMAPALGORITHM_FU2:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: fu2");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_fu2_c() );
-                break;
-            case TONEMAPALGORITHM_ACES:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: aces");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-                break;
-        }
-
         float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
         //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
         if( MyDebug.LOG )
@@ -814,9 +795,10 @@ public class HDRProcessor {
         // (tonemap_scale_c==255 means therefore that colours will only be made darker).
         if( MyDebug.LOG )
             Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-        processHDRScript.set_tonemap_scale(tonemap_scale_c);
 
         // algorithm specific parameters
+        float linear_scale = 1.0f;
+        float W = 11.2f; // default value from process_hdr.rs, only used for FU2
         switch( tonemapping_algorithm ) {
             case TONEMAPALGORITHM_EXPONENTIAL:
             {
@@ -827,11 +809,10 @@ public class HDRProcessor {
                 // so 1 = S . (1 - exp( - E * Vmax ))
                 // => S = 1 / (1 - exp( - E * Vmax ))
                 // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
-                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
+                float E = JavaHDRMerger.exposure_c;
+                linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
             case TONEMAPALGORITHM_REINHARD: {
@@ -854,24 +835,179 @@ public class HDRProcessor {
                 // max_possible_value >= 255.
                 // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
                 // though this is poorer performance (in terms of calculation time).
-                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
+                linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
             case TONEMAPALGORITHM_FU2:
             {
                 // For FU2, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
                 // We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_fu2_exposure_bias();
-                float W = E * max_possible_value;
+                float E = JavaHDRMerger.fu2_exposure_bias_c;
+                W = E * max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "fu2 W: " + W);
-                processHDRScript.set_W(W);
                 break;
             }
         }
+        JavaHDRMerger.TonemapParameters tonemap_parameters = new JavaHDRMerger.TonemapParameters(tonemapping_algorithm, tonemap_scale_c, linear_scale, W);
+
+        return new HDRParameters(base_bitmap, use_hdr_n, response_functions, tonemap_parameters);
+    }
+
+    /** Core implementation of HDR algorithm.
+     *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
+     *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
+     *  Using the support libraries (set via project.properties renderscript.support.mode) would bloat the APK
+     *  by around 1799KB! We don't care about pre-Android 4.4 (HDR requires CameraController2 which requires
+     *  Android 5.0 anyway; even if we later added support for CameraController1, we can simply say HDR requires
+     *  Android 5.0).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processHDRCore(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCore");
+
+        long time_s = System.currentTimeMillis();
+
+        int n_bitmaps = bitmaps.size();
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+
+        initRenderscript();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+        // create allocations
+        Allocation [] allocations = new Allocation[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+        HDRParameters parameters = computeHDRParameters(bitmaps, allocations, width, height, assume_sorted, sort_cb, tonemapping_algorithm, time_s);
+        final int base_bitmap = parameters.base_bitmap;
+        final boolean use_hdr_n = parameters.use_hdr_n;
+        ResponseFunction [] response_functions = parameters.response_functions;
+        JavaHDRMerger.TonemapParameters tonemap_parameters = parameters.tonemap_parameters;
+
+        if( merge_backend == HDRMergeBackend.HDRMERGEBACKEND_JAVA ) {
+            // the allocations were only needed for autoAlignment(), so free them before creating the int [] buffers
+            for(int i=0;i<n_bitmaps;i++) {
+                allocations[i].destroy();
+                allocations[i] = null;
+            }
+            processHDRCoreJava(bitmaps, release_bitmaps, output_bitmap, base_bitmap, use_hdr_n, response_functions, tonemap_parameters, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            freeScripts();
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+            return;
+        }
+
+        // create RenderScript
+        /*if( processHDRScript == null ) {
+            processHDRScript = new ScriptC_process_hdr(rs);
+        }*/
+        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
+
+        // set allocations
+        processHDRScript.set_bitmap0(allocations[0]);
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_bitmap2(allocations[2]);
+        }
+
+        // set offsets
+        processHDRScript.set_offset_x0(offsets_x[0]);
+        processHDRScript.set_offset_y0(offsets_y[0]);
+        // no offset for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_offset_x2(offsets_x[2]);
+            processHDRScript.set_offset_y2(offsets_y[2]);
+        }
+
+        // set response functions
+        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
+        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
+        // no response function for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
+            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
+        }
+
+        if( use_hdr_n ) {
+            // now need to set values for image 1
+            processHDRScript.set_bitmap1(allocations[1]);
+            processHDRScript.set_offset_x1(offsets_x[1]);
+            processHDRScript.set_offset_y1(offsets_y[1]);
+            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
+            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
+        }
+
+        if( n_bitmaps > 3 ) {
+            processHDRScript.set_bitmap3(allocations[3]);
+            processHDRScript.set_offset_x3(offsets_x[3]);
+            processHDRScript.set_offset_y3(offsets_y[3]);
+            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
+            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
+
+            if( n_bitmaps > 4 ) {
+                processHDRScript.set_bitmap4(allocations[4]);
+                processHDRScript.set_offset_x4(offsets_x[4]);
+                processHDRScript.set_offset_y4(offsets_y[4]);
+                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
+                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
+
+                if( n_bitmaps > 5 ) {
+                    processHDRScript.set_bitmap5(allocations[5]);
+                    processHDRScript.set_offset_x5(offsets_x[5]);
+                    processHDRScript.set_offset_y5(offsets_y[5]);
+                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
+                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
+
+                    if( n_bitmaps > 6 ) {
+                        processHDRScript.set_bitmap6(allocations[6]);
+                        processHDRScript.set_offset_x6(offsets_x[6]);
+                        processHDRScript.set_offset_y6(offsets_y[6]);
+                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
+                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
+                    }
+                }
+            }
+        }
+
+        // set globals
+
+        // set tonemapping algorithm
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: clamp");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: exponential");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
+                break;
+            case TONEMAPALGORITHM_REINHARD:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: reinhard");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
+                break;
+            case TONEMAPALGORITHM_FU2:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: fu2");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_fu2_c() );
+                break;
+            case TONEMAPALGORITHM_ACES:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: aces");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
+                break;
+        }
+        processHDRScript.set_tonemap_scale(tonemap_parameters.tonemap_scale);
+        processHDRScript.set_linear_scale(tonemap_parameters.linear_scale);
+        processHDRScript.set_W(tonemap_parameters.W);
 
         if( MyDebug.LOG )
             Log.d(TAG, "call processHDRScript");
@@ -907,7 +1043,7 @@ public class HDRProcessor {
             for(int i=0;i<bitmaps.size();i++) {
                 if (i != base_bitmap) {
                     Bitmap bitmap = bitmaps.get(i);
-                    bitmap.recycle();
+                    freeBitmap(bitmap);
                 }
             }
         }
@@ -947,6 +1083,341 @@ public class HDRProcessor {
             Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** Performs the merge step of processHDRCore() using JavaHDRMerger rather than process_hdr.rs.
+     *  The image is processed in strips, so we only need int [] buffers for the rows of each input
+     *  image that are required for the current strip, rather than a full copy of every image.
+     *  The contrast enhancement (if hdr_alpha is non-zero) is still done with RenderScript.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processHDRCoreJava(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, int base_bitmap, boolean use_hdr_n, ResponseFunction [] response_functions, JavaHDRMerger.TonemapParameters tonemap_parameters, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCoreJava");
+
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+
+        // If release_bitmaps is true, we write the output to the base bitmap. This is safe to do a strip at a
+        // time, as the base image has no offset, so later strips never read rows that have already been written.
+        Bitmap out_bitmap = release_bitmaps ? bitmaps.get(base_bitmap) : output_bitmap;
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before JavaHDRMerger: " + (System.currentTimeMillis() - time_s));
+        mergeInStrips(new BitmapStripReader(bitmaps), bitmaps.size(), width, height, base_bitmap, use_hdr_n, response_functions, tonemap_parameters, out_bitmap);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after JavaHDRMerger: " + (System.currentTimeMillis() - time_s));
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            // bitmaps.get(base_bitmap) now stores HDR image, so free up the rest of the memory asap
+            for(int i=0;i<bitmaps.size();i++) {
+                if (i != base_bitmap) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    freeBitmap(bitmap);
+                }
+            }
+        }
+
+        if( hdr_alpha != 0.0f ) {
+            Allocation allocation = Allocation.createFromBitmap(rs, out_bitmap);
+            adjustHistogram(allocation, allocation, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            allocation.copyTo(out_bitmap);
+            allocation.destroy();
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( release_bitmaps ) {
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, bitmaps.get(base_bitmap));
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+    }
+
+    /** Supplies the rows of the input images to mergeInStrips().
+     */
+    private interface StripReader {
+        /** Reads rows y0 (inclusive) to y1 (exclusive) of the image with the supplied index into pixels,
+         *  with a stride of the image width.
+         * @return False if the rows couldn't be read.
+         */
+        boolean readRows(int index, int y0, int y1, int [] pixels);
+    }
+
+    /** StripReader for images that are already decoded.
+     */
+    private static class BitmapStripReader implements StripReader {
+        private final List<Bitmap> bitmaps;
+
+        BitmapStripReader(List<Bitmap> bitmaps) {
+            this.bitmaps = bitmaps;
+        }
+
+        @Override
+        public boolean readRows(int index, int y0, int y1, int [] pixels) {
+            Bitmap bitmap = bitmaps.get(index);
+            bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, y0, bitmap.getWidth(), y1-y0);
+            return true;
+        }
+    }
+
+    /** StripReader that decodes the rows from JPEG data as required, so that we never need to decode the full
+     *  resolution images.
+     */
+    private static class RegionStripReader implements StripReader {
+        private final BitmapRegionDecoder [] decoders;
+        private final BitmapFactory.Options options = new BitmapFactory.Options();
+        private final Rect rect = new Rect();
+        private Bitmap strip_bitmap; // reused for decoding each strip, when large enough
+
+        RegionStripReader(BitmapRegionDecoder [] decoders) {
+            this.decoders = decoders;
+            options.inMutable = true; // needed for reusing via inBitmap
+        }
+
+        @Override
+        public boolean readRows(int index, int y0, int y1, int [] pixels) {
+            int width = decoders[index].getWidth();
+            rect.set(0, y0, width, y1);
+            if( strip_bitmap != null && strip_bitmap.getWidth() >= width && strip_bitmap.getHeight() >= y1-y0 ) {
+                options.inBitmap = strip_bitmap;
+            }
+            else {
+                options.inBitmap = null;
+                if( strip_bitmap != null ) {
+                    strip_bitmap.recycle();
+                    strip_bitmap = null;
+                }
+            }
+            Bitmap bitmap = decoders[index].decodeRegion(rect, options);
+            if( bitmap == null ) {
+                Log.e(TAG, "failed to decode region " + rect + " of image " + index);
+                return false;
+            }
+            strip_bitmap = bitmap;
+            // if inBitmap was used, the decoded region is in the top left corner
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, y1-y0);
+            return true;
+        }
+
+        void recycle() {
+            if( strip_bitmap != null ) {
+                strip_bitmap.recycle();
+                strip_bitmap = null;
+            }
+        }
+    }
+
+    /** Merges the images using JavaHDRMerger, a strip of rows at a time, writing the result to out_bitmap.
+     *  For each strip, we only read the rows of each input image that are needed after applying its offset
+     *  (offsets_x, offsets_y), so the memory used is proportional to the strip height rather than the number of
+     *  images.
+     * @return False if reader failed to read any of the rows.
+     */
+    private boolean mergeInStrips(StripReader reader, int n_bitmaps, int width, int height, int base_bitmap, boolean use_hdr_n, ResponseFunction [] response_functions, JavaHDRMerger.TonemapParameters tonemap_parameters, Bitmap out_bitmap) {
+        // a null ResponseFunction indicates the identity
+        float [] parameter_A = new float[n_bitmaps];
+        float [] parameter_B = new float[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            ResponseFunction function = response_functions[i];
+            parameter_A[i] = function != null ? function.parameter_A : 1.0f;
+            parameter_B[i] = function != null ? function.parameter_B : 0.0f;
+        }
+
+        if( javaHDRMerger == null ) {
+            javaHDRMerger = new JavaHDRMerger();
+        }
+        int [][] inputs = new int[n_bitmaps][];
+        int [] inputs_y0 = new int[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            inputs[i] = new int[width*merge_strip_height_c];
+        }
+        int [] output = new int[width*merge_strip_height_c];
+        for(int y_start=0;y_start<height;y_start+=merge_strip_height_c) {
+            int y_end = Math.min(y_start+merge_strip_height_c, height);
+            for(int i=0;i<n_bitmaps;i++) {
+                // only need the rows of this image that lie within the image after applying the offset
+                int y0 = Math.max(y_start + offsets_y[i], 0);
+                int y1 = Math.min(y_end + offsets_y[i], height);
+                inputs_y0[i] = y0;
+                if( y1 > y0 ) {
+                    if( !reader.readRows(i, y0, y1, inputs[i]) )
+                        return false;
+                }
+            }
+            javaHDRMerger.mergeRows(inputs, inputs_y0, width, height, base_bitmap, use_hdr_n, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, y_start, y_end, output);
+            out_bitmap.setPixels(output, 0, width, 0, y_start, width, y_end-y_start);
+        }
+        return true;
+    }
+
+    /** Returns the inSampleSize to use with processHDRTiled() for images of the supplied resolution. This is the
+     *  smallest power of 2 such that the reduced images have no more than max_align_pixels_c pixels, and all of the
+     *  reduced images (which are held at once) fit in max_bytes.
+     * @param n_images  The number of images.
+     * @param max_bytes The memory available for the reduced images, e.g., the memory reserved for post-processing.
+     */
+    public static int computeTiledAlignSampleSize(int width, int height, int n_images, long max_bytes) {
+        int sample_size = 1;
+        while( true ) {
+            long n_pixels = ((long)width/sample_size) * ((long)height/sample_size);
+            if( n_pixels <= 1 || ( n_pixels <= max_align_pixels_c && 4L*n_images*n_pixels <= max_bytes ) ) { // ARGB_8888
+                break;
+            }
+            sample_size *= 2;
+        }
+        return sample_size;
+    }
+
+    /** An alternative to processHDR() for high resolution images, which takes the images as JPEG data, and never
+     *  decodes all of the images at full resolution at once.
+     *  The alignment, response functions and tonemapping parameters are computed from copies of the images decoded
+     *  at a reduced resolution. The merge is then done with JavaHDRMerger a strip at a time (whatever the merge
+     *  backend), decoding just the rows of each image required for the current strip with BitmapRegionDecoder, and
+     *  writing each strip to the output. The contrast enhancement is also applied a strip at a time, see
+     *  adjustHistogramInStrips(). So the peak memory is the output bitmap plus the reduced resolution images,
+     *  rather than every image at full resolution.
+     *  Note that the offsets are only as accurate as the reduced resolution.
+     *  There's no tiled equivalent for noise reduction (processAvg()/processAvgMulti()): those images are instead
+     *  merged one at a time as they arrive (see NRAccumulator), at the resolution given by getAvgSampleSize().
+     * @param jpeg_images The JPEG images, sorted in order from darkest to brightest exposure. Must be between 2 and
+     *                    7 images, all of the same resolution.
+     * @param align_sample_size The inSampleSize to decode the images with for computing the alignment and other
+     *                          parameters, see computeTiledAlignSampleSize().
+     * @return A new mutable bitmap containing the HDR image.
+     * See processHDR() for the other parameters.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap processHDRTiled(List<ImageBuffer> jpeg_images, int align_sample_size, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "processHDRTiled");
+            Log.d(TAG, "align_sample_size: " + align_sample_size);
+        }
+        long time_s = System.currentTimeMillis();
+        int n_bitmaps = jpeg_images.size();
+        if( n_bitmaps < 2 || n_bitmaps > 7 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "n_bitmaps not supported: " + n_bitmaps);
+            throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+        }
+
+        BitmapRegionDecoder [] decoders = new BitmapRegionDecoder[n_bitmaps];
+        List<Bitmap> bitmaps = new ArrayList<>();
+        RegionStripReader reader = null;
+        Bitmap output_bitmap = null;
+        try {
+            for(int i=0;i<n_bitmaps;i++) {
+                try {
+                    decoders[i] = BitmapRegionDecoder.newInstance(jpeg_images.get(i).getInputStream(), false);
+                }
+                catch(IOException e) {
+                    Log.e(TAG, "failed to create region decoder for image " + i);
+                    e.printStackTrace();
+                    throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+                }
+            }
+            int width = decoders[0].getWidth();
+            int height = decoders[0].getHeight();
+            for(int i=1;i<n_bitmaps;i++) {
+                if( decoders[i].getWidth() != width || decoders[i].getHeight() != height ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "images not of same resolution");
+                    throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+                }
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = align_sample_size;
+            for(int i=0;i<n_bitmaps;i++) {
+                Bitmap bitmap = BitmapFactory.decodeStream(jpeg_images.get(i).getInputStream(), null, options);
+                if( bitmap == null ) {
+                    Log.e(TAG, "failed to decode reduced image " + i);
+                    throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+                }
+                bitmaps.add(bitmap);
+            }
+            int align_width = bitmaps.get(0).getWidth();
+            int align_height = bitmaps.get(0).getHeight();
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "full resolution: " + width + " x " + height);
+                Log.d(TAG, "align resolution: " + align_width + " x " + align_height);
+                Log.d(TAG, "### time after decoding reduced images: " + (System.currentTimeMillis() - time_s));
+            }
+
+            initRenderscript();
+            Allocation [] allocations = new Allocation[n_bitmaps];
+            for(int i=0;i<n_bitmaps;i++) {
+                allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+            }
+            HDRParameters parameters = computeHDRParameters(bitmaps, allocations, align_width, align_height, true, null, tonemapping_algorithm, time_s);
+            for(int i=0;i<n_bitmaps;i++) {
+                allocations[i].destroy();
+                allocations[i] = null;
+            }
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+
+            // scale the offsets up to the full resolution
+            for(int i=0;i<n_bitmaps;i++) {
+                offsets_x[i] = Math.round(((float)offsets_x[i] * width) / align_width);
+                offsets_y[i] = Math.round(((float)offsets_y[i] * height) / align_height);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "full resolution offset for image " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+            }
+
+            output_bitmap = createBitmap(width, height);
+            reader = new RegionStripReader(decoders);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time before JavaHDRMerger: " + (System.currentTimeMillis() - time_s));
+            if( !mergeInStrips(reader, n_bitmaps, width, height, parameters.base_bitmap, parameters.use_hdr_n, parameters.response_functions, parameters.tonemap_parameters, output_bitmap) ) {
+                throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after JavaHDRMerger: " + (System.currentTimeMillis() - time_s));
+            reader.recycle();
+            reader = null;
+            for(int i=0;i<n_bitmaps;i++) {
+                decoders[i].recycle();
+                decoders[i] = null;
+            }
+
+            if( hdr_alpha != 0.0f ) {
+                // the contrast enhancement needs histograms of the whole image, so is done on the output bitmap
+                adjustHistogramInStrips(output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+            }
+            freeScripts();
+
+            Bitmap result = output_bitmap;
+            output_bitmap = null;
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time for processHDRTiled: " + (System.currentTimeMillis() - time_s));
+            return result;
+        }
+        finally {
+            // clean up, in case we failed
+            if( reader != null ) {
+                reader.recycle();
+            }
+            for(BitmapRegionDecoder decoder : decoders) {
+                if( decoder != null ) {
+                    decoder.recycle();
+                }
+            }
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            if( output_bitmap != null ) {
+                freeBitmap(output_bitmap);
+            }
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void processSingleImage(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
         if( MyDebug.LOG )
@@ -1606,7 +2077,7 @@ public class HDRProcessor {
         if( bitmap_new != null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "release bitmap_new");
-            bitmap_new.recycle();
+            freeBitmap(bitmap_new);
             //noinspection UnusedAssignment
             bitmap_new = null;
         }
@@ -1719,7 +2190,7 @@ public class HDRProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "release bitmaps");
             for(int i=1;i<bitmaps.size();i++) {
-                bitmaps.get(i).recycle();
+                freeBitmap(bitmaps.get(i));
             }
         }
 
@@ -1798,7 +2269,12 @@ public class HDRProcessor {
             offsets_y[i] = 0;
         }
 
+        // JavaMTBAligner only supports the median threshold bitmaps, not the greyscale alignment
+        final boolean java_align = use_mtb && align_backend == HDRAlignBackend.HDRALIGNBACKEND_JAVA;
+        if( MyDebug.LOG )
+            Log.d(TAG, "java_align: " + java_align);
         Allocation [] mtb_allocations = new Allocation[allocations.length];
+        JavaMTBAligner.MTB [] java_mtbs = java_align ? new JavaMTBAligner.MTB[allocations.length] : null;
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating mtb_allocations: " + (System.currentTimeMillis() - time_s));
 
@@ -1823,7 +2299,7 @@ public class HDRProcessor {
         }
 
         // create RenderScript
-        if( createMTBScript == null ) {
+        if( createMTBScript == null && !java_align ) {
             createMTBScript = new ScriptC_create_mtb(rs);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
@@ -1943,8 +2419,6 @@ public class HDRProcessor {
                 continue;
             }
 
-            mtb_allocations[i] = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), mtb_width, mtb_height));
-
             // avoid too low/high median_values, otherwise we'll detect dark or light pixels as "noisy" - needed for testHDR61
             final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
             /*if( median_value < min_diff_c+1 || median_value > 255-(min_diff_c+1) ) {
@@ -1955,6 +2429,15 @@ public class HDRProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, i + ": median_value is now: " + median_value);
 
+            if( java_align ) {
+                java_mtbs[i] = createJavaMTB(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height, median_value);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time after createJavaMTB: " + (System.currentTimeMillis() - time_s));
+                continue;
+            }
+
+            mtb_allocations[i] = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), mtb_width, mtb_height));
+
             // set parameters
             if( use_mtb )
                 createMTBScript.set_median_value(median_value);
@@ -2032,6 +2515,21 @@ public class HDRProcessor {
             Log.d(TAG, "initial_step_size: " + initial_step_size);
         }
 
+        if( java_align ) {
+            if( javaMTBAligner == null ) {
+                javaMTBAligner = new JavaMTBAligner();
+            }
+            // if the base image isn't suitable for image alignment, this leaves the offsets as 0
+            javaMTBAligner.align(java_mtbs, base_bitmap, initial_step_size, min_step_size, offsets_x, offsets_y);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "### time after JavaMTBAligner: " + (System.currentTimeMillis() - time_s));
+                for(int i=0;i<offsets_x.length;i++) {
+                    Log.d(TAG, "resultant offsets for image " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+                }
+            }
+            return new BrightnessDetails(median_brightness);
+        }
+
         if( mtb_allocations[base_bitmap] == null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "base image not suitable for image alignment");
@@ -2236,6 +2734,22 @@ public class HDRProcessor {
         return new BrightnessDetails(median_brightness);
     }
 
+    /** Creates the median threshold bitmap for the region of bitmap starting at (mtb_x, mtb_y), for
+     *  use with JavaMTBAligner. This is equivalent to create_mtb.rs/create_mtb().
+     */
+    private static JavaMTBAligner.MTB createJavaMTB(Bitmap bitmap, int mtb_x, int mtb_y, int mtb_width, int mtb_height, int median_value) {
+        JavaMTBAligner.MTB mtb = new JavaMTBAligner.MTB(mtb_width, mtb_height);
+        // read a strip of rows at a time, to avoid converting the whole image to an int []
+        final int strip_height = 64;
+        int [] pixels = new int[mtb_width*Math.min(strip_height, mtb_height)];
+        for(int y=0;y<mtb_height;y+=strip_height) {
+            int n_rows = Math.min(strip_height, mtb_height-y);
+            bitmap.getPixels(pixels, 0, mtb_width, mtb_x, mtb_y+y, mtb_width, n_rows);
+            mtb.setRows(y, n_rows, pixels, median_value);
+        }
+        return mtb;
+    }
+
     public static class LuminanceInfo implements Comparable<LuminanceInfo> {
         final int min_value;
         final int median_value;
@@ -2537,130 +3051,8 @@ public class HDRProcessor {
                             }
                         }*/
 
-                    // clip histogram, for Contrast Limited AHE algorithm
                     int n_pixels = (stop_x - start_x) * (stop_y - start_y);
-                    int clip_limit = (5 * n_pixels) / 256;
-                    /*if( MyDebug.LOG ) {
-                        Log.d(TAG, "clip_limit: " + clip_limit);
-                        Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
-                    }*/
-                    {
-                        // find real clip limit
-                        int bottom = 0, top = clip_limit;
-                        while( top - bottom > 1 ) {
-                            int middle = (top + bottom)/2;
-                            int sum = 0;
-                            for(int x=0;x<256;x++) {
-                                if( histogram[x] > middle ) {
-                                    sum += (histogram[x] - clip_limit);
-                                }
-                            }
-                            if( sum > (clip_limit - middle) * 256 )
-                                top = middle;
-                            else
-                                bottom = middle;
-                        }
-                        clip_limit = (top + bottom)/2;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "updated clip_limit: " + clip_limit);
-                            Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
-                        }*/
-                    }
-                    int n_clipped = 0;
-                    for(int x=0;x<256;x++) {
-                        if( histogram[x] > clip_limit ) {
-                            /*if( MyDebug.LOG ) {
-                                Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
-                            }*/
-                            n_clipped += (histogram[x] - clip_limit);
-                            histogram[x] = clip_limit;
-                        }
-                    }
-                    int n_clipped_per_bucket = n_clipped / 256;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "n_clipped: " + n_clipped);
-                            Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
-                        }*/
-                    for(int x=0;x<256;x++) {
-                        histogram[x] += n_clipped_per_bucket;
-                    }
-
-                    if( ce_preserve_blacks ) {
-                        // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
-                        // The basic idea is that we want to avoid making darker pixels darker (by too
-                        // much). We do this by adjusting the histogram:
-                        // * We can set a minimum value of each histogram value. E.g., if we set all
-                        //   pixels up to a certain brightness to a value equal to n_pixels/256, then
-                        //   we prevent those pixels from being made darker. In practice, we choose
-                        //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
-                        //   interpolating to no minimum at brightness 128 (dark_threshold_c).
-                        // * For any adjusted value of the histogram, we redistribute, by reducing
-                        //   the histogram values of brighter pixels with values larger than (n_pixels/256),
-                        //   reducing them to a minimum of (n_pixels/256).
-                        // * Lastly, we only modify a given histogram value if pixels of that brightness
-                        //   would be made darker by the CLAHE algorithm. We can do this by looking at
-                        //   the cumulative histogram (as computed before modifying any values).
-                        /*if( MyDebug.LOG ) {
-                            for(int x=0;x<256;x++) {
-                                Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
-                            }
-                        }*/
-
-                        temp_c_histogram[0] = histogram[0];
-                        for(int x=1;x<256;x++) {
-                            temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
-                        }
-
-                        // avoid making pixels too dark
-                        int equal_limit = n_pixels / 256;
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "equal_limit: " + equal_limit);
-                        //final int dark_threshold_c = 64;
-                        final int dark_threshold_c = 128;
-                        //final int dark_threshold_c = 256;
-                        for(int x=0;x<dark_threshold_c;x++) {
-                            int c_equal_limit = equal_limit * (x+1);
-                            if( temp_c_histogram[x] >= c_equal_limit ) {
-                                continue;
-                            }
-                            float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
-                            //float alpha = 1.0f - ((float)x)/256.0f;
-                            int limit = (int)(alpha * equal_limit);
-                            //int limit = equal_limit;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "x: " + x + " ; limit: " + limit);
-                            /*histogram[x] = Math.max(histogram[x], limit);
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
-                            if( histogram[x] < limit ) {
-                                // top up by redistributing later values
-                                for(int y=x+1;y<256 && histogram[x] < limit;y++) {
-                                    if( histogram[y] > equal_limit ) {
-                                        int move = histogram[y] - equal_limit;
-                                        move = Math.min(move, limit - histogram[x]);
-                                        histogram[x] += move;
-                                        histogram[y] -= move;
-                                    }
-                                }
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
-                                /*if( temp_c_histogram[x] >= c_equal_limit )
-                                    throw new RuntimeException(); // test*/
-                            }
-                        }
-                    }
-
-                    // compute cumulative histogram
-                    int histogram_offset = 256*(i*n_tiles+j);
-                    c_histogram[histogram_offset] = histogram[0];
-                    for(int x=1;x<256;x++) {
-                        c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
-                    }
-                    if( MyDebug.LOG ) {
-                        for(int x=0;x<256;x++) {
-                            Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
-                        }
-                    }
+                    computeCLAHEHistogram(histogram, n_pixels, ce_preserve_blacks, temp_c_histogram, c_histogram, 256*(i*n_tiles+j));
                 }
             }
 
@@ -2690,6 +3082,228 @@ public class HDRProcessor {
         }
     }
 
+    /** Equivalent to adjustHistogram() applied to the bitmap in place, but without creating an Allocation for the
+     *  whole of the bitmap. The tile histograms are computed from the bitmap's pixels, and histogram_adjust.rs is then
+     *  run a strip of rows at a time, so the extra memory needed is proportional to the strip height. Used by
+     *  processHDRTiled(), where the output bitmap is too large to have a second full resolution copy.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void adjustHistogramInStrips(Bitmap bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "adjustHistogramInStrips");
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int strip_height = Math.min(merge_strip_height_c, height);
+
+        // the tiles are the same as in adjustHistogram()
+        int [] tile_x = new int[width];
+        int [] tile_y = new int[height];
+        int [] tile_width = new int[n_tiles];
+        int [] tile_height = new int[n_tiles];
+        for(int i=0;i<n_tiles;i++) {
+            int start_x = (int)((((double)i)/(double)n_tiles) * width);
+            int stop_x = (int)((((double)i+1.0)/(double)n_tiles) * width);
+            for(int x=start_x;x<stop_x;x++)
+                tile_x[x] = i;
+            tile_width[i] = stop_x - start_x;
+            int start_y = (int)((((double)i)/(double)n_tiles) * height);
+            int stop_y = (int)((((double)i+1.0)/(double)n_tiles) * height);
+            for(int y=start_y;y<stop_y;y++)
+                tile_y[y] = i;
+            tile_height[i] = stop_y - start_y;
+        }
+
+        // create histograms, based on the max RGB value as with histogram_compute_by_value()
+        int [][] histograms = new int[n_tiles*n_tiles][256];
+        int [] pixels = new int[width*strip_height];
+        for(int y_start=0;y_start<height;y_start+=strip_height) {
+            int n_rows = Math.min(strip_height, height-y_start);
+            bitmap.getPixels(pixels, 0, width, 0, y_start, width, n_rows);
+            for(int y=0;y<n_rows;y++) {
+                int tile_offset = tile_y[y_start+y];
+                for(int x=0;x<width;x++) {
+                    int color = pixels[y*width+x];
+                    int value = Math.max(Math.max((color >> 16) & 0xff, (color >> 8) & 0xff), color & 0xff);
+                    histograms[tile_x[x]*n_tiles+tile_offset][value]++;
+                }
+            }
+        }
+        int [] c_histogram = new int[n_tiles*n_tiles*256];
+        int [] temp_c_histogram = new int[256];
+        for(int i=0;i<n_tiles;i++) {
+            for(int j=0;j<n_tiles;j++) {
+                int n_pixels = tile_width[i] * tile_height[j];
+                if( n_pixels == 0 )
+                    continue;
+                computeCLAHEHistogram(histograms[i*n_tiles+j], n_pixels, ce_preserve_blacks, temp_c_histogram, c_histogram, 256*(i*n_tiles+j));
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after creating histograms: " + (System.currentTimeMillis() - time_s));
+
+        Allocation c_histogramAllocation = Allocation.createSized(rs, Element.I32(rs), n_tiles*n_tiles*256);
+        c_histogramAllocation.copyFrom(c_histogram);
+        ScriptC_histogram_adjust histogramAdjustScript = new ScriptC_histogram_adjust(rs);
+        histogramAdjustScript.set_c_histogram(c_histogramAllocation);
+        histogramAdjustScript.set_hdr_alpha(hdr_alpha);
+        histogramAdjustScript.set_n_tiles(n_tiles);
+        histogramAdjustScript.set_width(width);
+        histogramAdjustScript.set_height(height);
+
+        Bitmap strip_bitmap = createBitmap(width, strip_height);
+        Allocation strip_allocation = Allocation.createFromBitmap(rs, strip_bitmap);
+        for(int y_start=0;y_start<height;y_start+=strip_height) {
+            int n_rows = Math.min(strip_height, height-y_start);
+            bitmap.getPixels(pixels, 0, width, 0, y_start, width, n_rows);
+            strip_bitmap.setPixels(pixels, 0, width, 0, 0, width, n_rows);
+            strip_allocation.copyFrom(strip_bitmap);
+            Script.LaunchOptions launch_options = new Script.LaunchOptions();
+            launch_options.setY(0, n_rows);
+            histogramAdjustScript.set_y_offset(y_start);
+            histogramAdjustScript.forEach_histogram_adjust(strip_allocation, strip_allocation, launch_options);
+            strip_allocation.copyTo(strip_bitmap);
+            strip_bitmap.getPixels(pixels, 0, width, 0, 0, width, n_rows);
+            bitmap.setPixels(pixels, 0, width, 0, y_start, width, n_rows);
+        }
+        strip_allocation.destroy();
+        freeBitmap(strip_bitmap);
+        c_histogramAllocation.destroy();
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after histogramAdjustScript: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Clips the histogram for a tile, as for the Contrast Limited AHE algorithm in adjustHistogram() (and with the
+     *  modification for ce_preserve_blacks), and stores the cumulative histogram in c_histogram.
+     * @param histogram The histogram of the max RGB values of the tile, this is modified.
+     * @param n_pixels The number of pixels in the tile.
+     * @param temp_c_histogram Working space of 256 entries.
+     * @param histogram_offset The offset in c_histogram to store the cumulative histogram.
+     */
+    private static void computeCLAHEHistogram(int [] histogram, int n_pixels, boolean ce_preserve_blacks, int [] temp_c_histogram, int [] c_histogram, int histogram_offset) {
+        // clip histogram, for Contrast Limited AHE algorithm
+        int clip_limit = (5 * n_pixels) / 256;
+        /*if( MyDebug.LOG ) {
+            Log.d(TAG, "clip_limit: " + clip_limit);
+            Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
+        }*/
+        {
+            // find real clip limit
+            int bottom = 0, top = clip_limit;
+            while( top - bottom > 1 ) {
+                int middle = (top + bottom)/2;
+                int sum = 0;
+                for(int x=0;x<256;x++) {
+                    if( histogram[x] > middle ) {
+                        sum += (histogram[x] - clip_limit);
+                    }
+                }
+                if( sum > (clip_limit - middle) * 256 )
+                    top = middle;
+                else
+                    bottom = middle;
+            }
+            clip_limit = (top + bottom)/2;
+            /*if( MyDebug.LOG ) {
+                Log.d(TAG, "updated clip_limit: " + clip_limit);
+                Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
+            }*/
+        }
+        int n_clipped = 0;
+        for(int x=0;x<256;x++) {
+            if( histogram[x] > clip_limit ) {
+                /*if( MyDebug.LOG ) {
+                    Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
+                }*/
+                n_clipped += (histogram[x] - clip_limit);
+                histogram[x] = clip_limit;
+            }
+        }
+        int n_clipped_per_bucket = n_clipped / 256;
+            /*if( MyDebug.LOG ) {
+                Log.d(TAG, "n_clipped: " + n_clipped);
+                Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
+            }*/
+        for(int x=0;x<256;x++) {
+            histogram[x] += n_clipped_per_bucket;
+        }
+
+        if( ce_preserve_blacks ) {
+            // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
+            // The basic idea is that we want to avoid making darker pixels darker (by too
+            // much). We do this by adjusting the histogram:
+            // * We can set a minimum value of each histogram value. E.g., if we set all
+            //   pixels up to a certain brightness to a value equal to n_pixels/256, then
+            //   we prevent those pixels from being made darker. In practice, we choose
+            //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
+            //   interpolating to no minimum at brightness 128 (dark_threshold_c).
+            // * For any adjusted value of the histogram, we redistribute, by reducing
+            //   the histogram values of brighter pixels with values larger than (n_pixels/256),
+            //   reducing them to a minimum of (n_pixels/256).
+            // * Lastly, we only modify a given histogram value if pixels of that brightness
+            //   would be made darker by the CLAHE algorithm. We can do this by looking at
+            //   the cumulative histogram (as computed before modifying any values).
+            /*if( MyDebug.LOG ) {
+                for(int x=0;x<256;x++) {
+                    Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
+                }
+            }*/
+
+            temp_c_histogram[0] = histogram[0];
+            for(int x=1;x<256;x++) {
+                temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
+            }
+
+            // avoid making pixels too dark
+            int equal_limit = n_pixels / 256;
+            if( MyDebug.LOG )
+                Log.d(TAG, "equal_limit: " + equal_limit);
+            //final int dark_threshold_c = 64;
+            final int dark_threshold_c = 128;
+            //final int dark_threshold_c = 256;
+            for(int x=0;x<dark_threshold_c;x++) {
+                int c_equal_limit = equal_limit * (x+1);
+                if( temp_c_histogram[x] >= c_equal_limit ) {
+                    continue;
+                }
+                float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
+                //float alpha = 1.0f - ((float)x)/256.0f;
+                int limit = (int)(alpha * equal_limit);
+                //int limit = equal_limit;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "x: " + x + " ; limit: " + limit);
+                /*histogram[x] = Math.max(histogram[x], limit);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
+                if( histogram[x] < limit ) {
+                    // top up by redistributing later values
+                    for(int y=x+1;y<256 && histogram[x] < limit;y++) {
+                        if( histogram[y] > equal_limit ) {
+                            int move = histogram[y] - equal_limit;
+                            move = Math.min(move, limit - histogram[x]);
+                            histogram[x] += move;
+                            histogram[y] -= move;
+                        }
+                    }
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
+                    /*if( temp_c_histogram[x] >= c_equal_limit )
+                        throw new RuntimeException(); // test*/
+                }
+            }
+        }
+
+        // compute cumulative histogram
+        c_histogram[histogram_offset] = histogram[0];
+        for(int x=1;x<256;x++) {
+            c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
+        }
+        if( MyDebug.LOG ) {
+            for(int x=0;x<256;x++) {
+                Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
+            }
+        }
+    }
+
     /**
      * @param avg If true, compute the color value as the average of the rgb values. If false,
      *            compute the color value as the maximum of the rgb values.
@@ -3126,7 +3740,7 @@ public class HDRProcessor {
             avgBrightenScript.set_linear_scale(linear_scale);
         }*/
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap bitmap = createBitmap(width, height);
         Allocation allocation_out = Allocation.createFromBitmap(rs, bitmap);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating allocation_out: " + (System.currentTimeMillis() - time_s));
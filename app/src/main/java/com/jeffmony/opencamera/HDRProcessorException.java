@@ -6,6 +6,7 @@ package com.jeffmony.opencamera;
 public class HDRProcessorException extends Exception {
     final static public int INVALID_N_IMAGES = 0; // the supplied number of images is not supported
     final static public int UNEQUAL_SIZES = 1; // images not of the same resolution
+    final static public int DECODE_FAILED = 2; // failed to decode the supplied JPEG data
 
     final private int code;
 
@@ -1,9 +1,11 @@
 package com.jeffmony.opencamera;
 
 import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.cameracontroller.FrameStore;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
 import com.jeffmony.opencamera.cameracontroller.RawImage;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
@@ -13,16 +15,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -32,11 +36,15 @@ import android.content.ContentValues;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorSpace;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Rect;
+import android.graphics.RectF;
 //import android.location.Address; // don't use until we have info for data privacy!
 //import android.location.Geocoder; // don't use until we have info for data privacy!
 import android.location.Location;
@@ -68,6 +76,9 @@ public class ImageSaver extends Thread {
     private final MainActivity main_activity;
     private final HDRProcessor hdrProcessor;
     private final PanoramaProcessor panoramaProcessor;
+    private final ParallelJpegEncoder jpegEncoder = new ParallelJpegEncoder();
+    private final JpegDecoderPool decoderPool = new JpegDecoderPool(Runtime.getRuntime().availableProcessors());
+    private final BitmapPool bitmapPool;
 
     /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
      * but only decrement the count when we've finished saving the image.
@@ -76,16 +87,41 @@ public class ImageSaver extends Thread {
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
-     * n_real_images_to_save excludes "Dummy" requests, and should also be synchronized, and modified
-     * at the same time as n_images_to_save.
+     * n_images_to_save is weighted by the cost of each request (see computeRequestCost()), whilst n_real_images_to_save
+     * counts each request once; n_real_images_to_save should also be synchronized, and modified at the same time as
+     * n_images_to_save.
      */
     private int n_images_to_save = 0;
     private int n_real_images_to_save = 0;
-    private final int queue_capacity;
     private final BlockingQueue<Request> queue;
+    /* Rather than limiting the length of the queue, each request acquires the bytes it holds (see computeRequestBytes())
+     * from memory_budget when it's added to the queue, and releases them once it's been saved. Adding a request blocks if
+     * the budget is used up.
+     */
+    private final MemoryBudget memory_budget;
+    /* Requests are taken off the queue by the ImageSaver thread, and passed to the pipeline. The pipeline stages are:
+     * "decode", "postprocess" and "encode", which are run in parallel for requests that don't need HDRProcessor or
+     * PanoramaProcessor; then "write", which saves, sets the Exif tags and broadcasts the file, and is run one request at a
+     * time in the order that the requests were added to the queue. n_images_to_save is only decremented at the end of the
+     * "write" stage.
+     */
+    private final ImageSaverPipeline<Request> pipeline;
+    // the costs are only used to weight n_images_to_save; admission to the queue is by memory_budget
     private final static int queue_cost_jpeg_c = 1; // also covers WEBP
     private final static int queue_cost_dng_c = 6;
     //private final static int queue_cost_dng_c = 1;
+    private final static long megabyte_c = 1024*1024;
+    private final static long post_processing_reserve_c = 160*megabyte_c; // memory to leave free for post-processing (e.g., HDR, NR)
+    private final static long min_memory_budget_c = 30*megabyte_c;
+    private final static long frame_store_segment_size_c = 32*megabyte_c; // size of the memory mapped segments holding the images of multi-image requests
+    private final static long reference_jpeg_bytes_c = 5*megabyte_c; // estimate of a JPEG when the photo resolution isn't known
+    private final static long reference_pixels_c = 12*1000*1000; // photo resolution assumed when not known
+    private final static int avg_smp_images_c = 4; // see n_smp_images in saveImageNow()
+    // Images with fewer pixels than this are compressed with Bitmap.compress() rather than ParallelJpegEncoder, as the
+    // native encoder is faster for them. The pure Java encoder runs at around 25ms/MP on a single thread (measured
+    // with a desktop JVM, and slower still on ART), so it only catches up with the native encoder once the image is
+    // large enough to spread across several cores. Check with testParallelJpegEncoderTimings() when changing this.
+    public final static long parallel_jpeg_min_pixels_c = 24*1000*1000;
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -102,8 +138,7 @@ public class ImageSaver extends Thread {
     static class Request {
         enum Type {
             JPEG, // also covers WEBP
-            RAW,
-            DUMMY
+            RAW
         }
         final Type type;
         enum ProcessType {
@@ -127,8 +162,13 @@ public class ImageSaver extends Thread {
          * If process_type==HDR, this should be 1 or 3 images, and the images are combined/converted to a HDR image (if there's only 1
          * image, this uses fake HDR or "DRO").
          * If process_type==NORMAL, then multiple images are saved sequentially.
+         * The images are owned by the request, and released once it is saved, see releaseJpegBuffers().
          */
-        final List<byte []> jpeg_images;
+        List<ImageBuffer> jpeg_images;
+        /* nr_accumulator: if non-null (only for process_type AVERAGE), the images are merged by this as they arrive, and
+         * jpeg_images only holds the images still needed for saving (the first image, or all of them for SAVEBASE_ALL).
+         */
+        NRAccumulator nr_accumulator;
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -183,13 +223,20 @@ public class ImageSaver extends Thread {
         final String custom_tag_artist;
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
+        /* prepared_images: if non-null, the result of the "decode", "postprocess" and "encode" pipeline stages for the
+         * corresponding entries of jpeg_images (an entry is null if that image wasn't prepared, in which case it's processed
+         * when saving as normal).
+         */
+        PreparedImage [] prepared_images;
+        int cost; // the cost added to n_images_to_save, see addRequest()
+        long budget_bytes; // the bytes acquired from memory_budget, see addRequest() (and addImageBatch() for nr_accumulator)
 
         Request(Type type,
                 ProcessType process_type,
                 boolean force_suffix,
                 int suffix_offset,
                 SaveBase save_base,
-                List<byte []> jpeg_images,
+                List<ImageBuffer> jpeg_images,
                 RawImage raw_image,
                 boolean image_capture_intent, Uri image_capture_intent_uri,
                 boolean using_camera2, boolean using_camera_extensions,
@@ -300,67 +347,306 @@ public class ImageSaver extends Thread {
         this.main_activity = main_activity;
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.memory_budget = new MemoryBudget(computeMemoryBudget(Runtime.getRuntime().maxMemory()));
+        this.queue = new LinkedBlockingQueue<>(); // no need to bound the queue, as the memory held is limited by memory_budget
 
+        this.bitmapPool = new BitmapPool(computeBitmapPoolCapacity(Runtime.getRuntime().maxMemory(), 0, 0)); // resized when images are decoded, see resizeBitmapPool()
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
+        this.hdrProcessor.setBitmapPool(bitmapPool);
         this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
+        this.panoramaProcessor.setBitmapPool(bitmapPool);
+        this.decoderPool.setBitmapPool(bitmapPool);
 
         p.setAntiAlias(true);
+
+        int [] n_workers = computePipelineWorkers(Runtime.getRuntime().availableProcessors(), activityManager.getLargeMemoryClass());
+        List<ImageSaverPipeline.Stage<Request>> stages = new ArrayList<>();
+        stages.add(new ImageSaverPipeline.Stage<>("decode", n_workers[0], new ImageSaverPipeline.Handler<Request>() {
+            @Override
+            public void handle(Request request) {
+                decodeRequest(request);
+            }
+        }));
+        stages.add(new ImageSaverPipeline.Stage<>("postprocess", n_workers[1], new ImageSaverPipeline.Handler<Request>() {
+            @Override
+            public void handle(Request request) {
+                postProcessRequest(request);
+            }
+        }));
+        stages.add(new ImageSaverPipeline.Stage<>("encode", n_workers[2], new ImageSaverPipeline.Handler<Request>() {
+            @Override
+            public void handle(Request request) {
+                encodeRequest(request);
+            }
+        }));
+        stages.add(new ImageSaverPipeline.Stage<>("write", 1, new ImageSaverPipeline.Handler<Request>() {
+            @Override
+            public void handle(Request request) {
+                saveRequest(request);
+            }
+        }));
+        this.pipeline = new ImageSaverPipeline<>(stages, computePipelineMaxInFlight(n_workers));
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the number of JPEG images, at the current photo resolution, that can be held by the image saver at once
+     *  before the UI blocks.
      */
     public int getQueueSize() {
-        return this.queue_capacity;
+        return (int)(memory_budget.getCapacity() / estimateJpegBytes(getPicturePixels()));
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Returns the budget that limits the memory held by requests waiting to be, or being, saved.
      */
-    public static int computeQueueSize(int large_heap_memory) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
-        if( MyDebug.LOG )
+    public MemoryBudget getMemoryBudget() {
+        return memory_budget;
+    }
+
+    /** Returns the number of pixels in the current photo resolution, or 0 if not known.
+     */
+    private long getPicturePixels() {
+        CameraController camera_controller = main_activity.getPreview().getCameraController();
+        if( camera_controller != null ) {
+            CameraController.Size size = camera_controller.getPictureSize();
+            if( size != null ) {
+                return (long)size.width * size.height;
+            }
+        }
+        return 0;
+    }
+
+    /** Compute a sensible size for the memory budget, based on the maximum heap size, by reserving some memory for
+     *  post-processing.
+     * @param max_memory The maximum heap size in bytes, i.e., Runtime.maxMemory().
+     */
+    public static long computeMemoryBudget(long max_memory) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "computeMemoryBudget");
+            Log.d(TAG, "max memory = " + max_memory/megabyte_c + "MB");
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
+        }
         if( test_small_queue_size ) {
-            large_heap_memory = 0;
+            max_memory = 0;
         }
+        long reserve = computePostProcessingReserve(max_memory);
+        // we always allow at least a photo with RAW+JPEG (at the reference resolution) to be queued
+        long budget = Math.max(max_memory - reserve, min_memory_budget_c);
+        if( MyDebug.LOG )
+            Log.d(TAG, "memory budget = " + budget/megabyte_c + "MB");
+        return budget;
+    }
+
+    /** Returns the maximum memory to hold in the bitmap pool for reuse between requests, out of the
+     *  supplied maximum heap size in bytes. Pooled bitmaps aren't charged to memory_budget, so this
+     *  comes out of the memory left over once the budget is taken, which means the pool and the
+     *  budget together never exceed the heap size. This is normally half of the post-processing
+     *  reserve, but is raised to hold one bitmap at the decoded resolution if that still fits in
+     *  what's left over - otherwise such bitmaps would never be pooled. Bitmaps too large for
+     *  that (e.g., 50MP on a 512MB heap) aren't pooled.
+     * @param width  The resolution of the decoded images, or 0 if not known.
+     * @param height The resolution of the decoded images, or 0 if not known.
+     */
+    public static long computeBitmapPoolCapacity(long max_memory, int width, int height) {
+        long budget = Math.max(max_memory - computePostProcessingReserve(max_memory), min_memory_budget_c); // as computeMemoryBudget()
+        long available = Math.max(max_memory - budget, 0);
+        long bitmap_bytes = 4L * width * height; // ARGB_8888
+        return bitmap_bytes <= available ? Math.max(available/2, bitmap_bytes) : available/2;
+    }
+
+    /** Resizes the bitmap pool for bitmaps of the supplied resolution, see
+     *  computeBitmapPoolCapacity(). Should be called once bitmaps have been decoded at that
+     *  resolution, before they're released to the pool.
+     */
+    private void resizeBitmapPool(int width, int height) {
+        bitmapPool.setCapacity(computeBitmapPoolCapacity(Runtime.getRuntime().maxMemory(), width, height));
+    }
 
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
+    /** Returns the memory to leave free for post-processing, out of the supplied maximum heap size in bytes.
+     */
+    private static long computePostProcessingReserve(long max_memory) {
+        // For large heap 512MB, this reserves 160MB for post-processing and HDR operations. Smaller heaps reserve less,
+        // e.g., 80MB for large heap 128MB.
+        return Math.min(post_processing_reserve_c, (max_memory*5)/8);
+    }
+
+    /** Whether an HDR image should be created with HDRProcessor.processHDRTiled(), because decoding all of the images at
+     *  full resolution at once would need more than the memory reserved for post-processing.
+     * @param n_images   The number of images.
+     * @param width      The resolution of the images.
+     * @param height     The resolution of the images.
+     * @param max_memory The maximum heap size in bytes, i.e., Runtime.maxMemory().
+     */
+    public static boolean useTiledHDR(int n_images, int width, int height, long max_memory) {
+        if( n_images < 2 ) {
+            // processHDRTiled() doesn't support DRO, and in any case we only need one full resolution image
+            return false;
         }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
+        return computeRequestBytes(0, 0, n_images, width, height) > computePostProcessingReserve(max_memory);
+    }
+
+    /** Returns the number of JPEG images at the reference resolution that can be held at once for the supplied large heap
+     *  size, in MB.
+     */
+    public static int computeQueueSize(int large_heap_memory) {
+        return (int)(computeMemoryBudget(large_heap_memory * megabyte_c) / reference_jpeg_bytes_c);
+    }
+
+    /** Estimates the size of a JPEG image.
+     * @param n_pixels The photo resolution, or 0 if not known.
+     */
+    public static long estimateJpegBytes(long n_pixels) {
+        // a high quality JPEG is typically around 3-4 bits per pixel
+        return n_pixels > 0 ? n_pixels/2 : reference_jpeg_bytes_c;
+    }
+
+    /** Estimates the size of a RAW image.
+     * @param n_pixels The photo resolution, or 0 if not known.
+     */
+    public static long estimateRawBytes(long n_pixels) {
+        // RAW_SENSOR is 16 bits per pixel
+        return 2 * (n_pixels > 0 ? n_pixels : reference_pixels_c);
+    }
+
+    /** Computes the number of bytes held by a request, from when it's added to the queue until it's saved.
+     * @param jpeg_bytes The total length of the JPEG data.
+     * @param raw_bytes The total size of the RAW image data.
+     * @param n_decoded_bitmaps The number of bitmaps that are decoded from the JPEG data at once when processing the
+     *                          request (e.g., for HDR).
+     * @param decoded_width The width of the decoded bitmaps.
+     * @param decoded_height The height of the decoded bitmaps.
+     */
+    public static long computeRequestBytes(long jpeg_bytes, long raw_bytes, int n_decoded_bitmaps, int decoded_width, int decoded_height) {
+        return jpeg_bytes + raw_bytes + 4L * n_decoded_bitmaps * decoded_width * decoded_height; // ARGB_8888
+    }
+
+    /** Returns the number of bitmaps decoded from the JPEG data that are held at once when processing a request.
+     */
+    private static int computeDecodedBitmaps(Request.ProcessType process_type, int n_jpegs) {
+        switch( process_type ) {
+            case HDR:
+            case PANORAMA:
+                // all images are decoded at once
+                return n_jpegs;
+            case AVERAGE:
+                // images are decoded in batches, plus the bitmap to hold the result
+                // (n.b., an NRAccumulator's bitmaps are charged separately, see addImageBatch())
+                return Math.min(n_jpegs, avg_smp_images_c) + 1;
+            default:
+                // any bitmaps needed for post-processing are only held whilst in the pipeline, so are covered by the reserve
+                return 0;
         }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
+    }
+
+    /** Computes the bytes held by the supplied request, see computeRequestBytes().
+     */
+    private long computeRequestBytes(Request request) {
+        long jpeg_bytes = 0;
+        int n_decoded_bitmaps = 0;
+        int decoded_width = 0;
+        int decoded_height = 0;
+        if( request.jpeg_images != null && request.jpeg_images.size() > 0 ) {
+            if( request.jpeg_images instanceof JpegFrameList ) {
+                // images in the frame store don't use the heap
+                jpeg_bytes = ((JpegFrameList)request.jpeg_images).getHeapBytes();
+            }
+            else {
+                for(ImageBuffer image : request.jpeg_images) {
+                    jpeg_bytes += image.size();
+                }
+            }
+            n_decoded_bitmaps = computeDecodedBitmaps(request.process_type, request.jpeg_images.size());
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.nr_accumulator != null ) {
+                // the images are merged by the accumulator, which was charged when the first image arrived; the request
+                // only needs the bitmap for the result
+                n_decoded_bitmaps = 1;
+            }
+            if( n_decoded_bitmaps > 0 ) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(request.jpeg_images.get(0).getInputStream(), null, options);
+                decoded_width = Math.max(options.outWidth, 0);
+                decoded_height = Math.max(options.outHeight, 0);
+            }
+        }
+        long raw_bytes = 0;
+        if( request.raw_image != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            raw_bytes = request.raw_image.getRetainedBytes();
+        }
+        long bytes = computeRequestBytes(jpeg_bytes, raw_bytes, n_decoded_bitmaps, decoded_width, decoded_height);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "computeRequestBytes");
+            Log.d(TAG, "jpeg_bytes: " + jpeg_bytes);
+            Log.d(TAG, "raw_bytes: " + raw_bytes);
+            Log.d(TAG, "n_decoded_bitmaps: " + n_decoded_bitmaps + " of " + decoded_width + "x" + decoded_height);
+            Log.d(TAG, "bytes: " + bytes);
+        }
+        return bytes;
+    }
+
+    /** Compute the number of worker threads for each of the parallel pipeline stages ("decode", "postprocess", "encode"),
+     *  based on the number of processors and the device's memory (large heap). More workers means more decoded bitmaps held
+     *  in memory at once.
+     */
+    public static int [] computePipelineWorkers(int n_processors, int large_heap_memory) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "computePipelineWorkers");
+            Log.d(TAG, "n_processors: " + n_processors);
+            Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
+        }
+        int n_workers;
+        if( large_heap_memory >= 256 ) {
+            n_workers = Math.max(1, Math.min(n_processors/2, 2));
         }
         else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
+            // not enough memory to hold several decoded bitmaps
+            n_workers = 1;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_workers: " + n_workers);
+        return new int[]{n_workers, n_workers, n_workers};
+    }
+
+    /** Returns the maximum number of requests that may be in the pipeline at once, for the supplied result of
+     *  computePipelineWorkers().
+     */
+    public static int computePipelineMaxInFlight(int [] n_workers) {
+        int max_workers = 1;
+        for(int n : n_workers) {
+            max_workers = Math.max(max_workers, n);
         }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        // allow one more than the widest stage, for the request being written
+        return max_workers + 1;
+    }
+
+    /** Returns the statistics (queue depth and latencies) for each stage of the saving pipeline.
+     */
+    public List<ImageSaverPipeline.StageStats> getPipelineStats() {
+        return pipeline.getStats();
+    }
+
+    /** Returns the throughput statistics for decoding the JPEGs of multi-image requests (e.g., HDR
+     *  and NR).
+     */
+    public JpegDecoderPool.Stats getDecoderStats() {
+        return decoderPool.getStats();
+    }
+
+    /** Returns the hit and miss statistics for the pool of bitmaps reused between requests.
+     */
+    public BitmapPool.Stats getBitmapPoolStats() {
+        return bitmapPool.getStats();
+    }
+
+    /** Should be called from the activity's onTrimMemory(), so that pooled bitmaps are freed when
+     *  memory is low.
+     */
+    void onTrimMemory(int level) {
         if( MyDebug.LOG )
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+            Log.d(TAG, "onTrimMemory: " + level);
+        bitmapPool.trimMemory(level);
     }
 
-    /** Computes the cost for a particular request.
+    /** Computes the cost for a particular request. This is only used to weight the number of images to save, see
+     *  getNImagesToSave().
      *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
      *  of the two requests: one RAW, one JPEG).
      * @param is_raw Whether RAW/DNG or JPEG.
@@ -382,7 +668,7 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
-    /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
+    /** Computes the cost (see computeRequestCost()) of a new photo.
      * @param n_raw The number of JPEGs that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
@@ -402,50 +688,60 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
-    /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param n_raw The number of JPEGs that will be taken.
+    /** Estimates the bytes that will be held by the image saver for a new photo, see computeRequestBytes().
+     * @param n_raw The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
-        return this.queueWouldBlock(photo_cost);
+    long estimatePhotoBytes(int n_raw, int n_jpegs) {
+        long n_pixels = getPicturePixels();
+        Request.ProcessType process_type;
+        switch( main_activity.getApplicationInterface().getPhotoMode() ) {
+            case DRO:
+            case HDR:
+                process_type = Request.ProcessType.HDR;
+                break;
+            case NoiseReduction:
+                process_type = Request.ProcessType.AVERAGE;
+                break;
+            default:
+                process_type = Request.ProcessType.NORMAL;
+                break;
+        }
+        int n_decoded_bitmaps = n_jpegs > 0 ? computeDecodedBitmaps(process_type, n_jpegs) : 0;
+        long decoded_pixels = n_pixels > 0 ? n_pixels : reference_pixels_c;
+        long bytes = n_raw * estimateRawBytes(n_pixels) + n_jpegs * estimateJpegBytes(n_pixels) + 4L * n_decoded_bitmaps * decoded_pixels;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "estimatePhotoBytes");
+            Log.d(TAG, "n_raw: " + n_raw);
+            Log.d(TAG, "n_jpegs: " + n_jpegs);
+            Log.d(TAG, "bytes: " + bytes);
+        }
+        return bytes;
     }
 
-    /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param photo_cost The result returned by computePhotoCost().
+    /** Whether taking an extra photo would exceed the memory budget, resulting in the UI hanging.
+     * @param n_raw The number of RAW images that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    boolean queueWouldBlock(int n_raw, int n_jpegs) {
+        long bytes = estimatePhotoBytes(n_raw, n_jpegs);
         if( MyDebug.LOG ) {
             Log.d(TAG, "queueWouldBlock");
-            Log.d(TAG, "photo_cost: " + photo_cost);
-            Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
-        }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if( n_images_to_save == 0 ) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
-            // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
-            // to disallow ever taking photos!
-            if( MyDebug.LOG )
-                Log.d(TAG, "queue is empty");
-            return false;
-        }
-        else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "queue would block");
-            return true;
+            Log.d(TAG, "bytes: " + bytes);
+            Log.d(TAG, "memory used: " + memory_budget.getUsed() + " of " + memory_budget.getCapacity());
         }
+        // n.b., the budget never blocks if nothing is being saved - we don't want to disallow ever taking photos!
+        boolean would_block = memory_budget.wouldBlock(bytes);
         if( MyDebug.LOG )
-            Log.d(TAG, "queue would not block");
-        return false;
+            Log.d(TAG, "queue would block?: " + would_block);
+        return would_block;
     }
 
-    /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
+    /** Returns the maximum number of DNG images that might be held by the image saver at once, before blocking.
      */
     int getMaxDNG() {
-        int max_dng = (queue_capacity+1)/queue_cost_dng_c;
-        max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
+        int max_dng = (int)(memory_budget.getCapacity() / estimateRawBytes(getPicturePixels()));
+        max_dng++; // increase by 1, as the user can still take one extra photo if the budget is exactly used up
         if( MyDebug.LOG )
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
@@ -480,6 +776,8 @@ public class ImageSaver extends Thread {
         synchronized(this) {
             app_is_paused = false;
         }
+        // in case the pool was emptied by onTrimMemory() when the UI was hidden
+        bitmapPool.restoreCapacity();
     }
 
     void onDestroy() {
@@ -491,6 +789,9 @@ public class ImageSaver extends Thread {
         if( hdrProcessor != null ) {
             hdrProcessor.onDestroy();
         }
+        bitmapPool.clear();
+        // stop the pipeline's worker threads, otherwise they'd be left running
+        pipeline.shutdown();
     }
 
     @Override
@@ -502,73 +803,383 @@ public class ImageSaver extends Thread {
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
                 Request request = queue.take(); // if empty, take() blocks until non-empty
-                // Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
-                // even though we still have a last image to be saved.
+                // Only decrement n_images_to_save after we've actually saved the image (at the end of the pipeline)! Otherwise
+                // waitUntilDone() will return even though we still have a last image to be saved.
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-                boolean success;
-                switch (request.type) {
-                    case RAW:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is raw");
-                        success = saveImageNowRaw(request);
-                        break;
-                    case JPEG:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
-                        break;
-                    default:
-                        if (MyDebug.LOG)
-                            Log.e(TAG, "request is unknown type!");
-                        success = false;
-                        break;
-                }
-                if( test_slow_saving ) {
-                    // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
-                    //noinspection BusyWait
-                    Thread.sleep(2000);
+                pipeline.submit(request); // if the pipeline is full, submit() blocks until a request has been saved
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+                if( MyDebug.LOG )
+                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+            }
+        }
+    }
+
+    /** Whether the "decode", "postprocess" and "encode" pipeline stages should do any work for this request. Requests that use
+     *  HDRProcessor or PanoramaProcessor aren't prepared in parallel (as these aren't thread safe, and already use multiple
+     *  threads), and are instead processed entirely in the "write" stage.
+     */
+    private boolean canPrepareInParallel(Request request) {
+        if( request.type != Request.Type.JPEG || request.image_capture_intent )
+            return false;
+        if( request.process_type != Request.ProcessType.NORMAL && request.process_type != Request.ProcessType.X_NIGHT )
+            return false;
+        return needsBitmap(request);
+    }
+
+    /** Whether the JPEG data for this request can be written straight to disk from its buffers, without ever being copied
+     *  to a byte array. This requires that there's no post-processing of any kind.
+     */
+    private static boolean canSaveDirect(Request request) {
+        if( request.type != Request.Type.JPEG || request.image_capture_intent )
+            return false;
+        if( request.process_type != Request.ProcessType.NORMAL && request.process_type != Request.ProcessType.X_NIGHT )
+            return false;
+        return !needsBitmap(request);
+    }
+
+    /** Holds the JPEG data for a multi-image request (HDR, NR, panorama, bracketing) as ImageBuffers, normally in a
+     *  FrameStore so that the data is memory mapped rather than on the Java heap. The images should be read with
+     *  ImageBuffer.getInputStream() or getBuffer() where possible, rather than copying them to the heap.
+     */
+    private static class JpegFrameList extends AbstractList<ImageBuffer> {
+        private final FrameStore store; // null if the images are kept on the heap
+        private final List<ImageBuffer> frames = new ArrayList<>();
+        private long heap_bytes;
+
+        JpegFrameList(FrameStore store) {
+            this.store = store;
+        }
+
+        /** Returns the image, which is still owned by this list.
+         */
+        @Override
+        public ImageBuffer get(int index) {
+            return frames.get(index);
+        }
+
+        @Override
+        public int size() {
+            return frames.size();
+        }
+
+        /** Adds an image, copying it to the store if possible. Takes ownership of the image.
+         */
+        void addFrame(ImageBuffer image) {
+            ImageBuffer frame = null;
+            if( store != null ) {
+                try {
+                    frame = store.append(image.getBuffer());
                 }
-                if( MyDebug.LOG ) {
-                    if( success )
-                        Log.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Log.e(TAG, "ImageSaver thread failed to save image");
+                catch(IOException e) {
+                    Log.e(TAG, "failed to store frame, keeping on heap: " + e.getMessage());
                 }
-                synchronized( this ) {
-                    n_images_to_save--;
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save--;
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-                    if( MyDebug.LOG && n_images_to_save < 0 ) {
-                        Log.e(TAG, "images to save has become negative");
-                        throw new RuntimeException();
-                    }
-                    else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
-                        Log.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
-                    }
-                    notifyAll();
+            }
+            if( frame == null ) {
+                frame = ImageBuffer.wrap(image.toByteArray());
+                heap_bytes += frame.size();
+            }
+            image.release();
+            frames.add(frame);
+            modCount++;
+        }
 
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
+        /** Returns the number of bytes held on the Java heap, rather than in the store.
+         */
+        long getHeapBytes() {
+            return heap_bytes;
+        }
+
+        void reverse() {
+            Collections.reverse(frames);
+            modCount++;
+        }
+
+        /** Drops the images, once the request has been saved or discarded.
+         */
+        void close() {
+            for(ImageBuffer frame : frames) {
+                frame.release();
+            }
+            frames.clear();
+            heap_bytes = 0;
+            modCount++;
+            if( store != null ) {
+                store.close();
+            }
+        }
+    }
+
+    /** Returns a store for the images of a multi-image request, or null if the images should be kept on the heap.
+     */
+    private FrameStore createFrameStore() {
+        File dir = main_activity.getCacheDir();
+        if( dir == null ) {
+            Log.e(TAG, "no cache dir for frame store");
+            return null;
+        }
+        return new FrameStore(dir, frame_store_segment_size_c);
+    }
+
+    /** Sets the JPEG data for a new request, taking ownership of the buffers. A single image, or the images for a request
+     *  that can be saved directly (see canSaveDirect()), are kept in the buffers they arrived in, and read from there
+     *  (without being copied) when processing and saving; otherwise multiple images are moved to a JpegFrameList, so that
+     *  the buffers can be returned to the pool while the request waits to be processed.
+     */
+    private void setJpegImages(Request request, List<ImageBuffer> images) {
+        if( images.size() > 1 && !canSaveDirect(request) ) {
+            JpegFrameList frames = new JpegFrameList(createFrameStore());
+            for(ImageBuffer image : images) {
+                frames.addFrame(image);
+            }
+            request.jpeg_images = frames;
+        }
+        else {
+            if( MyDebug.LOG )
+                Log.d(TAG, "keep jpeg buffers");
+            request.jpeg_images = new ArrayList<>(images);
+        }
+    }
+
+    /** Releases the buffers held by the request (if any), once it's been saved or discarded.
+     */
+    private static void releaseJpegBuffers(Request request) {
+        if( request.jpeg_images instanceof JpegFrameList ) {
+            ((JpegFrameList)request.jpeg_images).close();
+        }
+        else if( request.jpeg_images != null ) {
+            for(ImageBuffer image : request.jpeg_images) {
+                image.release();
+            }
+            request.jpeg_images = null;
+        }
+    }
+
+    /** Returns the number of JPEG images held by the request.
+     */
+    private static int getNJpegs(Request request) {
+        return request.jpeg_images == null ? 0 : request.jpeg_images.size();
+    }
+
+    /** Whether postProcessBitmap() will need to decode the JPEG data for this request.
+     */
+    private static boolean needsBitmap(Request request) {
+        return request.do_auto_stabilise || request.mirror ||
+                request.image_format != Request.ImageFormat.STD ||
+                request.remove_device_exif != Request.RemoveDeviceExif.OFF ||
+                hasStamp(request);
+    }
+
+    /** Whether the request has a photo stamp, see stampImage().
+     */
+    private static boolean hasStamp(Request request) {
+        return request.preference_stamp.equals("preference_stamp_yes") ||
+                request.preference_textstamp.length() > 0;
+    }
+
+    /** Whether the only changes to the image for this request are mirroring and/or stamping, in
+     *  which case they can be done on the JPEG data without decoding the whole image, see
+     *  editJpegDirectly().
+     */
+    private static boolean canEditJpegDirectly(Request request) {
+        return !request.do_auto_stabilise &&
+                request.image_format == Request.ImageFormat.STD &&
+                request.remove_device_exif == Request.RemoveDeviceExif.OFF;
+    }
+
+    /** Mirrors and stamps the image as required for the request, with mirrorImageLossless() and
+     *  stampImageRegion(). The request must satisfy canEditJpegDirectly().
+     * @return The modified jpeg data, or null if this isn't possible, in which case the caller should
+     *         decode the image instead.
+     */
+    private byte [] editJpegDirectly(Request request, ImageBuffer image) {
+        // JpegTransformer needs the data as an array, so copy it once for both edits
+        byte [] data = image.toByteArray();
+        if( request.mirror ) {
+            data = mirrorImageLossless(data);
+            if( data == null ) {
+                return null;
+            }
+        }
+        return stampImageRegion(request, data);
+    }
+
+    /** The "decode" pipeline stage.
+     */
+    private void decodeRequest(Request request) {
+        if( !canPrepareInParallel(request) ) {
+            return;
+        }
+        else if( main_activity.getApplicationInterface().isRawOnly() ) {
+            // the JPEGs won't be saved
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "decodeRequest");
+        PreparedImage [] prepared_images = new PreparedImage[request.jpeg_images.size()];
+        for(int i=0;i<request.jpeg_images.size();i++) {
+            if( canEditJpegDirectly(request) ) {
+                byte [] edited = editJpegDirectly(request, request.jpeg_images.get(i));
+                if( edited != null ) {
+                    // nothing left to do for the "postprocess" and "encode" stages
+                    prepared_images[i] = new PreparedImage(null);
+                    prepared_images[i].encoded = edited;
+                    continue;
                 }
             }
-            catch(InterruptedException e) {
+            Bitmap bitmap = loadBitmapWithRotation(request.jpeg_images.get(i), true);
+            if( bitmap == null ) {
+                // leave to be handled when saving
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to decode image: " + i);
+                System.gc();
+            }
+            else {
+                prepared_images[i] = new PreparedImage(bitmap);
+            }
+        }
+        request.prepared_images = prepared_images;
+    }
+
+    /** The "postprocess" pipeline stage.
+     */
+    private void postProcessRequest(Request request) {
+        if( request.prepared_images == null ) {
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "postProcessRequest");
+        for(int i=0;i<request.prepared_images.length;i++) {
+            PreparedImage prepared = request.prepared_images[i];
+            if( prepared == null || prepared.bitmap == null )
+                continue;
+            try {
+                // the bitmap has already been rotated for exif tags when decoding
+                prepared.bitmap = postProcessBitmap(request, request.jpeg_images.get(i), prepared.bitmap, true).bitmap;
+            }
+            catch(IOException e) {
                 e.printStackTrace();
+                if( prepared.bitmap != null )
+                    prepared.bitmap.recycle();
+                request.prepared_images[i] = null;
+            }
+        }
+    }
+
+    /** The "encode" pipeline stage.
+     */
+    private void encodeRequest(Request request) {
+        if( request.prepared_images == null ) {
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "encodeRequest");
+        for(PreparedImage prepared : request.prepared_images) {
+            if( prepared == null || prepared.bitmap == null )
+                continue;
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            boolean compressed = false;
+            try {
+                compressed = compressBitmap(request, prepared.bitmap, stream);
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            if( compressed ) {
+                prepared.encoded = stream.toByteArray();
+            }
+            else if( MyDebug.LOG ) {
+                // leave to be compressed when saving
+                Log.e(TAG, "failed to compress bitmap");
+            }
+        }
+    }
+
+    /** The "write" pipeline stage. This is called for each request in the order they were added to the queue.
+     *  The request's resources are released and the counts of images to save are updated even if
+     *  saving throws (e.g., OutOfMemoryError), otherwise the memory budget would never be returned
+     *  and waitUntilDone() would block forever. The exception is then passed on to the pipeline,
+     *  which records the failure.
+     */
+    private void saveRequest(Request request) {
+        boolean success = false;
+        boolean completed = false;
+        try {
+            switch (request.type) {
+                case RAW:
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "request is raw");
+                    success = saveImageNowRaw(request);
+                    break;
+                case JPEG:
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "request is jpeg");
+                    success = saveImageNow(request);
+                    break;
+                default:
+                    if (MyDebug.LOG)
+                        Log.e(TAG, "request is unknown type!");
+                    break;
+            }
+            completed = true;
+        }
+        finally {
+            if( !completed ) {
                 if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+                    Log.e(TAG, "exception whilst saving request");
+                main_activity.getPreview().showToast(null, request.type == Request.Type.RAW ? R.string.failed_to_save_photo_raw : R.string.failed_to_save_photo);
+            }
+            finishRequest(request, success);
+        }
+    }
+
+    /** Releases the resources held by a request that has left the "write" stage, and updates the
+     *  counts of images still to save.
+     */
+    private void finishRequest(Request request, boolean success) {
+        request.prepared_images = null;
+        releaseJpegBuffers(request);
+        memory_budget.release(request.budget_bytes);
+        if( test_slow_saving ) {
+            try {
+                Thread.sleep(2000);
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if( MyDebug.LOG ) {
+            if( success )
+                Log.d(TAG, "ImageSaver thread successfully saved image");
+            else
+                Log.e(TAG, "ImageSaver thread failed to save image");
+            for(ImageSaverPipeline.StageStats stats : pipeline.getStats()) {
+                Log.d(TAG, "pipeline " + stats);
             }
         }
+        synchronized( this ) {
+            n_images_to_save -= request.cost;
+            n_real_images_to_save--;
+            if( MyDebug.LOG )
+                Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+            if( MyDebug.LOG && n_images_to_save < 0 ) {
+                Log.e(TAG, "images to save has become negative");
+                throw new RuntimeException();
+            }
+            else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
+                Log.e(TAG, "real images to save has become negative");
+                throw new RuntimeException();
+            }
+            notifyAll();
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
+                }
+            });
+        }
     }
 
     /** Saves a photo.
@@ -582,7 +1193,7 @@ public class ImageSaver extends Thread {
                           boolean force_suffix,
                           int suffix_offset,
                           boolean save_expo,
-                          List<byte []> images,
+                          List<ImageBuffer> images,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2, boolean using_camera_extensions,
                           Request.ImageFormat image_format, int image_quality,
@@ -721,7 +1332,7 @@ public class ImageSaver extends Thread {
                 false,
                 0,
                 save_base,
-                new ArrayList<>(),
+                new JpegFrameList(createFrameStore()),
                 null,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2, using_camera_extensions,
@@ -743,16 +1354,49 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( processType == Request.ProcessType.AVERAGE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            // merge the images as they arrive
+            pending_image_average_request.nr_accumulator = new NRAccumulator(hdrProcessor, iso, exposure_time, zoom_factor);
+        }
     }
 
-    void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
+    /** Adds an image to the current batch. Takes ownership of the image.
+     */
+    void addImageBatch(ImageBuffer image, float [] gyro_rotation_matrix) {
         if( MyDebug.LOG )
             Log.d(TAG, "addImageBatch");
         if( pending_image_average_request == null ) {
             Log.e(TAG, "addImageBatch called but no pending_image_average_request");
+            image.release();
             return;
         }
-        pending_image_average_request.jpeg_images.add(image);
+        JpegFrameList frames = (JpegFrameList)pending_image_average_request.jpeg_images;
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && pending_image_average_request.nr_accumulator != null ) {
+            if( pending_image_average_request.nr_accumulator.getNImages() == 0 ) {
+                // the accumulator decodes and merges the images before the request is added to the queue, so charge
+                // its bitmaps and allocations now, rather than in addRequest(), blocking if the budget is used up
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(image.getInputStream(), null, options);
+                long bytes = computeRequestBytes(0, 0, NRAccumulator.held_bitmaps_c, Math.max(options.outWidth, 0), Math.max(options.outHeight, 0));
+                if( MyDebug.LOG )
+                    Log.d(TAG, "acquire memory for NRAccumulator: " + bytes);
+                acquireMemoryBudget(bytes);
+                pending_image_average_request.budget_bytes = bytes;
+            }
+            // the accumulator holds its own reference until the image is merged
+            pending_image_average_request.nr_accumulator.add(image);
+            // we only need to keep the first image (for the exif data, or to save if SAVEBASE_FIRST), unless saving all images
+            if( frames.size() == 0 || pending_image_average_request.save_base == Request.SaveBase.SAVEBASE_ALL ) {
+                frames.addFrame(image);
+            }
+            else {
+                image.release();
+            }
+        }
+        else {
+            frames.addFrame(image);
+        }
         if( gyro_rotation_matrix != null ) {
             float [] copy = new float[gyro_rotation_matrix.length];
             System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
@@ -777,13 +1421,19 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
+            int n_images = pending_image_average_request.jpeg_images.size();
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && pending_image_average_request.nr_accumulator != null ) {
+                n_images = pending_image_average_request.nr_accumulator.getNImages();
+            }
+            int cost = computeRequestCost(false, n_images);
             addRequest(pending_image_average_request, cost);
         }
         else {
             // wait for queue to be empty
             waitUntilDone();
             saveImageNow(pending_image_average_request);
+            releaseJpegBuffers(pending_image_average_request);
+            releaseBatchMemoryBudget(pending_image_average_request);
         }
         pending_image_average_request = null;
     }
@@ -792,9 +1442,25 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "flushImageBatch");
         // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && pending_image_average_request != null && pending_image_average_request.nr_accumulator != null ) {
+            pending_image_average_request.nr_accumulator.cancel();
+        }
+        if( pending_image_average_request != null ) {
+            releaseJpegBuffers(pending_image_average_request);
+            releaseBatchMemoryBudget(pending_image_average_request);
+        }
         pending_image_average_request = null;
     }
 
+    /** Releases any memory acquired by addImageBatch() for a request that won't be added to the queue.
+     */
+    private void releaseBatchMemoryBudget(Request request) {
+        if( request.budget_bytes > 0 ) {
+            memory_budget.release(request.budget_bytes);
+            request.budget_bytes = 0;
+        }
+    }
+
     /** Internal saveImage method to handle both JPEG and RAW.
      */
     private boolean saveImage(boolean do_in_background,
@@ -803,7 +1469,7 @@ public class ImageSaver extends Thread {
                               boolean force_suffix,
                               int suffix_offset,
                               boolean save_expo,
-                              List<byte []> jpeg_images,
+                              List<ImageBuffer> jpeg_images,
                               RawImage raw_image,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2, boolean using_camera_extensions,
@@ -840,7 +1506,7 @@ public class ImageSaver extends Thread {
                 force_suffix,
                 suffix_offset,
                 save_expo ? Request.SaveBase.SAVEBASE_ALL : Request.SaveBase.SAVEBASE_NONE,
-                jpeg_images,
+                null,
                 raw_image,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2, using_camera_extensions,
@@ -862,11 +1528,14 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( jpeg_images != null ) {
+            setJpegImages(request, jpeg_images);
+        }
 
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
+            int cost = computeRequestCost(is_raw, is_raw ? 1 : getNJpegs(request));
             addRequest(request, cost);
             success = true; // always return true when done in background
         }
@@ -878,6 +1547,7 @@ public class ImageSaver extends Thread {
             }
             else {
                 success = saveImageNow(request);
+                releaseJpegBuffers(request);
             }
         }
 
@@ -886,7 +1556,7 @@ public class ImageSaver extends Thread {
         return success;
     }
 
-    /** Adds a request to the background queue, blocking if the queue is already full
+    /** Adds a request to the background queue, blocking if the memory budget is already used up.
      */
     private void addRequest(Request request, int cost) {
         if( MyDebug.LOG )
@@ -896,90 +1566,72 @@ public class ImageSaver extends Thread {
             // crash if needing to use RenderScript.
             // MainDestroy.onDestroy() does call waitUntilDone(), but this is extra protection in case an image comes in after that.
             Log.e(TAG, "application is destroyed, image lost!");
+            releaseJpegBuffers(request);
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.nr_accumulator != null ) {
+                request.nr_accumulator.cancel();
+            }
+            releaseBatchMemoryBudget(request);
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
+        request.cost = cost;
+        // if the request already holds memory (see addImageBatch()), it's already been admitted
+        final boolean admitted = request.budget_bytes > 0;
+        long bytes = computeRequestBytes(request);
+        synchronized( this ) {
+            // we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
+            // also see FindBugs warning due to inconsistent synchronisation
+            n_images_to_save += cost; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
+            n_real_images_to_save++;
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
+                }
+            });
+        }
+        if( admitted ) {
+            // n.b., we mustn't block, as the memory the request already holds is only released once it's saved
+            memory_budget.grow(bytes);
+        }
+        else {
+            if( memory_budget.wouldBlock(bytes) ) {
+                Log.e(TAG, "ImageSaver thread is going to block, memory budget already used: " + memory_budget.getUsed());
+                test_queue_blocked = true;
+                //throw new RuntimeException(); // test
+            }
+            acquireMemoryBudget(bytes);
+        }
+        request.budget_bytes += bytes;
+        queue.add(request); // queue is unbounded, so never blocks
+        if( MyDebug.LOG ) {
+            synchronized( this ) { // keep FindBugs happy
+                Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
+                Log.d(TAG, "images still to save is now: " + n_images_to_save);
+                Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
+                Log.d(TAG, "memory used is now: " + memory_budget.getUsed() + " of " + memory_budget.getCapacity());
+            }
+        }
+    }
+
+    /** Acquires the requested bytes from memory_budget, blocking until they're available.
+     */
+    private void acquireMemoryBudget(long bytes) {
+        // this should not be synchronized on "this": if it's blocking in acquire(), we'll hang because the saver thread will
+        // need to synchronize on "this" in order to notifyAll() the main thread
         boolean done = false;
         while( !done ) {
             try {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
-                synchronized( this ) {
-                    // see above for why we don't synchronize the queue.put call
-                    // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
-                    // also see FindBugs warning due to inconsistent synchronisation
-                    n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save++;
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
-                }
-                if( queue.size() + 1 > queue_capacity ) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
-                }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
-                if( MyDebug.LOG ) {
-                    synchronized( this ) { // keep FindBugs happy
-                        Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
-                        Log.d(TAG, "images still to save is now: " + n_images_to_save);
-                        Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
-                    }
-                }
+                memory_budget.acquire(bytes); // if the budget is used up, acquire() blocks until there's enough free
                 done = true;
             }
             catch(InterruptedException e) {
                 e.printStackTrace();
                 if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
-            }
-        }
-        if( cost > 0 ) {
-            // add "dummy" requests to simulate the cost
-            for(int i=0;i<cost-1;i++) {
-                addDummyRequest();
+                    Log.e(TAG, "interrupted while trying to acquire memory for ImageSaver queue");
             }
         }
     }
 
-    private void addDummyRequest() {
-        Request dummy_request = new Request(Request.Type.DUMMY,
-                Request.ProcessType.NORMAL,
-                false,
-                0,
-                Request.SaveBase.SAVEBASE_NONE,
-                null,
-                null,
-                false, null,
-                false, false,
-                Request.ImageFormat.STD, 0,
-                false, 0.0, null,
-                false,
-                false,
-                null,
-                HDRProcessor.default_tonemapping_algorithm_c,
-                null,
-                0,
-                0,
-                1.0f,
-                null, null, 0, 0, null, null, null, null,
-                //null,
-                null,
-                false, Request.RemoveDeviceExif.OFF, false, null, false, 0.0,
-                0.0, false,
-                null, null,
-                1);
-        if( MyDebug.LOG )
-            Log.d(TAG, "add dummy request");
-        addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
-    }
-
     /** Wait until the queue is empty and all pending images have been saved.
      */
     void waitUntilDone() {
@@ -1011,7 +1663,7 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "waitUntilDone: images all saved");
     }
 
-    private void setBitmapOptionsSampleSize(BitmapFactory.Options options, int inSampleSize) {
+    static void setBitmapOptionsSampleSize(BitmapFactory.Options options, int inSampleSize) {
         if( MyDebug.LOG )
             Log.d(TAG, "setBitmapOptionsSampleSize: " + inSampleSize);
         //options.inSampleSize = inSampleSize;
@@ -1027,7 +1679,7 @@ public class ImageSaver extends Thread {
      *                for the image post-processing (auto-stabilise etc), in general we need the
      *                bitmap to be mutable (for photostamp to work).
      */
-    private Bitmap loadBitmap(byte [] jpeg_image, boolean mutable, int inSampleSize) {
+    private Bitmap loadBitmap(ImageBuffer jpeg_image, boolean mutable, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmap");
             Log.d(TAG, "mutable?: " + mutable);
@@ -1041,32 +1693,70 @@ public class ImageSaver extends Thread {
             // setting is ignored in Android 5 onwards
             options.inPurgeable = true;
         }
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        Bitmap bitmap = bitmapPool.decode(jpeg_image, options);
         if( bitmap == null ) {
             Log.e(TAG, "failed to decode bitmap");
         }
+        else {
+            resizeBitmapPool(bitmap.getWidth(), bitmap.getHeight());
+        }
         return bitmap;
     }
 
-    /** Helper class for loadBitmaps().
+    /** Whether the supplied HDR images should be processed with processHDRTiled(), see useTiledHDR(int, int, int, long).
      */
-    private static class LoadBitmapThread extends Thread {
-        Bitmap bitmap;
-        final BitmapFactory.Options options;
-        final byte [] jpeg;
-        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
-            this.options = options;
-            this.jpeg = jpeg;
-        }
+    private static boolean useTiledHDR(List<ImageBuffer> jpeg_images) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(jpeg_images.get(0).getInputStream(), null, options);
+        boolean use_tiled = useTiledHDR(jpeg_images.size(), options.outWidth, options.outHeight, Runtime.getRuntime().maxMemory());
+        if( MyDebug.LOG )
+            Log.d(TAG, "useTiledHDR: " + use_tiled + " for " + jpeg_images.size() + " images of " + options.outWidth + " x " + options.outHeight);
+        return use_tiled;
+    }
 
-        public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+    /** Creates the HDR image for the request with HDRProcessor.processHDRTiled().
+     * @return The HDR image, or null if it failed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap processHDRTiled(Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRTiled");
+        long time_s = System.currentTimeMillis();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(request.jpeg_images.get(0).getInputStream(), null, options);
+        int align_sample_size = HDRProcessor.computeTiledAlignSampleSize(options.outWidth, options.outHeight, request.jpeg_images.size(), computePostProcessingReserve(Runtime.getRuntime().maxMemory()));
+        float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, request.jpeg_images.size());
+        Bitmap hdr_bitmap;
+        try {
+            // hdrProcessor may also be in use by an NRAccumulator
+            synchronized( hdrProcessor ) {
+                hdr_bitmap = hdrProcessor.processHDRTiled(request.jpeg_images, align_sample_size, hdr_alpha, 4, true, request.preference_hdr_tonemapping_algorithm);
+            }
         }
+        catch(HDRProcessorException e) {
+            Log.e(TAG, "HDRProcessorException from processHDRTiled: " + e.getCode());
+            e.printStackTrace();
+            if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES || e.getCode() == HDRProcessorException.DECODE_FAILED ) {
+                main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                System.gc();
+                return null;
+            }
+            else {
+                // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+                throw new RuntimeException();
+            }
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "HDR performance: time for processHDRTiled: " + (System.currentTimeMillis() - time_s));
+        }
+        return hdr_bitmap;
     }
 
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
      */
-    private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
+    private List<Bitmap> loadBitmaps(List<ImageBuffer> jpeg_images, int mutable_id, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmaps");
             Log.d(TAG, "mutable_id: " + mutable_id);
@@ -1082,39 +1772,32 @@ public class ImageSaver extends Thread {
             mutable_options.inPurgeable = true;
             options.inPurgeable = true;
         }
-        LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
-        for(int i=0;i<jpeg_images.size();i++) {
-            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
-        }
-        // start threads
-        if( MyDebug.LOG )
-            Log.d(TAG, "start threads");
+        List<BitmapFactory.Options> options_list = new ArrayList<>();
         for(int i=0;i<jpeg_images.size();i++) {
-            threads[i].start();
+            options_list.add( i==mutable_id ? mutable_options : options );
         }
-        // wait for threads to complete
+        // decode on the bounded pool, rather than a thread per image
         boolean ok = true;
+        Bitmap [] decoded = null;
         if( MyDebug.LOG )
-            Log.d(TAG, "wait for threads to complete");
+            Log.d(TAG, "wait for decodes to complete");
         try {
-            for(int i=0;i<jpeg_images.size();i++) {
-                threads[i].join();
-            }
+            decoded = decoderPool.decode(jpeg_images, options_list);
         }
         catch(InterruptedException e) {
             if( MyDebug.LOG )
-                Log.e(TAG, "threads interrupted");
+                Log.e(TAG, "decoding interrupted");
             e.printStackTrace();
             ok = false;
         }
         if( MyDebug.LOG )
-            Log.d(TAG, "threads completed");
+            Log.d(TAG, "decodes completed");
 
         List<Bitmap> bitmaps = new ArrayList<>();
         for(int i=0;i<jpeg_images.size() && ok;i++) {
-            Bitmap bitmap = threads[i].bitmap;
+            Bitmap bitmap = decoded[i];
             if( bitmap == null ) {
-                Log.e(TAG, "failed to decode bitmap in thread: " + i);
+                Log.e(TAG, "failed to decode bitmap: " + i);
                 ok = false;
             }
             else {
@@ -1127,10 +1810,10 @@ public class ImageSaver extends Thread {
         if( !ok ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "cleanup from failure");
-            for(int i=0;i<jpeg_images.size();i++) {
-                if( threads[i].bitmap != null ) {
-                    threads[i].bitmap.recycle();
-                    threads[i].bitmap = null;
+            for(int i=0;decoded != null && i<decoded.length;i++) {
+                if( decoded[i] != null ) {
+                    bitmapPool.release(decoded[i]);
+                    decoded[i] = null;
                 }
             }
             bitmaps.clear();
@@ -1138,6 +1821,9 @@ public class ImageSaver extends Thread {
             return null;
         }
 
+        if( bitmaps.size() > 0 ) {
+            resizeBitmapPool(bitmaps.get(0).getWidth(), bitmaps.get(0).getHeight());
+        }
         return bitmaps;
     }
 
@@ -1354,7 +2040,7 @@ public class ImageSaver extends Thread {
             // throw runtime exception, as this is a programming error
             throw new RuntimeException();
         }
-        else if( request.jpeg_images.size() == 0 ) {
+        else if( getNJpegs(request) == 0 ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "saveImageNow called with zero images");
             // throw runtime exception, as this is a programming error
@@ -1400,134 +2086,147 @@ public class ImageSaver extends Thread {
 				throw new RuntimeException();
 			}*/
             Bitmap nr_bitmap;
-            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                try {
-                    long time_s = System.currentTimeMillis();
-                    // initialise allocation from first two bitmaps
-                    //int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
-                    int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
-                    //final boolean use_smp = false;
-                    final boolean use_smp = true;
-                    // n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
-                    // e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
-                    // sure there isn't a knock on effect on performance
-                    //final int n_smp_images = 2;
-                    final int n_smp_images = 4;
-                    long this_time_s = System.currentTimeMillis();
-                    List<Bitmap> bitmaps = null;
-                    Bitmap bitmap0, bitmap1;
-                    if( use_smp ) {
-						/*List<byte []> sub_jpeg_list = new ArrayList<>();
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.nr_accumulator != null ) {
+                // the images have already been merged as they arrived, so we just need to wait for the last one
+                nr_bitmap = request.nr_accumulator.finish();
+                request.nr_accumulator = null;
+                if( nr_bitmap == null ) {
+                    Log.e(TAG, "failed to create NR image");
+                    main_activity.savingImage(false);
+                    return false;
+                }
+            }
+            else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                // hdrProcessor may also be in use by an NRAccumulator
+                synchronized( hdrProcessor ) {
+                    try {
+                        long time_s = System.currentTimeMillis();
+                        // initialise allocation from first two bitmaps
+                        //int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
+                        int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
+                        //final boolean use_smp = false;
+                        final boolean use_smp = true;
+                        // n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
+                        // e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
+                        // sure there isn't a knock on effect on performance
+                        //final int n_smp_images = 2;
+                        final int n_smp_images = 4;
+                        long this_time_s = System.currentTimeMillis();
+                        List<Bitmap> bitmaps = null;
+                        Bitmap bitmap0, bitmap1;
+                        if( use_smp ) {
+						/*List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
 						sub_jpeg_list.add(request.jpeg_images.get(0));
 						sub_jpeg_list.add(request.jpeg_images.get(1));
 						bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
 						bitmap0 = bitmaps.get(0);
 						bitmap1 = bitmaps.get(1);*/
-                        int n_remaining = request.jpeg_images.size();
-                        int n_load = Math.min(n_smp_images, n_remaining);
+                            int n_remaining = request.jpeg_images.size();
+                            int n_load = Math.min(n_smp_images, n_remaining);
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "n_remaining: " + n_remaining);
+                                Log.d(TAG, "n_load: " + n_load);
+                            }
+                            List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
+                            for(int j=0;j<n_load;j++) {
+                                sub_jpeg_list.add(request.jpeg_images.get(j));
+                            }
+                            bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
+                            bitmap0 = bitmaps.get(0);
+                            bitmap1 = bitmaps.get(1);
+                        }
+                        else {
+                            bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
+                            bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
+                        }
                         if( MyDebug.LOG ) {
-                            Log.d(TAG, "n_remaining: " + n_remaining);
-                            Log.d(TAG, "n_load: " + n_load);
+                            Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
                         }
-                        List<byte []> sub_jpeg_list = new ArrayList<>();
-                        for(int j=0;j<n_load;j++) {
-                            sub_jpeg_list.add(request.jpeg_images.get(j));
+                        int width = bitmap0.getWidth();
+                        int height = bitmap0.getHeight();
+                        float avg_factor = 1.0f;
+                        this_time_s = System.currentTimeMillis();
+                        HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
+                        if( bitmaps != null ) {
+                            bitmaps.set(0, null);
+                            bitmaps.set(1, null);
                         }
-                        bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                        bitmap0 = bitmaps.get(0);
-                        bitmap1 = bitmaps.get(1);
-                    }
-                    else {
-                        bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
-                        bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
-                    }
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
-                    }
-                    int width = bitmap0.getWidth();
-                    int height = bitmap0.getHeight();
-                    float avg_factor = 1.0f;
-                    this_time_s = System.currentTimeMillis();
-                    HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
-                    if( bitmaps != null ) {
-                        bitmaps.set(0, null);
-                        bitmaps.set(1, null);
-                    }
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
-                    }
-                    Allocation allocation = avg_data.allocation_out;
-
-                    for(int i=2;i<request.jpeg_images.size();i++) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "processAvg for image: " + i);
+                        if( MyDebug.LOG ) {
+                            Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
+                        }
+                        Allocation allocation = avg_data.allocation_out;
 
-                        this_time_s = System.currentTimeMillis();
-                        Bitmap new_bitmap;
-                        if( use_smp ) {
-                            // check if we already loaded the bitmap
+                        for(int i=2;i<request.jpeg_images.size();i++) {
                             if( MyDebug.LOG )
-                                Log.d(TAG, "length of bitmaps list: " + bitmaps.size());
-                            if( i < bitmaps.size() ) {
-                                if( MyDebug.LOG ) {
-                                    Log.d(TAG, "already loaded bitmap from previous iteration with SMP");
+                                Log.d(TAG, "processAvg for image: " + i);
+
+                            this_time_s = System.currentTimeMillis();
+                            Bitmap new_bitmap;
+                            if( use_smp ) {
+                                // check if we already loaded the bitmap
+                                if( MyDebug.LOG )
+                                    Log.d(TAG, "length of bitmaps list: " + bitmaps.size());
+                                if( i < bitmaps.size() ) {
+                                    if( MyDebug.LOG ) {
+                                        Log.d(TAG, "already loaded bitmap from previous iteration with SMP");
+                                    }
+                                    new_bitmap = bitmaps.get(i);
+                                }
+                                else {
+                                    int n_remaining = request.jpeg_images.size() - i;
+                                    int n_load = Math.min(n_smp_images, n_remaining);
+                                    if( MyDebug.LOG ) {
+                                        Log.d(TAG, "n_remaining: " + n_remaining);
+                                        Log.d(TAG, "n_load: " + n_load);
+                                    }
+                                    List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
+                                    for(int j=i;j<i+n_load;j++) {
+                                        sub_jpeg_list.add(request.jpeg_images.get(j));
+                                    }
+                                    List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
+                                    bitmaps.addAll(new_bitmaps);
+                                    if( MyDebug.LOG )
+                                        Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
+                                    new_bitmap = bitmaps.get(i);
                                 }
-                                new_bitmap = bitmaps.get(i);
                             }
                             else {
-                                int n_remaining = request.jpeg_images.size() - i;
-                                int n_load = Math.min(n_smp_images, n_remaining);
-                                if( MyDebug.LOG ) {
-                                    Log.d(TAG, "n_remaining: " + n_remaining);
-                                    Log.d(TAG, "n_load: " + n_load);
-                                }
-                                List<byte []> sub_jpeg_list = new ArrayList<>();
-                                for(int j=i;j<i+n_load;j++) {
-                                    sub_jpeg_list.add(request.jpeg_images.get(j));
-                                }
-                                List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                                bitmaps.addAll(new_bitmaps);
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                                new_bitmap = bitmaps.get(i);
+                                new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
+                            }
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
+                            }
+                            avg_factor = (float)i;
+                            this_time_s = System.currentTimeMillis();
+                            hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
+                            // updateAvg recycles new_bitmap
+                            if( bitmaps != null ) {
+                                bitmaps.set(i, null);
+                            }
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
                             }
                         }
-                        else {
-                            new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
-                        }
-                        if( MyDebug.LOG ) {
-                            Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
-                        }
-                        avg_factor = (float)i;
+
                         this_time_s = System.currentTimeMillis();
-                        hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
-                        // updateAvg recycles new_bitmap
-                        if( bitmaps != null ) {
-                            bitmaps.set(i, null);
+                        nr_bitmap = hdrProcessor.avgBrighten(allocation, width, height, request.iso, request.exposure_time);
+                        if( MyDebug.LOG ) {
+                            Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
                         }
+                        avg_data.destroy();
+                        //noinspection UnusedAssignment
+                        avg_data = null;
                         if( MyDebug.LOG ) {
-                            Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
+                            Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
                         }
                     }
-
-                    this_time_s = System.currentTimeMillis();
-                    nr_bitmap = hdrProcessor.avgBrighten(allocation, width, height, request.iso, request.exposure_time);
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
-                    }
-                    avg_data.destroy();
-                    //noinspection UnusedAssignment
-                    avg_data = null;
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
+                    catch(HDRProcessorException e) {
+                        e.printStackTrace();
+                        throw new RuntimeException();
                     }
                 }
-                catch(HDRProcessorException e) {
-                    e.printStackTrace();
-                    throw new RuntimeException();
-                }
             }
             else {
                 Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
@@ -1545,7 +2244,7 @@ public class ImageSaver extends Thread {
             success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, suffix, true, true, true, false);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for nr image");
-            nr_bitmap.recycle();
+            bitmapPool.release(nr_bitmap);
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.HDR ) {
@@ -1574,61 +2273,75 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "create HDR image");
             main_activity.savingImage(true);
 
-            // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
-            // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
-            // see test testTakePhotoHDRPhotoStamp.
-            int base_bitmap = (request.jpeg_images.size()-1)/2;
-            if( MyDebug.LOG )
-                Log.d(TAG, "base_bitmap: " + base_bitmap);
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
-            if( bitmaps == null ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-            }
-            float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
-            if( MyDebug.LOG )
-                Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            try {
-                if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, request.preference_hdr_tonemapping_algorithm, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
-                }
-                else {
-                    Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
-                    throw new RuntimeException();
+            Bitmap hdr_bitmap;
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && useTiledHDR(request.jpeg_images) ) {
+                // too large to decode all of the images at once
+                hdr_bitmap = processHDRTiled(request);
+                if( hdr_bitmap == null ) {
+                    main_activity.savingImage(false);
+                    return false;
                 }
             }
-            catch(HDRProcessorException e) {
-                Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
-                e.printStackTrace();
-                if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
-                    // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
-                    main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
-                    Log.e(TAG, "UNEQUAL_SIZES");
-                    bitmaps.clear();
-                    System.gc();
+            else {
+                // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
+                // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
+                // see test testTakePhotoHDRPhotoStamp.
+                int base_bitmap = (request.jpeg_images.size()-1)/2;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "base_bitmap: " + base_bitmap);
+                List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+                if( bitmaps == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to load bitmaps");
                     main_activity.savingImage(false);
                     return false;
                 }
-                else {
-                    // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
-                    throw new RuntimeException();
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+                }
+                float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                try {
+                    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                        // hdrProcessor may also be in use by an NRAccumulator
+                        synchronized( hdrProcessor ) {
+                            hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, request.preference_hdr_tonemapping_algorithm, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+                        }
+                    }
+                    else {
+                        Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
+                        throw new RuntimeException();
+                    }
+                }
+                catch(HDRProcessorException e) {
+                    Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
+                    e.printStackTrace();
+                    if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+                        // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
+                        main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                        Log.e(TAG, "UNEQUAL_SIZES");
+                        bitmaps.clear();
+                        System.gc();
+                        main_activity.savingImage(false);
+                        return false;
+                    }
+                    else {
+                        // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+                        throw new RuntimeException();
+                    }
                 }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                hdr_bitmap = bitmaps.get(0);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+                bitmaps.clear();
+                System.gc();
             }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
-            }
-            if( MyDebug.LOG )
-                Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            Bitmap hdr_bitmap = bitmaps.get(0);
-            if( MyDebug.LOG )
-                Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
-            bitmaps.clear();
-            System.gc();
             main_activity.savingImage(false);
 
             if( MyDebug.LOG )
@@ -1643,7 +2356,7 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG ) {
                 Log.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
             }
-            hdr_bitmap.recycle();
+            bitmapPool.release(hdr_bitmap);
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.PANORAMA ) {
@@ -1741,8 +2454,13 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "panorama_dir_left_to_right: " + request.panorama_dir_left_to_right);
             if( !request.panorama_dir_left_to_right ) {
-                Collections.reverse(request.jpeg_images);
-                // shouldn't use gyro_rotation_matrix from this point, but keep in sync with jpeg_images just in case
+                if( request.jpeg_images instanceof JpegFrameList ) {
+                    ((JpegFrameList)request.jpeg_images).reverse();
+                }
+                else {
+                    Collections.reverse(request.jpeg_images);
+                }
+                // keep in sync with jpeg_images, as passed to the panorama processor
                 Collections.reverse(request.gyro_rotation_matrix);
             }
 
@@ -1758,9 +2476,10 @@ public class ImageSaver extends Thread {
             }
 
             // rotate the bitmaps if necessary for exif tags
+            ImageBuffer first_jpeg = request.jpeg_images.get(0);
             for(int i=0;i<bitmaps.size();i++) {
                 Bitmap bitmap = bitmaps.get(i);
-                bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
+                bitmap = rotateForExif(bitmap, first_jpeg);
                 bitmaps.set(i, bitmap);
             }
             if( MyDebug.LOG ) {
@@ -1770,7 +2489,10 @@ public class ImageSaver extends Thread {
             Bitmap panorama;
             try {
                 if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    // panoramaProcessor uses hdrProcessor, which may also be in use by an NRAccumulator
+                    synchronized( hdrProcessor ) {
+                        panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop, request.gyro_rotation_matrix);
+                    }
                 }
                 else {
                     Log.e(TAG, "shouldn't have offered panorama as an option if not on Android 5");
@@ -1809,7 +2531,7 @@ public class ImageSaver extends Thread {
             success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, suffix, true, true, true, true);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for panorama image");
-            panorama.recycle();
+            bitmapPool.release(panorama);
             System.gc();
         }
         else {
@@ -1834,17 +2556,19 @@ public class ImageSaver extends Thread {
      */
     private boolean saveImages(Request request, String suffix, boolean first_only, boolean update_thumbnail, boolean share) {
         boolean success = true;
-        int mid_image = request.jpeg_images.size()/2;
-        for(int i=0;i<request.jpeg_images.size();i++) {
+        int n_jpegs = getNJpegs(request);
+        int mid_image = n_jpegs/2;
+        for(int i=0;i<n_jpegs;i++) {
             // note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
-            byte [] image = request.jpeg_images.get(i);
-            boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
+            ImageBuffer image = request.jpeg_images.get(i);
+            boolean multiple_jpegs = n_jpegs > 1 && !first_only;
             String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
             if( request.process_type == Request.ProcessType.X_NIGHT ) {
                 filename_suffix = "_Night" + filename_suffix;
             }
             boolean share_image = share && (i == mid_image);
-            if( !saveSingleImageNow(request, image, null, filename_suffix, update_thumbnail, share_image, false, false) ) {
+            PreparedImage prepared = request.prepared_images != null ? request.prepared_images[i] : null;
+            if( !saveSingleImageNow(request, image, null, prepared, filename_suffix, update_thumbnail, share_image, false, false) ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "saveSingleImageNow failed for image: " + i);
                 success = false;
@@ -1956,7 +2680,7 @@ public class ImageSaver extends Thread {
      * @param is_front_facing Whether the camera is front-facing.
      * @return A bitmap representing the auto-stabilised jpeg.
      */
-    private Bitmap autoStabilise(byte [] data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
+    private Bitmap autoStabilise(ImageBuffer data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "autoStabilise");
             Log.d(TAG, "level_angle: " + level_angle);
@@ -2036,7 +2760,7 @@ public class ImageSaver extends Thread {
             Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
             // careful, as new_bitmap is sometimes not a copy!
             if( new_bitmap != bitmap ) {
-                bitmap.recycle();
+                bitmapPool.release(bitmap);
                 bitmap = new_bitmap;
             }
             System.gc();
@@ -2081,7 +2805,7 @@ public class ImageSaver extends Thread {
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
      * @return A bitmap representing the mirrored jpeg.
      */
-    private Bitmap mirrorImage(byte [] data, Bitmap bitmap) {
+    private Bitmap mirrorImage(ImageBuffer data, Bitmap bitmap) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "mirrorImage");
         }
@@ -2112,13 +2836,105 @@ public class ImageSaver extends Thread {
         return bitmap;
     }
 
+    /** Reads the exif orientation tag from the supplied jpeg data, without decoding the image.
+     * @return The orientation, or ExifInterface.ORIENTATION_UNDEFINED if there's no orientation tag.
+     */
+    private static int getExifOrientation(byte [] data) {
+        ExifSplicer exif_splicer = ExifSplicer.parse(ByteBuffer.wrap(data));
+        String exif_orientation_s = exif_splicer != null ? exif_splicer.getAttribute(ExifInterface.TAG_ORIENTATION) : null;
+        int exif_orientation = ExifInterface.ORIENTATION_UNDEFINED;
+        if( exif_orientation_s != null ) {
+            try {
+                exif_orientation = Integer.parseInt(exif_orientation_s);
+            }
+            catch(NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "    exif orientation: " + exif_orientation);
+        return exif_orientation;
+    }
+
+    /** Mirrors the image without decoding it, by transforming the JPEG data with JpegTransformer. Any
+     *  rotation for the exif orientation tag is applied at the same time, and the tag then reset,
+     *  as for the decoded image returned by mirrorImage(). The exif thumbnail (which would still be
+     *  of the unmirrored image) is removed.
+     * @param data The jpeg data.
+     * @return The mirrored jpeg data, or null if this isn't possible, in which case the caller
+     *         should use mirrorImage() instead.
+     */
+    private static byte [] mirrorImageLossless(byte [] data) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "mirrorImageLossless");
+        int exif_orientation = getExifOrientation(data);
+        // the rotation to apply for the orientation tag, followed by mirroring horizontally
+        JpegTransformer.Transform transform;
+        switch( exif_orientation ) {
+            case ExifInterface.ORIENTATION_UNDEFINED:
+            case ExifInterface.ORIENTATION_NORMAL:
+                transform = JpegTransformer.Transform.FLIP_H;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                transform = JpegTransformer.Transform.FLIP_V;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                transform = JpegTransformer.Transform.TRANSPOSE;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                transform = JpegTransformer.Transform.TRANSVERSE;
+                break;
+            default:
+                // orientations that are already mirrored aren't supported by rotateForExif() either
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    unsupported exif orientation");
+                return null;
+        }
+        byte [] mirrored = JpegTransformer.transform(data, transform);
+        if( mirrored == null ) {
+            return null;
+        }
+        ExifSplicer exif_splicer = ExifSplicer.parse(ByteBuffer.wrap(mirrored));
+        if( exif_splicer == null ) {
+            if( transform != JpegTransformer.Transform.FLIP_H ) {
+                // can't reset the orientation tag
+                return null;
+            }
+            // no exif data, so no thumbnail or tags to update
+            return mirrored;
+        }
+        exif_splicer.removeThumbnail();
+        if( transform != JpegTransformer.Transform.FLIP_H ) {
+            // the rotation has been applied, so the orientation tag must be reset
+            exif_splicer.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(ExifInterface.ORIENTATION_NORMAL));
+        }
+        if( transform == JpegTransformer.Transform.TRANSPOSE || transform == JpegTransformer.Transform.TRANSVERSE ) {
+            // the width and height have been swapped
+            String pixel_x_dimension = exif_splicer.getAttribute(ExifInterface.TAG_PIXEL_X_DIMENSION);
+            String pixel_y_dimension = exif_splicer.getAttribute(ExifInterface.TAG_PIXEL_Y_DIMENSION);
+            if( pixel_x_dimension != null && pixel_y_dimension != null ) {
+                exif_splicer.setAttribute(ExifInterface.TAG_PIXEL_X_DIMENSION, pixel_y_dimension);
+                exif_splicer.setAttribute(ExifInterface.TAG_PIXEL_Y_DIMENSION, pixel_x_dimension);
+            }
+        }
+        byte [] header = exif_splicer.getHeader();
+        if( header == null ) {
+            return null;
+        }
+        int offset = exif_splicer.getResumeOffset();
+        byte [] result = new byte[header.length + mirrored.length - offset];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(mirrored, offset, result, header.length, mirrored.length - offset);
+        return result;
+    }
+
     /** Applies any photo stamp options (if they exist).
      * @param data The jpeg data.
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
      * @return A bitmap representing the stamped jpeg. Will be null if the input bitmap is null and
      *         no photo stamp is applied.
      */
-    private Bitmap stampImage(final Request request, byte [] data, Bitmap bitmap) {
+    private Bitmap stampImage(final Request request, ImageBuffer data, Bitmap bitmap) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "stampImage");
         }
@@ -2140,231 +2956,450 @@ public class ImageSaver extends Thread {
                     Log.d(TAG, "stamp info to bitmap: " + bitmap);
                 if( MyDebug.LOG )
                     Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-
-                String stamp_string = "";
-                /* We now stamp via a TextView instead of using MyApplicationInterface.drawTextWithBackground().
-                 * This is important in order to satisfy the Google emoji policy...
-                 */
-
-                int font_size = request.font_size;
-                int color = request.color;
-                String pref_style = request.pref_style;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "pref_style: " + pref_style);
-                String preference_stamp_dateformat = request.preference_stamp_dateformat;
-                String preference_stamp_timeformat = request.preference_stamp_timeformat;
-                String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
                 int width = bitmap.getWidth();
                 int height = bitmap.getHeight();
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "decoded bitmap size " + width + ", " + height);
                     Log.d(TAG, "bitmap size: " + width*height*4);
                 }
-                Canvas canvas = new Canvas(bitmap);
-                p.setColor(Color.WHITE);
-                // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
-                // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
-                int smallest_size = Math.min(width, height);
-                float scale = ((float)smallest_size) / (72.0f*4.0f);
-                int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "scale: " + scale);
-                    Log.d(TAG, "font_size: " + font_size);
-                    Log.d(TAG, "font_size_pixel: " + font_size_pixel);
-                }
-                p.setTextSize(font_size_pixel);
-                int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
-                int ypos = height - offset_y;
-                p.setTextAlign(Align.RIGHT);
-                MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                switch( pref_style ) {
-                    case "preference_stamp_style_shadowed":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
-                        break;
-                    case "preference_stamp_style_plain":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                        break;
-                    case "preference_stamp_style_background":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
-                        break;
+                StampView stamp_view;
+                synchronized( p ) {
+                    // p is shared, and this may be called from several pipeline workers at once
+                    stamp_view = createStampView(request, width, height);
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "draw_shadowed: " + draw_shadowed);
-                if( dategeo_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp date");
-                    // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
-                    String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
-                    String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "date_stamp: " + date_stamp);
-                        Log.d(TAG, "time_stamp: " + time_stamp);
+                if( stamp_view != null ) {
+                    Canvas canvas = new Canvas(bitmap);
+                    stamp_view.draw(canvas);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /** A stamp laid out for an image, see createStampView().
+     */
+    private static class StampView {
+        final View view;
+        // the bounds of the stamp within the image
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+
+        StampView(View view, int left, int top, int width, int height) {
+            this.view = view;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        void draw(Canvas canvas) {
+            canvas.save();
+            canvas.translate(left, top);
+            view.draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    /** Lays out the text for the photo stamp, for an image of the supplied size (after any rotation
+     *  for the exif orientation).
+     * @return The laid out stamp, or null if there's nothing to stamp.
+     */
+    private StampView createStampView(final Request request, int width, int height) {
+        boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+        boolean text_stamp = request.preference_textstamp.length() > 0;
+        String stamp_string = "";
+        /* We now stamp via a TextView instead of using MyApplicationInterface.drawTextWithBackground().
+         * This is important in order to satisfy the Google emoji policy...
+         */
+
+        int font_size = request.font_size;
+        int color = request.color;
+        String pref_style = request.pref_style;
+        if( MyDebug.LOG )
+            Log.d(TAG, "pref_style: " + pref_style);
+        String preference_stamp_dateformat = request.preference_stamp_dateformat;
+        String preference_stamp_timeformat = request.preference_stamp_timeformat;
+        String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
+        p.setColor(Color.WHITE);
+        // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
+        // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
+        int smallest_size = Math.min(width, height);
+        float scale = ((float)smallest_size) / (72.0f*4.0f);
+        int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "scale: " + scale);
+            Log.d(TAG, "font_size: " + font_size);
+            Log.d(TAG, "font_size_pixel: " + font_size_pixel);
+        }
+        p.setTextSize(font_size_pixel);
+        int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
+        int ypos = height - offset_y;
+        p.setTextAlign(Align.RIGHT);
+        MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+        switch( pref_style ) {
+            case "preference_stamp_style_shadowed":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
+                break;
+            case "preference_stamp_style_plain":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+                break;
+            case "preference_stamp_style_background":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
+                break;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "draw_shadowed: " + draw_shadowed);
+        if( dategeo_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp date");
+            // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
+            String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
+            String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "date_stamp: " + date_stamp);
+                Log.d(TAG, "time_stamp: " + time_stamp);
+            }
+            if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
+                String datetime_stamp = "";
+                if( date_stamp.length() > 0 )
+                    datetime_stamp += date_stamp;
+                if( time_stamp.length() > 0 ) {
+                    if( datetime_stamp.length() > 0 )
+                        datetime_stamp += " ";
+                    datetime_stamp += time_stamp;
+                }
+                //applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                if( stamp_string.length() == 0 )
+                    stamp_string = datetime_stamp;
+                else
+                    stamp_string = datetime_stamp + "\n" + stamp_string;
+            }
+            ypos -= diff_y;
+            String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
+            if( gps_stamp.length() > 0 ) {
+                // don't log gps_stamp, in case of privacy!
+
+                /*Address address = null;
+                if( request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
+                    boolean block_geocoder;
+                    synchronized(this) {
+                        block_geocoder = app_is_paused;
                     }
-                    if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
-                        String datetime_stamp = "";
-                        if( date_stamp.length() > 0 )
-                            datetime_stamp += date_stamp;
-                        if( time_stamp.length() > 0 ) {
-                            if( datetime_stamp.length() > 0 )
-                                datetime_stamp += " ";
-                            datetime_stamp += time_stamp;
-                        }
-                        //applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                        if( stamp_string.length() == 0 )
-                            stamp_string = datetime_stamp;
-                        else
-                            stamp_string = datetime_stamp + "\n" + stamp_string;
+                    // try to find an address
+                    // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
+                    if( block_geocoder ) {
+                        // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
+                        // has paused and we're still saving images
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "don't call geocoder for photostamp as app is paused");
                     }
-                    ypos -= diff_y;
-                    String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
-                    if( gps_stamp.length() > 0 ) {
-                        // don't log gps_stamp, in case of privacy!
-
-                        /*Address address = null;
-                        if( request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
-                            boolean block_geocoder;
-                            synchronized(this) {
-                                block_geocoder = app_is_paused;
-                            }
-                            // try to find an address
-                            // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
-                            if( block_geocoder ) {
-                                // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
-                                // has paused and we're still saving images
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "don't call geocoder for photostamp as app is paused");
-                            }
-                            else if( Geocoder.isPresent() ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder is present");
-                                Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                                try {
-                                    List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
-                                    if( addresses != null && addresses.size() > 0 ) {
-                                        address = addresses.get(0);
-                                        // don't log address, in case of privacy!
-                                        if( MyDebug.LOG ) {
-                                            Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                        }
-                                    }
-                                }
-                                catch(Exception e) {
-                                    Log.e(TAG, "failed to read from geocoder");
-                                    e.printStackTrace();
+                    else if( Geocoder.isPresent() ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "geocoder is present");
+                        Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
+                        try {
+                            List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
+                            if( addresses != null && addresses.size() > 0 ) {
+                                address = addresses.get(0);
+                                // don't log address, in case of privacy!
+                                if( MyDebug.LOG ) {
+                                    Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
                                 }
                             }
-                            else {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder not present");
-                            }
-                        }*/
-
-                        //if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") )
-                        {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "display gps coords");
-                            // want GPS coords (either in addition to the address, or we don't have an address)
-                            // we'll also enter here if store_location is false, but we have geo direction to display
-                            //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                            if( stamp_string.length() == 0 )
-                                stamp_string = gps_stamp;
-                            else
-                                stamp_string = gps_stamp + "\n" + stamp_string;
-                            ypos -= diff_y;
                         }
-                        /*else if( request.store_geo_direction ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "not displaying gps coords, but need to display geo direction");
-                            // we are displaying an address instead of GPS coords, but we still need to display the geo direction
-                            gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
-                            if( gps_stamp.length() > 0 ) {
-                                // don't log gps_stamp, in case of privacy!
-                                //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                if( stamp_string.length() == 0 )
-                                    stamp_string = gps_stamp;
-                                else
-                                    stamp_string = gps_stamp + "\n" + stamp_string;
-                                ypos -= diff_y;
-                            }
-                        }*/
-
-                        /*if( address != null ) {
-                            for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
-                                // write in reverse order
-                                String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
-                                //applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                if( stamp_string.length() == 0 )
-                                    stamp_string = addressLine;
-                                else
-                                    stamp_string = addressLine + "\n" + stamp_string;
-                                ypos -= diff_y;
-                            }
-                        }*/
+                        catch(Exception e) {
+                            Log.e(TAG, "failed to read from geocoder");
+                            e.printStackTrace();
+                        }
                     }
-                }
-                if( text_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp text");
+                    else {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "geocoder not present");
+                    }
+                }*/
 
-                    //applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                //if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") )
+                {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "display gps coords");
+                    // want GPS coords (either in addition to the address, or we don't have an address)
+                    // we'll also enter here if store_location is false, but we have geo direction to display
+                    //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
                     if( stamp_string.length() == 0 )
-                        stamp_string = request.preference_textstamp;
+                        stamp_string = gps_stamp;
                     else
-                        stamp_string = request.preference_textstamp + "\n" + stamp_string;
-
-                    //noinspection UnusedAssignment
+                        stamp_string = gps_stamp + "\n" + stamp_string;
                     ypos -= diff_y;
                 }
+                /*else if( request.store_geo_direction ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "not displaying gps coords, but need to display geo direction");
+                    // we are displaying an address instead of GPS coords, but we still need to display the geo direction
+                    gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
+                    if( gps_stamp.length() > 0 ) {
+                        // don't log gps_stamp, in case of privacy!
+                        //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        if( stamp_string.length() == 0 )
+                            stamp_string = gps_stamp;
+                        else
+                            stamp_string = gps_stamp + "\n" + stamp_string;
+                        ypos -= diff_y;
+                    }
+                }*/
 
-                if( stamp_string.length() > 0 ) {
-                    // don't log stamp_string, in case of privacy!
+                /*if( address != null ) {
+                    for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
+                        // write in reverse order
+                        String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
+                        //applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        if( stamp_string.length() == 0 )
+                            stamp_string = addressLine;
+                        else
+                            stamp_string = addressLine + "\n" + stamp_string;
+                        ypos -= diff_y;
+                    }
+                }*/
+            }
+        }
+        if( text_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp text");
+
+            //applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+            if( stamp_string.length() == 0 )
+                stamp_string = request.preference_textstamp;
+            else
+                stamp_string = request.preference_textstamp + "\n" + stamp_string;
+
+            //noinspection UnusedAssignment
+            ypos -= diff_y;
+        }
+
+        if( stamp_string.length() > 0 ) {
+            // don't log stamp_string, in case of privacy!
+
+            @SuppressLint("InflateParams")
+            final View stamp_view = LayoutInflater.from(main_activity).inflate(R.layout.stamp_image_text, null);
+            final LinearLayout layout = stamp_view.findViewById(R.id.layout);
+            final TextView textview = stamp_view.findViewById(R.id.text_view);
+
+            textview.setVisibility(View.VISIBLE);
+            textview.setTextColor(color);
+            textview.setTextSize(TypedValue.COMPLEX_UNIT_PX, font_size_pixel);
+            textview.setText(stamp_string);
+            if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_OUTLINE ) {
+                //noinspection PointlessArithmeticExpression
+                float shadow_radius = (1.0f * scale + 0.5f); // convert pt to pixels
+                shadow_radius = Math.max(shadow_radius, 1.0f);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "shadow_radius: " + shadow_radius);
+                textview.setShadowLayer(shadow_radius, 0.0f, 0.0f, Color.BLACK);
+            }
+            else if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_BACKGROUND ) {
+                textview.setBackgroundColor(Color.argb(64, 0, 0, 0));
+            }
+            //textview.setBackgroundColor(Color.BLACK); // test
+            textview.setGravity(Gravity.END); // so text is right-aligned - important when there are multiple lines
 
-                    @SuppressLint("InflateParams")
-                    final View stamp_view = LayoutInflater.from(main_activity).inflate(R.layout.stamp_image_text, null);
-                    final LinearLayout layout = stamp_view.findViewById(R.id.layout);
-                    final TextView textview = stamp_view.findViewById(R.id.text_view);
+            layout.measure(width, height);
+            layout.layout(0, 0, width, height);
+            // n.b., the layout clips the text (including any shadow) to the bounds of the textview
+            return new StampView(layout, width - offset_x - textview.getWidth(), height - offset_y - textview.getHeight(), textview.getWidth(), textview.getHeight());
+        }
+        return null;
+    }
 
-                    textview.setVisibility(View.VISIBLE);
-                    textview.setTextColor(color);
-                    textview.setTextSize(TypedValue.COMPLEX_UNIT_PX, font_size_pixel);
-                    textview.setText(stamp_string);
-                    if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_OUTLINE ) {
-                        //noinspection PointlessArithmeticExpression
-                        float shadow_radius = (1.0f * scale + 0.5f); // convert pt to pixels
-                        shadow_radius = Math.max(shadow_radius, 1.0f);
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "shadow_radius: " + shadow_radius);
-                        textview.setShadowLayer(shadow_radius, 0.0f, 0.0f, Color.BLACK);
-                    }
-                    else if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_BACKGROUND ) {
-                        textview.setBackgroundColor(Color.argb(64, 0, 0, 0));
-                    }
-                    //textview.setBackgroundColor(Color.BLACK); // test
-                    textview.setGravity(Gravity.END); // so text is right-aligned - important when there are multiple lines
+    /** Stamps the jpeg data as for stampImage(), but only decodes and re-encodes the MCUs covered by
+     *  the stamp - the coefficients for the rest of the image are copied unchanged, see
+     *  JpegTransformer.replaceRegion(). The exif orientation tag is left unchanged, so the stamp is
+     *  drawn rotated to match.
+     * @return The stamped jpeg data (which is the supplied data if there's nothing to stamp), or null
+     *         if this isn't possible, in which case the caller should use stampImage() instead.
+     */
+    private byte [] stampImageRegion(final Request request, byte [] data) {
+        boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+        boolean text_stamp = request.preference_textstamp.length() > 0;
+        if( !dategeo_stamp && !text_stamp ) {
+            return data;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "stampImageRegion");
+        long time_s = System.currentTimeMillis();
+        JpegTransformer.Info info = JpegTransformer.readInfo(data);
+        if( info == null ) {
+            return null;
+        }
+        int degrees;
+        switch( getExifOrientation(data) ) {
+            case ExifInterface.ORIENTATION_UNDEFINED:
+            case ExifInterface.ORIENTATION_NORMAL:
+                degrees = 0;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                degrees = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                degrees = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                degrees = 270;
+                break;
+            default:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    unsupported exif orientation");
+                return null;
+        }
+
+        // the stamp is laid out for the image as rotated for the exif orientation (see rotateForExif())
+        boolean swap_dims = degrees == 90 || degrees == 270;
+        StampView stamp_view;
+        synchronized( p ) {
+            // p is shared, and this may be called from several pipeline workers at once - but only
+            // hold the lock for the layout, so the decoding and encoding below can run in parallel
+            stamp_view = createStampView(request, swap_dims ? info.height : info.width, swap_dims ? info.width : info.height);
+        }
+        if( stamp_view == null ) {
+            return data;
+        }
+        // matrix converts from the rotated image to the stored image
+        Matrix matrix = new Matrix();
+        matrix.setRotate(-degrees);
+        if( degrees == 90 )
+            matrix.postTranslate(0, info.height);
+        else if( degrees == 180 )
+            matrix.postTranslate(info.width, info.height);
+        else if( degrees == 270 )
+            matrix.postTranslate(info.width, 0);
+        RectF bounds = new RectF(stamp_view.left, stamp_view.top, stamp_view.left + stamp_view.width, stamp_view.top + stamp_view.height);
+        matrix.mapRect(bounds);
+        // expand to whole MCUs, so the region can be replaced without affecting the rest of the image
+        int [] aligned = info.alignRegion((int)Math.floor(bounds.left), (int)Math.floor(bounds.top), (int)Math.ceil(bounds.right), (int)Math.ceil(bounds.bottom));
+        Rect region = new Rect(aligned[0], aligned[1], aligned[2], aligned[3]);
+        if( MyDebug.LOG )
+            Log.d(TAG, "stamp region: " + region);
+        if( region.isEmpty() ) {
+            return data;
+        }
 
-                    layout.measure(canvas.getWidth(), canvas.getHeight());
-                    layout.layout(0, 0, canvas.getWidth(), canvas.getHeight());
-                    canvas.translate(width - offset_x - textview.getWidth(), height - offset_y - textview.getHeight());
-                    layout.draw(canvas);
-                }
+        Bitmap bitmap;
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            bitmap = decoder.decodeRegion(region, options);
+            decoder.recycle();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if( bitmap == null ) {
+            Log.e(TAG, "failed to decode stamp region");
+            return null;
+        }
+        if( !bitmap.isMutable() ) {
+            Bitmap mutable_bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap.recycle();
+            bitmap = mutable_bitmap;
+            if( bitmap == null ) {
+                return null;
             }
         }
-        return bitmap;
+        Canvas canvas = new Canvas(bitmap);
+        canvas.translate(-region.left, -region.top);
+        canvas.concat(matrix);
+        stamp_view.draw(canvas);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, stream);
+        bitmap.recycle();
+        if( !compressed ) {
+            Log.e(TAG, "failed to compress stamp region");
+            return null;
+        }
+        byte [] result = JpegTransformer.replaceRegion(data, stream.toByteArray(), region.left, region.top);
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time to stamp region: " + (System.currentTimeMillis() - time_s));
+        return result;
     }
 
     private static class PostProcessBitmapResult {
         final Bitmap bitmap;
+        final ImageBuffer data; // the jpeg data, which may have been edited directly (see editJpegDirectly()) if bitmap is null
+
+        PostProcessBitmapResult(Bitmap bitmap, ImageBuffer data) {
+            this.bitmap = bitmap;
+            this.data = data;
+        }
+    }
+
+    /** The result of the "decode", "postprocess" and "encode" pipeline stages for an image.
+     */
+    private static class PreparedImage {
+        Bitmap bitmap; // the decoded and then post-processed bitmap, or null if the jpeg data was transformed losslessly instead
+        byte [] encoded; // the compressed bitmap (or transformed jpeg data), or null if not yet compressed
 
-        PostProcessBitmapResult(Bitmap bitmap) {
+        PreparedImage(Bitmap bitmap) {
             this.bitmap = bitmap;
         }
     }
 
+    /** Whether a JPEG should be encoded with ParallelJpegEncoder rather than Bitmap.compress().
+     * @param is_srgb Whether the bitmap is in the sRGB color space. ParallelJpegEncoder doesn't
+     *                write a color profile, so other color spaces (e.g., Display P3) must use
+     *                Bitmap.compress().
+     */
+    public static boolean useParallelJpegEncoder(int width, int height, boolean is_srgb) {
+        return is_srgb && (long)width * height >= parallel_jpeg_min_pixels_c;
+    }
+
+    private static boolean isSRGB(Bitmap bitmap) {
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+            return bitmap.getColorSpace() == ColorSpace.get(ColorSpace.Named.SRGB);
+        }
+        // bitmaps are always sRGB before Android 8
+        return true;
+    }
+
+    /** Compresses the bitmap in the image format for the request. Large sRGB JPEGs are encoded
+     *  with ParallelJpegEncoder, so that they're encoded on multiple threads, see
+     *  useParallelJpegEncoder().
+     * @return Whether the bitmap was successfully compressed.
+     */
+    private boolean compressBitmap(Request request, final Bitmap bitmap, OutputStream outputStream) throws IOException {
+        if( request.image_format != Request.ImageFormat.STD || !useParallelJpegEncoder(bitmap.getWidth(), bitmap.getHeight(), isSRGB(bitmap)) ) {
+            return bitmap.compress(getCompressFormat(request.image_format), request.image_quality, outputStream);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "compress with ParallelJpegEncoder");
+        final int width = bitmap.getWidth();
+        jpegEncoder.encode(new ParallelJpegEncoder.PixelSource() {
+            @Override
+            public void getPixels(int [] pixels, int y, int n_rows) {
+                bitmap.getPixels(pixels, 0, width, 0, y, width, n_rows);
+            }
+        }, width, bitmap.getHeight(), request.image_quality, outputStream);
+        return true;
+    }
+
+    private static Bitmap.CompressFormat getCompressFormat(Request.ImageFormat image_format) {
+        switch( image_format ) {
+            case WEBP:
+                return Bitmap.CompressFormat.WEBP;
+            case PNG:
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
     /** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
      */
-    private PostProcessBitmapResult postProcessBitmap(final Request request, byte [] data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
+    private PostProcessBitmapResult postProcessBitmap(final Request request, ImageBuffer data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "postProcessBitmap");
         long time_s = System.currentTimeMillis();
@@ -2385,7 +3420,14 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
         }
         if( request.mirror ) {
-            bitmap = mirrorImage(data, bitmap);
+            byte [] mirrored = null;
+            if( bitmap == null && canEditJpegDirectly(request) ) {
+                mirrored = mirrorImageLossless(data.toByteArray());
+            }
+            if( mirrored != null )
+                data = ImageBuffer.wrap(mirrored);
+            else
+                bitmap = mirrorImage(data, bitmap);
         }
         if( request.image_format != Request.ImageFormat.STD && bitmap == null ) {
             if( MyDebug.LOG )
@@ -2409,11 +3451,20 @@ public class ImageSaver extends Thread {
                 throw new IOException();
             }
         }
-        bitmap = stampImage(request, data, bitmap);
+        byte [] stamped = null;
+        if( bitmap == null && hasStamp(request) ) {
+            // no other changes required decoding the image, so only decode the region that's stamped
+            // (n.b., toByteArray() doesn't copy the data if it was mirrored above)
+            stamped = stampImageRegion(request, data.toByteArray());
+        }
+        if( stamped != null )
+            data = ImageBuffer.wrap(stamped);
+        else
+            bitmap = stampImage(request, data, bitmap);
         if( MyDebug.LOG ) {
             Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
         }
-        return new PostProcessBitmapResult(bitmap);
+        return new PostProcessBitmapResult(bitmap, data);
     }
 
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
@@ -2429,8 +3480,16 @@ public class ImageSaver extends Thread {
      * @param ignore_exif_orientation - If bitmap is non-null, then set this to true if the bitmap has already
      *                                  been rotated to account for Exif orientation tags in the data.
      */
+    private boolean saveSingleImageNow(final Request request, ImageBuffer data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+        return saveSingleImageNow(request, data, bitmap, null, filename_suffix, update_thumbnail, share_image, ignore_raw_only, ignore_exif_orientation);
+    }
+
+    /** As saveSingleImageNow() above, but if prepared is non-null, it's used instead of post-processing the data (and
+     *  bitmap must be null).
+     *  If the jpeg data is saved unchanged, it's written straight from the buffer, without copying it to the heap.
+     */
     @SuppressLint("SimpleDateFormat")
-    private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+    private boolean saveSingleImageNow(final Request request, ImageBuffer data, Bitmap bitmap, PreparedImage prepared, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveSingleImageNow");
 
@@ -2476,12 +3535,24 @@ public class ImageSaver extends Thread {
         // Otherwise, only picFile is non-null
         File picFile = null;
         Uri saveUri = null;
+        Uri latest_media_uri = null; // the key for the thumbnail, if we recorded the image in the latest media index
         boolean use_media_store = false;
         ContentValues contentValues = null; // used if using scoped storage
         try {
-            if( !raw_only ) {
+            if( prepared != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "already prepared by the pipeline");
+                bitmap = prepared.bitmap;
+                if( bitmap == null ) {
+                    // edited without decoding the whole image, see editJpegDirectly()
+                    data = ImageBuffer.wrap(prepared.encoded);
+                }
+            }
+            else if( !raw_only ) {
                 PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
                 bitmap = postProcessBitmapResult.bitmap;
+                // the data may have been transformed losslessly
+                data = postProcessBitmapResult.data;
             }
 
             if( raw_only ) {
@@ -2611,31 +3682,37 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "saveUri: " + saveUri);
 
             if( picFile != null || saveUri != null ) {
+                // if saving the jpeg data unchanged apart from the exif tags, we splice the new tags in as we write it out,
+                // rather than rewriting the file afterwards in updateExif()
+                ExifSplicer exif_splicer = null;
+                if( bitmap == null && prepared == null && request.image_format == Request.ImageFormat.STD && needsExifUpdate(request) ) {
+                    exif_splicer = spliceExif(request, data);
+                }
                 OutputStream outputStream;
                 if( picFile != null )
                     outputStream = new FileOutputStream(picFile);
                 else
                     outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
                 try {
-                    if( bitmap != null ) {
+                    if( prepared != null && prepared.encoded != null ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "write already compressed bitmap");
+                        outputStream.write(prepared.encoded);
+                    }
+                    else if( bitmap != null ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "compress bitmap, quality " + request.image_quality);
-                        Bitmap.CompressFormat compress_format;
-                        switch( request.image_format ) {
-                            case WEBP:
-                                compress_format = Bitmap.CompressFormat.WEBP;
-                                break;
-                            case PNG:
-                                compress_format = Bitmap.CompressFormat.PNG;
-                                break;
-                            default:
-                                compress_format = Bitmap.CompressFormat.JPEG;
-                                break;
-                        }
-                        bitmap.compress(compress_format, request.image_quality, outputStream);
+                        compressBitmap(request, bitmap, outputStream);
                     }
                     else {
-                        outputStream.write(data);
+                        int offset = 0;
+                        if( exif_splicer != null ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "write spliced exif header");
+                            outputStream.write(exif_splicer.getHeader());
+                            offset = exif_splicer.getResumeOffset();
+                        }
+                        data.writeTo(outputStream, offset);
                     }
                 }
                 finally {
@@ -2683,7 +3760,7 @@ public class ImageSaver extends Thread {
                             }
                         }
                     }
-                    else {
+                    else if( exif_splicer == null ) {
                         updateExif(request, picFile, saveUri);
                         if( MyDebug.LOG ) {
                             Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
@@ -2694,6 +3771,11 @@ public class ImageSaver extends Thread {
                 if( update_thumbnail ) {
                     // clear just in case we're unable to update this - don't want an out of date cached uri
                     storageUtils.clearLastMediaScanned();
+                    if( !request.image_capture_intent ) {
+                        // so that the gallery icon can be updated without searching for the latest media
+                        latest_media_uri = picFile != null ? Uri.fromFile(picFile) : saveUri;
+                        storageUtils.recordLatestMedia(latest_media_uri, use_media_store ? saveUri : null, false, false);
+                    }
                 }
 
                 boolean hasnoexifdatetime = request.remove_device_exif != Request.RemoveDeviceExif.OFF && request.remove_device_exif != Request.RemoveDeviceExif.KEEP_DATETIME;
@@ -2799,7 +3881,7 @@ public class ImageSaver extends Thread {
                     options.inPurgeable = true;
                 }
                 options.inSampleSize = sample_size;
-                thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                thumbnail = BitmapFactory.decodeStream(data.getInputStream(), null, options);
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
                     Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
@@ -2843,6 +3925,9 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "failed to create thumbnail bitmap");
             }
             else {
+                if( latest_media_uri != null ) {
+                    storageUtils.getThumbnailCache().put(latest_media_uri.toString(), thumbnail);
+                }
                 final Bitmap thumbnail_f = thumbnail;
                 main_activity.runOnUiThread(new Runnable() {
                     public void run() {
@@ -2871,14 +3956,14 @@ public class ImageSaver extends Thread {
 
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
      */
-    private void setExifFromData(final Request request, byte [] data, File to_file) throws IOException {
+    private void setExifFromData(final Request request, ImageBuffer data, File to_file) throws IOException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "setExifFromData");
             Log.d(TAG, "to_file: " + to_file);
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = data.getInputStream();
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
             setExif(request, exif, exif_new);
@@ -2899,14 +3984,14 @@ public class ImageSaver extends Thread {
 
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data, and to a file descriptor, rather than a file.
      */
-    private void setExifFromData(final Request request, byte [] data, FileDescriptor to_file_descriptor) throws IOException {
+    private void setExifFromData(final Request request, ImageBuffer data, FileDescriptor to_file_descriptor) throws IOException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "setExifFromData");
             Log.d(TAG, "to_file_descriptor: " + to_file_descriptor);
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = data.getInputStream();
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file_descriptor);
             setExif(request, exif, exif_new);
@@ -3476,7 +4561,7 @@ public class ImageSaver extends Thread {
             transferDeviceExifGPS(exif, exif_new);
         }
 
-        modifyExif(exif_new, request.remove_device_exif, request.type == Request.Type.JPEG, request.using_camera2, request.using_camera_extensions, request.current_date, request.store_location, request.location, request.store_geo_direction, request.geo_direction, request.custom_tag_artist, request.custom_tag_copyright, request.level_angle, request.pitch_angle, request.store_ypr);
+        modifyExif(new ExifInterfaceTagEditor(exif_new), request);
         if( request.remove_device_exif == Request.RemoveDeviceExif.OFF || request.remove_device_exif == Request.RemoveDeviceExif.KEEP_DATETIME ) {
             setDateTimeExif(exif_new);
         }
@@ -3598,6 +4683,9 @@ public class ImageSaver extends Thread {
             if( raw_only ) {
                 // clear just in case we're unable to update this - don't want an out of date cached uri
                 storageUtils.clearLastMediaScanned();
+                // no thumbnail is cached for RAW only (as the thumbnail is from the JPEG we don't save),
+                // but updateGalleryIcon() can still use the DNG's embedded thumbnail
+                storageUtils.recordLatestMedia(saveUri == null ? Uri.fromFile(picFile) : saveUri, use_media_store ? saveUri : null, false, true);
             }
 
             // n.b., at time of writing, remove_device_exif will always be OFF for RAW, but have added the code for future proofing
@@ -3669,16 +4757,21 @@ public class ImageSaver extends Thread {
      *  bitmap is recycled.
      * @param data Jpeg data containing the Exif information to use.
      */
-    private Bitmap rotateForExif(Bitmap bitmap, byte [] data) {
+    private Bitmap rotateForExif(Bitmap bitmap, ImageBuffer data) {
+        return rotateForExif(bitmap, data.getInputStream());
+    }
+
+    /** As rotateForExif() above, but reads the Exif information from the supplied stream of jpeg
+     *  data. The stream is closed by this method.
+     */
+    private Bitmap rotateForExif(Bitmap bitmap, InputStream inputStream) {
         if( MyDebug.LOG )
             Log.d(TAG, "rotateForExif");
-        InputStream inputStream = null;
         try {
             ExifInterface exif;
 
             if( MyDebug.LOG )
                 Log.d(TAG, "use data stream to read exif tags");
-            inputStream = new ByteArrayInputStream(data);
             exif = new ExifInterface(inputStream);
 
             int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
@@ -3756,7 +4849,7 @@ public class ImageSaver extends Thread {
      * @param mutable Whether to create a mutable bitmap.
      * @return A bitmap representing the correctly rotated jpeg.
      */
-    private Bitmap loadBitmapWithRotation(byte [] data, boolean mutable) {
+    private Bitmap loadBitmapWithRotation(ImageBuffer data, boolean mutable) {
         Bitmap bitmap = loadBitmap(data, mutable, 1);
         if( bitmap != null ) {
             // rotate the bitmap if necessary for exif tags
@@ -3842,9 +4935,7 @@ public class ImageSaver extends Thread {
     private void updateExif(Request request, File picFile, Uri saveUri) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "updateExif: " + picFile);
-        if( request.store_geo_direction || request.store_ypr || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
-                request.using_camera_extensions || // when using camera extensions, we need to call modifyExif() to fix up various missing tags
-                needGPSExifFix(request.type == Request.Type.JPEG, request.using_camera2, request.store_location) ) {
+        if( needsExifUpdate(request) ) {
             long time_s = System.currentTimeMillis();
             if( MyDebug.LOG )
                 Log.d(TAG, "add additional exif info");
@@ -3855,7 +4946,7 @@ public class ImageSaver extends Thread {
                 try {
                     ExifInterface exif = exif_holder.getExif();
                     if( exif != null ) {
-                        modifyExif(exif, request.remove_device_exif, request.type == Request.Type.JPEG, request.using_camera2, request.using_camera_extensions, request.current_date, request.store_location, request.location, request.store_geo_direction, request.geo_direction, request.custom_tag_artist, request.custom_tag_copyright, request.level_angle, request.pitch_angle, request.store_ypr);
+                        modifyExif(new ExifInterfaceTagEditor(exif), request);
 
                         if( MyDebug.LOG )
                             Log.d(TAG, "*** time after modifyExif: " + (System.currentTimeMillis() - time_s));
@@ -3883,10 +4974,77 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Whether updateExif() (or spliceExif()) needs to modify the exif tags of the JPEG data.
+     */
+    private boolean needsExifUpdate(Request request) {
+        return request.store_geo_direction || request.store_ypr || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
+                request.using_camera_extensions || // when using camera extensions, we need to call modifyExif() to fix up various missing tags
+                needGPSExifFix(request.type == Request.Type.JPEG, request.using_camera2, request.store_location);
+    }
+
+    /** Makes the same modifications to the exif tags as updateExif(), but in memory, so that the JPEG
+     *  can then be written out in a single pass, without decoding it or having to reopen the file to
+     *  rewrite the exif tags.
+     * @return The ExifSplicer with the modified tags, or null if this isn't possible (e.g., the JPEG has
+     *         no exif segment), in which case the caller should use updateExif() instead.
+     */
+    private ExifSplicer spliceExif(Request request, ImageBuffer data) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "spliceExif");
+        long time_s = System.currentTimeMillis();
+        ExifSplicer exif_splicer = ExifSplicer.parse(data.getBuffer());
+        if( exif_splicer == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't splice exif");
+            return null;
+        }
+        modifyExif(exif_splicer, request);
+        if( exif_splicer.getHeader() == null ) {
+            return null;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time to splice exif: " + (System.currentTimeMillis() - time_s));
+        return exif_splicer;
+    }
+
+    /** Wraps an ExifInterface so it can be passed to modifyExif().
+     */
+    private static class ExifInterfaceTagEditor implements ExifTagEditor {
+        private final ExifInterface exif;
+
+        ExifInterfaceTagEditor(ExifInterface exif) {
+            this.exif = exif;
+        }
+
+        @Override
+        public String getAttribute(String tag) {
+            return exif.getAttribute(tag);
+        }
+
+        @Override
+        public boolean hasAttribute(String tag) {
+            return exif.hasAttribute(tag);
+        }
+
+        @Override
+        public void setAttribute(String tag, String value) {
+            exif.setAttribute(tag, value);
+        }
+
+        @Override
+        public void setGpsInfo(Location location) {
+            exif.setGpsInfo(location);
+        }
+    }
+
+    private void modifyExif(ExifTagEditor exif, Request request) {
+        modifyExif(exif, request.remove_device_exif, request.type == Request.Type.JPEG, request.using_camera2, request.using_camera_extensions, request.current_date, request.store_location, request.location, request.store_geo_direction, request.geo_direction, request.custom_tag_artist, request.custom_tag_copyright, request.level_angle, request.pitch_angle, request.store_ypr);
+    }
+
     /** Makes various modifications to the exif data, if necessary.
      *  Any fix-ups should respect the setting of RemoveDeviceExif!
      */
-    private void modifyExif(ExifInterface exif, Request.RemoveDeviceExif remove_device_exif, boolean is_jpeg, boolean using_camera2, boolean using_camera_extensions, Date current_date, boolean store_location, Location location, boolean store_geo_direction, double geo_direction, String custom_tag_artist, String custom_tag_copyright, double level_angle, double pitch_angle, boolean store_ypr) {
+    private void modifyExif(ExifTagEditor exif, Request.RemoveDeviceExif remove_device_exif, boolean is_jpeg, boolean using_camera2, boolean using_camera_extensions, Date current_date, boolean store_location, Location location, boolean store_geo_direction, double geo_direction, String custom_tag_artist, String custom_tag_copyright, double level_angle, double pitch_angle, boolean store_ypr) {
         if( MyDebug.LOG )
             Log.d(TAG, "modifyExif");
         setGPSDirectionExif(exif, store_geo_direction, geo_direction);
@@ -3924,7 +5082,7 @@ public class ImageSaver extends Thread {
         }
     }
 
-    private void setGPSDirectionExif(ExifInterface exif, boolean store_geo_direction, double geo_direction) {
+    private void setGPSDirectionExif(ExifTagEditor exif, boolean store_geo_direction, double geo_direction) {
         if( MyDebug.LOG )
             Log.d(TAG, "setGPSDirectionExif");
         if( store_geo_direction ) {
@@ -3956,7 +5114,7 @@ public class ImageSaver extends Thread {
 
     /** Applies the custom exif tags to the ExifInterface.
      */
-    private void setCustomExif(ExifInterface exif, String custom_tag_artist, String custom_tag_copyright) {
+    private void setCustomExif(ExifTagEditor exif, String custom_tag_artist, String custom_tag_copyright) {
         if( MyDebug.LOG )
             Log.d(TAG, "setCustomExif");
         if( custom_tag_artist != null && custom_tag_artist.length() > 0 ) {
@@ -4002,7 +5160,7 @@ public class ImageSaver extends Thread {
     /** Adds exif tags for datetime from the supplied date, if not present. Needed for camera vendor
      *  extensions which (at least on Galaxy S10e) don't seem to have these tags set at all!
      */
-    private void addDateTimeExif(ExifInterface exif, Date current_date) {
+    private void addDateTimeExif(ExifTagEditor exif, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "addDateTimeExif");
         String exif_datetime = exif.getAttribute(ExifInterface.TAG_DATETIME);
@@ -4035,7 +5193,7 @@ public class ImageSaver extends Thread {
         }
     }
 
-    private void fixGPSTimestamp(ExifInterface exif, Date current_date) {
+    private void fixGPSTimestamp(ExifTagEditor exif, Date current_date) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "fixGPSTimestamp");
             Log.d(TAG, "current datestamp: " + exif.getAttribute(ExifInterface.TAG_GPS_DATESTAMP));
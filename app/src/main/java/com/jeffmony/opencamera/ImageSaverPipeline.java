@@ -0,0 +1,339 @@
+package com.jeffmony.opencamera;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/** A staged pipeline used by ImageSaver, so that different requests can be at different stages
+ *  (e.g., decoding one photo whilst another is being written to disk).
+ *  Each stage other than the last has its own pool of worker threads, so items may leave these
+ *  stages in a different order to that in which they were submitted. The final stage always runs
+ *  on a single thread, and processes items strictly in submission order - this is where anything
+ *  that depends on ordering (filenames, thumbnail updates, counts of images still to save) should
+ *  be done.
+ */
+public class ImageSaverPipeline<T> {
+    private static final String TAG = "ImageSaverPipeline";
+
+    /** Performs the work for a stage on an item.
+     */
+    public interface Handler<T> {
+        void handle(T item);
+    }
+
+    /** Describes a stage of the pipeline.
+     */
+    public static class Stage<T> {
+        final String name;
+        final int n_workers;
+        final Handler<T> handler;
+
+        /**
+         * @param name      Name of the stage, used for the stats and thread names.
+         * @param n_workers Number of worker threads for this stage. Ignored for the final stage,
+         *                  which always uses a single thread.
+         * @param handler   The work to perform.
+         */
+        public Stage(String name, int n_workers, Handler<T> handler) {
+            if( n_workers <= 0 ) {
+                // throw runtime exception, as this is a programming error
+                throw new RuntimeException("n_workers must be positive: " + n_workers);
+            }
+            this.name = name;
+            this.n_workers = n_workers;
+            this.handler = handler;
+        }
+    }
+
+    /** A snapshot of the statistics for a stage.
+     */
+    public static class StageStats {
+        public final String name;
+        public final int n_workers;
+        public final int queue_depth; // number of items waiting for this stage
+        public final int n_in_progress; // number of items currently being handled by this stage
+        public final long n_processed;
+        public final long total_time_ns; // total time spent handling items (not including time waiting in the queue)
+        public final long max_time_ns;
+        public final long total_wait_ns; // total time items spent waiting before being handled
+        public final long n_failed; // number of items for which the handler threw (included in n_processed)
+
+        StageStats(String name, int n_workers, int queue_depth, int n_in_progress, long n_processed, long total_time_ns, long max_time_ns, long total_wait_ns, long n_failed) {
+            this.name = name;
+            this.n_workers = n_workers;
+            this.queue_depth = queue_depth;
+            this.n_in_progress = n_in_progress;
+            this.n_processed = n_processed;
+            this.total_time_ns = total_time_ns;
+            this.max_time_ns = max_time_ns;
+            this.total_wait_ns = total_wait_ns;
+            this.n_failed = n_failed;
+        }
+
+        /** Returns the mean time spent handling an item, in milliseconds.
+         */
+        public double getAverageTimeMs() {
+            return n_processed == 0 ? 0.0 : total_time_ns / (1.0e6 * n_processed);
+        }
+
+        /** Returns the mean time an item waited before being handled, in milliseconds.
+         */
+        public double getAverageWaitMs() {
+            return n_processed == 0 ? 0.0 : total_wait_ns / (1.0e6 * n_processed);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": workers " + n_workers + " queued " + queue_depth + " in progress " + n_in_progress +
+                    " processed " + n_processed + " failed " + n_failed + " avg " + getAverageTimeMs() + "ms max " + (max_time_ns/1.0e6) + "ms wait " + getAverageWaitMs() + "ms";
+        }
+    }
+
+    private static class Job<T> {
+        final long sequence;
+        final T item;
+        long enqueue_time_ns;
+
+        Job(long sequence, T item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    private class StageState {
+        final Stage<T> stage;
+        final BlockingQueue<Job<T>> queue; // null for the final stage
+        final List<Thread> threads = new ArrayList<>();
+        // the following should be synchronized to this StageState
+        int n_in_progress;
+        long n_processed;
+        long total_time_ns;
+        long max_time_ns;
+        long total_wait_ns;
+        long n_failed;
+
+        StageState(Stage<T> stage, boolean is_final) {
+            this.stage = stage;
+            this.queue = is_final ? null : new LinkedBlockingQueue<Job<T>>();
+        }
+
+        synchronized void recordStart(Job<T> job, long time_ns) {
+            n_in_progress++;
+            total_wait_ns += time_ns - job.enqueue_time_ns;
+        }
+
+        synchronized void recordEnd(long time_taken_ns) {
+            n_in_progress--;
+            n_processed++;
+            total_time_ns += time_taken_ns;
+            max_time_ns = Math.max(max_time_ns, time_taken_ns);
+        }
+
+        synchronized void recordFailure() {
+            n_failed++;
+        }
+    }
+
+    private final List<StageState> stages = new ArrayList<>();
+    private final Semaphore in_flight;
+    private final int max_in_flight;
+    private long next_submit_sequence; // should be synchronized to this
+    // items waiting for the final stage, keyed by sequence number; should be synchronized to ordered_items
+    private final TreeMap<Long, Job<T>> ordered_items = new TreeMap<>();
+    private long next_ordered_sequence; // should be synchronized to ordered_items
+    private volatile boolean shutdown;
+    private volatile Throwable last_failure;
+
+    /**
+     * @param stages        The stages of the pipeline, in order. Must contain at least one stage.
+     * @param max_in_flight The maximum number of items that may be in the pipeline at once;
+     *                      submit() blocks until an item leaves the pipeline if this is reached.
+     *                      This bounds the memory held by the pipeline.
+     */
+    public ImageSaverPipeline(List<Stage<T>> stages, int max_in_flight) {
+        if( stages.size() == 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("pipeline must have at least one stage");
+        }
+        else if( max_in_flight <= 0 ) {
+            throw new RuntimeException("max_in_flight must be positive: " + max_in_flight);
+        }
+        this.max_in_flight = max_in_flight;
+        this.in_flight = new Semaphore(max_in_flight);
+        for(int i=0;i<stages.size();i++) {
+            this.stages.add(new StageState(stages.get(i), i == stages.size()-1));
+        }
+        for(int i=0;i<this.stages.size();i++) {
+            final int stage_index = i;
+            final StageState state = this.stages.get(i);
+            if( state.queue == null ) {
+                Thread thread = new Thread("ImageSaver-" + state.stage.name) {
+                    @Override
+                    public void run() {
+                        runOrderedStage(state);
+                    }
+                };
+                state.threads.add(thread);
+            }
+            else {
+                for(int j=0;j<state.stage.n_workers;j++) {
+                    Thread thread = new Thread("ImageSaver-" + state.stage.name + "-" + j) {
+                        @Override
+                        public void run() {
+                            runStage(stage_index, state);
+                        }
+                    };
+                    state.threads.add(thread);
+                }
+            }
+        }
+        for(StageState state : this.stages) {
+            for(Thread thread : state.threads) {
+                thread.start();
+            }
+        }
+    }
+
+    public int getMaxInFlight() {
+        return max_in_flight;
+    }
+
+    /** Adds an item to the pipeline. Blocks if there are already max_in_flight items in the
+     *  pipeline.
+     */
+    public void submit(T item) throws InterruptedException {
+        in_flight.acquire();
+        Job<T> job;
+        synchronized( this ) {
+            job = new Job<>(next_submit_sequence++, item);
+        }
+        forward(-1, job);
+    }
+
+    /** Returns the statistics for each stage, in pipeline order.
+     */
+    public List<StageStats> getStats() {
+        List<StageStats> stats = new ArrayList<>();
+        for(StageState state : stages) {
+            int queue_depth;
+            if( state.queue != null ) {
+                queue_depth = state.queue.size();
+            }
+            else {
+                synchronized( ordered_items ) {
+                    queue_depth = ordered_items.size();
+                }
+            }
+            synchronized( state ) {
+                stats.add(new StageStats(state.stage.name, state.threads.size(), queue_depth, state.n_in_progress,
+                        state.n_processed, state.total_time_ns, state.max_time_ns, state.total_wait_ns, state.n_failed));
+            }
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    /** Returns the most recent exception or error thrown by a stage's handler, or null if no
+     *  handler has failed.
+     */
+    public Throwable getLastFailure() {
+        return last_failure;
+    }
+
+    /** Stops all the worker threads. Items still in the pipeline are discarded.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for(StageState state : stages) {
+            for(Thread thread : state.threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /** Passes the job on to the stage after from_stage.
+     */
+    private void forward(int from_stage, Job<T> job) {
+        int next_stage = from_stage+1;
+        StageState state = stages.get(next_stage);
+        job.enqueue_time_ns = System.nanoTime();
+        if( state.queue != null ) {
+            // unbounded queue, so never blocks - the number of items is bounded by in_flight
+            state.queue.add(job);
+        }
+        else {
+            synchronized( ordered_items ) {
+                ordered_items.put(job.sequence, job);
+                ordered_items.notifyAll();
+            }
+        }
+    }
+
+    private void runStage(int stage_index, StageState state) {
+        while( !shutdown ) {
+            Job<T> job;
+            try {
+                job = state.queue.take();
+            }
+            catch(InterruptedException e) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "stage " + state.stage.name + " interrupted");
+                continue;
+            }
+            handle(state, job);
+            // forward even if the handler failed, so that the final stage doesn't wait forever
+            forward(stage_index, job);
+        }
+    }
+
+    private void runOrderedStage(StageState state) {
+        while( !shutdown ) {
+            Job<T> job;
+            try {
+                synchronized( ordered_items ) {
+                    while( ordered_items.isEmpty() || ordered_items.firstKey() != next_ordered_sequence ) {
+                        ordered_items.wait();
+                    }
+                    job = ordered_items.pollFirstEntry().getValue();
+                    next_ordered_sequence++;
+                }
+            }
+            catch(InterruptedException e) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "stage " + state.stage.name + " interrupted");
+                continue;
+            }
+            handle(state, job);
+            in_flight.release();
+        }
+    }
+
+    /** Runs the stage's handler on the job. Any exception from the handler is caught and recorded
+     *  in the stage's statistics, so that the worker thread carries on with later jobs - otherwise
+     *  later items would never leave the pipeline, and submit() would block forever. Handlers that
+     *  hold resources for an item must release them in a finally block, as the pipeline doesn't
+     *  know about them.
+     */
+    private void handle(StageState state, Job<T> job) {
+        long time_s = System.nanoTime();
+        state.recordStart(job, time_s);
+        try {
+            state.stage.handler.handle(job.item);
+        }
+        catch(RuntimeException | OutOfMemoryError e) {
+            state.recordFailure();
+            last_failure = e;
+            if( MyDebug.LOG )
+                Log.e(TAG, "stage " + state.stage.name + " failed for item " + job.sequence);
+            e.printStackTrace();
+        }
+        finally {
+            state.recordEnd(System.nanoTime() - time_s);
+        }
+    }
+}
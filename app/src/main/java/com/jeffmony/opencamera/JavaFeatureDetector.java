@@ -0,0 +1,391 @@
+package com.jeffmony.opencamera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Pure Java implementation of the Harris corner detection done by the create_greyscale(),
+ *  compute_derivatives(), corner_detector() and local_maximum() kernels in feature_detector.rs, as
+ *  used by PanoramaProcessor.autoAlignmentByFeature(). This doesn't require RenderScript, and can
+ *  also be run on a standard JVM (e.g., for unit testing).
+ *  Rather than searching for a corner threshold that gives a suitable number of corners (which
+ *  requires rerunning local_maximum() and rescanning its output for each candidate threshold), the
+ *  strongest corners are selected in a single pass, by keeping a bounded heap of the best corners
+ *  found so far. Each stage is run in parallel over rows on a ForkJoinPool.
+ *  Any changes to the algorithm in feature_detector.rs should be duplicated here (and vice versa).
+ */
+public class JavaFeatureDetector {
+    //private static final String TAG = "JavaFeatureDetector";
+
+    private static final int radius_c = 2; // radius for corner detector, should be same value as in feature_detector.rs/corner_detector()
+    private static final int [] weights_c = {1, 4, 6, 4, 1}; // should be same values as in feature_detector.rs/corner_detector()
+    private static final double harris_k_c = 0.06; // should be same value as in feature_detector.rs/corner_detector()
+    private static final int nms_radius_c = 2; // local_maximum() requires corners to be the best of 5x5
+
+    private static final int min_tile_rows_c = 16; // minimum number of rows processed by each parallel task
+
+    private final ForkJoinPool pool;
+
+    /** Creates a detector that runs on the ForkJoinPool shared with JavaHDRMerger.
+     */
+    public JavaFeatureDetector() {
+        this(JavaHDRMerger.getSharedPool());
+    }
+
+    /** Creates a detector that runs on the supplied pool (e.g., a pool with parallelism 1 to force
+     *  single threaded operation).
+     */
+    public JavaFeatureDetector(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** The working buffers for an image.
+     */
+    private static class Image {
+        final int width;
+        final int height;
+        final int [] pixels;
+        final byte [] grey;
+        final byte [] ix; // derivatives, from -127 to 127
+        final byte [] iy;
+        final float [] strength;
+
+        Image(int [] pixels, int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.grey = new byte[width*height];
+            this.ix = new byte[width*height];
+            this.iy = new byte[width*height];
+            this.strength = new float[width*height];
+        }
+    }
+
+    /** Computes the corner strength for each pixel, equivalent to create_greyscale(),
+     *  compute_derivatives() and corner_detector(). The strength is 0 for pixels too close to the
+     *  border of the image.
+     * @param pixels ARGB pixels of the image (width*height entries, in the format returned by
+     *               Bitmap.getPixels()).
+     */
+    public float [] computeStrength(int [] pixels, int width, int height) {
+        if( pixels.length < width*height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("pixels array too small");
+        }
+        Image image = new Image(pixels, width, height);
+        pool.invoke(new StageTask(image, StageTask.STAGE_GREYSCALE, 0, height));
+        pool.invoke(new StageTask(image, StageTask.STAGE_DERIVATIVES, 0, height));
+        pool.invoke(new StageTask(image, StageTask.STAGE_STRENGTH, 0, height));
+        return image.strength;
+    }
+
+    /** Finds the strongest corners, equivalent to running local_maximum() with the threshold chosen
+     *  so that each chunk has at most max_corners corners.
+     * @param pixels        ARGB pixels of the image (width*height entries, in the format returned by
+     *                      Bitmap.getPixels()).
+     * @param n_y_chunks    The image is split into this many horizontal chunks, and corners are
+     *                      selected from each chunk independently, so that they are spread over the
+     *                      image.
+     * @param max_corners   The maximum number of corners to return for each chunk.
+     * @param min_threshold Corners weaker than this are never returned.
+     * @param border        Corners are only returned if they are at least this many pixels from the
+     *                      edges of the image.
+     * @return The corners, as indices y*width+x into the image, in increasing order (i.e., the order
+     *         they'd be found by scanning the output of local_maximum()).
+     */
+    public int [] detect(int [] pixels, int width, int height, int n_y_chunks, int max_corners, float min_threshold, int border) {
+        float [] strength = computeStrength(pixels, width, height);
+        int [][] chunk_corners = new int[n_y_chunks][];
+        int n_corners = 0;
+        for(int cy=0;cy<n_y_chunks;cy++) {
+            int start_y = Math.max((cy*height)/n_y_chunks, border);
+            int stop_y = Math.min(((cy+1)*height)/n_y_chunks, height-border);
+            if( start_y >= stop_y || max_corners <= 0 ) {
+                chunk_corners[cy] = new int[0];
+                continue;
+            }
+            CornerHeap heap = pool.invoke(new CornersTask(strength, width, height, max_corners, min_threshold, border, start_y, stop_y));
+            chunk_corners[cy] = heap.getIndices();
+            n_corners += chunk_corners[cy].length;
+        }
+        int [] corners = new int[n_corners];
+        int n = 0;
+        for(int [] indices : chunk_corners) {
+            Arrays.sort(indices);
+            System.arraycopy(indices, 0, corners, n, indices.length);
+            n += indices.length;
+        }
+        return corners;
+    }
+
+    /** Runs one stage of the corner strength computation on a range of rows, each stage reading
+     *  the output of the previous stage.
+     */
+    private static class StageTask extends RecursiveAction {
+        static final int STAGE_GREYSCALE = 0;
+        static final int STAGE_DERIVATIVES = 1;
+        static final int STAGE_STRENGTH = 2;
+
+        private final Image image;
+        private final int stage;
+        private final int y_start;
+        private final int y_end;
+
+        StageTask(Image image, int stage, int y_start, int y_end) {
+            this.image = image;
+            this.stage = stage;
+            this.y_start = y_start;
+            this.y_end = y_end;
+        }
+
+        @Override
+        protected void compute() {
+            int n_rows = y_end - y_start;
+            if( n_rows > 2*min_tile_rows_c ) {
+                int y_mid = y_start + n_rows/2;
+                invokeAll(new StageTask(image, stage, y_start, y_mid), new StageTask(image, stage, y_mid, y_end));
+                return;
+            }
+            switch( stage ) {
+                case STAGE_GREYSCALE:
+                    greyscale(image, y_start, y_end);
+                    break;
+                case STAGE_DERIVATIVES:
+                    derivatives(image, y_start, y_end);
+                    break;
+                case STAGE_STRENGTH:
+                    strength(image, y_start, y_end);
+                    break;
+            }
+        }
+    }
+
+    /** Equivalent to feature_detector.rs/create_greyscale().
+     */
+    private static void greyscale(Image image, int y_start, int y_end) {
+        int [] pixels = image.pixels;
+        byte [] grey = image.grey;
+        for(int i=y_start*image.width;i<y_end*image.width;i++) {
+            int color = pixels[i];
+            grey[i] = (byte)(int)(0.3*((color >> 16) & 0xff) + 0.59*((color >> 8) & 0xff) + 0.11*(color & 0xff));
+        }
+    }
+
+    /** Equivalent to feature_detector.rs/compute_derivatives(), except that the derivatives are
+     *  stored as signed values (feature_detector.rs stores them offset by 127). The derivatives of
+     *  the outermost pixels are left as 0, but these aren't read by strength().
+     */
+    private static void derivatives(Image image, int y_start, int y_end) {
+        int width = image.width;
+        byte [] grey = image.grey;
+        for(int y=Math.max(y_start, 1);y<Math.min(y_end, image.height-1);y++) {
+            int indx = y*width;
+            for(int x=1;x<width-1;x++) {
+                int i = indx + x;
+                // the clamping to [-127, 128] in feature_detector.rs has no effect, as the halved
+                // differences are already in the range [-127, 127]
+                image.ix[i] = (byte)(((grey[i+1] & 0xff) - (grey[i-1] & 0xff))/2);
+                image.iy[i] = (byte)(((grey[i+width] & 0xff) - (grey[i-width] & 0xff))/2);
+            }
+        }
+    }
+
+    /** Equivalent to feature_detector.rs/corner_detector(). The weights are separable, so the
+     *  weighted sums over the window are computed as a vertical pass followed by a horizontal pass.
+     *  The sums are exact integers, which feature_detector.rs computes in floating point.
+     */
+    private static void strength(Image image, int y_start, int y_end) {
+        int width = image.width;
+        int height = image.height;
+        // extra +1 as we won't have derivative info for the outermost pixels (see derivatives())
+        final int lo = radius_c+1;
+        int row_start = Math.max(y_start, lo);
+        int row_end = Math.min(y_end, height-lo);
+        if( row_start >= row_end || width <= 2*lo ) {
+            return;
+        }
+        int [] col_xx = new int[width];
+        int [] col_xy = new int[width];
+        int [] col_yy = new int[width];
+        byte [] ix = image.ix;
+        byte [] iy = image.iy;
+        float [] strength = image.strength;
+        for(int y=row_start;y<row_end;y++) {
+            for(int x=1;x<width-1;x++) {
+                int sxx = 0, sxy = 0, syy = 0;
+                for(int dy=-radius_c;dy<=radius_c;dy++) {
+                    int i = (y+dy)*width + x;
+                    int weight = weights_c[radius_c+dy];
+                    int dx_value = ix[i];
+                    int dy_value = iy[i];
+                    sxx += weight*dx_value*dx_value;
+                    sxy += weight*dx_value*dy_value;
+                    syy += weight*dy_value*dy_value;
+                }
+                col_xx[x] = sxx;
+                col_xy[x] = sxy;
+                col_yy[x] = syy;
+            }
+            int indx = y*width;
+            for(int x=lo;x<width-lo;x++) {
+                long h00 = 0, h01 = 0, h11 = 0;
+                for(int dx=-radius_c;dx<=radius_c;dx++) {
+                    int weight = weights_c[radius_c+dx];
+                    h00 += weight*col_xx[x+dx];
+                    h01 += weight*col_xy[x+dx];
+                    h11 += weight*col_yy[x+dx];
+                }
+                double det_H = (double)h00*h11 - (double)h01*h01;
+                double tr_H = h00 + h11;
+                strength[indx+x] = (float)(det_H - harris_k_c*tr_H*tr_H);
+            }
+        }
+    }
+
+    /** Holds the best max_corners corners found so far, as a binary min-heap ordered so that the
+     *  root is the weakest corner. Corners of equal strength are ordered by index (lower indices
+     *  being preferred), so the result doesn't depend on how the rows are split between tasks.
+     */
+    private static class CornerHeap {
+        private final int capacity;
+        private final float [] strengths;
+        private final int [] indices;
+        private int size;
+
+        CornerHeap(int capacity) {
+            this.capacity = capacity;
+            this.strengths = new float[capacity];
+            this.indices = new int[capacity];
+        }
+
+        /** Whether corner a is weaker than corner b.
+         */
+        private static boolean weaker(float strength_a, int index_a, float strength_b, int index_b) {
+            return strength_a < strength_b || ( strength_a == strength_b && index_a > index_b );
+        }
+
+        /** Whether a corner with the supplied strength could be added to the heap.
+         */
+        boolean accepts(float strength) {
+            return size < capacity || strength >= strengths[0];
+        }
+
+        void add(float strength, int index) {
+            if( size < capacity ) {
+                // sift up
+                int i = size++;
+                while( i > 0 ) {
+                    int parent = (i-1)/2;
+                    if( !weaker(strength, index, strengths[parent], indices[parent]) )
+                        break;
+                    strengths[i] = strengths[parent];
+                    indices[i] = indices[parent];
+                    i = parent;
+                }
+                strengths[i] = strength;
+                indices[i] = index;
+            }
+            else if( weaker(strengths[0], indices[0], strength, index) ) {
+                // replace the weakest corner, and sift down
+                int i = 0;
+                for(;;) {
+                    int child = 2*i+1;
+                    if( child >= size )
+                        break;
+                    if( child+1 < size && weaker(strengths[child+1], indices[child+1], strengths[child], indices[child]) )
+                        child++;
+                    if( !weaker(strengths[child], indices[child], strength, index) )
+                        break;
+                    strengths[i] = strengths[child];
+                    indices[i] = indices[child];
+                    i = child;
+                }
+                strengths[i] = strength;
+                indices[i] = index;
+            }
+        }
+
+        void addAll(CornerHeap heap) {
+            for(int i=0;i<heap.size;i++) {
+                add(heap.strengths[i], heap.indices[i]);
+            }
+        }
+
+        /** Returns the indices of the corners, in no particular order.
+         */
+        int [] getIndices() {
+            return Arrays.copyOf(indices, size);
+        }
+    }
+
+    /** Finds the strongest local maxima for a range of rows, equivalent to
+     *  feature_detector.rs/local_maximum().
+     */
+    private static class CornersTask extends RecursiveTask<CornerHeap> {
+        private final float [] strength;
+        private final int width;
+        private final int height;
+        private final int max_corners;
+        private final float min_threshold;
+        private final int border;
+        private final int y_start;
+        private final int y_end;
+
+        CornersTask(float [] strength, int width, int height, int max_corners, float min_threshold, int border, int y_start, int y_end) {
+            this.strength = strength;
+            this.width = width;
+            this.height = height;
+            this.max_corners = max_corners;
+            this.min_threshold = min_threshold;
+            this.border = border;
+            this.y_start = y_start;
+            this.y_end = y_end;
+        }
+
+        @Override
+        protected CornerHeap compute() {
+            int n_rows = y_end - y_start;
+            if( n_rows > 2*min_tile_rows_c ) {
+                int y_mid = y_start + n_rows/2;
+                CornersTask task0 = new CornersTask(strength, width, height, max_corners, min_threshold, border, y_start, y_mid);
+                CornersTask task1 = new CornersTask(strength, width, height, max_corners, min_threshold, border, y_mid, y_end);
+                task1.fork();
+                CornerHeap heap = task0.compute();
+                heap.addAll(task1.join());
+                return heap;
+            }
+            CornerHeap heap = new CornerHeap(max_corners);
+            int x_start = Math.max(border, nms_radius_c);
+            int x_end = Math.min(width-border, width-nms_radius_c);
+            for(int y=Math.max(y_start, nms_radius_c);y<Math.min(y_end, height-nms_radius_c);y++) {
+                int indx = y*width;
+                for(int x=x_start;x<x_end;x++) {
+                    float value = strength[indx+x];
+                    if( value < min_threshold || !heap.accepts(value) ) {
+                        continue;
+                    }
+                    if( isLocalMaximum(value, indx+x) ) {
+                        heap.add(value, indx+x);
+                    }
+                }
+            }
+            return heap;
+        }
+
+        /** Whether value is strictly greater than all the other values in the 5x5 square centred on
+         *  it.
+         */
+        private boolean isLocalMaximum(float value, int i) {
+            for(int dy=-nms_radius_c;dy<=nms_radius_c;dy++) {
+                int row = i + dy*width;
+                for(int dx=-nms_radius_c;dx<=nms_radius_c;dx++) {
+                    if( (dx != 0 || dy != 0) && !(value > strength[row+dx]) ) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.jeffmony.opencamera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Computes the candidate matches between the features of two images, and the distances between
+ *  their descriptors, for PanoramaProcessor.autoAlignmentByFeature().
+ *  Each feature's descriptor is the square patch of greyscale values centred on it, stored
+ *  contiguously in a single array for all the features of an image, together with the sums that
+ *  the normalised cross correlation needs. These only depend on a single feature, so are computed
+ *  once per feature rather than once per candidate match, leaving just an integer dot product per
+ *  candidate match. The arithmetic is otherwise the same as the original per match computation, so
+ *  the distances are identical.
+ *  Candidate matches are found with a grid of the second image's features, so that cells that are
+ *  entirely too far away from a feature can be skipped. The distances are computed in parallel on a
+ *  ForkJoinPool.
+ */
+public class JavaFeatureMatcher {
+    //private static final String TAG = "JavaFeatureMatcher";
+
+    private static final int min_task_matches_c = 1024; // minimum number of matches scored by each parallel task
+    private static final int grid_size_c = 16; // number of grid cells in each direction
+
+    /** The descriptors for the features of an image.
+     */
+    public static class Descriptors {
+        private final int n_features;
+        private final int wid2; // number of values in each descriptor
+        private final int [] values; // n_features*wid2 greyscale values
+        private final float [] sums; // sum of the values for each descriptor
+        private final float [] recips; // normalisation for each descriptor, 0 if the descriptor is flat
+
+        Descriptors(int n_features, int wid2) {
+            this.n_features = n_features;
+            this.wid2 = wid2;
+            this.values = new int[n_features*wid2];
+            this.sums = new float[n_features];
+            this.recips = new float[n_features];
+        }
+
+        public int getNFeatures() {
+            return n_features;
+        }
+    }
+
+    /** Creates the descriptors from the patches of pixels centred on each feature.
+     * @param patches                   ARGB pixels, with the (2*feature_descriptor_radius+1)^2
+     *                                  pixels for each feature stored contiguously, row by row (e.g.,
+     *                                  as read by Bitmap.getPixels()).
+     * @param n_features                The number of features.
+     * @param feature_descriptor_radius The radius of the square patches.
+     */
+    public static Descriptors createDescriptors(int [] patches, int n_features, int feature_descriptor_radius) {
+        final int wid = 2*feature_descriptor_radius+1;
+        final int wid2 = wid*wid;
+        if( patches.length < n_features*wid2 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("patches array too small");
+        }
+        Descriptors descriptors = new Descriptors(n_features, wid2);
+        for(int i=0;i<n_features;i++) {
+            int offset = i*wid2;
+            float sum = 0, sum2 = 0;
+            for(int j=0;j<wid2;j++) {
+                int pixel = patches[offset+j];
+                int value = (int)(0.3*((pixel >> 16) & 0xff) + 0.59*((pixel >> 8) & 0xff) + 0.11*(pixel & 0xff));
+                descriptors.values[offset+j] = value;
+                sum += value;
+                sum2 += value*value;
+            }
+            float den = wid2*sum2 - sum*sum;
+            descriptors.sums[i] = sum;
+            descriptors.recips[i] = den==0 ? 0.0f : 1/ den;
+        }
+        return descriptors;
+    }
+
+    private final ForkJoinPool pool;
+
+    /** Creates a matcher that runs on the ForkJoinPool shared with JavaHDRMerger.
+     */
+    public JavaFeatureMatcher() {
+        this(JavaHDRMerger.getSharedPool());
+    }
+
+    /** Creates a matcher that runs on the supplied pool (e.g., a pool with parallelism 1 to force
+     *  single threaded operation).
+     */
+    public JavaFeatureMatcher(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** The candidate matches, as pairs of indices into the features of each image.
+     */
+    public static class Candidates {
+        private int n_matches;
+        private int [] index0;
+        private int [] index1;
+
+        Candidates(int capacity) {
+            this.index0 = new int[Math.max(capacity, 16)];
+            this.index1 = new int[Math.max(capacity, 16)];
+        }
+
+        void add(int i0, int i1) {
+            if( n_matches == index0.length ) {
+                index0 = Arrays.copyOf(index0, 2*n_matches);
+                index1 = Arrays.copyOf(index1, 2*n_matches);
+            }
+            index0[n_matches] = i0;
+            index1[n_matches] = i1;
+            n_matches++;
+        }
+
+        public int getNMatches() {
+            return n_matches;
+        }
+
+        public int getIndex0(int i) {
+            return index0[i];
+        }
+
+        public int getIndex1(int i) {
+            return index1[i];
+        }
+    }
+
+    /** Finds all the pairs of features that are less than sqrt(max_match_dist2) apart. The pairs
+     *  are ordered by the index of the first feature, then by the index of the second feature.
+     */
+    public static Candidates findCandidates(int [] x0, int [] y0, int [] x1, int [] y1, int max_match_dist2) {
+        int n0 = x0.length;
+        int n1 = x1.length;
+        Candidates candidates = new Candidates(n0*Math.min(n1, 16));
+        if( n0 == 0 || n1 == 0 ) {
+            return candidates;
+        }
+
+        // bucket the features of the second image into a grid covering their bounding box
+        int min_x = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE;
+        int min_y = Integer.MAX_VALUE, max_y = Integer.MIN_VALUE;
+        for(int j=0;j<n1;j++) {
+            min_x = Math.min(min_x, x1[j]);
+            max_x = Math.max(max_x, x1[j]);
+            min_y = Math.min(min_y, y1[j]);
+            max_y = Math.max(max_y, y1[j]);
+        }
+        final int cell_w = (max_x - min_x)/grid_size_c + 1;
+        final int cell_h = (max_y - min_y)/grid_size_c + 1;
+        final int n_cells_x = (max_x - min_x)/cell_w + 1;
+        final int n_cells_y = (max_y - min_y)/cell_h + 1;
+        // cell_start[c] to cell_start[c+1] index cell_features, the features in each cell in
+        // increasing order
+        int [] cell_start = new int[n_cells_x*n_cells_y+1];
+        int [] feature_cell = new int[n1];
+        for(int j=0;j<n1;j++) {
+            int c = ((y1[j] - min_y)/cell_h)*n_cells_x + (x1[j] - min_x)/cell_w;
+            feature_cell[j] = c;
+            cell_start[c+1]++;
+        }
+        for(int c=0;c<n_cells_x*n_cells_y;c++) {
+            cell_start[c+1] += cell_start[c];
+        }
+        int [] cell_features = new int[n1];
+        int [] cell_fill = Arrays.copyOf(cell_start, cell_start.length-1);
+        for(int j=0;j<n1;j++) {
+            cell_features[cell_fill[feature_cell[j]]++] = j;
+        }
+
+        int [] found = new int[n1];
+        for(int i=0;i<n0;i++) {
+            int n_found = 0;
+            for(int cy=0;cy<n_cells_y;cy++) {
+                int cell_y0 = min_y + cy*cell_h;
+                long dy = distanceToRange(y0[i], cell_y0, cell_y0 + cell_h - 1);
+                if( dy*dy >= max_match_dist2 ) {
+                    continue;
+                }
+                for(int cx=0;cx<n_cells_x;cx++) {
+                    int c = cy*n_cells_x + cx;
+                    if( cell_start[c] == cell_start[c+1] ) {
+                        continue;
+                    }
+                    int cell_x0 = min_x + cx*cell_w;
+                    long dx = distanceToRange(x0[i], cell_x0, cell_x0 + cell_w - 1);
+                    if( dx*dx + dy*dy >= max_match_dist2 ) {
+                        // no feature in this cell can be close enough
+                        continue;
+                    }
+                    for(int k=cell_start[c];k<cell_start[c+1];k++) {
+                        int j = cell_features[k];
+                        long fdx = x1[j] - x0[i];
+                        long fdy = y1[j] - y0[i];
+                        if( fdx*fdx + fdy*fdy < max_match_dist2 ) {
+                            found[n_found++] = j;
+                        }
+                    }
+                }
+            }
+            // preserve the order of the exhaustive search
+            Arrays.sort(found, 0, n_found);
+            for(int k=0;k<n_found;k++) {
+                candidates.add(i, found[k]);
+            }
+        }
+        return candidates;
+    }
+
+    /** Returns the distance from value to the nearest value in [lo, hi].
+     */
+    private static long distanceToRange(int value, int lo, int hi) {
+        if( value < lo )
+            return lo - value;
+        else if( value > hi )
+            return value - hi;
+        return 0;
+    }
+
+    /** Computes the distance between the descriptors of each candidate match, from 0 to 1, where
+     *  a lower value means a better match.
+     */
+    public float [] computeDistances(Candidates candidates, Descriptors descriptors0, Descriptors descriptors1) {
+        if( descriptors0.wid2 != descriptors1.wid2 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("descriptors have different sizes");
+        }
+        float [] distances = new float[candidates.n_matches];
+        if( candidates.n_matches > 0 ) {
+            pool.invoke(new DistancesTask(candidates, descriptors0, descriptors1, distances, 0, candidates.n_matches));
+        }
+        return distances;
+    }
+
+    private static class DistancesTask extends RecursiveAction {
+        private final Candidates candidates;
+        private final Descriptors descriptors0;
+        private final Descriptors descriptors1;
+        private final float [] distances;
+        private final int st_indx;
+        private final int nd_indx;
+
+        DistancesTask(Candidates candidates, Descriptors descriptors0, Descriptors descriptors1, float [] distances, int st_indx, int nd_indx) {
+            this.candidates = candidates;
+            this.descriptors0 = descriptors0;
+            this.descriptors1 = descriptors1;
+            this.distances = distances;
+            this.st_indx = st_indx;
+            this.nd_indx = nd_indx;
+        }
+
+        @Override
+        protected void compute() {
+            int n = nd_indx - st_indx;
+            if( n > 2*min_task_matches_c ) {
+                int mid_indx = st_indx + n/2;
+                invokeAll(new DistancesTask(candidates, descriptors0, descriptors1, distances, st_indx, mid_indx),
+                        new DistancesTask(candidates, descriptors0, descriptors1, distances, mid_indx, nd_indx));
+                return;
+            }
+            final int wid2 = descriptors0.wid2;
+            final int [] values0 = descriptors0.values;
+            final int [] values1 = descriptors1.values;
+            for(int indx=st_indx;indx<nd_indx;indx++) {
+                int i0 = candidates.index0[indx];
+                int i1 = candidates.index1[indx];
+                float f_recip = descriptors0.recips[i0];
+                float g_recip = descriptors1.recips[i1];
+                if( f_recip == 0.0f || g_recip == 0.0f ) {
+                    // a flat descriptor has no correlation with anything, so no need to compare the
+                    // values
+                    distances[indx] = 1.0f;
+                    continue;
+                }
+                // the sum of products is at most wid2*255*255, so is exact as an int, and also
+                // when converted to a float (as it's less than 2^24 for radii up to 7)
+                int fgsum = 0;
+                int pixel_idx0 = i0*wid2;
+                int pixel_idx1 = i1*wid2;
+                for(int j=0;j<wid2;j++) {
+                    fgsum += values0[pixel_idx0+j]*values1[pixel_idx1+j];
+                }
+                float fg_corr = wid2*(float)fgsum - descriptors0.sums[i0]*descriptors1.sums[i1];
+                // negate, as we want it so that lower value means better match, and normalise to 0-1
+                distances[indx] = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+            }
+        }
+    }
+}
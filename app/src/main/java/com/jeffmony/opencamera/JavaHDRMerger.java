@@ -0,0 +1,482 @@
+package com.jeffmony.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java implementation of the HDR merge and tonemapping done by the hdr() and hdr_n() kernels
+ *  in process_hdr.rs. This works on int [] ARGB buffers (in the format returned by
+ *  Bitmap.getPixels()), so doesn't require RenderScript, and can also be run on a standard JVM
+ *  (e.g., for unit testing).
+ *  The output is split into horizontal tiles, which are processed in parallel on a ForkJoinPool.
+ *  Any changes to the algorithm in process_hdr.rs should be duplicated here (and vice versa).
+ */
+public class JavaHDRMerger {
+    //private static final String TAG = "JavaHDRMerger";
+
+    public static final int max_bitmaps_c = 7;
+
+    // constants from process_hdr.rs:
+    public static final float exposure_c = 1.2f; // for Exponential
+    public static final float fu2_exposure_bias_c = 2.0f / 255.0f; // for FU2
+    private static final float safe_range_c = 96.0f;
+    private static final float wiener_C_lo = 2000.0f;
+    private static final float wiener_C_hi = 8000.0f;
+
+    private static final int min_tile_rows_c = 16; // minimum number of rows processed by each parallel task
+
+    /** Parameters for the tonemapping, equivalent to the globals set on ScriptC_process_hdr.
+     */
+    public static class TonemapParameters {
+        public final HDRProcessor.TonemappingAlgorithm tonemapping_algorithm;
+        public final float tonemap_scale; // for Reinhard
+        public final float linear_scale; // for Exponential and Reinhard
+        public final float W; // for FU2
+
+        public TonemapParameters(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, float tonemap_scale, float linear_scale, float W) {
+            this.tonemapping_algorithm = tonemapping_algorithm;
+            this.tonemap_scale = tonemap_scale;
+            this.linear_scale = linear_scale;
+            this.W = W;
+        }
+    }
+
+    private static ForkJoinPool shared_pool; // lazily created, n.b., ForkJoinPool.commonPool() requires Android 7
+    private final ForkJoinPool pool;
+
+    /** Creates a merger that runs on a ForkJoinPool shared by all such mergers, with parallelism
+     *  equal to the number of available processors.
+     */
+    public JavaHDRMerger() {
+        this(getSharedPool());
+    }
+
+    /** Creates a merger that runs on the supplied pool (e.g., a pool with parallelism 1 to force
+     *  single threaded operation).
+     */
+    public JavaHDRMerger(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    static synchronized ForkJoinPool getSharedPool() {
+        if( shared_pool == null ) {
+            shared_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return shared_pool;
+    }
+
+    /** Merges the supplied full resolution images.
+     * @param inputs     ARGB pixels of each image (width*height entries), sorted from darkest to
+     *                   brightest.
+     * @param base_bitmap Index of the image with the base exposure; this image should have offset 0.
+     * @param use_hdr_n  If true, use the equivalent of the hdr_n() kernel, else the hdr() kernel
+     *                   (which requires exactly 3 images).
+     * @param output     Array of width*height entries to store the result.
+     */
+    public void merge(int [][] inputs, int width, int height, int base_bitmap, boolean use_hdr_n,
+                      int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B,
+                      TonemapParameters tonemap_parameters, int [] output) {
+        int [] inputs_y0 = new int[inputs.length]; // all zero, as we pass the full images
+        mergeRows(inputs, inputs_y0, width, height, base_bitmap, use_hdr_n, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, 0, height, output);
+    }
+
+    /** As merge(), but computes only the output rows [y_start, y_end), so that callers can process
+     *  a large image in strips without converting each input image to a full int [] buffer.
+     * @param inputs     For image i, inputs[i] holds the full width rows starting from inputs_y0[i].
+     *                   This must include all of the rows [y_start+offsets_y[i], y_end+offsets_y[i])
+     *                   that lie within the image.
+     * @param width      Width of the full images.
+     * @param height     Height of the full images.
+     * @param output     Array to store the result: row y_start is stored at output[0].
+     */
+    public void mergeRows(int [][] inputs, int [] inputs_y0, int width, int height, int base_bitmap, boolean use_hdr_n,
+                          int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B,
+                          TonemapParameters tonemap_parameters, int y_start, int y_end, int [] output) {
+        int n_bitmaps = inputs.length;
+        if( n_bitmaps < 2 || n_bitmaps > max_bitmaps_c ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("n_bitmaps not supported: " + n_bitmaps);
+        }
+        else if( !use_hdr_n && n_bitmaps != 3 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("hdr kernel requires 3 bitmaps: " + n_bitmaps);
+        }
+        MergeTask task = new MergeTask(new MergeState(inputs, inputs_y0, width, height, base_bitmap, use_hdr_n, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, y_start, output), y_start, y_end);
+        pool.invoke(task);
+    }
+
+    /** The data shared between the tasks for a single merge.
+     */
+    private static class MergeState {
+        final int [][] inputs;
+        final int [] inputs_y0;
+        final int width;
+        final int height;
+        final int base_bitmap;
+        final boolean use_hdr_n;
+        final int [] offsets_x;
+        final int [] offsets_y;
+        final float [] parameter_A;
+        final float [] parameter_B;
+        final HDRProcessor.TonemappingAlgorithm tonemap_algorithm;
+        final float tonemap_scale;
+        final float linear_scale;
+        final float fu2_white_scale;
+        final int output_y0;
+        final int [] output;
+
+        MergeState(int [][] inputs, int [] inputs_y0, int width, int height, int base_bitmap, boolean use_hdr_n,
+                   int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B,
+                   TonemapParameters tonemap_parameters, int output_y0, int [] output) {
+            this.inputs = inputs;
+            this.inputs_y0 = inputs_y0;
+            this.width = width;
+            this.height = height;
+            this.base_bitmap = base_bitmap;
+            this.use_hdr_n = use_hdr_n;
+            this.offsets_x = offsets_x;
+            this.offsets_y = offsets_y;
+            this.parameter_A = parameter_A;
+            this.parameter_B = parameter_B;
+            this.tonemap_algorithm = tonemap_parameters.tonemapping_algorithm;
+            this.tonemap_scale = tonemap_parameters.tonemap_scale;
+            this.linear_scale = tonemap_parameters.linear_scale;
+            this.fu2_white_scale = 255.0f / FU2Tonemap(tonemap_parameters.W);
+            this.output_y0 = output_y0;
+            this.output = output;
+        }
+    }
+
+    private static class MergeTask extends RecursiveAction {
+        private final MergeState state;
+        private final int y_start;
+        private final int y_end;
+
+        MergeTask(MergeState state, int y_start, int y_end) {
+            this.state = state;
+            this.y_start = y_start;
+            this.y_end = y_end;
+        }
+
+        @Override
+        protected void compute() {
+            int n_rows = y_end - y_start;
+            if( n_rows > 2*min_tile_rows_c ) {
+                int y_mid = y_start + n_rows/2;
+                invokeAll(new MergeTask(state, y_start, y_mid), new MergeTask(state, y_mid, y_end));
+                return;
+            }
+            // per-task scratch arrays, so we don't allocate per pixel
+            int [] pixels = new int[max_bitmaps_c];
+            float [] parameter_A = new float[max_bitmaps_c];
+            float [] parameter_B = new float[max_bitmaps_c];
+            float [] hdr = new float[3];
+            for(int y=y_start;y<y_end;y++) {
+                int out_indx = (y - state.output_y0) * state.width;
+                for(int x=0;x<state.width;x++) {
+                    fetchPixels(state, x, y, pixels, parameter_A, parameter_B);
+                    if( state.use_hdr_n )
+                        mergeHDRN(pixels, parameter_A, parameter_B, state.inputs.length, hdr);
+                    else
+                        mergeHDR(pixels, parameter_A, parameter_B, hdr);
+                    state.output[out_indx + x] = tonemap(state, hdr[0], hdr[1], hdr[2]);
+                }
+            }
+        }
+    }
+
+    /** Reads the pixel for each image, taking into account the offsets. As in process_hdr.rs, if an
+     *  offset pixel lies outside of the image, we use the base image's pixel and response function.
+     */
+    private static void fetchPixels(MergeState state, int x, int y, int [] pixels, float [] parameter_A, float [] parameter_B) {
+        int n_bitmaps = state.inputs.length;
+        int base = state.base_bitmap;
+        int in = state.inputs[base][(y + state.offsets_y[base] - state.inputs_y0[base]) * state.width + x + state.offsets_x[base]];
+        // for the fallback, hdr() uses parameter_A1 (the base image), and hdr_n() uses parameter_A[mid_indx]
+        int fallback_indx = state.use_hdr_n ? (n_bitmaps-1)/2 : base;
+        float fallback_A = state.parameter_A[fallback_indx];
+        float fallback_B = state.parameter_B[fallback_indx];
+        for(int i=0;i<n_bitmaps;i++) {
+            int ix = x + state.offsets_x[i];
+            int iy = y + state.offsets_y[i];
+            if( ix >= 0 && iy >= 0 && ix < state.width && iy < state.height ) {
+                pixels[i] = state.inputs[i][(iy - state.inputs_y0[i]) * state.width + ix];
+                parameter_A[i] = state.parameter_A[i];
+                parameter_B[i] = state.parameter_B[i];
+            }
+            else {
+                pixels[i] = in;
+                parameter_A[i] = fallback_A;
+                parameter_B[i] = fallback_B;
+            }
+        }
+    }
+
+    /** Equivalent of the hdr() kernel: assumes 3 bitmaps, with middle bitmap being the "base"
+     *  exposure, and first image being darker, third image being brighter.
+     */
+    private static void mergeHDR(int [] pixels, float [] parameter_A, float [] parameter_B, float [] hdr) {
+        final int mid_indx = 1;
+        int pixel = pixels[mid_indx];
+        float r = (pixel >> 16) & 0xff;
+        float g = (pixel >> 8) & 0xff;
+        float b = pixel & 0xff;
+        float avg = (r+g+b) / 3.0f;
+        float diff = Math.abs( avg - 127.5f );
+        float weight = 1.0f;
+        if( avg <= 127.5f ) {
+            // see process_hdr.rs for why the weights are non-symmetric
+            final float range_low_c = 32.0f;
+            final float range_high_c = 48.0f;
+            if( avg <= range_low_c ) {
+                weight = 0.0f;
+            }
+            else if( avg <= range_high_c ) {
+                weight = (avg - range_low_c) / (range_high_c - range_low_c);
+            }
+        }
+        else if( diff > safe_range_c ) {
+            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+            weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+        }
+
+        // response function
+        r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+        g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+        b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+        float hdr_r = weight * r;
+        float hdr_g = weight * g;
+        float hdr_b = weight * b;
+        float sum_weight = weight;
+
+        if( weight < 1.0f ) {
+            // now look at a neighbour image
+            weight = 1.0f - weight;
+            int adj_indx = avg <= 127.5f ? mid_indx+1 : mid_indx-1;
+            int adj_pixel = pixels[adj_indx];
+            float adj_r = parameter_A[adj_indx] * ((adj_pixel >> 16) & 0xff) + parameter_B[adj_indx];
+            float adj_g = parameter_A[adj_indx] * ((adj_pixel >> 8) & 0xff) + parameter_B[adj_indx];
+            float adj_b = parameter_A[adj_indx] * (adj_pixel & 0xff) + parameter_B[adj_indx];
+
+            float ghost_weight = ghostWeight(r, g, b, adj_r, adj_g, adj_b);
+            adj_r = ghost_weight * r + (1.0f-ghost_weight) * adj_r;
+            adj_g = ghost_weight * g + (1.0f-ghost_weight) * adj_g;
+            adj_b = ghost_weight * b + (1.0f-ghost_weight) * adj_b;
+
+            hdr_r += weight * adj_r;
+            hdr_g += weight * adj_g;
+            hdr_b += weight * adj_b;
+            sum_weight += weight;
+        }
+
+        hdr[0] = hdr_r / sum_weight;
+        hdr[1] = hdr_g / sum_weight;
+        hdr[2] = hdr_b / sum_weight;
+    }
+
+    /** Equivalent of the hdr_n() kernel: assumes from 2 to 7 bitmaps, with middle bitmap being the
+     *  "base" exposure, and first images being darker, last images being brighter.
+     */
+    private static void mergeHDRN(int [] pixels, float [] parameter_A, float [] parameter_B, int n_bitmaps, float [] hdr) {
+        int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+        boolean even = n_bitmaps % 2 == 0;
+
+        int pixel = pixels[mid_indx];
+        float r = (pixel >> 16) & 0xff;
+        float g = (pixel >> 8) & 0xff;
+        float b = pixel & 0xff;
+        float avg = (r+g+b) / 3.0f;
+        float diff = Math.abs( avg - 127.5f );
+        float weight = 1.0f;
+        if( diff > safe_range_c ) {
+            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+            weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+        }
+
+        // response function
+        r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+        g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+        b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+        float hdr_r = weight * r;
+        float hdr_g = weight * g;
+        float hdr_b = weight * b;
+        float sum_weight = weight;
+
+        if( even ) {
+            int pixel1 = pixels[mid_indx+1];
+            float r1 = (pixel1 >> 16) & 0xff;
+            float g1 = (pixel1 >> 8) & 0xff;
+            float b1 = pixel1 & 0xff;
+            float avg1 = (r1+g1+b1) / 3.0f;
+            float diff1 = Math.abs( avg1 - 127.5f );
+            float weight1 = 1.0f;
+            if( diff1 > safe_range_c ) {
+                // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+            }
+            r1 = parameter_A[mid_indx+1] * r1 + parameter_B[mid_indx+1];
+            g1 = parameter_A[mid_indx+1] * g1 + parameter_B[mid_indx+1];
+            b1 = parameter_A[mid_indx+1] * b1 + parameter_B[mid_indx+1];
+
+            hdr_r += weight1 * r1;
+            hdr_g += weight1 * g1;
+            hdr_b += weight1 * b1;
+            sum_weight += weight1;
+
+            avg = (avg+avg1)/2.0f;
+            weight = (weight+weight1)/2.0f;
+        }
+
+        if( weight < 1.0f ) {
+            // n.b., as in process_hdr.rs, base_rgb is the response-adjusted pixel from mid_indx (even for an even number of images)
+            float base_r = r;
+            float base_g = g;
+            float base_b = b;
+            int adj_indx = mid_indx;
+            int step_dir = avg <= 127.5f ? 1 : -1;
+            if( even && step_dir == 1 ) {
+                adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+            }
+
+            int n_adj = (n_bitmaps-1)/2;
+            for(int k=0;k<n_adj;k++) {
+                // now look at a neighbour image
+                weight = 1.0f - weight;
+                adj_indx += step_dir;
+
+                int adj_pixel = pixels[adj_indx];
+                r = (adj_pixel >> 16) & 0xff;
+                g = (adj_pixel >> 8) & 0xff;
+                b = adj_pixel & 0xff;
+                if( k+1 < n_adj ) {
+                    // there will be at least one more adjacent image to look at
+                    avg = (r+g+b) / 3.0f;
+                    diff = Math.abs( avg - 127.5f );
+                    if( diff > safe_range_c ) {
+                        // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                        weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                }
+                r = parameter_A[adj_indx] * r + parameter_B[adj_indx];
+                g = parameter_A[adj_indx] * g + parameter_B[adj_indx];
+                b = parameter_A[adj_indx] * b + parameter_B[adj_indx];
+
+                float ghost_weight = ghostWeight(base_r, base_g, base_b, r, g, b);
+                r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+                g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+                b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+
+                hdr_r += weight * r;
+                hdr_g += weight * g;
+                hdr_b += weight * b;
+                sum_weight += weight;
+
+                if( diff <= safe_range_c ) {
+                    break;
+                }
+            }
+        }
+
+        hdr[0] = hdr_r / sum_weight;
+        hdr[1] = hdr_g / sum_weight;
+        hdr[2] = hdr_b / sum_weight;
+    }
+
+    /** Returns the weight to give the base pixel (base_r, base_g, base_b) when combining with the
+     *  neighbouring pixel (r, g, b), to reduce ghosting. Returns 0 if the neighbour is overexposed.
+     */
+    private static float ghostWeight(float base_r, float base_g, float base_b, float r, float g, float b) {
+        float value = Math.max(Math.max(r, g), b);
+        if( value > 250.0f ) {
+            // for overexposed pixels, we don't have a reliable value for that pixel, so we can't distinguish between
+            // pixels that are overexposed, and those that need deghosting
+            return 0.0f;
+        }
+        float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+        float x = Math.abs( value - 127.5f ) - 96.0f;
+        if( x > 0.0f ) {
+            final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+            wiener_C = wiener_C_lo + x*scale;
+        }
+        float diff_r = base_r - r;
+        float diff_g = base_g - g;
+        float diff_b = base_b - b;
+        float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+        return L/(L+wiener_C);
+    }
+
+    private static float FU2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    private static float ACESTonemap(float x) {
+        // https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/ (released under public domain cc0)
+        final float a = 2.51f;
+        final float b = 0.03f;
+        final float c = 2.43f;
+        final float d = 0.59f;
+        final float e = 0.14f;
+        x /= 255.0f;
+        return 255.0f * (x*(a*x+b))/(x*(c*x+d)+e);
+    }
+
+    /** Converts a float colour value to a byte value. Unlike process_hdr.rs, we always clamp to
+     *  [0, 255], so that out of range values can't wrap around.
+     */
+    private static int toByte(float value) {
+        int i = (int)(value + 0.5f);
+        return i < 0 ? 0 : Math.min(i, 255);
+    }
+
+    private static int tonemap(MergeState state, float hdr_r, float hdr_g, float hdr_b) {
+        int out_r, out_g, out_b;
+        switch( state.tonemap_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                // Simple clamp
+                out_r = toByte(hdr_r);
+                out_g = toByte(hdr_g);
+                out_b = toByte(hdr_b);
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+            {
+                float scale = state.linear_scale * 255.0f;
+                out_r = toByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f )));
+                out_g = toByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f )));
+                out_b = toByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f )));
+                break;
+            }
+            case TONEMAPALGORITHM_REINHARD:
+            {
+                float value = Math.max(Math.max(hdr_r, hdr_g), hdr_b);
+                float scale = 255.0f / ( state.tonemap_scale + value );
+                scale *= state.linear_scale;
+                out_r = toByte(scale * hdr_r);
+                out_g = toByte(scale * hdr_g);
+                out_b = toByte(scale * hdr_b);
+                break;
+            }
+            case TONEMAPALGORITHM_FU2:
+                // FU2 (Filmic)
+                out_r = toByte(state.fu2_white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_r));
+                out_g = toByte(state.fu2_white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_g));
+                out_b = toByte(state.fu2_white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_b));
+                break;
+            case TONEMAPALGORITHM_ACES:
+                out_r = toByte(ACESTonemap(hdr_r));
+                out_g = toByte(ACESTonemap(hdr_g));
+                out_b = toByte(ACESTonemap(hdr_b));
+                break;
+            default:
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("unknown tonemap algorithm: " + state.tonemap_algorithm);
+        }
+        return 0xff000000 | (out_r << 16) | (out_g << 8) | out_b;
+    }
+}
@@ -0,0 +1,354 @@
+package com.jeffmony.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Pure Java implementation of the median threshold bitmap (MTB) auto-alignment done by the
+ *  create_mtb() kernel in create_mtb.rs and the align_mtb() kernel in align_mtb.rs, as used by
+ *  HDRProcessor.autoAlignment(). This gives identical offsets to the RenderScript version, but
+ *  doesn't require RenderScript, and can also be run on a standard JVM (e.g., for unit testing).
+ *  Each MTB is stored as packed bits, 64 pixels to a long, so that errors can be counted 64 pixels
+ *  at a time with XOR and Long.bitCount(). Rather than sampling every step_size'th pixel of the
+ *  full resolution MTB, we sample a pyramid of MTBs, where each level takes every other pixel of
+ *  the previous level. The images are aligned in parallel on a ForkJoinPool.
+ *  Any changes to the algorithm in create_mtb.rs or align_mtb.rs should be duplicated here (and
+ *  vice versa).
+ */
+public class JavaMTBAligner {
+    //private static final String TAG = "JavaMTBAligner";
+
+    public static final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+
+    private static final int min_tile_rows_c = 16; // minimum number of rows processed by each parallel task
+
+    /** A median threshold bitmap. Pixels that are within min_diff_c of the median value are marked
+     *  as noise, and ignored when computing the errors (equivalent to the value 127 in create_mtb.rs).
+     */
+    public static class MTB {
+        private final int width;
+        private final int height;
+        private final int words_per_row;
+        private final long [] bits; // bit is set for pixels brighter than the median
+        private final long [] mask; // bit is set for pixels that aren't noise
+        private MTB half; // lazily created, this MTB sampled at every other pixel
+
+        public MTB(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.words_per_row = (width+63)/64;
+            this.bits = new long[words_per_row*height];
+            this.mask = new long[words_per_row*height];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** Sets n_rows rows of the MTB starting from row y0.
+         * @param pixels       ARGB pixels for the rows (in the format returned by Bitmap.getPixels()),
+         *                     with width entries per row.
+         * @param median_value The median value for the image, as computed by
+         *                     HDRProcessor.computeMedianLuminance().
+         */
+        public void setRows(int y0, int n_rows, int [] pixels, int median_value) {
+            for(int y=0;y<n_rows;y++) {
+                int row_offset = (y0+y)*words_per_row;
+                int pixel_indx = y*width;
+                for(int x=0;x<width;x++) {
+                    int color = pixels[pixel_indx++];
+                    int value = Math.max((color >> 16) & 0xff, Math.max((color >> 8) & 0xff, color & 0xff));
+                    if( Math.abs(value - median_value) > min_diff_c ) {
+                        long bit = 1L << (x & 63);
+                        mask[row_offset + (x >>> 6)] |= bit;
+                        if( value > median_value )
+                            bits[row_offset + (x >>> 6)] |= bit;
+                    }
+                }
+            }
+        }
+
+        /** Returns the MTB sampled at every step_size'th pixel, where step_size is a power of 2.
+         *  This isn't thread safe, so the levels that will be needed should be requested before
+         *  sharing the MTB between threads.
+         */
+        MTB getLevel(int step_size) {
+            MTB level = this;
+            while( step_size > 1 ) {
+                if( level.half == null ) {
+                    level.half = level.downsample();
+                }
+                level = level.half;
+                step_size /= 2;
+            }
+            return level;
+        }
+
+        private MTB downsample() {
+            MTB result = new MTB((width+1)/2, (height+1)/2);
+            for(int y=0;y<result.height;y++) {
+                int src_offset = 2*y*words_per_row;
+                int dst_offset = y*result.words_per_row;
+                for(int i=0;i<result.words_per_row;i++) {
+                    result.bits[dst_offset+i] = evenBits(bits, src_offset, words_per_row, 2*i);
+                    result.mask[dst_offset+i] = evenBits(mask, src_offset, words_per_row, 2*i);
+                }
+            }
+            return result;
+        }
+
+        /** Returns the even numbered bits of array[row_offset+word] and array[row_offset+word+1] packed
+         *  into a single long.
+         */
+        private static long evenBits(long [] array, int row_offset, int n_words, int word) {
+            long lo = compressEvenBits(array[row_offset+word]);
+            long hi = word+1 < n_words ? compressEvenBits(array[row_offset+word+1]) : 0L;
+            return lo | (hi << 32);
+        }
+
+        /** Packs the 32 even numbered bits of value into the low 32 bits of the result.
+         */
+        private static long compressEvenBits(long value) {
+            value &= 0x5555555555555555L;
+            value = (value | (value >>> 1)) & 0x3333333333333333L;
+            value = (value | (value >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+            value = (value | (value >>> 4)) & 0x00ff00ff00ff00ffL;
+            value = (value | (value >>> 8)) & 0x0000ffff0000ffffL;
+            value = (value | (value >>> 16)) & 0x00000000ffffffffL;
+            return value;
+        }
+    }
+
+    /** Convenience method to create an MTB from an image.
+     * @param pixels ARGB pixels of the image (width*height entries).
+     */
+    public static MTB createMTB(int [] pixels, int width, int height, int median_value) {
+        MTB mtb = new MTB(width, height);
+        mtb.setRows(0, height, pixels, median_value);
+        return mtb;
+    }
+
+    private final ForkJoinPool pool;
+
+    /** Creates an aligner that runs on the ForkJoinPool shared with JavaHDRMerger.
+     */
+    public JavaMTBAligner() {
+        this(JavaHDRMerger.getSharedPool());
+    }
+
+    /** Creates an aligner that runs on the supplied pool (e.g., a pool with parallelism 1 to force
+     *  single threaded operation).
+     */
+    public JavaMTBAligner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Computes the offsets of each image relative to the base image, equivalent to calling
+     *  align_mtb() for step sizes initial_step_size/2, initial_step_size/4, ..., min_step_size.
+     * @param mtbs              The MTB for each image, all of the same size. An entry may be null
+     *                          if that image isn't suitable for alignment, in which case its offsets
+     *                          are left unchanged.
+     * @param base_bitmap       Index of the image that should be kept fixed. If mtbs[base_bitmap] is
+     *                          null, no offsets are changed.
+     * @param initial_step_size Must be a power of 2.
+     * @param offsets_x         The offsets to start from, which must be multiples of
+     *                          initial_step_size (normally 0), and to store the result.
+     * @param offsets_y         As offsets_x.
+     */
+    public void align(MTB [] mtbs, int base_bitmap, int initial_step_size, int min_step_size, int [] offsets_x, int [] offsets_y) {
+        MTB base_mtb = mtbs[base_bitmap];
+        if( base_mtb == null || initial_step_size <= min_step_size ) {
+            return;
+        }
+        // the base MTB is shared by all tasks, so create its levels now
+        base_mtb.getLevel(initial_step_size/2);
+        List<AlignTask> tasks = new ArrayList<>();
+        for(int i=0;i<mtbs.length;i++) {
+            if( i == base_bitmap || mtbs[i] == null ) {
+                continue;
+            }
+            else if( mtbs[i].width != base_mtb.width || mtbs[i].height != base_mtb.height ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("MTB " + i + " has different size to base MTB");
+            }
+            tasks.add(new AlignTask(base_mtb, mtbs[i], initial_step_size, min_step_size, offsets_x, offsets_y, i));
+        }
+        pool.invoke(new AlignAllTask(tasks));
+    }
+
+    private static class AlignAllTask extends RecursiveAction {
+        private final List<AlignTask> tasks;
+
+        AlignAllTask(List<AlignTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /** Computes the offsets for a single image.
+     */
+    private static class AlignTask extends RecursiveAction {
+        private final MTB base_mtb;
+        private final MTB mtb;
+        private final int initial_step_size;
+        private final int min_step_size;
+        private final int [] offsets_x;
+        private final int [] offsets_y;
+        private final int index;
+
+        AlignTask(MTB base_mtb, MTB mtb, int initial_step_size, int min_step_size, int [] offsets_x, int [] offsets_y, int index) {
+            this.base_mtb = base_mtb;
+            this.mtb = mtb;
+            this.initial_step_size = initial_step_size;
+            this.min_step_size = min_step_size;
+            this.offsets_x = offsets_x;
+            this.offsets_y = offsets_y;
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            int off_x = offsets_x[index];
+            int off_y = offsets_y[index];
+            int step_size = initial_step_size;
+            while( step_size > min_step_size ) {
+                step_size /= 2;
+                // offsets are always a multiple of step_size, as they're built up from larger steps, so
+                // sampling every step_size'th pixel from the offset position is the same as taking every
+                // pixel of the pyramid level
+                LevelParams params = new LevelParams(base_mtb.getLevel(step_size), mtb.getLevel(step_size),
+                        base_mtb.width/step_size, base_mtb.height/step_size, off_x/step_size, off_y/step_size);
+                long [] errors = new ErrorsTask(params, params.y_start, params.y_end).invoke();
+
+                int best_id = -1;
+                long best_error = -1;
+                for(int j=0;j<9;j++) {
+                    if( best_id==-1 || errors[j] < best_error ) {
+                        best_error = errors[j];
+                        best_id = j;
+                    }
+                }
+                int this_off_x = best_id % 3;
+                int this_off_y = best_id/3;
+                this_off_x--;
+                this_off_y--;
+                off_x += this_off_x * step_size;
+                off_y += this_off_y * step_size;
+            }
+            offsets_x[index] = off_x;
+            offsets_y[index] = off_y;
+        }
+    }
+
+    /** The parameters for computing the errors at a single step size.
+     */
+    private static class LevelParams {
+        final MTB mtb0;
+        final MTB mtb1;
+        final int off_x;
+        final int off_y;
+        final int x_start; // inclusive
+        final int x_end; // exclusive
+        final int y_start; // inclusive
+        final int y_end; // exclusive
+
+        /**
+         * @param mtb0   Level of the base MTB.
+         * @param mtb1   Same level of the MTB to be aligned.
+         * @param stop_x As in align_mtb.rs, we only sample for x < stop_x.
+         * @param stop_y As in align_mtb.rs, we only sample for y < stop_y.
+         * @param off_x  Offset in units of pixels in this level.
+         * @param off_y  Offset in units of pixels in this level.
+         */
+        LevelParams(MTB mtb0, MTB mtb1, int stop_x, int stop_y, int off_x, int off_y) {
+            this.mtb0 = mtb0;
+            this.mtb1 = mtb1;
+            this.off_x = off_x;
+            this.off_y = off_y;
+            // as in align_mtb.rs, only sample where all the offset pixels lie within mtb1
+            this.x_start = Math.max(0, 1-off_x);
+            this.x_end = Math.max(x_start, Math.min(stop_x, mtb1.width-1-off_x));
+            this.y_start = Math.max(0, 1-off_y);
+            this.y_end = Math.max(y_start, Math.min(stop_y, mtb1.height-1-off_y));
+        }
+    }
+
+    /** Counts the errors for each of the 9 candidate offsets, for a range of rows of a pyramid level.
+     */
+    private static class ErrorsTask extends RecursiveTask<long []> {
+        private final LevelParams params;
+        private final int y_start;
+        private final int y_end;
+
+        ErrorsTask(LevelParams params, int y_start, int y_end) {
+            this.params = params;
+            this.y_start = y_start;
+            this.y_end = y_end;
+        }
+
+        @Override
+        protected long [] compute() {
+            int n_rows = y_end - y_start;
+            if( n_rows > 2*min_tile_rows_c ) {
+                int y_mid = y_start + n_rows/2;
+                ErrorsTask task0 = new ErrorsTask(params, y_start, y_mid);
+                ErrorsTask task1 = new ErrorsTask(params, y_mid, y_end);
+                task1.fork();
+                long [] errors = task0.compute();
+                long [] errors1 = task1.join();
+                for(int j=0;j<9;j++) {
+                    errors[j] += errors1[j];
+                }
+                return errors;
+            }
+            long [] errors = new long[9];
+            MTB mtb0 = params.mtb0;
+            MTB mtb1 = params.mtb1;
+            for(int y=y_start;y<y_end;y++) {
+                int row0 = y*mtb0.words_per_row;
+                for(int x=params.x_start;x<params.x_end;x+=64) {
+                    int n_pixels = Math.min(64, params.x_end-x);
+                    long valid = n_pixels == 64 ? -1L : (1L << n_pixels) - 1;
+                    long bits0 = getBits(mtb0.bits, row0, mtb0.words_per_row, x);
+                    long mask0 = getBits(mtb0.mask, row0, mtb0.words_per_row, x) & valid;
+                    int c=0;
+                    for(int dy=-1;dy<=1;dy++) {
+                        int row1 = (y+params.off_y+dy)*mtb1.words_per_row;
+                        for(int dx=-1;dx<=1;dx++) {
+                            int x1 = x+params.off_x+dx;
+                            long bits1 = getBits(mtb1.bits, row1, mtb1.words_per_row, x1);
+                            long mask1 = getBits(mtb1.mask, row1, mtb1.words_per_row, x1);
+                            // pixels differ, and neither is noise
+                            errors[c] += Long.bitCount((bits0 ^ bits1) & mask0 & mask1);
+                            c++;
+                        }
+                    }
+                }
+            }
+            return errors;
+        }
+    }
+
+    /** Returns the 64 bits of the row starting at bit pos (where pos >= 0), with bits beyond the end
+     *  of the row set to 0.
+     */
+    private static long getBits(long [] array, int row_offset, int n_words, int pos) {
+        int word = pos >>> 6;
+        int shift = pos & 63;
+        long result = word < n_words ? array[row_offset+word] >>> shift : 0L;
+        if( shift != 0 && word+1 < n_words ) {
+            result |= array[row_offset+word+1] << (64-shift);
+        }
+        return result;
+    }
+}
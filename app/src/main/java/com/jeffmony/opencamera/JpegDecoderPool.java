@@ -0,0 +1,464 @@
+package com.jeffmony.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorSpace;
+import android.os.Build;
+import android.util.Log;
+
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Decodes JPEGs on a bounded pool of worker threads, so that a burst of images (e.g., for HDR or
+ *  NR) doesn't start a thread (and hold a full resolution frame) per image. When there are fewer
+ *  images than threads, large JPEGs with a suitable restart interval are split into bands (see
+ *  JpegTransformer.splitIntoBands()), which are decoded in parallel into reused band bitmaps and
+ *  then drawn into the full image. The drawing is done on the thread that called decode(), as
+ *  Bitmap and Canvas aren't thread safe, even for separate rows of the same bitmap.
+ */
+public class JpegDecoderPool {
+    private static final String TAG = "JpegDecoderPool";
+
+    private static final int min_band_split_pixels_c = 4*1024*1024; // only split images at least this large into bands
+    private static final int target_band_pixels_c = 1024*1024; // approximate size of each band
+    private static final long keep_alive_ms_c = 10000; // idle worker threads exit after this time
+
+    private final int n_threads;
+    private final ThreadPoolExecutor executor;
+    private volatile BitmapPool bitmapPool;
+
+    // statistics, protected by synchronizing on this
+    private long n_images;
+    private long n_band_images; // number of images decoded in bands
+    private long n_bands;
+    private long n_failed;
+    private long total_pixels;
+    private long total_wall_ns; // total time spent in decode()
+    private long total_decode_ns; // total time spent by the worker threads
+
+    /** Decode throughput statistics.
+     */
+    public static class Stats {
+        public final int n_threads;
+        public final long n_images;
+        public final long n_band_images; // number of images that were split into bands
+        public final long n_bands;
+        public final long n_failed;
+        public final long total_pixels;
+        public final long total_wall_ns; // total time spent waiting for decodes to complete
+        public final long total_decode_ns; // total time spent decoding, summed over all threads
+
+        Stats(int n_threads, long n_images, long n_band_images, long n_bands, long n_failed, long total_pixels, long total_wall_ns, long total_decode_ns) {
+            this.n_threads = n_threads;
+            this.n_images = n_images;
+            this.n_band_images = n_band_images;
+            this.n_bands = n_bands;
+            this.n_failed = n_failed;
+            this.total_pixels = total_pixels;
+            this.total_wall_ns = total_wall_ns;
+            this.total_decode_ns = total_decode_ns;
+        }
+
+        /** Returns the number of megapixels decoded per second of wall clock time.
+         */
+        public double getMegapixelsPerSecond() {
+            return total_wall_ns == 0 ? 0.0 : (total_pixels / 1.0e6) / (total_wall_ns / 1.0e9);
+        }
+
+        /** Returns the mean number of threads that were decoding, i.e., the speedup compared to
+         *  decoding on a single thread.
+         */
+        public double getParallelism() {
+            return total_wall_ns == 0 ? 0.0 : total_decode_ns / (double)total_wall_ns;
+        }
+
+        @Override
+        public String toString() {
+            return "threads " + n_threads + " images " + n_images + " (banded " + n_band_images + ", bands " + n_bands + ", failed " + n_failed + ")" +
+                    " " + getMegapixelsPerSecond() + "MP/s parallelism " + getParallelism();
+        }
+    }
+
+    /** Creates a pool with the supplied maximum number of decoding threads (usually the number of
+     *  available processors).
+     */
+    public JpegDecoderPool(int n_threads) {
+        if( n_threads < 1 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("n_threads must be at least 1: " + n_threads);
+        }
+        this.n_threads = n_threads;
+        final AtomicInteger thread_count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(n_threads, n_threads, keep_alive_ms_c, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "JpegDecoderPool-" + thread_count.getAndIncrement());
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Sets a pool to decode into, and to allocate the full images for banded decoding from.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    public int getNThreads() {
+        return n_threads;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(n_threads, n_images, n_band_images, n_bands, n_failed, total_pixels, total_wall_ns, total_decode_ns);
+    }
+
+    /** The state for decoding a single image.
+     */
+    private static class Image {
+        final ImageBuffer jpeg;
+        final BitmapFactory.Options options;
+        List<JpegTransformer.Band> bands; // null if not decoding in bands
+        Bitmap bitmap; // the result
+        Canvas canvas; // for drawing the bands into bitmap, only used on the thread that called decode()
+        boolean failed;
+
+        Image(ImageBuffer jpeg, BitmapFactory.Options options) {
+            this.jpeg = jpeg;
+            this.options = options;
+        }
+    }
+
+    /** A band that has been decoded by a worker thread, waiting to be drawn into the full image.
+     */
+    private static class DecodedBand {
+        final Image image;
+        final JpegTransformer.Band band;
+        final Bitmap bitmap; // null if the band failed to decode
+
+        DecodedBand(Image image, JpegTransformer.Band band, Bitmap bitmap) {
+            this.image = image;
+            this.band = band;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /** Band bitmaps that are free for reuse, for the duration of a decode() call. At most one band
+     *  bitmap exists per running task, so this is bounded by the number of threads.
+     */
+    private static class BandBitmaps {
+        private final ArrayDeque<Bitmap> free = new ArrayDeque<>();
+        private final List<Bitmap> all = new ArrayList<>();
+
+        synchronized Bitmap take() {
+            return free.poll();
+        }
+
+        synchronized void give(Bitmap bitmap) {
+            if( !all.contains(bitmap) ) {
+                all.add(bitmap);
+            }
+            free.add(bitmap);
+        }
+
+        synchronized void recycleAll() {
+            for(Bitmap bitmap : all) {
+                bitmap.recycle();
+            }
+            all.clear();
+            free.clear();
+        }
+    }
+
+    /** Decodes the supplied JPEGs, running at most getNThreads() decodes at once.
+     * @param options The options to decode each JPEG with.
+     * @return The decoded bitmaps, in the same order as jpegs. An entry is null if that JPEG failed
+     *         to decode.
+     */
+    public Bitmap [] decode(List<ImageBuffer> jpegs, List<BitmapFactory.Options> options) throws InterruptedException {
+        if( jpegs.size() != options.size() ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("different number of jpegs and options");
+        }
+        long time_s = System.nanoTime();
+        final BandBitmaps band_bitmaps = new BandBitmaps();
+        final LinkedBlockingQueue<DecodedBand> decoded_bands = new LinkedBlockingQueue<>();
+        final BitmapPool bitmapPool = this.bitmapPool;
+        List<Image> images = new ArrayList<>();
+        List<Future<Long>> futures = new ArrayList<>();
+        long pixels = 0;
+        int n_band_images_this = 0;
+        int n_bands_this = 0;
+        try {
+            for(int i=0;i<jpegs.size();i++) {
+                final Image image = new Image(jpegs.get(i), options.get(i));
+                images.add(image);
+                // only split into bands if there would otherwise be idle threads
+                int max_bands = n_threads / jpegs.size();
+                if( max_bands >= 2 ) {
+                    image.bands = splitIntoBands(image, max_bands, bitmapPool);
+                }
+                if( image.bands != null ) {
+                    n_band_images_this++;
+                    n_bands_this += image.bands.size();
+                    for(final JpegTransformer.Band band : image.bands) {
+                        futures.add(executor.submit(new Callable<Long>() {
+                            @Override
+                            public Long call() {
+                                long task_time_s = System.nanoTime();
+                                Bitmap band_bitmap = null;
+                                try {
+                                    band_bitmap = decodeBand(image, band, band_bitmaps);
+                                }
+                                finally {
+                                    // always pass on a result, otherwise the calling thread would wait forever
+                                    decoded_bands.add(new DecodedBand(image, band, band_bitmap));
+                                }
+                                return System.nanoTime() - task_time_s;
+                            }
+                        }));
+                    }
+                }
+                else {
+                    futures.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            long task_time_s = System.nanoTime();
+                            if( bitmapPool != null ) {
+                                image.bitmap = bitmapPool.decode(image.jpeg, image.options);
+                            }
+                            else {
+                                image.bitmap = BitmapFactory.decodeStream(image.jpeg.getInputStream(), null, image.options);
+                            }
+                            return System.nanoTime() - task_time_s;
+                        }
+                    }));
+                }
+            }
+
+            // draw the bands into the full images as they're decoded
+            for(int i=0;i<n_bands_this;i++) {
+                DecodedBand decoded_band = decoded_bands.take();
+                if( decoded_band.bitmap != null ) {
+                    boolean failed;
+                    synchronized(decoded_band.image) {
+                        failed = decoded_band.image.failed;
+                    }
+                    if( !failed ) {
+                        drawBand(decoded_band);
+                    }
+                    band_bitmaps.give(decoded_band.bitmap);
+                }
+            }
+
+            long decode_ns = 0;
+            for(Future<Long> future : futures) {
+                // wait for all tasks even if one fails, so the band bitmaps aren't in use when recycled
+                try {
+                    decode_ns += future.get();
+                }
+                catch(ExecutionException e) {
+                    // e.g., out of memory; we don't know which band failed, so fail all banded images
+                    Log.e(TAG, "decode task failed");
+                    e.printStackTrace();
+                    for(Image image : images) {
+                        if( image.bands != null ) {
+                            image.failed = true;
+                        }
+                    }
+                }
+            }
+
+            Bitmap [] bitmaps = new Bitmap[images.size()];
+            int n_failed_this = 0;
+            for(int i=0;i<images.size();i++) {
+                Image image = images.get(i);
+                if( image.failed && image.bitmap != null ) {
+                    freeBitmap(image.bitmap, bitmapPool);
+                    image.bitmap = null;
+                }
+                bitmaps[i] = image.bitmap;
+                if( bitmaps[i] == null ) {
+                    n_failed_this++;
+                }
+                else {
+                    pixels += bitmaps[i].getWidth() * (long)bitmaps[i].getHeight();
+                }
+            }
+
+            long wall_ns = System.nanoTime() - time_s;
+            synchronized(this) {
+                n_images += images.size();
+                n_band_images += n_band_images_this;
+                n_bands += n_bands_this;
+                n_failed += n_failed_this;
+                total_pixels += pixels;
+                total_wall_ns += wall_ns;
+                total_decode_ns += decode_ns;
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "decoded " + images.size() + " images (" + n_bands_this + " bands) in " + (wall_ns/1000000) + "ms");
+                Log.d(TAG, "stats: " + getStats());
+            }
+            return bitmaps;
+        }
+        catch(InterruptedException e) {
+            // stop any decodes that haven't started, and wait for the rest before cleaning up
+            for(Future<Long> future : futures) {
+                future.cancel(false);
+            }
+            for(Future<Long> future : futures) {
+                try {
+                    if( !future.isCancelled() )
+                        future.get();
+                }
+                catch(ExecutionException | InterruptedException e2) {
+                    // ignore, we're cleaning up
+                }
+            }
+            for(Image image : images) {
+                if( image.bitmap != null ) {
+                    freeBitmap(image.bitmap, bitmapPool);
+                    image.bitmap = null;
+                }
+            }
+            throw e;
+        }
+        finally {
+            for(DecodedBand decoded_band : decoded_bands) {
+                // only left over if interrupted
+                if( decoded_band.bitmap != null ) {
+                    band_bitmaps.give(decoded_band.bitmap);
+                }
+            }
+            decoded_bands.clear();
+            for(Image image : images) {
+                image.canvas = null;
+            }
+            band_bitmaps.recycleAll();
+        }
+    }
+
+    private static void freeBitmap(Bitmap bitmap, BitmapPool bitmapPool) {
+        if( bitmapPool != null ) {
+            bitmapPool.release(bitmap);
+        }
+        else {
+            bitmap.recycle();
+        }
+    }
+
+    /** Returns the bands to decode the image in, or null if it should be decoded in one go.
+     */
+    private static List<JpegTransformer.Band> splitIntoBands(Image image, int max_bands, BitmapPool bitmapPool) {
+        BitmapFactory.Options options = image.options;
+        if( options.inSampleSize > 1 || options.inBitmap != null || options.inJustDecodeBounds ) {
+            return null;
+        }
+        BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+        bounds_options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(image.jpeg.getInputStream(), null, bounds_options);
+        long n_pixels = bounds_options.outWidth * (long)bounds_options.outHeight;
+        if( n_pixels < min_band_split_pixels_c ) {
+            return null;
+        }
+        // split straight from the buffer, so that the whole JPEG isn't copied as well as the bands
+        ByteBuffer jpeg = image.jpeg.getBuffer();
+        JpegTransformer.Info info = JpegTransformer.readInfo(jpeg);
+        if( info == null ) {
+            // not a baseline JPEG
+            return null;
+        }
+        max_bands = (int)Math.max(2, Math.min(max_bands * 4L, n_pixels / target_band_pixels_c));
+        List<JpegTransformer.Band> bands = JpegTransformer.splitIntoBands(jpeg, max_bands);
+        if( bands == null || bands.size() < 2 ) {
+            return null;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "decode " + info.width + " x " + info.height + " in " + bands.size() + " bands");
+        // allocate the full image on the calling thread, in the same color space that the bands
+        // will be decoded to, so that drawing them doesn't convert the colors
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+            if( bounds_options.outColorSpace != null && bounds_options.outColorSpace != ColorSpace.get(ColorSpace.Named.SRGB) ) {
+                image.bitmap = Bitmap.createBitmap(info.width, info.height, Bitmap.Config.ARGB_8888, true, bounds_options.outColorSpace);
+            }
+        }
+        if( image.bitmap == null ) {
+            if( bitmapPool != null ) {
+                image.bitmap = bitmapPool.acquire(info.width, info.height, Bitmap.Config.ARGB_8888);
+            }
+            else {
+                image.bitmap = Bitmap.createBitmap(info.width, info.height, Bitmap.Config.ARGB_8888);
+            }
+        }
+        return bands;
+    }
+
+    /** Decodes a band of an image into a reused band bitmap. This is called on a worker thread.
+     * @return The band bitmap, which should be drawn into image.bitmap with drawBand() and then
+     *         returned to band_bitmaps, or null if the band failed to decode (or the image has
+     *         already failed).
+     */
+    private static Bitmap decodeBand(Image image, JpegTransformer.Band band, BandBitmaps band_bitmaps) {
+        synchronized(image) {
+            if( image.failed ) {
+                return null;
+            }
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = band_bitmaps.take();
+        Bitmap band_bitmap = null;
+        try {
+            band_bitmap = BitmapFactory.decodeByteArray(band.jpeg, 0, band.jpeg.length, options);
+        }
+        catch(IllegalArgumentException e) {
+            // the reused bitmap wasn't suitable, e.g., before Android 4.4 it must be exactly the
+            // same size as this band
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't reuse band bitmap: " + e.getMessage());
+        }
+        if( band_bitmap == null && options.inBitmap != null ) {
+            band_bitmaps.give(options.inBitmap);
+            options.inBitmap = null;
+            band_bitmap = BitmapFactory.decodeByteArray(band.jpeg, 0, band.jpeg.length, options);
+        }
+        if( band_bitmap == null ) {
+            Log.e(TAG, "failed to decode band at " + band.y);
+            synchronized(image) {
+                image.failed = true;
+            }
+        }
+        return band_bitmap;
+    }
+
+    /** Draws a decoded band into the full image. This must only be called on the thread that
+     *  called decode().
+     */
+    private static void drawBand(DecodedBand decoded_band) {
+        Image image = decoded_band.image;
+        JpegTransformer.Band band = decoded_band.band;
+        // the band bitmap may be larger than the band when reused (on Android 4.4+, reused
+        // bitmaps are reconfigured to the decoded size, but check to be safe)
+        int band_height = Math.min(band.height, decoded_band.bitmap.getHeight());
+        if( image.canvas == null ) {
+            image.canvas = new Canvas(image.bitmap);
+        }
+        image.canvas.save();
+        image.canvas.clipRect(0, band.y, image.bitmap.getWidth(), band.y + band_height);
+        image.canvas.drawBitmap(decoded_band.bitmap, 0, band.y, null);
+        image.canvas.restore();
+    }
+}
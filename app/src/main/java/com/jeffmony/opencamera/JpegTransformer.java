@@ -0,0 +1,1261 @@
+package com.jeffmony.opencamera;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Rotates and mirrors JPEGs losslessly, by rearranging the quantised DCT coefficients rather than
+ *  decoding to pixels and re-encoding: a block is mirrored by negating its odd horizontal or
+ *  vertical frequencies, and transposed by transposing its coefficients (and quantisation table).
+ *  So there's no IDCT, and no loss of quality.
+ *  Also supports replacing an MCU aligned region of a JPEG with another JPEG, leaving the
+ *  coefficients of the rest of the image unchanged, see replaceRegion().
+ *  Only sequential Huffman coded JPEGs with a single interleaved scan are supported (as produced by
+ *  cameras). Rather than holding all of the coefficients, a first pass records where each block's
+ *  coded data starts (and its DC value), and the output is then written block by block, decoding
+ *  each source block as it's needed. The output uses the standard Huffman tables from the JPEG
+ *  specification, and no restart markers.
+ *  As with jpegtran's "-perfect" option, a transform is only possible if it doesn't move a
+ *  partial MCU at the right or bottom edge of the image to the left or top edge.
+ */
+public class JpegTransformer {
+    private static final String TAG = "JpegTransformer";
+
+    /** The supported transforms, named as for jpegtran. Rotations are clockwise.
+     */
+    public enum Transform {
+        NONE(false, false, false),
+        FLIP_H(false, true, false),
+        FLIP_V(false, false, true),
+        TRANSPOSE(true, false, false),
+        TRANSVERSE(true, true, true),
+        ROTATE_90(true, true, false),
+        ROTATE_180(false, true, true),
+        ROTATE_270(true, false, true);
+
+        // each transform is equivalent to transposing (if transpose is true), followed by
+        // mirroring horizontally and/or vertically
+        final boolean transpose;
+        final boolean flip_h;
+        final boolean flip_v;
+
+        Transform(boolean transpose, boolean flip_h, boolean flip_v) {
+            this.transpose = transpose;
+            this.flip_h = flip_h;
+            this.flip_v = flip_v;
+        }
+    }
+
+    static final int [] zigzag = {
+            0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // standard Huffman tables, from Annex K.3 of the JPEG specification
+    static final int [] std_dc_luminance_bits = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    static final int [] std_dc_luminance_values = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int [] std_dc_chrominance_bits = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    static final int [] std_dc_chrominance_values = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int [] std_ac_luminance_bits = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    static final int [] std_ac_luminance_values = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    static final int [] std_ac_chrominance_bits = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    static final int [] std_ac_chrominance_values = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    // encoders for the standard Huffman tables (these are immutable, so can be shared between threads)
+    static final HuffmanEncoder dc_luminance_encoder = new HuffmanEncoder(std_dc_luminance_bits, std_dc_luminance_values);
+    static final HuffmanEncoder ac_luminance_encoder = new HuffmanEncoder(std_ac_luminance_bits, std_ac_luminance_values);
+    static final HuffmanEncoder dc_chrominance_encoder = new HuffmanEncoder(std_dc_chrominance_bits, std_dc_chrominance_values);
+    static final HuffmanEncoder ac_chrominance_encoder = new HuffmanEncoder(std_ac_chrominance_bits, std_ac_chrominance_values);
+
+    private static class Component {
+        int id;
+        int h; // horizontal sampling factor
+        int v; // vertical sampling factor
+        int tq; // quantisation table
+        HuffmanDecoder dc_table;
+        HuffmanDecoder ac_table;
+        // size of the grid of blocks, including padding to a whole number of MCUs
+        int blocks_w;
+        int blocks_h;
+        // for each block, the bit position of its AC coefficients in entropy_data, and its DC value
+        int [] ac_bit_positions;
+        short [] dc_values;
+    }
+
+    private static class HuffmanDecoder {
+        private static final int lookahead_bits_c = 9;
+        // for codes of up to lookahead_bits_c bits, indexed by the next lookahead_bits_c bits:
+        // (code length << 8) | symbol, or 0 if the code is longer
+        private final int [] lookup = new int[1 << lookahead_bits_c];
+        private final int [] maxcode = new int[17]; // largest code of each length, or -1 if none
+        private final int [] valptr = new int[17]; // index in values of the first code of each length
+        private final int [] mincode = new int[17]; // smallest code of each length
+        private final int [] values;
+
+        HuffmanDecoder(int [] bits, int [] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for(int length=1;length<=16;length++) {
+                valptr[length] = k;
+                mincode[length] = code;
+                code += bits[length-1];
+                k += bits[length-1];
+                if( code > (1 << length) ) {
+                    throw new IOException("invalid huffman table");
+                }
+                maxcode[length] = bits[length-1] > 0 ? code-1 : -1;
+                code <<= 1;
+            }
+            for(int length=1;length<=lookahead_bits_c;length++) {
+                for(int i=0;i<bits[length-1];i++) {
+                    int c = mincode[length] + i;
+                    int symbol = values[valptr[length] + i];
+                    // fill in all entries that start with this code
+                    int shift = lookahead_bits_c - length;
+                    for(int j=0;j<(1 << shift);j++) {
+                        lookup[(c << shift) | j] = (length << 8) | symbol;
+                    }
+                }
+            }
+        }
+
+        int decode(BitReader reader) throws IOException {
+            int entry = lookup[reader.peekBits(lookahead_bits_c)];
+            if( entry != 0 ) {
+                reader.skipBits(entry >> 8);
+                return entry & 0xff;
+            }
+            int bits = reader.peekBits(16);
+            for(int length=lookahead_bits_c+1;length<=16;length++) {
+                int code = bits >>> (16 - length);
+                if( code <= maxcode[length] ) {
+                    reader.skipBits(length);
+                    return values[valptr[length] + code - mincode[length]];
+                }
+            }
+            throw new IOException("invalid huffman code");
+        }
+    }
+
+    static class HuffmanEncoder {
+        final int [] codes = new int[256];
+        final int [] sizes = new int[256];
+        final int [] bits;
+        final int [] values;
+
+        HuffmanEncoder(int [] bits, int [] values) {
+            this.bits = bits;
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for(int length=1;length<=16;length++) {
+                for(int i=0;i<bits[length-1];i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /** Reads bits from entropy coded data that's had the byte stuffing and restart markers removed.
+     */
+    private static class BitReader {
+        private final byte [] data;
+        private final int length;
+        int bit_position;
+
+        BitReader(byte [] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        private int getByte(int position) {
+            return position < length ? (data[position] & 0xff) : 0;
+        }
+
+        /** Returns the next n bits, for n <= 16, without consuming them.
+         */
+        int peekBits(int n) {
+            int position = bit_position >>> 3;
+            int bits = (getByte(position) << 16) | (getByte(position+1) << 8) | getByte(position+2);
+            return (bits >>> (24 - (bit_position & 7) - n)) & ((1 << n) - 1);
+        }
+
+        void skipBits(int n) {
+            bit_position += n;
+        }
+
+        int readBits(int n) {
+            if( n == 0 )
+                return 0;
+            int bits = peekBits(n);
+            bit_position += n;
+            return bits;
+        }
+
+        void alignToByte() {
+            bit_position = (bit_position + 7) & ~7;
+        }
+
+        void checkOverrun() throws IOException {
+            if( bit_position > 8*(long)length ) {
+                throw new IOException("unexpected end of entropy coded data");
+            }
+        }
+    }
+
+    /** Writes the output JPEG, including byte stuffing of the entropy coded data.
+     */
+    static class JpegWriter {
+        private byte [] data;
+        private int length;
+        private int bit_buffer;
+        private int bit_count;
+
+        JpegWriter(int capacity) {
+            data = new byte[Math.max(capacity, 1024)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if( length + extra > data.length ) {
+                data = Arrays.copyOf(data, Math.max(2*data.length, length + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            data[length++] = (byte)value;
+        }
+
+        void writeU16(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeBytes(byte [] bytes, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(bytes, offset, data, length, count);
+            length += count;
+        }
+
+        /** Writes the least significant n bits of value, for n <= 16.
+         */
+        void writeBits(int value, int n) {
+            bit_buffer = (bit_buffer << n) | (value & ((1 << n) - 1));
+            bit_count += n;
+            while( bit_count >= 8 ) {
+                int b = (bit_buffer >>> (bit_count - 8)) & 0xff;
+                writeByte(b);
+                if( b == 0xff ) {
+                    // byte stuffing
+                    writeByte(0);
+                }
+                bit_count -= 8;
+            }
+        }
+
+        /** Pads the entropy coded data to a whole byte with 1 bits.
+         */
+        void flushBits() {
+            if( bit_count > 0 ) {
+                writeBits(0x7f, 8 - bit_count);
+            }
+        }
+
+        byte [] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            outputStream.write(data, 0, length);
+        }
+    }
+
+    private final byte [] jpeg;
+    private final List<int []> copied_segments = new ArrayList<>(); // start and end offsets of segments to copy unchanged
+    private final int [][] quant_tables = new int[4][]; // in natural order
+    private final boolean [] quant_tables_16bit = new boolean[4];
+    private final HuffmanDecoder [] dc_tables = new HuffmanDecoder[4];
+    private final HuffmanDecoder [] ac_tables = new HuffmanDecoder[4];
+    private int frame_marker;
+    private int width;
+    private int height;
+    private Component [] components;
+    private int restart_interval;
+    private int mcu_width;
+    private int mcu_height;
+    private int mcus_x;
+    private int mcus_y;
+    private final int scan_start;
+    private byte [] entropy_data;
+    private int entropy_length;
+
+    private JpegTransformer(byte [] jpeg) throws IOException {
+        this.jpeg = jpeg;
+        this.scan_start = parseHeaders();
+        setupBlocks();
+    }
+
+    /** The size of a JPEG, and of its MCUs.
+     */
+    public static class Info {
+        public final int width;
+        public final int height;
+        public final int mcu_width;
+        public final int mcu_height;
+
+        Info(int width, int height, int mcu_width, int mcu_height) {
+            this.width = width;
+            this.height = height;
+            this.mcu_width = mcu_width;
+            this.mcu_height = mcu_height;
+        }
+
+        /** Expands the supplied region to whole MCUs, clipped to the image, so that it can be
+         *  replaced with replaceRegion() without affecting the rest of the image. The right and
+         *  bottom edges are rounded up as well as the left and top edges rounded down, as otherwise
+         *  the padding of the patch's partial MCUs would overwrite the image beyond the region.
+         * @return The aligned region, as {left, top, right, bottom}.
+         */
+        public int [] alignRegion(int left, int top, int right, int bottom) {
+            left = Math.max(left, 0);
+            left -= left % mcu_width;
+            top = Math.max(top, 0);
+            top -= top % mcu_height;
+            right = Math.min(((right + mcu_width - 1) / mcu_width) * mcu_width, width);
+            bottom = Math.min(((bottom + mcu_height - 1) / mcu_height) * mcu_height, height);
+            return new int[]{left, top, right, bottom};
+        }
+    }
+
+    /** Reads the size of the supplied JPEG, without decoding the image.
+     * @return The Info, or null if the JPEG isn't supported by this class.
+     */
+    public static Info readInfo(byte [] jpeg) {
+        return readInfo(ByteBuffer.wrap(jpeg));
+    }
+
+    /** As readInfo(byte []), but for a JPEG in a buffer (e.g., a direct buffer from an
+     *  ImageBuffer). Only the headers are copied.
+     * @param jpeg The JPEG data, from index 0 to the buffer's limit. The buffer's position is
+     *             ignored and unchanged.
+     */
+    public static Info readInfo(ByteBuffer jpeg) {
+        try {
+            JpegTransformer transformer = new JpegTransformer(readHeaders(jpeg));
+            return new Info(transformer.width, transformer.height, transformer.mcu_width, transformer.mcu_height);
+        }
+        catch(IOException | RuntimeException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't read jpeg: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Transforms the supplied JPEG losslessly.
+     * @return The transformed JPEG, or null if the JPEG isn't supported, or the transform isn't
+     *         possible for this JPEG without losing some of the image.
+     */
+    public static byte [] transform(byte [] jpeg, Transform transform) {
+        long time_s = 0;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "transform: " + transform);
+            time_s = System.currentTimeMillis();
+        }
+        try {
+            JpegTransformer transformer = new JpegTransformer(jpeg);
+            if( !transformer.isPerfect(transform) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "transform would need to trim the partial edge MCUs");
+                return null;
+            }
+            transformer.indexBlocks();
+            byte [] result = transformer.write(transform, null, 0, 0);
+            if( MyDebug.LOG )
+                Log.d(TAG, "transform time: " + (System.currentTimeMillis() - time_s));
+            return result;
+        }
+        catch(IOException | RuntimeException e) {
+            // RuntimeException covers invalid data leading to IndexOutOfBoundsException etc
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't transform jpeg: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Replaces a region of the supplied JPEG with the image in patch. The coefficients of the
+     *  blocks outside the region are copied unchanged, and those of the patch are requantised to the
+     *  JPEG's quantisation tables. The patch must have the same components and sampling factors as
+     *  the JPEG, and the region must start on an MCU boundary (see readInfo()).
+     * @param x The left edge of the region, in pixels.
+     * @param y The top edge of the region, in pixels.
+     * @return The modified JPEG, or null if either JPEG isn't supported, or they're incompatible.
+     */
+    public static byte [] replaceRegion(byte [] jpeg, byte [] patch, int x, int y) {
+        long time_s = 0;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "replaceRegion: " + x + " , " + y);
+            time_s = System.currentTimeMillis();
+        }
+        try {
+            JpegTransformer transformer = new JpegTransformer(jpeg);
+            JpegTransformer patch_transformer = new JpegTransformer(patch);
+            if( x % transformer.mcu_width != 0 || y % transformer.mcu_height != 0 ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "region isn't aligned to MCUs");
+                return null;
+            }
+            int patch_mcu_x = x / transformer.mcu_width;
+            int patch_mcu_y = y / transformer.mcu_height;
+            if( patch_mcu_x + patch_transformer.mcus_x > transformer.mcus_x || patch_mcu_y + patch_transformer.mcus_y > transformer.mcus_y ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "region is outside of the image");
+                return null;
+            }
+            if( patch_transformer.components.length != transformer.components.length ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "patch has different number of components");
+                return null;
+            }
+            for(int i=0;i<transformer.components.length;i++) {
+                if( patch_transformer.components[i].h != transformer.components[i].h || patch_transformer.components[i].v != transformer.components[i].v ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "patch has different sampling factors");
+                    return null;
+                }
+            }
+            transformer.indexBlocks();
+            patch_transformer.indexBlocks();
+            byte [] result = transformer.write(Transform.NONE, patch_transformer, patch_mcu_x, patch_mcu_y);
+            if( MyDebug.LOG )
+                Log.d(TAG, "replaceRegion time: " + (System.currentTimeMillis() - time_s));
+            return result;
+        }
+        catch(IOException | RuntimeException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't replace region of jpeg: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** A horizontal band of a JPEG, as a standalone JPEG.
+     */
+    public static class Band {
+        public final byte [] jpeg;
+        public final int y; // the top edge of the band within the full image
+        public final int height;
+
+        Band(byte [] jpeg, int y, int height) {
+            this.jpeg = jpeg;
+            this.y = y;
+            this.height = height;
+        }
+    }
+
+    /** Splits the supplied JPEG into horizontal bands that can be decoded independently, by
+     *  cutting the entropy coded data at restart markers. This is only possible if the restart
+     *  interval is a whole number of MCU rows. Each band is a standalone JPEG with the same tables
+     *  as the original, but without the Exif or comment segments.
+     * @param max_bands The maximum number of bands to return.
+     * @return The bands in order from the top of the image, or null if the JPEG can't be split.
+     */
+    public static List<Band> splitIntoBands(byte [] jpeg, int max_bands) {
+        return splitIntoBands(ByteBuffer.wrap(jpeg), max_bands);
+    }
+
+    /** As splitIntoBands(byte [], int), but for a JPEG in a buffer (e.g., a direct buffer from an
+     *  ImageBuffer), so that the whole JPEG doesn't need to be copied to an array first - only the
+     *  headers, and the data for each band, are copied.
+     * @param jpeg The JPEG data, from index 0 to the buffer's limit. The buffer's position is
+     *             ignored and unchanged.
+     */
+    public static List<Band> splitIntoBands(ByteBuffer jpeg, int max_bands) {
+        if( max_bands < 2 ) {
+            return null;
+        }
+        try {
+            JpegTransformer transformer = new JpegTransformer(readHeaders(jpeg));
+            return transformer.splitBands(jpeg, max_bands);
+        }
+        catch(IOException | RuntimeException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't split jpeg into bands: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Returns a copy of the supplied JPEG up to the end of the start of scan segment, which is
+     *  all that's needed to construct a JpegTransformer for readInfo() or splitIntoBands().
+     */
+    private static byte [] readHeaders(ByteBuffer jpeg) throws IOException {
+        final int length = jpeg.limit();
+        if( length < 4 || jpeg.get(0) != (byte)0xFF || jpeg.get(1) != (byte)0xD8 ) {
+            throw new IOException("not a jpeg");
+        }
+        int pos = 2;
+        while( true ) {
+            if( pos + 4 > length ) {
+                throw new IOException("no scan");
+            }
+            int marker = jpeg.get(pos+1) & 0xff;
+            if( jpeg.get(pos) != (byte)0xFF ) {
+                throw new IOException("expected marker at " + pos);
+            }
+            else if( marker == 0xFF ) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            int end = pos + 2 + (((jpeg.get(pos+2) & 0xff) << 8) | (jpeg.get(pos+3) & 0xff));
+            if( end > length ) {
+                throw new IOException("invalid segment length at " + pos);
+            }
+            if( marker == 0xDA ) {
+                byte [] headers = new byte[end];
+                ByteBuffer view = jpeg.duplicate();
+                view.position(0);
+                view.get(headers);
+                return headers;
+            }
+            pos = end;
+        }
+    }
+
+    /** Splits the JPEG into bands, see splitIntoBands(ByteBuffer, int). This JpegTransformer need
+     *  only have been constructed from the headers of data.
+     * @param data The full JPEG.
+     */
+    private List<Band> splitBands(ByteBuffer data, int max_bands) throws IOException {
+        if( restart_interval == 0 || restart_interval % mcus_x != 0 ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "restart interval isn't a whole number of mcu rows: " + restart_interval);
+            return null;
+        }
+        final int interval_mcu_rows = restart_interval / mcus_x;
+        final int n_intervals = (mcus_y + interval_mcu_rows - 1) / interval_mcu_rows;
+        if( n_intervals < 2 ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "only one restart interval");
+            return null;
+        }
+
+        // find the start of the entropy coded data for each restart interval; the data for
+        // interval i ends 2 bytes before the start of interval i+1 (at the RSTn marker or EOI)
+        int [] interval_starts = new int[n_intervals+1];
+        interval_starts[0] = scan_start;
+        int n_markers = 0;
+        int pos = scan_start;
+        int scan_end = -1;
+        final int data_length = data.limit();
+        while( pos + 1 < data_length ) {
+            if( data.get(pos) != (byte)0xFF ) {
+                pos++;
+                continue;
+            }
+            int marker = data.get(pos+1) & 0xff;
+            if( marker == 0x00 ) {
+                // stuffed byte
+                pos += 2;
+            }
+            else if( marker == 0xFF ) {
+                // fill byte
+                pos++;
+            }
+            else if( marker >= 0xD0 && marker <= 0xD7 ) {
+                n_markers++;
+                if( n_markers >= n_intervals ) {
+                    throw new IOException("too many restart markers");
+                }
+                interval_starts[n_markers] = pos + 2;
+                pos += 2;
+            }
+            else {
+                scan_end = pos;
+                break;
+            }
+        }
+        if( scan_end == -1 || n_markers != n_intervals - 1 ) {
+            throw new IOException("expected " + (n_intervals-1) + " restart markers, found " + n_markers);
+        }
+        interval_starts[n_intervals] = scan_end + 2;
+
+        // the header for each band is the original header without Exif or comments, and with the
+        // height of the frame patched
+        ByteArrayOutputStream header_stream = new ByteArrayOutputStream();
+        header_stream.write(jpeg, 0, 2);
+        int height_offset = -1;
+        pos = 2;
+        while( pos < scan_start ) {
+            int marker = readU8(pos+1);
+            if( marker == 0xFF ) {
+                pos++;
+                continue;
+            }
+            int end = pos + 2 + readU16(pos+2);
+            if( marker == frame_marker ) {
+                height_offset = header_stream.size() + 5;
+            }
+            if( marker != 0xE1 && marker != 0xFE ) {
+                header_stream.write(jpeg, pos, end - pos);
+            }
+            pos = end;
+        }
+        if( height_offset == -1 ) {
+            throw new IOException("no frame header");
+        }
+        byte [] header = header_stream.toByteArray();
+
+        final int n_bands = Math.min(max_bands, n_intervals);
+        List<Band> bands = new ArrayList<>(n_bands);
+        ByteBuffer view = data.duplicate();
+        for(int band=0;band<n_bands;band++) {
+            int first = (band * n_intervals) / n_bands;
+            int last = ((band+1) * n_intervals) / n_bands; // exclusive
+            int y = first * interval_mcu_rows * mcu_height;
+            int band_height = Math.min(last * interval_mcu_rows * mcu_height, height) - y;
+            int data_start = interval_starts[first];
+            int data_end = interval_starts[last] - 2;
+
+            byte [] band_jpeg = new byte[header.length + (data_end - data_start) + 2];
+            System.arraycopy(header, 0, band_jpeg, 0, header.length);
+            band_jpeg[height_offset] = (byte)(band_height >> 8);
+            band_jpeg[height_offset+1] = (byte)band_height;
+            view.position(data_start);
+            view.get(band_jpeg, header.length, data_end - data_start);
+            // decoders expect the restart markers to count from RST0 again
+            for(int i=first+1;i<last;i++) {
+                int marker_pos = header.length + (interval_starts[i] - 2 - data_start);
+                band_jpeg[marker_pos+1] = (byte)(0xD0 + ((i - first - 1) & 7));
+            }
+            band_jpeg[band_jpeg.length-2] = (byte)0xFF;
+            band_jpeg[band_jpeg.length-1] = (byte)0xD9;
+            bands.add(new Band(band_jpeg, y, band_height));
+        }
+        return bands;
+    }
+
+    private int readU8(int offset) {
+        return jpeg[offset] & 0xff;
+    }
+
+    private int readU16(int offset) {
+        return ((jpeg[offset] & 0xff) << 8) | (jpeg[offset+1] & 0xff);
+    }
+
+    /** Parses the markers up to the start of the scan.
+     * @return The offset of the entropy coded data.
+     */
+    private int parseHeaders() throws IOException {
+        if( jpeg.length < 4 || readU8(0) != 0xFF || readU8(1) != 0xD8 ) {
+            throw new IOException("not a jpeg");
+        }
+        int pos = 2;
+        while( true ) {
+            if( pos + 4 > jpeg.length ) {
+                throw new IOException("no scan");
+            }
+            if( readU8(pos) != 0xFF ) {
+                throw new IOException("expected marker at " + pos);
+            }
+            int marker = readU8(pos+1);
+            if( marker == 0xFF ) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            int segment_length = readU16(pos+2);
+            int start = pos + 4;
+            int end = pos + 2 + segment_length;
+            if( segment_length < 2 || end > jpeg.length ) {
+                throw new IOException("invalid segment length " + segment_length + " at " + pos);
+            }
+            if( marker == 0xC0 || marker == 0xC1 ) {
+                parseFrame(marker, start, end);
+            }
+            else if( marker == 0xC4 ) {
+                parseHuffmanTables(start, end);
+            }
+            else if( marker == 0xDB ) {
+                parseQuantTables(start, end);
+            }
+            else if( marker == 0xDD ) {
+                restart_interval = readU16(start);
+            }
+            else if( marker == 0xDA ) {
+                parseScan(start, end);
+                return end;
+            }
+            else if( (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4) ) {
+                // progressive, lossless, hierarchical or arithmetic coding
+                throw new IOException("unsupported frame type: " + marker);
+            }
+            else if( (marker >= 0xE0 && marker <= 0xEF) || marker == 0xFE ) {
+                // application or comment segments are copied unchanged
+                copied_segments.add(new int[]{pos, end});
+            }
+            pos = end;
+        }
+    }
+
+    private void parseFrame(int marker, int start, int end) throws IOException {
+        if( components != null ) {
+            throw new IOException("multiple frames");
+        }
+        frame_marker = marker;
+        int precision = readU8(start);
+        height = readU16(start+1);
+        width = readU16(start+3);
+        int n_components = readU8(start+5);
+        if( precision != 8 ) {
+            throw new IOException("unsupported precision: " + precision);
+        }
+        else if( width == 0 || height == 0 ) {
+            throw new IOException("unsupported size: " + width + " x " + height);
+        }
+        else if( n_components < 1 || n_components > 4 || start + 6 + 3*n_components > end ) {
+            throw new IOException("invalid number of components: " + n_components);
+        }
+        components = new Component[n_components];
+        for(int i=0;i<n_components;i++) {
+            Component component = new Component();
+            int offset = start + 6 + 3*i;
+            component.id = readU8(offset);
+            component.h = readU8(offset+1) >> 4;
+            component.v = readU8(offset+1) & 0xf;
+            component.tq = readU8(offset+2);
+            if( component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 || component.tq > 3 ) {
+                throw new IOException("invalid component " + i);
+            }
+            components[i] = component;
+        }
+    }
+
+    private void parseHuffmanTables(int start, int end) throws IOException {
+        int pos = start;
+        while( pos < end ) {
+            int table_class = readU8(pos) >> 4;
+            int table_id = readU8(pos) & 0xf;
+            if( table_class > 1 || table_id > 3 ) {
+                throw new IOException("invalid huffman table");
+            }
+            int [] bits = new int[16];
+            int n_values = 0;
+            for(int i=0;i<16;i++) {
+                bits[i] = readU8(pos+1+i);
+                n_values += bits[i];
+            }
+            if( n_values > 256 || pos + 17 + n_values > end ) {
+                throw new IOException("invalid huffman table");
+            }
+            int [] values = new int[n_values];
+            for(int i=0;i<n_values;i++) {
+                values[i] = readU8(pos+17+i);
+            }
+            HuffmanDecoder decoder = new HuffmanDecoder(bits, values);
+            if( table_class == 0 )
+                dc_tables[table_id] = decoder;
+            else
+                ac_tables[table_id] = decoder;
+            pos += 17 + n_values;
+        }
+    }
+
+    private void parseQuantTables(int start, int end) throws IOException {
+        int pos = start;
+        while( pos < end ) {
+            boolean is_16bit = (readU8(pos) >> 4) != 0;
+            int table_id = readU8(pos) & 0xf;
+            if( table_id > 3 || pos + 1 + (is_16bit ? 128 : 64) > end ) {
+                throw new IOException("invalid quantisation table");
+            }
+            int [] table = new int[64];
+            for(int i=0;i<64;i++) {
+                table[zigzag[i]] = is_16bit ? readU16(pos+1+2*i) : readU8(pos+1+i);
+            }
+            quant_tables[table_id] = table;
+            quant_tables_16bit[table_id] = is_16bit;
+            pos += 1 + (is_16bit ? 128 : 64);
+        }
+    }
+
+    private void parseScan(int start, int end) throws IOException {
+        if( components == null ) {
+            throw new IOException("scan before frame");
+        }
+        int n_scan_components = readU8(start);
+        if( n_scan_components != components.length ) {
+            throw new IOException("non-interleaved scans not supported");
+        }
+        if( start + 1 + 2*n_scan_components + 3 > end ) {
+            throw new IOException("invalid scan header");
+        }
+        for(int i=0;i<n_scan_components;i++) {
+            int id = readU8(start+1+2*i);
+            int tables = readU8(start+2+2*i);
+            Component component = components[i];
+            if( component.id != id ) {
+                throw new IOException("scan component order doesn't match frame");
+            }
+            component.dc_table = dc_tables[(tables >> 4) & 3];
+            component.ac_table = ac_tables[tables & 3];
+            if( component.dc_table == null || component.ac_table == null ) {
+                throw new IOException("missing huffman table for component " + i);
+            }
+            if( quant_tables[component.tq] == null ) {
+                throw new IOException("missing quantisation table for component " + i);
+            }
+        }
+        int offset = start + 1 + 2*n_scan_components;
+        if( readU8(offset) != 0 || readU8(offset+1) != 63 || readU8(offset+2) != 0 ) {
+            throw new IOException("unsupported spectral selection");
+        }
+    }
+
+    /** Copies the entropy coded data into entropy_data, removing byte stuffing and restart markers.
+     */
+    private void readEntropyData(int scan_start) throws IOException {
+        entropy_data = new byte[jpeg.length - scan_start];
+        int length = 0;
+        int pos = scan_start;
+        boolean found_end = false;
+        while( pos < jpeg.length ) {
+            byte b = jpeg[pos];
+            if( b != (byte)0xFF ) {
+                entropy_data[length++] = b;
+                pos++;
+                continue;
+            }
+            if( pos + 1 >= jpeg.length ) {
+                break;
+            }
+            int marker = readU8(pos+1);
+            if( marker == 0x00 ) {
+                entropy_data[length++] = b;
+                pos += 2;
+            }
+            else if( marker >= 0xD0 && marker <= 0xD7 ) {
+                // restart marker - the bits before it are padded to a byte, so we can just skip it
+                pos += 2;
+            }
+            else if( marker == 0xFF ) {
+                // fill byte
+                pos++;
+            }
+            else {
+                if( marker != 0xD9 ) {
+                    // e.g., a further scan, or DNL marker
+                    throw new IOException("unsupported marker after scan: " + marker);
+                }
+                found_end = true;
+                break;
+            }
+        }
+        if( !found_end ) {
+            throw new IOException("no end of image");
+        }
+        entropy_length = length;
+    }
+
+    private void setupBlocks() {
+        if( components.length == 1 ) {
+            // for a non-interleaved scan, each MCU is a single block, regardless of sampling factors
+            Component component = components[0];
+            component.h = 1;
+            component.v = 1;
+            mcu_width = 8;
+            mcu_height = 8;
+        }
+        else {
+            int max_h = 1;
+            int max_v = 1;
+            for(Component component : components) {
+                max_h = Math.max(max_h, component.h);
+                max_v = Math.max(max_v, component.v);
+            }
+            mcu_width = 8*max_h;
+            mcu_height = 8*max_v;
+        }
+        mcus_x = (width + mcu_width - 1) / mcu_width;
+        mcus_y = (height + mcu_height - 1) / mcu_height;
+        for(Component component : components) {
+            component.blocks_w = mcus_x * component.h;
+            component.blocks_h = mcus_y * component.v;
+        }
+    }
+
+    /** Whether the transform can be done without trimming any of the image, i.e., if it moves the
+     *  right or bottom edge of the image to the left or top, that edge must be a whole number of
+     *  MCUs.
+     */
+    private boolean isPerfect(Transform transform) {
+        // an output flip moves the source edge that's along the transposed (if necessary) axis
+        boolean source_x_flipped = transform.transpose ? transform.flip_v : transform.flip_h;
+        boolean source_y_flipped = transform.transpose ? transform.flip_h : transform.flip_v;
+        if( source_x_flipped && width % mcu_width != 0 )
+            return false;
+        if( source_y_flipped && height % mcu_height != 0 )
+            return false;
+        return true;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    /** Decodes the entropy coded data, recording the position of the AC coefficients and the DC
+     *  value of each block.
+     */
+    private void indexBlocks() throws IOException {
+        readEntropyData(scan_start);
+        for(Component component : components) {
+            component.ac_bit_positions = new int[component.blocks_w * component.blocks_h];
+            component.dc_values = new short[component.blocks_w * component.blocks_h];
+        }
+        BitReader reader = new BitReader(entropy_data, entropy_length);
+        int [] dc_predictions = new int[components.length];
+        int mcus_to_restart = restart_interval;
+        for(int mcu_y=0;mcu_y<mcus_y;mcu_y++) {
+            for(int mcu_x=0;mcu_x<mcus_x;mcu_x++) {
+                if( restart_interval > 0 ) {
+                    if( mcus_to_restart == 0 ) {
+                        reader.alignToByte();
+                        Arrays.fill(dc_predictions, 0);
+                        mcus_to_restart = restart_interval;
+                    }
+                    mcus_to_restart--;
+                }
+                for(int c=0;c<components.length;c++) {
+                    Component component = components[c];
+                    for(int by=0;by<component.v;by++) {
+                        int block_index = (mcu_y*component.v + by)*component.blocks_w + mcu_x*component.h;
+                        for(int bx=0;bx<component.h;bx++,block_index++) {
+                            int size = component.dc_table.decode(reader);
+                            if( size > 11 ) {
+                                throw new IOException("invalid dc coefficient");
+                            }
+                            dc_predictions[c] += extend(reader.readBits(size), size);
+                            component.dc_values[block_index] = (short)dc_predictions[c];
+                            component.ac_bit_positions[block_index] = reader.bit_position;
+                            decodeAC(reader, component.ac_table, null);
+                        }
+                    }
+                }
+                reader.checkOverrun();
+            }
+        }
+    }
+
+    /** Decodes the AC coefficients of a block into coefficients (in natural order), or just skips
+     *  them if coefficients is null.
+     */
+    private static void decodeAC(BitReader reader, HuffmanDecoder ac_table, int [] coefficients) throws IOException {
+        for(int k=1;k<64;k++) {
+            int rs = ac_table.decode(reader);
+            int run = rs >> 4;
+            int size = rs & 0xf;
+            if( size == 0 ) {
+                if( run != 15 ) {
+                    // end of block
+                    break;
+                }
+                // run of 16 zeroes
+                k += 15;
+                continue;
+            }
+            k += run;
+            if( k > 63 ) {
+                throw new IOException("invalid ac coefficients");
+            }
+            int bits = reader.readBits(size);
+            if( coefficients != null ) {
+                coefficients[zigzag[k]] = extend(bits, size);
+            }
+        }
+    }
+
+    private static void encodeCoefficient(JpegWriter writer, HuffmanEncoder encoder, int symbol_high, int value) {
+        int magnitude = value < 0 ? -value : value;
+        int size = 32 - Integer.numberOfLeadingZeros(magnitude);
+        int symbol = symbol_high | size;
+        writer.writeBits(encoder.codes[symbol], encoder.sizes[symbol]);
+        if( size > 0 ) {
+            writer.writeBits(value < 0 ? value - 1 : value, size);
+        }
+    }
+
+    /** Huffman encodes a block of quantised coefficients.
+     * @param coefficients The coefficients in natural order.
+     * @param dc_prediction The DC coefficient of the previous block of this component.
+     */
+    static void encodeBlock(JpegWriter writer, HuffmanEncoder dc_encoder, HuffmanEncoder ac_encoder, int [] coefficients, int dc_prediction) {
+        encodeCoefficient(writer, dc_encoder, 0, coefficients[0] - dc_prediction);
+        int run = 0;
+        for(int k=1;k<64;k++) {
+            int value = coefficients[zigzag[k]];
+            if( value == 0 ) {
+                run++;
+                continue;
+            }
+            while( run >= 16 ) {
+                // run of 16 zeroes
+                writer.writeBits(ac_encoder.codes[0xF0], ac_encoder.sizes[0xF0]);
+                run -= 16;
+            }
+            encodeCoefficient(writer, ac_encoder, run << 4, value);
+            run = 0;
+        }
+        if( run > 0 ) {
+            // end of block
+            writer.writeBits(ac_encoder.codes[0], ac_encoder.sizes[0]);
+        }
+    }
+
+    private static void writeHuffmanTable(JpegWriter writer, int table_class, int table_id, HuffmanEncoder encoder) {
+        writer.writeByte((table_class << 4) | table_id);
+        for(int i=0;i<16;i++) {
+            writer.writeByte(encoder.bits[i]);
+        }
+        for(int value : encoder.values) {
+            writer.writeByte(value);
+        }
+    }
+
+    /** Writes a DHT segment with the standard Huffman tables: the luminance tables as table 0, and
+     *  if chrominance is true, the chrominance tables as table 1.
+     */
+    static void writeStandardHuffmanTables(JpegWriter writer, boolean chrominance) {
+        writer.writeU16(0xFFC4);
+        int length = 2 + 2*17 + std_dc_luminance_values.length + std_ac_luminance_values.length;
+        if( chrominance )
+            length += 2*17 + std_dc_chrominance_values.length + std_ac_chrominance_values.length;
+        writer.writeU16(length);
+        writeHuffmanTable(writer, 0, 0, dc_luminance_encoder);
+        writeHuffmanTable(writer, 1, 0, ac_luminance_encoder);
+        if( chrominance ) {
+            writeHuffmanTable(writer, 0, 1, dc_chrominance_encoder);
+            writeHuffmanTable(writer, 1, 1, ac_chrominance_encoder);
+        }
+    }
+
+    /** Converts coefficients quantised with from_table to be quantised with to_table.
+     */
+    private static void requantise(int [] coefficients, int [] from_table, int [] to_table) {
+        for(int k=0;k<64;k++) {
+            if( coefficients[k] == 0 )
+                continue;
+            int value = coefficients[k] * from_table[k];
+            int q = to_table[k];
+            value = value >= 0 ? (value + q/2) / q : -((q/2 - value) / q);
+            // clamp to the range that can be coded for 8-bit precision
+            coefficients[k] = Math.max(-1023, Math.min(1023, value));
+        }
+    }
+
+    /** Writes the output JPEG.
+     * @param patch If non-null, blocks within the patch's region are read from the patch rather
+     *              than this JPEG. Only supported with Transform.NONE.
+     * @param patch_mcu_x The left edge of the patch's region, in MCUs.
+     * @param patch_mcu_y The top edge of the patch's region, in MCUs.
+     */
+    private byte [] write(Transform transform, JpegTransformer patch, int patch_mcu_x, int patch_mcu_y) throws IOException {
+        if( patch != null && transform != Transform.NONE ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException();
+        }
+        // the output coefficient at natural index k is sign[k]*(source coefficient at source_index[k])
+        int [] source_index = new int[64];
+        int [] sign = new int[64];
+        for(int k=0;k<64;k++) {
+            int u = k & 7; // horizontal frequency
+            int v = k >> 3; // vertical frequency
+            source_index[k] = transform.transpose ? u*8 + v : k;
+            boolean negate = (transform.flip_h && (u & 1) != 0) ^ (transform.flip_v && (v & 1) != 0);
+            sign[k] = negate ? -1 : 1;
+        }
+
+        JpegWriter writer = new JpegWriter(jpeg.length + 1024);
+        writer.writeU16(0xFFD8);
+        for(int [] segment : copied_segments) {
+            writer.writeBytes(jpeg, segment[0], segment[1] - segment[0]);
+        }
+
+        // quantisation tables
+        for(int i=0;i<quant_tables.length;i++) {
+            if( quant_tables[i] == null )
+                continue;
+            boolean is_16bit = quant_tables_16bit[i];
+            writer.writeU16(0xFFDB);
+            writer.writeU16(2 + 1 + (is_16bit ? 128 : 64));
+            writer.writeByte(((is_16bit ? 1 : 0) << 4) | i);
+            for(int j=0;j<64;j++) {
+                int value = quant_tables[i][source_index[zigzag[j]]];
+                if( is_16bit )
+                    writer.writeU16(value);
+                else
+                    writer.writeByte(value);
+            }
+        }
+
+        // frame header
+        int out_width = transform.transpose ? height : width;
+        int out_height = transform.transpose ? width : height;
+        int out_mcus_x = transform.transpose ? mcus_y : mcus_x;
+        int out_mcus_y = transform.transpose ? mcus_x : mcus_y;
+        writer.writeU16(0xFF00 | frame_marker);
+        writer.writeU16(2 + 6 + 3*components.length);
+        writer.writeByte(8);
+        writer.writeU16(out_height);
+        writer.writeU16(out_width);
+        writer.writeByte(components.length);
+        for(Component component : components) {
+            int out_h = transform.transpose ? component.v : component.h;
+            int out_v = transform.transpose ? component.h : component.v;
+            writer.writeByte(component.id);
+            writer.writeByte((out_h << 4) | out_v);
+            writer.writeByte(component.tq);
+        }
+
+        // huffman tables - the first component uses the luminance tables, and the others use the chrominance tables
+        HuffmanEncoder [] dc_encoders = new HuffmanEncoder[components.length];
+        HuffmanEncoder [] ac_encoders = new HuffmanEncoder[components.length];
+        for(int c=0;c<components.length;c++) {
+            dc_encoders[c] = c == 0 ? dc_luminance_encoder : dc_chrominance_encoder;
+            ac_encoders[c] = c == 0 ? ac_luminance_encoder : ac_chrominance_encoder;
+        }
+        writeStandardHuffmanTables(writer, components.length > 1);
+
+        // scan header
+        writer.writeU16(0xFFDA);
+        writer.writeU16(2 + 1 + 2*components.length + 3);
+        writer.writeByte(components.length);
+        for(int c=0;c<components.length;c++) {
+            writer.writeByte(components[c].id);
+            writer.writeByte(c == 0 ? 0x00 : 0x11);
+        }
+        writer.writeByte(0);
+        writer.writeByte(63);
+        writer.writeByte(0);
+
+        // entropy coded data
+        BitReader reader = new BitReader(entropy_data, entropy_length);
+        BitReader patch_reader = patch != null ? new BitReader(patch.entropy_data, patch.entropy_length) : null;
+        int [] coefficients = new int[64];
+        int [] out_coefficients = new int[64];
+        int [] dc_predictions = new int[components.length];
+        for(int mcu_y=0;mcu_y<out_mcus_y;mcu_y++) {
+            for(int mcu_x=0;mcu_x<out_mcus_x;mcu_x++) {
+                for(int c=0;c<components.length;c++) {
+                    Component component = components[c];
+                    int out_h = transform.transpose ? component.v : component.h;
+                    int out_v = transform.transpose ? component.h : component.v;
+                    int out_blocks_w = transform.transpose ? component.blocks_h : component.blocks_w;
+                    int out_blocks_h = transform.transpose ? component.blocks_w : component.blocks_h;
+                    for(int by=0;by<out_v;by++) {
+                        for(int bx=0;bx<out_h;bx++) {
+                            // find the source block, by undoing the flips and then the transpose
+                            int x = mcu_x*out_h + bx;
+                            int y = mcu_y*out_v + by;
+                            if( transform.flip_h )
+                                x = out_blocks_w - 1 - x;
+                            if( transform.flip_v )
+                                y = out_blocks_h - 1 - y;
+                            int source_x = transform.transpose ? y : x;
+                            int source_y = transform.transpose ? x : y;
+
+                            Arrays.fill(coefficients, 0);
+                            Component patch_component = patch != null ? patch.components[c] : null;
+                            int patch_x = source_x - patch_mcu_x*component.h;
+                            int patch_y = source_y - patch_mcu_y*component.v;
+                            if( patch_component != null && patch_x >= 0 && patch_x < patch_component.blocks_w && patch_y >= 0 && patch_y < patch_component.blocks_h ) {
+                                int block_index = patch_y*patch_component.blocks_w + patch_x;
+                                coefficients[0] = patch_component.dc_values[block_index];
+                                patch_reader.bit_position = patch_component.ac_bit_positions[block_index];
+                                decodeAC(patch_reader, patch_component.ac_table, coefficients);
+                                requantise(coefficients, patch.quant_tables[patch_component.tq], quant_tables[component.tq]);
+                            }
+                            else {
+                                int block_index = source_y*component.blocks_w + source_x;
+                                coefficients[0] = component.dc_values[block_index];
+                                reader.bit_position = component.ac_bit_positions[block_index];
+                                decodeAC(reader, component.ac_table, coefficients);
+                            }
+
+                            // n.b., the DC coefficient is unchanged by the transform
+                            for(int k=0;k<64;k++) {
+                                out_coefficients[k] = sign[k] * coefficients[source_index[k]];
+                            }
+                            encodeBlock(writer, dc_encoders[c], ac_encoders[c], out_coefficients, dc_predictions[c]);
+                            dc_predictions[c] = out_coefficients[0];
+                        }
+                    }
+                }
+            }
+            reader.checkOverrun();
+            if( patch_reader != null )
+                patch_reader.checkOverrun();
+        }
+        writer.flushBits();
+        writer.writeU16(0xFFD9);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,153 @@
+package com.jeffmony.opencamera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/** Remembers the most recent photo or video that we saved, so that MainActivity.updateGalleryIcon()
+ *  can show it without having to search MediaStore or the SAF folder (the latter being very slow
+ *  for folders with large numbers of files). The index is stored in its own preferences file, so it
+ *  persists across the application being restarted. This is kept separate from the default shared
+ *  preferences, as it's written on every save, and listeners on the default shared preferences
+ *  (see MyApplicationInterface) shouldn't be called for that. It's updated directly by ImageSaver and
+ *  MyApplicationInterface when they write a file, so it only knows about media saved by Open
+ *  Camera.
+ *  Each entry records the save folder that it was saved to, so that the entry is ignored if the
+ *  user changes the save folder.
+ */
+public class LatestMediaIndex {
+    private static final String TAG = "LatestMediaIndex";
+
+    private static final String preferences_name_c = "latest_media_index";
+
+    private final Context context;
+    private Entry entry; // cached copy of what's stored in the preferences file
+    private boolean entry_read; // whether we've read entry from the preferences file
+
+    /** An entry in the index.
+     */
+    public static class Entry {
+        public final String folder; // the save folder, see StorageUtils.getSaveFolderKey()
+        public final Uri uri; // the uri we saved to: a file uri, SAF uri or mediastore uri
+        public final Uri media_uri; // the corresponding mediastore uri, or null if not yet known
+        public final boolean video;
+        public final boolean raw;
+
+        Entry(String folder, Uri uri, Uri media_uri, boolean video, boolean raw) {
+            this.folder = folder;
+            this.uri = uri;
+            this.media_uri = media_uri;
+            this.video = video;
+            this.raw = raw;
+        }
+    }
+
+    LatestMediaIndex(Context context) {
+        this.context = context;
+        removeFromDefaultSharedPreferences();
+    }
+
+    private SharedPreferences getSharedPreferences() {
+        return context.getSharedPreferences(preferences_name_c, Context.MODE_PRIVATE);
+    }
+
+    /** Removes the index from the default shared preferences, where older versions stored it.
+     */
+    private void removeFromDefaultSharedPreferences() {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if( sharedPreferences.contains(PreferenceKeys.LatestMediaFolderPreferenceKey) || sharedPreferences.contains(PreferenceKeys.LatestMediaUriPreferenceKey) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "remove index from default shared preferences");
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            removeEntry(editor);
+            editor.apply();
+        }
+    }
+
+    /** Returns the most recent media saved to the supplied save folder, or null if we don't know
+     *  about any. Note that the media may have since been deleted.
+     */
+    synchronized Entry getEntry(String folder) {
+        if( !entry_read ) {
+            SharedPreferences sharedPreferences = getSharedPreferences();
+            String entry_folder = sharedPreferences.getString(PreferenceKeys.LatestMediaFolderPreferenceKey, null);
+            String entry_uri = sharedPreferences.getString(PreferenceKeys.LatestMediaUriPreferenceKey, null);
+            String entry_media_uri = sharedPreferences.getString(PreferenceKeys.LatestMediaMediaStoreUriPreferenceKey, null);
+            if( entry_folder != null && entry_uri != null ) {
+                entry = new Entry(entry_folder, Uri.parse(entry_uri), entry_media_uri == null ? null : Uri.parse(entry_media_uri),
+                        sharedPreferences.getBoolean(PreferenceKeys.LatestMediaVideoPreferenceKey, false),
+                        sharedPreferences.getBoolean(PreferenceKeys.LatestMediaRawPreferenceKey, false));
+            }
+            entry_read = true;
+        }
+        if( entry != null && entry.folder.equals(folder) ) {
+            return entry;
+        }
+        return null;
+    }
+
+    /** Records a newly saved photo or video.
+     * @param folder    The save folder, see StorageUtils.getSaveFolderKey().
+     * @param uri       The uri that the media was saved to.
+     * @param media_uri The mediastore uri for the media, or null if not yet known (in which case it
+     *                  can be set later with setMediaUri()).
+     */
+    synchronized void record(String folder, Uri uri, Uri media_uri, boolean video, boolean raw) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "record: " + uri + " in " + folder);
+        entry = new Entry(folder, uri, media_uri, video, raw);
+        entry_read = true;
+        write();
+    }
+
+    /** Sets the mediastore uri for the most recent media, once it's been scanned. Does nothing if
+     *  uri isn't the most recent media.
+     */
+    synchronized void setMediaUri(Uri uri, Uri media_uri) {
+        if( entry == null || !entry.uri.equals(uri) ) {
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "setMediaUri: " + media_uri);
+        entry = new Entry(entry.folder, entry.uri, media_uri, entry.video, entry.raw);
+        write();
+    }
+
+    /** Forgets the most recent media (e.g., because it's been deleted).
+     */
+    synchronized void clear() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "clear");
+        entry = null;
+        entry_read = true;
+        write();
+    }
+
+    private static void removeEntry(SharedPreferences.Editor editor) {
+        editor.remove(PreferenceKeys.LatestMediaFolderPreferenceKey);
+        editor.remove(PreferenceKeys.LatestMediaUriPreferenceKey);
+        editor.remove(PreferenceKeys.LatestMediaMediaStoreUriPreferenceKey);
+        editor.remove(PreferenceKeys.LatestMediaVideoPreferenceKey);
+        editor.remove(PreferenceKeys.LatestMediaRawPreferenceKey);
+    }
+
+    private void write() {
+        SharedPreferences.Editor editor = getSharedPreferences().edit();
+        if( entry == null ) {
+            removeEntry(editor);
+        }
+        else {
+            editor.putString(PreferenceKeys.LatestMediaFolderPreferenceKey, entry.folder);
+            editor.putString(PreferenceKeys.LatestMediaUriPreferenceKey, entry.uri.toString());
+            if( entry.media_uri == null )
+                editor.remove(PreferenceKeys.LatestMediaMediaStoreUriPreferenceKey);
+            else
+                editor.putString(PreferenceKeys.LatestMediaMediaStoreUriPreferenceKey, entry.media_uri.toString());
+            editor.putBoolean(PreferenceKeys.LatestMediaVideoPreferenceKey, entry.video);
+            editor.putBoolean(PreferenceKeys.LatestMediaRawPreferenceKey, entry.raw);
+        }
+        editor.apply();
+    }
+}
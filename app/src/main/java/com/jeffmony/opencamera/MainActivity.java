@@ -140,6 +140,7 @@ public class MainActivity extends AppCompatActivity {
     private ValueAnimator gallery_save_anim;
     private boolean last_continuous_fast_burst; // whether the last photo operation was a continuous_fast_burst
     private Future<?> update_gallery_future;
+    private final ExecutorService update_gallery_executor = Executors.newSingleThreadExecutor(); // reused for each updateGalleryIcon() task
 
     private TextToSpeech textToSpeech;
     private boolean textToSpeechSuccess;
@@ -1209,6 +1210,8 @@ public class MainActivity extends AppCompatActivity {
         // we stop location listening in onPause, but done here again just to be certain!
         applicationInterface.getLocationSupplier().freeLocationListeners();
 
+        update_gallery_executor.shutdownNow();
+
         super.onDestroy();
         if( MyDebug.LOG )
             Log.d(TAG, "onDestroy done");
@@ -1450,30 +1453,10 @@ public class MainActivity extends AppCompatActivity {
         else {
             if( MyDebug.LOG )
                 Log.d(TAG, "last media has no exif datetime, so check it still exists");
-            boolean uri_exists = false;
-            InputStream inputStream = null;
             Uri check_uri = getStorageUtils().getLastMediaScannedCheckUri();
             if( MyDebug.LOG )
                 Log.d(TAG, "check_uri: " + check_uri);
-            try {
-                inputStream = this.getContentResolver().openInputStream(check_uri);
-                if( inputStream != null )
-                    uri_exists = true;
-            }
-            catch(Exception ignored) {
-            }
-            finally {
-                if( inputStream != null ) {
-                    try {
-                        inputStream.close();
-                    }
-                    catch(IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-            if( uri_exists ) {
+            if( uriExists(check_uri) ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "    most recent uri exists");
                 // also re-allow ghost image again in case that option is set (since we won't be
@@ -1652,6 +1635,17 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onTrimMemory: " + level);
+        super.onTrimMemory(level);
+        if( applicationInterface != null ) {
+            applicationInterface.getImageSaver().onTrimMemory(level);
+            applicationInterface.getStorageUtils().getThumbnailCache().trimMemory(level);
+        }
+    }
+
     @Override
     public void onConfigurationChanged(@NonNull Configuration newConfig) {
         if( MyDebug.LOG )
@@ -2872,6 +2866,10 @@ public class MainActivity extends AppCompatActivity {
 		if( MyDebug.LOG )
 			Log.d(TAG, "saved_focus_value: " + saved_focus_value);*/
 
+        // in case the preferences were changed from a thread other than the UI thread, in which case
+        // the settings snapshot may not have been rebuilt yet
+        applicationInterface.updateSettingsSnapshot();
+
         if( MyDebug.LOG )
             Log.d(TAG, "update folder history");
         save_location_history.updateFolderHistory(getStorageUtils().getSaveLocation(), true); // this also updates the last icon for ghost image, if that pref has changed
@@ -3682,6 +3680,12 @@ public class MainActivity extends AppCompatActivity {
                 inputStream.close();
         }
 
+        return rotateForExif(bitmap, exif);
+    }
+
+    /** As rotateForExif(Bitmap, Uri), but for when we've already read the Exif tags.
+     */
+    private static Bitmap rotateForExif(Bitmap bitmap, ExifInterface exif) {
         if( exif != null ) {
             int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
             boolean needs_tf = false;
@@ -3839,8 +3843,67 @@ public class MainActivity extends AppCompatActivity {
         gallery_bitmap = thumbnail;
     }
 
+    /** Returns whether the uri can still be opened (e.g., it's not been deleted).
+     */
+    private boolean uriExists(Uri uri) {
+        boolean uri_exists = false;
+        InputStream inputStream = null;
+        try {
+            inputStream = this.getContentResolver().openInputStream(uri);
+            if( inputStream != null )
+                uri_exists = true;
+        }
+        catch(Exception ignored) {
+        }
+        finally {
+            if( inputStream != null ) {
+                try {
+                    inputStream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return uri_exists;
+    }
+
+    /** Returns the thumbnail embedded in the Exif tags of the supplied image (JPEG or DNG), rotated
+     *  for the Exif orientation, or null if there isn't one. This is much faster than decoding the
+     *  image.
+     */
+    private Bitmap loadExifThumbnail(Uri uri) {
+        Bitmap thumbnail = null;
+        InputStream inputStream = null;
+        try {
+            inputStream = this.getContentResolver().openInputStream(uri);
+            ExifInterface exif = new ExifInterface(inputStream);
+            thumbnail = exif.getThumbnailBitmap();
+            if( thumbnail != null ) {
+                thumbnail = rotateForExif(thumbnail, exif);
+            }
+        }
+        catch(IOException | RuntimeException e) {
+            Log.e(TAG, "failed to load exif thumbnail");
+            e.printStackTrace();
+        }
+        finally {
+            if( inputStream != null ) {
+                try {
+                    inputStream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return thumbnail;
+    }
+
     /** Updates the gallery icon by searching for the most recent photo.
-     *  Launches the task in a separate thread.
+     *  If StorageUtils knows the most recent media that we saved (see LatestMediaIndex), we use
+     *  that along with its cached thumbnail, rather than searching. Otherwise this launches the
+     *  task in a separate thread.
      */
     public void updateGalleryIcon() {
         long debug_time = 0;
@@ -3856,6 +3919,32 @@ public class MainActivity extends AppCompatActivity {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         String ghost_image_pref = sharedPreferences.getString(PreferenceKeys.GhostImagePreferenceKey, "preference_ghost_image_off");
         final boolean ghost_image_last = ghost_image_pref.equals("preference_ghost_image_last");
+        KeyguardManager keyguard_manager = (KeyguardManager)this.getSystemService(Context.KEYGUARD_SERVICE);
+        final boolean is_locked = keyguard_manager != null && keyguard_manager.inKeyguardRestrictedInputMode();
+        if( MyDebug.LOG )
+            Log.d(TAG, "is_locked?: " + is_locked);
+
+        final StorageUtils storageUtils = applicationInterface.getStorageUtils();
+        final LatestMediaIndex.Entry indexed_media = is_locked ? null : storageUtils.getIndexedLatestMedia();
+        boolean shown_indexed_media = false;
+        if( indexed_media != null && !( ghost_image_last && !indexed_media.video ) ) {
+            // if the thumbnail is in the memory cache, we can show it straight away, and only need to
+            // check in the background that the media still exists
+            // (for ghost image last, we need the full size image, so have to load that in the background)
+            Bitmap thumbnail = storageUtils.getThumbnailCache().getFromMemory(indexed_media.uri.toString());
+            if( thumbnail != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "show cached thumbnail for: " + indexed_media.uri);
+                if( indexed_media.media_uri != null ) {
+                    storageUtils.clearLastMediaScanned();
+                    storageUtils.setLastMediaScanned(indexed_media.media_uri, indexed_media.raw, false, null);
+                }
+                updateGalleryIcon(thumbnail);
+                applicationInterface.getDrawPreview().updateThumbnail(thumbnail, indexed_media.video, false); // needed in case last ghost image is enabled
+                shown_indexed_media = true;
+            }
+        }
+        final boolean shown_indexed_media_f = shown_indexed_media;
 
         final Handler handler = new Handler(Looper.getMainLooper());
 
@@ -3865,19 +3954,62 @@ public class MainActivity extends AppCompatActivity {
             private Uri uri;
             private boolean is_raw;
             private boolean is_video;
+            private boolean unchanged; // whether we've already shown the correct thumbnail
+            private boolean from_index; // whether we found the media from indexed_media
+            private Uri record_uri; // if non-null, the media we found should be recorded in the latest media index
 
             @Override
             //protected Bitmap doInBackground(Void... params) {
             public void run() {
                 if( MyDebug.LOG )
                     Log.d(TAG, "doInBackground");
-                StorageUtils.Media media = applicationInterface.getStorageUtils().getLatestMedia();
+                if( indexed_media != null && getContentResolver() != null ) {
+                    if( uriExists(indexed_media.uri) ) {
+                        if( shown_indexed_media_f ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "cached thumbnail is still valid");
+                            unchanged = true;
+                            postResult(null);
+                            return;
+                        }
+                        Bitmap thumbnail = null;
+                        if( ghost_image_last && !indexed_media.video ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "load full size bitmap for ghost image last photo");
+                            thumbnail = loadThumbnailFromUri(indexed_media.uri, 1, true);
+                        }
+                        if( thumbnail == null ) {
+                            thumbnail = storageUtils.getThumbnailCache().get(indexed_media.uri.toString());
+                        }
+                        if( thumbnail == null && !indexed_media.video ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "load exif thumbnail");
+                            thumbnail = loadExifThumbnail(indexed_media.uri);
+                            if( thumbnail != null ) {
+                                storageUtils.getThumbnailCache().put(indexed_media.uri.toString(), thumbnail);
+                            }
+                        }
+                        if( thumbnail != null ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "found thumbnail for indexed media: " + indexed_media.uri);
+                            uri = indexed_media.media_uri;
+                            is_raw = indexed_media.raw;
+                            is_video = indexed_media.video;
+                            from_index = true;
+                            postResult(thumbnail);
+                            return;
+                        }
+                    }
+                    else {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "indexed media no longer exists: " + indexed_media.uri);
+                    }
+                }
+
+                // search for the latest media
+                StorageUtils.Media media = storageUtils.getLatestMedia();
                 Bitmap thumbnail = null;
                 boolean rotate_for_orientation = true; // whether we should apply the media.orientation rotation
-                KeyguardManager keyguard_manager = (KeyguardManager)MainActivity.this.getSystemService(Context.KEYGUARD_SERVICE);
-                boolean is_locked = keyguard_manager != null && keyguard_manager.inKeyguardRestrictedInputMode();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "is_locked?: " + is_locked);
                 if( media != null && getContentResolver() != null && !is_locked ) {
                     // check for getContentResolver() != null, as have had reported Google Play crashes
 
@@ -3976,14 +4108,22 @@ public class MainActivity extends AppCompatActivity {
                             }
                         }
                     }
+                    if( thumbnail != null && media.uri != null ) {
+                        // so we don't need to search next time
+                        storageUtils.getThumbnailCache().put(media.uri.toString(), thumbnail);
+                        record_uri = media.uri;
+                    }
                 }
                 //return thumbnail;
 
-                final Bitmap thumbnail_f = thumbnail;
+                postResult(thumbnail);
+            }
+
+            private void postResult(final Bitmap thumbnail) {
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        onPostExecute(thumbnail_f);
+                        onPostExecute(thumbnail);
                     }
                 });
             }
@@ -3999,14 +4139,29 @@ public class MainActivity extends AppCompatActivity {
                     update_gallery_future = null;
                     return;
                 }
+                if( unchanged ) {
+                    update_gallery_future = null;
+                    return;
+                }
                 // since we're now setting the thumbnail to the latest media on disk, we need to make sure clicking the Gallery goes to this
-                applicationInterface.getStorageUtils().clearLastMediaScanned();
+                // (but if we found indexed media whose mediastore uri isn't yet known, keep the existing uri)
+                if( !from_index || uri != null ) {
+                    storageUtils.clearLastMediaScanned();
+                }
                 if( uri != null ) {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "found media uri: " + uri);
                         Log.d(TAG, "    is_raw?: " + is_raw);
                     }
-                    applicationInterface.getStorageUtils().setLastMediaScanned(uri, is_raw, false, null);
+                    storageUtils.setLastMediaScanned(uri, is_raw, false, null);
+                }
+                if( record_uri != null ) {
+                    // done here rather than in the background, so we can't overwrite media that's been saved since
+                    storageUtils.recordLatestMedia(record_uri, uri, is_video, is_raw);
+                }
+                else if( !from_index && indexed_media != null && storageUtils.getIndexedLatestMedia() == indexed_media ) {
+                    // the indexed media no longer exists, and we didn't find anything to replace it
+                    storageUtils.clearIndexedLatestMedia();
                 }
                 if( thumbnail != null ) {
                     if( MyDebug.LOG )
@@ -4025,9 +4180,8 @@ public class MainActivity extends AppCompatActivity {
         //}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         };
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        //executor.execute(runnable);
-        update_gallery_future = executor.submit(runnable);
+        //update_gallery_executor.execute(runnable);
+        update_gallery_future = update_gallery_executor.submit(runnable);
 
         if( MyDebug.LOG )
             Log.d(TAG, "updateGalleryIcon: total time to update gallery icon: " + (System.currentTimeMillis() - debug_time));
@@ -0,0 +1,98 @@
+package com.jeffmony.opencamera;
+
+import android.util.Log;
+
+/** Tracks a budget of bytes that may be held at once, e.g. by the ImageSaver queue. Callers
+ *  acquire() the number of bytes they need before holding the data, blocking if the budget is
+ *  exhausted, and release() them once the data is no longer referenced.
+ */
+public class MemoryBudget {
+    private static final String TAG = "MemoryBudget";
+
+    private final long capacity;
+    // the following should be synchronized to this
+    private long used;
+    private long peak_used;
+    private int n_holders; // number of acquire() calls that haven't yet been released
+
+    public MemoryBudget(long capacity) {
+        if( capacity <= 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /** Returns the largest value of getUsed() seen so far.
+     */
+    public synchronized long getPeakUsed() {
+        return peak_used;
+    }
+
+    public synchronized long getAvailable() {
+        return Math.max(0, capacity - used);
+    }
+
+    /** Whether a call to acquire() for this many bytes would block.
+     *  Note that if nothing is currently held, acquire() never blocks, even if bytes exceeds the
+     *  capacity - otherwise a single large request could never be admitted.
+     */
+    public synchronized boolean wouldBlock(long bytes) {
+        return n_holders > 0 && used + bytes > capacity;
+    }
+
+    /** Reserves the requested number of bytes, blocking until enough of the budget is available.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if( bytes < 0 ) {
+            throw new RuntimeException("negative bytes: " + bytes);
+        }
+        while( wouldBlock(bytes) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "waiting for " + bytes + " bytes, used " + used + " of " + capacity);
+            wait();
+        }
+        used += bytes;
+        n_holders++;
+        peak_used = Math.max(peak_used, used);
+        if( MyDebug.LOG )
+            Log.d(TAG, "acquired " + bytes + " bytes, used is now " + used + " of " + capacity);
+    }
+
+    /** Adds bytes to a reservation already made with acquire(), without blocking: the holder has
+     *  already been admitted, so waiting could deadlock if the bytes it holds are what's needed to
+     *  be released. The total should then be passed to release().
+     */
+    public synchronized void grow(long bytes) {
+        if( n_holders == 0 || bytes < 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("can't grow by " + bytes + " bytes, holders: " + n_holders);
+        }
+        used += bytes;
+        peak_used = Math.max(peak_used, used);
+        if( MyDebug.LOG )
+            Log.d(TAG, "grew by " + bytes + " bytes, used is now " + used + " of " + capacity);
+    }
+
+    /** Releases bytes previously reserved with acquire() (and grow()).
+     */
+    public synchronized void release(long bytes) {
+        if( n_holders == 0 || bytes > used ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("released more than was acquired: " + bytes + " used " + used);
+        }
+        used -= bytes;
+        n_holders--;
+        if( MyDebug.LOG )
+            Log.d(TAG, "released " + bytes + " bytes, used is now " + used + " of " + capacity);
+        notifyAll();
+    }
+}
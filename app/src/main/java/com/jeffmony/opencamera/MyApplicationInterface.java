@@ -13,6 +13,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
 import com.jeffmony.opencamera.cameracontroller.RawImage;
 import com.jeffmony.opencamera.preview.ApplicationInterface;
 import com.jeffmony.opencamera.preview.BasicApplicationInterface;
@@ -28,7 +29,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 //import android.location.Address; // don't use until we have info for data privacy!
@@ -106,6 +106,18 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     // store to avoid calling PreferenceManager.getDefaultSharedPreferences() repeatedly
     private final SharedPreferences sharedPreferences;
+    // parsed copy of the preferences read per photo or per frame, replaced whenever the preferences change
+    private volatile SettingsSnapshot settings;
+    // n.b., must keep a reference to the listener, as SharedPreferences only stores a weak reference
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // rebuilding the snapshot reads and parses all of its preferences, so ignore keys that it doesn't read
+            if( SettingsSnapshot.usesKey(key) ) {
+                updateSettingsSnapshot();
+            }
+        }
+    };
 
     private enum LastImagesType {
         FILE,
@@ -169,6 +181,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         this.main_activity = main_activity;
         this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(main_activity);
+        this.settings = new SettingsSnapshot(sharedPreferences);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(settingsListener);
         this.locationSupplier = new LocationSupplier(main_activity);
         if( MyDebug.LOG )
             Log.d(TAG, "MyApplicationInterface: time after creating location supplier: " + (System.currentTimeMillis() - debug_time));
@@ -223,6 +237,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     void onDestroy() {
         if( MyDebug.LOG )
             Log.d(TAG, "onDestroy");
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(settingsListener);
         if( drawPreview != null ) {
             drawPreview.onDestroy();
         }
@@ -231,6 +246,23 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
     }
 
+    /** Rebuilds the settings snapshot from the shared preferences. This is called automatically
+     *  when the preferences change, but note that changes made from a thread other than the UI
+     *  thread are only applied once the UI thread gets round to it - so callers that change
+     *  preferences from another thread and immediately need the new values should call this.
+     */
+    public void updateSettingsSnapshot() {
+        settings = new SettingsSnapshot(sharedPreferences);
+    }
+
+    /** Returns the current settings snapshot. This is cheap to call, and can be called from any
+     *  thread. Callers that read multiple fields should hold on to the returned snapshot, so that
+     *  they see a consistent set of values.
+     */
+    public SettingsSnapshot getSettings() {
+        return settings;
+    }
+
     LocationSupplier getLocationSupplier() {
         return locationSupplier;
     }
@@ -479,7 +511,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     @Override
     public String getISOPref() {
-        return sharedPreferences.getString(PreferenceKeys.ISOPreferenceKey, CameraController.ISO_DEFAULT);
+        return settings.iso;
     }
 
     @Override
@@ -607,16 +639,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     private int getSaveImageQualityPref() {
         if( MyDebug.LOG )
             Log.d(TAG, "getSaveImageQualityPref");
-        String image_quality_s = sharedPreferences.getString(PreferenceKeys.QualityPreferenceKey, "90");
-        int image_quality;
-        try {
-            image_quality = Integer.parseInt(image_quality_s);
-        }
-        catch(NumberFormatException exception) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "image_quality_s invalid format: " + image_quality_s);
-            image_quality = 90;
-        }
+        int image_quality = settings.image_quality;
         if( isRawOnly() ) {
             // if raw only mode, we can set a lower quality for the JPEG, as it isn't going to be saved - only used for
             // the thumbnail and pause preview option
@@ -656,7 +679,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             // not supported for camera extensions
             return false;
         }
-        return sharedPreferences.getBoolean(PreferenceKeys.FaceDetectionPreferenceKey, false);
+        return settings.face_detection;
     }
 
     /** Returns whether the current fps preference is one that requires a "high speed" video size/
@@ -1112,14 +1135,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     @Override
     public boolean getTouchCapturePref() {
-        String value = sharedPreferences.getString(PreferenceKeys.TouchCapturePreferenceKey, "none");
-        return value.equals("single");
+        return settings.touch_capture;
     }
 
     @Override
     public boolean getDoubleTapCapturePref() {
-        String value = sharedPreferences.getString(PreferenceKeys.TouchCapturePreferenceKey, "none");
-        return value.equals("double");
+        return settings.double_tap_capture;
     }
 
     @Override
@@ -1139,23 +1160,23 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             // don't pause preview when taking photos for panorama mode
             return false;
         }
-        return sharedPreferences.getBoolean(PreferenceKeys.PausePreviewPreferenceKey, false);
+        return settings.pause_preview;
     }
 
     @Override
     public boolean getShowToastsPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.ShowToastsPreferenceKey, true);
+        return settings.show_toasts;
     }
 
     public boolean getThumbnailAnimationPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.ThumbnailAnimationPreferenceKey, true);
+        return settings.thumbnail_animation;
     }
 
     @Override
     public boolean getShutterSoundPref() {
         if( getPhotoMode() == PhotoMode.Panorama )
             return false;
-        return sharedPreferences.getBoolean(PreferenceKeys.ShutterSoundPreferenceKey, true);
+        return settings.shutter_sound;
     }
 
     @Override
@@ -1167,69 +1188,33 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     public long getTimerPref() {
         if( getPhotoMode() == MyApplicationInterface.PhotoMode.Panorama )
             return 0; // don't support timer with panorama
-        String timer_value = sharedPreferences.getString(PreferenceKeys.TimerPreferenceKey, "0");
-        long timer_delay;
-        try {
-            timer_delay = (long)Integer.parseInt(timer_value) * 1000;
-        }
-        catch(NumberFormatException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "failed to parse preference_timer value: " + timer_value);
-            e.printStackTrace();
-            timer_delay = 0;
-        }
-        return timer_delay;
+        return settings.timer_delay;
     }
 
     @Override
     public String getRepeatPref() {
         if( getPhotoMode() == MyApplicationInterface.PhotoMode.Panorama )
             return "1"; // don't support repeat with panorama
-        return sharedPreferences.getString(PreferenceKeys.RepeatModePreferenceKey, "1");
+        return settings.repeat_mode;
     }
 
     @Override
     public long getRepeatIntervalPref() {
-        String timer_value = sharedPreferences.getString(PreferenceKeys.RepeatIntervalPreferenceKey, "0");
-        long timer_delay;
-        try {
-            float timer_delay_s = Float.parseFloat(timer_value);
-            if( MyDebug.LOG )
-                Log.d(TAG, "timer_delay_s: " + timer_delay_s);
-            timer_delay = (long)(timer_delay_s * 1000);
-        }
-        catch(NumberFormatException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "failed to parse repeat interval value: " + timer_value);
-            e.printStackTrace();
-            timer_delay = 0;
-        }
-        return timer_delay;
-    }
-
-    private ImageSaver.Request.RemoveDeviceExif getRemoveDeviceExifPref() {
-        switch( sharedPreferences.getString(PreferenceKeys.RemoveDeviceExifPreferenceKey, "preference_remove_device_exif_off") ) {
-            case "preference_remove_device_exif_on":
-                return ImageSaver.Request.RemoveDeviceExif.ON;
-            case "preference_remove_device_exif_keep_datetime":
-                return ImageSaver.Request.RemoveDeviceExif.KEEP_DATETIME;
-            default:
-                return ImageSaver.Request.RemoveDeviceExif.OFF;
-        }
+        return settings.repeat_interval;
     }
 
     @Override
     public boolean getGeotaggingPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.LocationPreferenceKey, false);
+        return settings.geotagging;
     }
 
     @Override
     public boolean getRequireLocationPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.RequireLocationPreferenceKey, false);
+        return settings.require_location;
     }
 
     boolean getGeodirectionPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.GPSDirectionPreferenceKey, false);
+        return settings.geodirection;
     }
 
     @Override
@@ -1248,72 +1233,26 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     public boolean getAutoStabilisePref() {
-        boolean auto_stabilise = sharedPreferences.getBoolean(PreferenceKeys.AutoStabilisePreferenceKey, false);
-        return auto_stabilise && main_activity.supportsAutoStabilise();
+        return settings.auto_stabilise && main_activity.supportsAutoStabilise();
     }
 
     /** Returns the alpha value to use for ghost image, as a number from 0 to 255.
      *  Note that we store the preference as a percentage from 0 to 100, but scale this to 0 to 255.
      */
     public int getGhostImageAlpha() {
-        String ghost_image_alpha_value = sharedPreferences.getString(PreferenceKeys.GhostImageAlphaPreferenceKey, "50");
-        int ghost_image_alpha;
-        try {
-            ghost_image_alpha = Integer.parseInt(ghost_image_alpha_value);
-        }
-        catch(NumberFormatException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "failed to parse ghost_image_alpha_value: " + ghost_image_alpha_value);
-            e.printStackTrace();
-            ghost_image_alpha = 50;
-        }
-        ghost_image_alpha = (int)(ghost_image_alpha*2.55f+0.1f);
-        return ghost_image_alpha;
+        return settings.ghost_image_alpha;
     }
 
     public String getStampPref() {
-        return sharedPreferences.getString(PreferenceKeys.StampPreferenceKey, "preference_stamp_no");
-    }
-
-    private String getStampDateFormatPref() {
-        return sharedPreferences.getString(PreferenceKeys.StampDateFormatPreferenceKey, "preference_stamp_dateformat_default");
-    }
-
-    private String getStampTimeFormatPref() {
-        return sharedPreferences.getString(PreferenceKeys.StampTimeFormatPreferenceKey, "preference_stamp_timeformat_default");
-    }
-
-    private String getStampGPSFormatPref() {
-        return sharedPreferences.getString(PreferenceKeys.StampGPSFormatPreferenceKey, "preference_stamp_gpsformat_default");
+        return settings.stamp;
     }
 
     /*private String getStampGeoAddressPref() {
         return sharedPreferences.getString(PreferenceKeys.StampGeoAddressPreferenceKey, "preference_stamp_geo_address_no");
     }*/
 
-    private String getUnitsDistancePref() {
-        return sharedPreferences.getString(PreferenceKeys.UnitsDistancePreferenceKey, "preference_units_distance_m");
-    }
-
     public String getTextStampPref() {
-        return sharedPreferences.getString(PreferenceKeys.TextStampPreferenceKey, "");
-    }
-
-    private int getTextStampFontSizePref() {
-        int font_size = 12;
-        String value = sharedPreferences.getString(PreferenceKeys.StampFontSizePreferenceKey, "12");
-        if( MyDebug.LOG )
-            Log.d(TAG, "saved font size: " + value);
-        try {
-            font_size = Integer.parseInt(value);
-            if( MyDebug.LOG )
-                Log.d(TAG, "font_size: " + font_size);
-        }
-        catch(NumberFormatException exception) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "font size invalid format, can't parse to int");
-        }
-        return font_size;
+        return settings.text_stamp;
     }
 
     /** Whether the Mediastore API supports saving subtitle files.
@@ -1390,14 +1329,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
-        if( imageSaver.queueWouldBlock(photo_cost) ) {
+        if( imageSaver.queueWouldBlock(n_raw, n_jpegs) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
             return false;
         }
 
         // even if the queue isn't full, we may apply additional limits
+        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         int n_images_to_save = imageSaver.getNImagesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama ) {
@@ -1515,18 +1454,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     public int getBurstNImages() {
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst ) {
-            String n_images_value = sharedPreferences.getString(PreferenceKeys.FastBurstNImagesPreferenceKey, "5");
-            int n_images;
-            try {
-                n_images = Integer.parseInt(n_images_value);
-            }
-            catch(NumberFormatException e) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to parse FastBurstNImagesPreferenceKey value: " + n_images_value);
-                e.printStackTrace();
-                n_images = 5;
-            }
-            return n_images;
+            return settings.fast_burst_n_images;
         }
         return 1;
     }
@@ -1607,15 +1535,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             n_images = 3;
         }
         else {
-            String n_images_s = sharedPreferences.getString(PreferenceKeys.ExpoBracketingNImagesPreferenceKey, "3");
-            try {
-                n_images = Integer.parseInt(n_images_s);
-            }
-            catch(NumberFormatException exception) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "n_images_s invalid format: " + n_images_s);
-                n_images = 3;
-            }
+            n_images = settings.expo_bracketing_n_images;
         }
         if( MyDebug.LOG )
             Log.d(TAG, "n_images = " + n_images);
@@ -1633,15 +1553,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             n_stops = 2.0;
         }
         else {
-            String n_stops_s = sharedPreferences.getString(PreferenceKeys.ExpoBracketingStopsPreferenceKey, "2");
-            try {
-                n_stops = Double.parseDouble(n_stops_s);
-            }
-            catch(NumberFormatException exception) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "n_stops_s invalid format: " + n_stops_s);
-                n_stops = 2.0;
-            }
+            n_stops = settings.expo_bracketing_stops;
         }
         if( MyDebug.LOG )
             Log.d(TAG, "n_stops = " + n_stops);
@@ -1652,16 +1564,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     public int getFocusBracketingNImagesPref() {
         if( MyDebug.LOG )
             Log.d(TAG, "getFocusBracketingNImagesPref");
-        int n_images;
-        String n_images_s = sharedPreferences.getString(PreferenceKeys.FocusBracketingNImagesPreferenceKey, "3");
-        try {
-            n_images = Integer.parseInt(n_images_s);
-        }
-        catch(NumberFormatException exception) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "n_images_s invalid format: " + n_images_s);
-            n_images = 3;
-        }
+        int n_images = settings.focus_bracketing_n_images;
         if( MyDebug.LOG )
             Log.d(TAG, "n_images = " + n_images);
         return n_images;
@@ -1669,7 +1572,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     @Override
     public boolean getFocusBracketingAddInfinityPref() {
-        return sharedPreferences.getBoolean(PreferenceKeys.FocusBracketingAddInfinityPreferenceKey, false);
+        return settings.focus_bracketing_add_infinity;
     }
 
     /** Returns the current photo mode.
@@ -1678,57 +1581,64 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      *  the CameraController is set up, and we don't always re-setup the camera when switching between photo and video modes.
      */
     public PhotoMode getPhotoMode() {
-        String photo_mode_pref = sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std");
+        PhotoMode photo_mode_pref = settings.photo_mode;
 		/*if( MyDebug.LOG )
 			Log.d(TAG, "photo_mode_pref: " + photo_mode_pref);*/
-        boolean dro = photo_mode_pref.equals("preference_photo_mode_dro");
-        if( dro && main_activity.supportsDRO() )
-            return PhotoMode.DRO;
-        boolean hdr = photo_mode_pref.equals("preference_photo_mode_hdr");
-        if( hdr && main_activity.supportsHDR() )
-            return PhotoMode.HDR;
-        boolean expo_bracketing = photo_mode_pref.equals("preference_photo_mode_expo_bracketing");
-        if( expo_bracketing && main_activity.supportsExpoBracketing() )
-            return PhotoMode.ExpoBracketing;
-        boolean focus_bracketing = photo_mode_pref.equals("preference_photo_mode_focus_bracketing");
-        if( focus_bracketing && main_activity.supportsFocusBracketing() )
-            return PhotoMode.FocusBracketing;
-        boolean fast_burst = photo_mode_pref.equals("preference_photo_mode_fast_burst");
-        if( fast_burst && main_activity.supportsFastBurst() )
-            return PhotoMode.FastBurst;
-        boolean noise_reduction = photo_mode_pref.equals("preference_photo_mode_noise_reduction");
-        if( noise_reduction && main_activity.supportsNoiseReduction() )
-            return PhotoMode.NoiseReduction;
-        boolean panorama = photo_mode_pref.equals("preference_photo_mode_panorama");
-        if( panorama && !main_activity.getPreview().isVideo() && main_activity.supportsPanorama() )
-            return PhotoMode.Panorama;
-        boolean x_auto = photo_mode_pref.equals("preference_photo_mode_x_auto");
-        if( x_auto && !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_AUTOMATIC) )
-            return PhotoMode.X_Auto;
-        boolean x_hdr = photo_mode_pref.equals("preference_photo_mode_x_hdr");
-        if( x_hdr && !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_HDR) )
-            return PhotoMode.X_HDR;
-        boolean x_night = photo_mode_pref.equals("preference_photo_mode_x_night");
-        if( x_night && !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_NIGHT) )
-            return PhotoMode.X_Night;
-        boolean x_bokeh = photo_mode_pref.equals("preference_photo_mode_x_bokeh");
-        if( x_bokeh && !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_BOKEH) )
-            return PhotoMode.X_Bokeh;
-        boolean x_beauty = photo_mode_pref.equals("preference_photo_mode_x_beauty");
-        if( x_beauty && !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_BEAUTY) )
-            return PhotoMode.X_Beauty;
+        switch( photo_mode_pref ) {
+            case DRO:
+                if( main_activity.supportsDRO() )
+                    return photo_mode_pref;
+                break;
+            case HDR:
+                if( main_activity.supportsHDR() )
+                    return photo_mode_pref;
+                break;
+            case ExpoBracketing:
+                if( main_activity.supportsExpoBracketing() )
+                    return photo_mode_pref;
+                break;
+            case FocusBracketing:
+                if( main_activity.supportsFocusBracketing() )
+                    return photo_mode_pref;
+                break;
+            case FastBurst:
+                if( main_activity.supportsFastBurst() )
+                    return photo_mode_pref;
+                break;
+            case NoiseReduction:
+                if( main_activity.supportsNoiseReduction() )
+                    return photo_mode_pref;
+                break;
+            case Panorama:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsPanorama() )
+                    return photo_mode_pref;
+                break;
+            case X_Auto:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_AUTOMATIC) )
+                    return photo_mode_pref;
+                break;
+            case X_HDR:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_HDR) )
+                    return photo_mode_pref;
+                break;
+            case X_Night:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_NIGHT) )
+                    return photo_mode_pref;
+                break;
+            case X_Bokeh:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_BOKEH) )
+                    return photo_mode_pref;
+                break;
+            case X_Beauty:
+                if( !main_activity.getPreview().isVideo() && main_activity.supportsCameraExtension(CameraExtensionCharacteristics.EXTENSION_BEAUTY) )
+                    return photo_mode_pref;
+                break;
+        }
         return PhotoMode.Standard;
     }
 
     private ImageSaver.Request.ImageFormat getImageFormatPref() {
-        switch( sharedPreferences.getString(PreferenceKeys.ImageFormatPreferenceKey, "preference_image_format_jpeg") ) {
-            case "preference_image_format_webp":
-                return ImageSaver.Request.ImageFormat.WEBP;
-            case "preference_image_format_png":
-                return ImageSaver.Request.ImageFormat.PNG;
-            default:
-                return ImageSaver.Request.ImageFormat.STD;
-        }
+        return settings.image_format;
     }
 
     /** Returns whether RAW is currently allowed, even if RAW is enabled in the preference (RAW
@@ -1745,17 +1655,18 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             return true;
         }
         else if( photo_mode == PhotoMode.ExpoBracketing ) {
-            return sharedPreferences.getBoolean(PreferenceKeys.AllowRawForExpoBracketingPreferenceKey, true) &&
+            return settings.allow_raw_for_expo_bracketing &&
                     main_activity.supportsBurstRaw();
         }
         else if( photo_mode == PhotoMode.HDR ) {
             // for HDR, RAW is only relevant if we're going to be saving the base expo images (otherwise there's nothing to save)
-            return sharedPreferences.getBoolean(PreferenceKeys.HDRSaveExpoPreferenceKey, false) &&
-                    sharedPreferences.getBoolean(PreferenceKeys.AllowRawForExpoBracketingPreferenceKey, true) &&
+            SettingsSnapshot settings = this.settings;
+            return settings.hdr_save_expo &&
+                    settings.allow_raw_for_expo_bracketing &&
                     main_activity.supportsBurstRaw();
         }
         else if( photo_mode == PhotoMode.FocusBracketing ) {
-            return sharedPreferences.getBoolean(PreferenceKeys.AllowRawForFocusBracketingPreferenceKey, true) &&
+            return settings.allow_raw_for_focus_bracketing &&
                     main_activity.supportsBurstRaw();
         }
         // not supported for panorama mode
@@ -1771,12 +1682,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     @Override
     public RawPref getRawPref() {
         PhotoMode photo_mode = getPhotoMode();
-        if( isRawAllowed(photo_mode) ) {
-            switch( sharedPreferences.getString(PreferenceKeys.RawPreferenceKey, "preference_raw_no") ) {
-                case "preference_raw_yes":
-                case "preference_raw_only":
-                    return RawPref.RAWPREF_JPEG_DNG;
-            }
+        if( isRawAllowed(photo_mode) && settings.raw ) {
+            return RawPref.RAWPREF_JPEG_DNG;
         }
         return RawPref.RAWPREF_JPEG_ONLY;
     }
@@ -1792,14 +1699,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      *  without causing an infinite loop!
      */
     boolean isRawOnly(PhotoMode photo_mode) {
-        if( isRawAllowed(photo_mode) ) {
-            //noinspection SwitchStatementWithTooFewBranches
-            switch( sharedPreferences.getString(PreferenceKeys.RawPreferenceKey, "preference_raw_no") ) {
-                case "preference_raw_only":
-                    return true;
-            }
-        }
-        return false;
+        return isRawAllowed(photo_mode) && settings.raw_only;
     }
 
     @Override
@@ -1809,17 +1709,17 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     @Override
     public boolean useCamera2FakeFlash() {
-        return sharedPreferences.getBoolean(PreferenceKeys.Camera2FakeFlashPreferenceKey, false);
+        return settings.camera2_fake_flash;
     }
 
     @Override
     public boolean useCamera2DummyCaptureHack() {
-        return sharedPreferences.getBoolean(PreferenceKeys.Camera2DummyCaptureHackPreferenceKey, false);
+        return settings.camera2_dummy_capture_hack;
     }
 
     @Override
     public boolean useCamera2FastBurst() {
-        return sharedPreferences.getBoolean(PreferenceKeys.Camera2FastBurstPreferenceKey, true);
+        return settings.camera2_fast_burst;
     }
 
     @Override
@@ -1827,7 +1727,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         // we only show the preference for Camera2 API (since there's no point disabling the feature for old API)
         if( !useCamera2() )
             return true;
-        return sharedPreferences.getBoolean(PreferenceKeys.Camera2PhotoVideoRecordingPreferenceKey, true);
+        return settings.camera2_photo_video_recording;
     }
 
     @Override
@@ -2036,13 +1936,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     private void startVideoSubtitlesTask(final VideoMethod video_method) {
-        final String preference_stamp_dateformat = this.getStampDateFormatPref();
-        final String preference_stamp_timeformat = this.getStampTimeFormatPref();
-        final String preference_stamp_gpsformat = this.getStampGPSFormatPref();
-        final String preference_units_distance = this.getUnitsDistancePref();
+        final SettingsSnapshot settings = this.settings;
+        final String preference_stamp_dateformat = settings.stamp_date_format;
+        final String preference_stamp_timeformat = settings.stamp_time_format;
+        final String preference_stamp_gpsformat = settings.stamp_gps_format;
+        final String preference_units_distance = settings.units_distance;
         //final String preference_stamp_geo_address = this.getStampGeoAddressPref();
-        final boolean store_location = getGeotaggingPref();
-        final boolean store_geo_direction = getGeodirectionPref();
+        final boolean store_location = settings.geotagging;
+        final boolean store_geo_direction = settings.geodirection;
         class SubtitleVideoTimerTask extends TimerTask {
             // need to keep a reference to pfd_saf for as long as writer, to avoid getting garbage collected - see https://sourceforge.net/p/opencamera/tickets/417/
             private ParcelFileDescriptor pfd_saf;
@@ -2466,6 +2367,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                         thumbnail = scaled_thumbnail;
                     }
                 }
+                // key as in broadcastVideo()
+                Uri latest_media_uri = video_method == VideoMethod.FILE ? Uri.fromFile(new File(filename)) : uri;
+                storageUtils.getThumbnailCache().put(latest_media_uri.toString(), thumbnail);
                 final Bitmap thumbnail_f = thumbnail;
                 main_activity.runOnUiThread(new Runnable() {
                     public void run() {
@@ -2536,6 +2440,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
                 // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                 storageUtils.setLastMediaScanned(uri, false, false, null);
+                if( !isVideoCaptureIntent() ) {
+                    storageUtils.recordLatestMedia(uri, uri, true, false);
+                }
 
                 done = true;
             }
@@ -2543,6 +2450,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         else if( video_method == VideoMethod.FILE ) {
             if( filename != null ) {
                 File file = new File(filename);
+                if( !isVideoCaptureIntent() ) {
+                    // must be before broadcastFile(), which sets the mediastore uri when the file is scanned
+                    storageUtils.recordLatestMedia(Uri.fromFile(file), null, true, false);
+                }
                 storageUtils.broadcastFile(file, false, true, true, false, null);
                 done = true;
             }
@@ -2550,6 +2461,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         else {
             if( uri != null ) {
                 // see note in onPictureTaken() for where we call broadcastFile for SAF photos
+                if( !isVideoCaptureIntent() ) {
+                    storageUtils.recordLatestMedia(uri, null, true, false);
+                }
                 storageUtils.broadcastUri(uri, false, true, true, false, false);
                 done = true;
             }
@@ -2820,13 +2734,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             Log.d(TAG, "timerBeep()");
             Log.d(TAG, "remaining_time: " + remaining_time);
         }
-        if( sharedPreferences.getBoolean(PreferenceKeys.TimerBeepPreferenceKey, true) ) {
+        SettingsSnapshot settings = this.settings;
+        if( settings.timer_beep ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "play beep!");
             boolean is_last = remaining_time <= 1000;
             main_activity.getSoundPoolManager().playSound(is_last ? R.raw.mybeep_hi : R.raw.mybeep);
         }
-        if( sharedPreferences.getBoolean(PreferenceKeys.TimerSpeakPreferenceKey, false) ) {
+        if( settings.timer_speak ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "speak countdown!");
             int remaining_time_s = (int)(remaining_time/1000);
@@ -3057,11 +2972,6 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         editor.apply();
     }
 
-    private int getStampFontColor() {
-        String color = sharedPreferences.getString(PreferenceKeys.StampFontColorPreferenceKey, "#ffffff");
-        return Color.parseColor(color);
-    }
-
     /** Should be called to reset parameters which aren't expected to be saved (e.g., resetting zoom when application is paused,
      *  when switching between photo/video modes, or switching cameras).
      */
@@ -3237,11 +3147,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      * @param save_expo If the photo mode is one where multiple images are saved to a single
      *                  resultant image, this indicates if all the base images should also be saved
      *                  as separate images.
-     * @param images The set of images.
+     * @param images The set of images. Ownership of the images passes to this method.
      * @param current_date The current date/time stamp for the images.
      * @return Whether saving was successful.
      */
-    private boolean saveImage(boolean save_expo, List<byte []> images, Date current_date) {
+    private boolean saveImage(boolean save_expo, List<ImageBuffer> images, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveImage");
 
@@ -3262,8 +3172,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
         boolean using_camera2 = main_activity.getPreview().usingCamera2API();
         boolean using_camera_extensions = isCameraExtensionPref();
-        ImageSaver.Request.ImageFormat image_format = getImageFormatPref();
-        boolean store_ypr = sharedPreferences.getBoolean(PreferenceKeys.AddYPRToComments, false) &&
+        // use the same snapshot throughout, so that we have a consistent set of settings for this photo
+        final SettingsSnapshot settings = this.settings;
+        ImageSaver.Request.ImageFormat image_format = settings.image_format;
+        boolean store_ypr = settings.add_ypr_to_comments &&
                 main_activity.getPreview().hasLevelAngle() &&
                 main_activity.getPreview().hasPitchAngle() &&
                 main_activity.getPreview().hasGeoDirection();
@@ -3285,25 +3197,25 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             level_angle = 45.0;
         // I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
         boolean is_front_facing = main_activity.getPreview().getCameraController() != null && (main_activity.getPreview().getCameraController().getFacing() == CameraController.Facing.FACING_FRONT);
-        boolean mirror = is_front_facing && sharedPreferences.getString(PreferenceKeys.FrontCameraMirrorKey, "preference_front_camera_mirror_no").equals("preference_front_camera_mirror_photo");
-        String preference_stamp = this.getStampPref();
-        String preference_textstamp = this.getTextStampPref();
-        int font_size = getTextStampFontSizePref();
-        int color = getStampFontColor();
-        String pref_style = sharedPreferences.getString(PreferenceKeys.StampStyleKey, "preference_stamp_style_shadowed");
-        String preference_stamp_dateformat = this.getStampDateFormatPref();
-        String preference_stamp_timeformat = this.getStampTimeFormatPref();
-        String preference_stamp_gpsformat = this.getStampGPSFormatPref();
+        boolean mirror = is_front_facing && settings.mirror_front_photo;
+        String preference_stamp = settings.stamp;
+        String preference_textstamp = settings.text_stamp;
+        int font_size = settings.stamp_font_size;
+        int color = settings.stamp_font_color;
+        String pref_style = settings.stamp_style;
+        String preference_stamp_dateformat = settings.stamp_date_format;
+        String preference_stamp_timeformat = settings.stamp_time_format;
+        String preference_stamp_gpsformat = settings.stamp_gps_format;
         //String preference_stamp_geo_address = this.getStampGeoAddressPref();
-        String preference_units_distance = this.getUnitsDistancePref();
-        boolean panorama_crop = sharedPreferences.getString(PreferenceKeys.PanoramaCropPreferenceKey, "preference_panorama_crop_on").equals("preference_panorama_crop_on");
-        ImageSaver.Request.RemoveDeviceExif remove_device_exif = getRemoveDeviceExifPref();
-        boolean store_location = getGeotaggingPref() && getLocation() != null;
+        String preference_units_distance = settings.units_distance;
+        boolean panorama_crop = settings.panorama_crop;
+        ImageSaver.Request.RemoveDeviceExif remove_device_exif = settings.remove_device_exif;
+        boolean store_location = settings.geotagging && getLocation() != null;
         Location location = store_location ? getLocation() : null;
-        boolean store_geo_direction = main_activity.getPreview().hasGeoDirection() && getGeodirectionPref();
+        boolean store_geo_direction = main_activity.getPreview().hasGeoDirection() && settings.geodirection;
         double geo_direction = main_activity.getPreview().hasGeoDirection() ? main_activity.getPreview().getGeoDirection() : 0.0;
-        String custom_tag_artist = sharedPreferences.getString(PreferenceKeys.ExifArtistPreferenceKey, "");
-        String custom_tag_copyright = sharedPreferences.getString(PreferenceKeys.ExifCopyrightPreferenceKey, "");
+        String custom_tag_artist = settings.exif_artist;
+        String custom_tag_copyright = settings.exif_copyright;
 
         int iso = 800; // default value if we can't get ISO
         long exposure_time = 1000000000L/30; // default value if we can't get shutter speed
@@ -3323,14 +3235,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             zoom_factor = main_activity.getPreview().getZoomRatio();
         }
 
-        boolean has_thumbnail_animation = getThumbnailAnimationPref();
+        boolean has_thumbnail_animation = settings.thumbnail_animation;
 
         boolean do_in_background = saveInBackground(image_capture_intent);
 
-        String ghost_image_pref = sharedPreferences.getString(PreferenceKeys.GhostImagePreferenceKey, "preference_ghost_image_off");
-
         int sample_factor = 1;
-        if( !this.getPausePreviewPref() && !ghost_image_pref.equals("preference_ghost_image_last") ) {
+        if( !this.getPausePreviewPref() && settings.ghost_image != SettingsSnapshot.GhostImage.LAST ) {
             // if pausing the preview, we use the thumbnail also for the preview, so don't downsample
             // similarly for ghosting last image
             // otherwise, we can downsample by 4 to increase performance, without noticeable loss in visual quality (even for the thumbnail animation)
@@ -3357,6 +3267,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                 Log.d(TAG, "ignore panorama image as target no longer achieved!");
             // n.b., gyroSensor.hasTarget() will be false if this is the first picture in the panorama series
             panorama_pic_accepted = false;
+            for(ImageBuffer image : images) {
+                image.release();
+            }
             success = true; // still treat as success
         }
         else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama ) {
@@ -3370,26 +3283,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             if( first_image ) {
                 ImageSaver.Request.SaveBase save_base = ImageSaver.Request.SaveBase.SAVEBASE_NONE;
                 if( photo_mode == PhotoMode.NoiseReduction ) {
-                    String save_base_preference = sharedPreferences.getString(PreferenceKeys.NRSaveExpoPreferenceKey, "preference_nr_save_no");
-                    switch( save_base_preference ) {
-                        case "preference_nr_save_single":
-                            save_base = ImageSaver.Request.SaveBase.SAVEBASE_FIRST;
-                            break;
-                        case "preference_nr_save_all":
-                            save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL;
-                            break;
-                    }
+                    save_base = settings.nr_save_base;
                 }
                 else if( photo_mode == PhotoMode.Panorama ) {
-                    String save_base_preference = sharedPreferences.getString(PreferenceKeys.PanoramaSaveExpoPreferenceKey, "preference_panorama_save_no");
-                    switch( save_base_preference ) {
-                        case "preference_panorama_save_all":
-                            save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL;
-                            break;
-                        case "preference_panorama_save_all_plus_debug":
-                            save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL_PLUS_DEBUG;
-                            break;
-                    }
+                    save_base = settings.panorama_save_base;
                 }
 
                 imageSaver.startImageBatch(true,
@@ -3440,28 +3337,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                 processType = ImageSaver.Request.ProcessType.NORMAL;
             boolean force_suffix = forceSuffix(photo_mode);
 
-            HDRProcessor.TonemappingAlgorithm preference_hdr_tonemapping_algorithm = HDRProcessor.default_tonemapping_algorithm_c;
-            {
-                String tonemapping_algorithm_pref = sharedPreferences.getString(PreferenceKeys.HDRTonemappingPreferenceKey, "preference_hdr_tonemapping_default");
-                switch( tonemapping_algorithm_pref ) {
-                    case "preference_hdr_tonemapping_clamp":
-                        preference_hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP;
-                        break;
-                    case "preference_hdr_tonemapping_exponential":
-                        preference_hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL;
-                        break;
-                    case "preference_hdr_tonemapping_default": // reinhard
-                        preference_hdr_tonemapping_algorithm = HDRProcessor.default_tonemapping_algorithm_c;
-                        break;
-                    case "preference_hdr_tonemapping_aces":
-                        preference_hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_ACES;
-                        break;
-                    default:
-                        Log.e(TAG, "unhandled case for tonemapping: " + tonemapping_algorithm_pref);
-                        break;
-                }
-            }
-            String preference_hdr_contrast_enhancement = sharedPreferences.getString(PreferenceKeys.HDRContrastEnhancementPreferenceKey, "preference_hdr_contrast_enhancement_smart");
+            HDRProcessor.TonemappingAlgorithm preference_hdr_tonemapping_algorithm = settings.hdr_tonemapping_algorithm;
+            String preference_hdr_contrast_enhancement = settings.hdr_contrast_enhancement;
 
             success = imageSaver.saveImageJpeg(do_in_background, processType,
                     force_suffix,
@@ -3500,7 +3377,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     @Override
-    public boolean onPictureTaken(byte [] data, Date current_date) {
+    public boolean onPictureTaken(ImageBuffer data, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "onPictureTaken");
 
@@ -3508,7 +3385,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "n_capture_images is now " + n_capture_images);
 
-        List<byte []> images = new ArrayList<>();
+        List<ImageBuffer> images = new ArrayList<>();
         images.add(data);
 
         boolean success = saveImage(false, images, current_date);
@@ -3520,7 +3397,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     @Override
-    public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
+    public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "onBurstPictureTaken: received " + images.size() + " images");
 
@@ -3535,7 +3412,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( photo_mode == PhotoMode.HDR ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "HDR mode");
-            boolean save_expo = sharedPreferences.getBoolean(PreferenceKeys.HDRSaveExpoPreferenceKey, false);
+            boolean save_expo = settings.hdr_save_expo;
             if( MyDebug.LOG )
                 Log.d(TAG, "save_expo: " + save_expo);
 
@@ -3750,6 +3627,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             clearLastImages();
             drawPreview.clearGhostImage(); // doesn't make sense to show the last image as a ghost, if the user has trashed it!
             preview.startCameraPreview();
+            // the most recent media may have been trashed, so updateGalleryIcon() needs to search for it again
+            storageUtils.clearIndexedLatestMedia();
         }
         // Calling updateGalleryIcon() immediately has problem that it still returns the latest image that we've just deleted!
         // But works okay if we call after a delay. 100ms works fine on Nexus 7 and Galaxy Nexus, but set to 500 just to be safe.
@@ -0,0 +1,242 @@
+package com.jeffmony.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Merges the images for a noise reduction photo as they arrive, rather than waiting until all of
+ *  them have been captured. Each image is decoded and folded into the HDRProcessor.AvgData on a
+ *  background thread, so the merging overlaps with capturing the remaining images, and the JPEG
+ *  data for each image needn't be kept once it's merged.
+ *  The HDRProcessor is shared with ImageSaver, so all calls to it are synchronized on it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class NRAccumulator {
+    private static final String TAG = "NRAccumulator";
+    /* The number of ARGB_8888 bitmaps of the image resolution that the bitmaps and allocations held whilst merging are
+     * equivalent to: the first image (which HDRProcessor.AvgData keeps until all images are merged), the image being
+     * merged, and the F32_3 output allocation (which is padded to 4 floats per pixel, so is the size of 4 bitmaps).
+     */
+    static final int held_bitmaps_c = 6;
+
+    private final HDRProcessor hdrProcessor;
+    private final int iso;
+    private final long exposure_time;
+    private final float zoom_factor;
+    // images are merged in the order they're added, so we must use a single thread
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private int n_added; // only accessed by the thread adding images
+
+    // the following are only accessed on the executor thread (or after it's terminated)
+    private int inSampleSize;
+    private Bitmap first_bitmap; // the first image, held until the second image arrives
+    private HDRProcessor.AvgData avg_data;
+    private int width;
+    private int height;
+    private boolean failed;
+    private volatile boolean cancelled;
+    // the following should be synchronized to this, see finish()
+    private boolean merged_all; // whether the task queued by finish() has run, after which the executor no longer accesses the data
+    private boolean interrupted; // whether finish() was interrupted
+
+    public NRAccumulator(HDRProcessor hdrProcessor, int iso, long exposure_time, float zoom_factor) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "NRAccumulator");
+        this.hdrProcessor = hdrProcessor;
+        this.iso = iso;
+        this.exposure_time = exposure_time;
+        this.zoom_factor = zoom_factor;
+    }
+
+    /** Queues the JPEG data for the next image to be merged. This holds its own reference to the
+     *  image (see ImageBuffer.retain()) until it's been merged, so the caller still owns its
+     *  reference.
+     */
+    public void add(final ImageBuffer jpeg) {
+        final int index = n_added++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "add image: " + index);
+        jpeg.retain();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge(index, jpeg);
+                }
+                finally {
+                    jpeg.release();
+                }
+            }
+        });
+    }
+
+    /** Returns the number of images added so far.
+     */
+    public int getNImages() {
+        return n_added;
+    }
+
+    private void merge(int index, ImageBuffer jpeg) {
+        if( cancelled ) {
+            free();
+            return;
+        }
+        else if( failed ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "skip image: " + index);
+            return;
+        }
+        long time_s = System.currentTimeMillis();
+        if( index == 0 ) {
+            // n.b., we don't do this in the constructor, as we shouldn't block the caller waiting for the lock
+            synchronized( hdrProcessor ) {
+                inSampleSize = hdrProcessor.getAvgSampleSize(iso, exposure_time);
+            }
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        ImageSaver.setBitmapOptionsSampleSize(options, inSampleSize);
+        Bitmap bitmap = BitmapFactory.decodeStream(jpeg.getInputStream(), null, options);
+        if( bitmap == null ) {
+            Log.e(TAG, "failed to decode image: " + index);
+            failed = true;
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time for loading image " + index + ": " + (System.currentTimeMillis() - time_s));
+
+        if( index == 0 ) {
+            first_bitmap = bitmap;
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+            return;
+        }
+        time_s = System.currentTimeMillis();
+        try {
+            synchronized( hdrProcessor ) {
+                // reset the cached sample size, in case it was changed for another photo
+                hdrProcessor.getAvgSampleSize(iso, exposure_time);
+                if( index == 1 ) {
+                    // processAvg() recycles both bitmaps
+                    avg_data = hdrProcessor.processAvg(first_bitmap, bitmap, 1.0f, iso, exposure_time, zoom_factor);
+                    first_bitmap = null;
+                }
+                else {
+                    // updateAvg() recycles bitmap
+                    hdrProcessor.updateAvg(avg_data, width, height, bitmap, (float)index, iso, exposure_time, zoom_factor);
+                }
+            }
+        }
+        catch(HDRProcessorException e) {
+            Log.e(TAG, "HDRProcessorException merging image " + index + ": " + e.getCode());
+            e.printStackTrace();
+            failed = true;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time for merging image " + index + ": " + (System.currentTimeMillis() - time_s));
+        if( cancelled ) {
+            free();
+        }
+    }
+
+    /** Frees the bitmaps and allocations, must be called on the executor thread, or once it no longer
+     *  accesses the data (see finish()).
+     */
+    private void free() {
+        if( first_bitmap != null ) {
+            first_bitmap.recycle();
+            first_bitmap = null;
+        }
+        if( avg_data != null ) {
+            avg_data.destroy();
+            avg_data = null;
+        }
+    }
+
+    /** Waits for all of the images to be merged, and returns the noise reduced image (see
+     *  HDRProcessor.avgBrighten()), or null if this failed. No more images should be added.
+     */
+    public Bitmap finish() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finish");
+        long time_s = System.currentTimeMillis();
+        // if we're interrupted, this frees the data once any merge in progress has completed - we can't rely on a queued
+        // merge to do so, as there may not be one
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized( NRAccumulator.this ) {
+                    merged_all = true;
+                    if( interrupted ) {
+                        free();
+                    }
+                }
+            }
+        });
+        executor.shutdown();
+        try {
+            while( !executor.awaitTermination(1, TimeUnit.SECONDS) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "waiting for images to be merged");
+            }
+        }
+        catch(InterruptedException e) {
+            Log.e(TAG, "interrupted waiting for images to be merged");
+            e.printStackTrace();
+            // any queued merges will be skipped
+            cancelled = true;
+            synchronized( this ) {
+                interrupted = true;
+                if( merged_all ) {
+                    // the executor has finished with the data, so we must free it
+                    free();
+                }
+            }
+            return null;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time waiting for images to be merged: " + (System.currentTimeMillis() - time_s));
+
+        Bitmap nr_bitmap = null;
+        if( failed || avg_data == null ) {
+            Log.e(TAG, "failed to merge images, n_added: " + n_added);
+        }
+        else {
+            time_s = System.currentTimeMillis();
+            synchronized( hdrProcessor ) {
+                hdrProcessor.getAvgSampleSize(iso, exposure_time);
+                nr_bitmap = hdrProcessor.avgBrighten(avg_data.allocation_out, width, height, iso, exposure_time);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - time_s));
+        }
+        free();
+        return nr_bitmap;
+    }
+
+    /** Discards the images, without waiting for any merging in progress to complete.
+     */
+    public void cancel() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "cancel");
+        cancelled = true;
+        if( !executor.isShutdown() ) {
+            // any queued merges will be skipped, so just need to free the data afterwards
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    free();
+                }
+            });
+            executor.shutdown();
+        }
+    }
+}
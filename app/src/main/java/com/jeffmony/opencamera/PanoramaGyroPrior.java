@@ -0,0 +1,129 @@
+package com.jeffmony.opencamera;
+
+import java.util.List;
+
+/** The transformation between a pair of consecutive panorama images predicted from the gyro
+ *  rotation matrices recorded when they were taken (see GyroSensor), for use as the starting point
+ *  of PanoramaProcessor.autoAlignmentByFeature().
+ *  The prior uses the same convention as autoAlignmentByFeature(): it maps the next image onto the
+ *  previous one, rotating about the centre of the alignment region and then translating. The offset
+ *  is relative to the ideal step between the images (i.e., an offset of zero means the images are
+ *  exactly one slice width apart).
+ *  This class only does the arithmetic, so that it can be run on a standard JVM (e.g., for unit
+ *  testing).
+ */
+public class PanoramaGyroPrior {
+    //private static final String TAG = "PanoramaGyroPrior";
+
+    private static final double max_step_error_c = 0.5; // reject priors whose step differs from the ideal step by more than this fraction of the ideal step
+    private static final double max_roll_c = Math.toRadians(10.0); // reject priors that are rotated by more than this
+
+    public final float offset_x;
+    public final float offset_y;
+    public final float rotation; // in radians
+    public final float tolerance; // how far features may be from their predicted positions, in pixels
+
+    PanoramaGyroPrior(float offset_x, float offset_y, float rotation, float tolerance) {
+        this.offset_x = offset_x;
+        this.offset_y = offset_y;
+        this.rotation = rotation;
+        this.tolerance = tolerance;
+    }
+
+    /** Returns this prior for images that have been downscaled by the supplied factor.
+     */
+    public PanoramaGyroPrior downscale(float downsample) {
+        return new PanoramaGyroPrior(offset_x/downsample, offset_y/downsample, rotation, tolerance/downsample);
+    }
+
+    /** Computes the prior for each pair of consecutive images.
+     * @param gyro_rotation_matrices The 3x3 rotation matrix (as returned by
+     *                               GyroSensor.getRotationMatrix()) for each image, in the
+     *                               same left to right order as the images.
+     * @param bitmap_width           The width of the images.
+     * @param camera_angle           The horizontal view angle of the images, in radians.
+     * @param pics_per_screen        The number of images taken per camera_angle.
+     * @param tolerance_angle        How far (in radians) the gyro may be out.
+     * @return An array with an entry for each image, where the i-th entry is the prior for mapping
+     *         image i onto image i-1, or null if the gyro rotation for that pair is implausible. The
+     *         0th entry is always null. Returns null if the rotations don't describe a panorama
+     *         sweep.
+     */
+    public static PanoramaGyroPrior [] computePriors(List<float []> gyro_rotation_matrices, int bitmap_width, double camera_angle, float pics_per_screen, double tolerance_angle) {
+        final int n_images = gyro_rotation_matrices.size();
+        if( n_images < 2 ) {
+            return null;
+        }
+        float [][] relative = new float[n_images][];
+        for(int i=1;i<n_images;i++) {
+            relative[i] = multiplyTranspose(gyro_rotation_matrices.get(i-1), gyro_rotation_matrices.get(i));
+        }
+
+        // The images may have been taken in portrait or landscape, so find the axis of the sweep
+        // (in device coordinates) from the rotations. We sum the rotations between consecutive
+        // images rather than taking the rotation between the first and last images, as the
+        // panorama may cover more than 180 degrees. The images are rotated for their exif
+        // orientation, so their axes are always aligned with the device's axes: we snap to the
+        // nearest axis, so that the user's errors in following the sweep don't bias the priors.
+        double axis_x = 0.0, axis_y = 0.0, axis_z = 0.0;
+        for(int i=1;i<n_images;i++) {
+            float [] r = relative[i];
+            axis_x += 0.5*(r[7] - r[5]);
+            axis_y += 0.5*(r[2] - r[6]);
+            axis_z += 0.5*(r[3] - r[1]);
+        }
+        double axis_mag = Math.sqrt(axis_x*axis_x + axis_y*axis_y);
+        if( axis_mag < 0.5*Math.abs(axis_z) || axis_mag < 1.0e-5 ) {
+            // not a sweep about an axis in the plane of the screen
+            return null;
+        }
+        // sweeping to the right is a negative rotation about the up direction of the images
+        final double up_x = Math.abs(axis_x) > Math.abs(axis_y) ? -Math.signum(axis_x) : 0.0;
+        final double up_y = Math.abs(axis_x) > Math.abs(axis_y) ? 0.0 : -Math.signum(axis_y);
+        // right = up x (0, 0, 1), as the screen points along +z
+        final double right_x = up_y;
+        final double right_y = -up_x;
+
+        final double step = camera_angle/pics_per_screen;
+        final double pixels_per_radian = bitmap_width/camera_angle;
+        final float tolerance = (float)(tolerance_angle*pixels_per_radian);
+        PanoramaGyroPrior [] priors = new PanoramaGyroPrior[n_images];
+        for(int i=1;i<n_images;i++) {
+            float [] r = relative[i];
+            // the viewing direction of image i, in the device coordinates of image i-1, is the
+            // relative rotation applied to (0, 0, -1)
+            double dir_x = -r[2], dir_y = -r[5], dir_z = -r[8];
+            double yaw = Math.atan2(dir_x*right_x + dir_y*right_y, -dir_z);
+            double pitch = Math.atan2(dir_x*up_x + dir_y*up_y, -dir_z);
+            // similarly for the right direction of image i
+            double r_right_x = r[0]*right_x + r[1]*right_y;
+            double r_right_y = r[3]*right_x + r[4]*right_y;
+            double roll = Math.atan2(r_right_x*up_x + r_right_y*up_y, r_right_x*right_x + r_right_y*right_y);
+            if( Math.abs(yaw - step) > max_step_error_c*step || Math.abs(pitch) > max_step_error_c*step || Math.abs(roll) > max_roll_c ) {
+                continue;
+            }
+            // if image i is rotated further to the right, its features are further to the left, so
+            // need to be moved to the right to map onto image i-1; if it's rotated upwards, its
+            // features are lower, so need to be moved up (y increases downwards in the images);
+            // and if it's rotated anticlockwise, its features are rotated clockwise
+            priors[i] = new PanoramaGyroPrior((float)((yaw - step)*pixels_per_radian), (float)(-pitch*pixels_per_radian), (float)(-roll), tolerance);
+        }
+        return priors;
+    }
+
+    /** Returns a^T b, for 3x3 matrices stored by rows.
+     */
+    private static float [] multiplyTranspose(float [] a, float [] b) {
+        float [] result = new float[9];
+        for(int i=0;i<3;i++) {
+            for(int j=0;j<3;j++) {
+                float sum = 0.0f;
+                for(int k=0;k<3;k++) {
+                    sum += a[k*3+i]*b[k*3+j];
+                }
+                result[i*3+j] = sum;
+            }
+        }
+        return result;
+    }
+}
@@ -35,6 +35,7 @@ public class PanoramaProcessor {
 
     private final Context context;
     private final HDRProcessor hdrProcessor;
+    private BitmapPool bitmapPool;
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using panorama
 
     // we lazily create and cache scripts that would otherwise have to be repeatedly created in a single
@@ -42,18 +43,92 @@ public class PanoramaProcessor {
     // these should be set to null in freeScript(), to help garbage collection
     private ScriptC_pyramid_blending pyramidBlendingScript = null;
     private ScriptC_feature_detector featureDetectorScript = null;
+    private JavaFeatureDetector javaFeatureDetector; // lazily created, only needed for FEATUREDETECTORBACKEND_JAVA
+    private JavaFeatureMatcher javaFeatureMatcher; // lazily created
+    // allocations that blendPyramids() has finished with, for reuse when blending the next pair of images (all pairs
+    // have the same dimensions, so after the first pair no new allocations are needed); destroyed in freeScripts()
+    private final List<Allocation> free_allocations = new ArrayList<>();
+
+    /** Which implementation to use for detecting the features to match in autoAlignmentByFeature().
+     */
+    public enum FeatureDetectorBackend {
+        FEATUREDETECTORBACKEND_RENDERSCRIPT, // feature_detector.rs
+        FEATUREDETECTORBACKEND_JAVA // JavaFeatureDetector
+    }
+    private FeatureDetectorBackend feature_detector_backend = FeatureDetectorBackend.FEATUREDETECTORBACKEND_RENDERSCRIPT;
+
+    // parameters for the features detected by detectFeatures()
+    //private static final int feature_n_y_chunks_c = 1;
+    private static final int feature_n_y_chunks_c = 2; // the image is split into this many chunks, each having its own corners
+    //private static final int feature_n_y_chunks_c = 3;
+    //private static final int feature_n_y_chunks_c = 4;
+    //private static final int feature_total_max_corners_c = 500;
+    private static final int feature_total_max_corners_c = 200;
+    // setting a min_threshold fixes testPanorama11, also helps testPanorama1
+    // note that this needs to be at least 1250000.0f - at 625000.0f, testPanorama1
+    // still has problems and in fact ends up being worse than having no min threshold
+    private static final float feature_min_threshold_c = 1250000.0f;
+    //private static final float feature_min_threshold_c = 625000.0f;
+    // how far the gyro rotation between consecutive images may be out - features are first only matched within this
+    // of where the gyro predicts them to be, before we fall back to searching the whole of the images
+    private static final float gyro_prior_tolerance_degrees_c = 3.0f;
 
     public PanoramaProcessor(Context context, HDRProcessor hdrProcessor) {
         this.context = context;
         this.hdrProcessor = hdrProcessor;
     }
 
+    /** Sets a pool that the per-image working bitmaps are allocated from, and returned to when
+     *  they're no longer needed. If not set (or null), bitmaps are created and recycled directly.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /** Sets the implementation used to detect features in detectFeatures(). The application always
+     *  uses the default of FEATUREDETECTORBACKEND_RENDERSCRIPT; FEATUREDETECTORBACKEND_JAVA is only
+     *  selected by tests (see testPanoramaJavaFeatureDetector), until it has been verified on
+     *  devices.
+     */
+    public void setFeatureDetectorBackend(FeatureDetectorBackend feature_detector_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setFeatureDetectorBackend: " + feature_detector_backend);
+        this.feature_detector_backend = feature_detector_backend;
+    }
+
+    public FeatureDetectorBackend getFeatureDetectorBackend() {
+        return this.feature_detector_backend;
+    }
+
+    private Bitmap createBitmap(int width, int height) {
+        if( bitmapPool != null ) {
+            return bitmapPool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private void freeBitmap(Bitmap bitmap) {
+        if( bitmapPool != null ) {
+            bitmapPool.release(bitmap);
+        }
+        else {
+            bitmap.recycle();
+        }
+    }
+
     private void freeScripts() {
         if( MyDebug.LOG )
             Log.d(TAG, "freeScripts");
 
         pyramidBlendingScript = null;
         featureDetectorScript = null;
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "free " + free_allocations.size() + " allocations");
+        for(Allocation allocation : free_allocations) {
+            allocation.destroy();
+        }
+        free_allocations.clear();
     }
     public void onDestroy() {
         if( MyDebug.LOG )
@@ -86,6 +161,30 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Returns an allocation with the supplied element type and dimensions, reusing one passed to
+     *  releaseAllocation() if possible. Note that the contents of the allocation are undefined.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Allocation obtainAllocation(Element element, int width, int height) {
+        for(int i=free_allocations.size()-1;i>=0;i--) {
+            Allocation allocation = free_allocations.get(i);
+            Type type = allocation.getType();
+            if( type.getX() == width && type.getY() == height && type.getElement().isCompatible(element) ) {
+                free_allocations.remove(i);
+                return allocation;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "create allocation: " + width + " x " + height);
+        return Allocation.createTyped(rs, Type.createXY(rs, element, width, height));
+    }
+
+    /** Returns an allocation from obtainAllocation() that is no longer needed.
+     */
+    private void releaseAllocation(Allocation allocation) {
+        free_allocations.add(allocation);
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Allocation reduceBitmap(ScriptC_pyramid_blending script, Allocation allocation) {
         if( MyDebug.LOG )
@@ -93,7 +192,7 @@ public class PanoramaProcessor {
         int width = allocation.getType().getX();
         int height = allocation.getType().getY();
 
-        Allocation reduced_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), width/2, height/2));
+        Allocation reduced_allocation = obtainAllocation(Element.RGBA_8888(rs), width/2, height/2);
 
         script.set_bitmap(allocation);
         script.forEach_reduce(reduced_allocation, reduced_allocation);
@@ -113,7 +212,7 @@ public class PanoramaProcessor {
         int height = allocation.getType().getY();
         Allocation result_allocation;
 
-        Allocation expanded_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+        Allocation expanded_allocation = obtainAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
         if( MyDebug.LOG )
             Log.d(TAG, "### expandBitmap: time after creating expanded_allocation: " + (System.currentTimeMillis() - time_s));
 
@@ -124,18 +223,18 @@ public class PanoramaProcessor {
 
         final boolean use_blur_2d = false; // faster to do blue as two 1D passes
         if( use_blur_2d ) {
-            result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            result_allocation = obtainAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating result_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
             script.forEach_blur(expanded_allocation, result_allocation);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur: " + (System.currentTimeMillis() - time_s));
-            expanded_allocation.destroy();
+            releaseAllocation(expanded_allocation);
             //result_allocation = expanded_allocation;
         }
         else {
-            Allocation temp_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            Allocation temp_allocation = obtainAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating temp_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
@@ -150,7 +249,7 @@ public class PanoramaProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
 
-            temp_allocation.destroy();
+            releaseAllocation(temp_allocation);
         }
 
         return result_allocation;
@@ -169,7 +268,7 @@ public class PanoramaProcessor {
             Log.e(TAG, "allocations of different dimensions");
             throw new RuntimeException();
         }
-        Allocation result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
+        Allocation result_allocation = obtainAllocation(Element.F32_3(rs), width, height);
         script.set_bitmap(allocation1);
         script.forEach_subtract(allocation0, result_allocation);
 
@@ -200,7 +299,8 @@ public class PanoramaProcessor {
             Log.d(TAG, "createGaussianPyramid");
         List<Allocation> pyramid = new ArrayList<>();
 
-        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+        Allocation allocation = obtainAllocation(Element.RGBA_8888(rs), bitmap.getWidth(), bitmap.getHeight());
+        allocation.copyFrom(bitmap);
         pyramid.add(allocation);
         for(int i=0;i<n_levels;i++ ) {
             allocation = reduceBitmap(script, allocation);
@@ -265,9 +365,9 @@ public class PanoramaProcessor {
             pyramid.add(difference);
             //pyramid.add(this_gauss);
 
-            this_gauss.destroy();
+            releaseAllocation(this_gauss);
             gaussianPyramid.set(i, null); // to help garbage collection
-            next_gauss_expanded.destroy();
+            releaseAllocation(next_gauss_expanded);
             if( MyDebug.LOG )
                 Log.d(TAG, "### createLaplacianPyramid: time after level " + i + ": " + (System.currentTimeMillis() - time_s));
         }
@@ -276,8 +376,11 @@ public class PanoramaProcessor {
         return pyramid;
     }
 
+    /** Collapses the laplacian pyramid into the supplied bitmap, which should have the dimensions
+     *  of the bottom level.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Bitmap collapseLaplacianPyramid(ScriptC_pyramid_blending script, List<Allocation> pyramid) {
+    private void collapseLaplacianPyramid(ScriptC_pyramid_blending script, List<Allocation> pyramid, Bitmap bitmap) {
         if( MyDebug.LOG )
             Log.d(TAG, "collapseLaplacianPyramid");
 
@@ -286,21 +389,21 @@ public class PanoramaProcessor {
         for(int i=pyramid.size()-2;i>=0;i--) {
             Allocation expanded_allocation = expandBitmap(script, allocation);
             if( !first ) {
-                allocation.destroy();
+                releaseAllocation(allocation);
             }
             addBitmap(script, expanded_allocation, pyramid.get(i));
             allocation = expanded_allocation;
             first = false;
         }
 
-        int width = allocation.getType().getX();
-        int height = allocation.getType().getY();
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        if( allocation.getType().getX() != bitmap.getWidth() || allocation.getType().getY() != bitmap.getHeight() ) {
+            Log.e(TAG, "bitmap of different dimensions to pyramid");
+            throw new RuntimeException();
+        }
         allocation.copyTo(bitmap);
         if( !first ) {
-            allocation.destroy();
+            releaseAllocation(allocation);
         }
-        return bitmap;
     }
 
     /** Updates every allocation in pyramid0 to be a blend from the left hand of pyramid0 to the
@@ -560,12 +663,27 @@ public class PanoramaProcessor {
         return (int)(Math.pow(2.0, blend_n_levels)+0.5);
     }
 
-    /** Returns a bitmap that blends between lhs and rhs, using Laplacian pyramid blending.
+    /** Returns the width of the band around each seam that is blended with blendPyramids(). Only
+     *  this band is blended, the rest of each image is drawn directly to the panorama.
+     */
+    private static int getBlendBandWidth(int blend_hwidth) {
+        return nextMultiple(2*blend_hwidth, getBlendDimension());
+    }
+
+    /** Returns the height of the band around each seam that is blended with blendPyramids().
+     */
+    private static int getBlendBandHeight(int bitmap_height) {
+        return nextMultiple(bitmap_height, getBlendDimension());
+    }
+
+    /** Blends between lhs and rhs into merged_bitmap, using Laplacian pyramid blending.
      *  Note that the width of the blend region will be half of the width of the image. The blend
      *  region will follow a path in order to minimise the transition between the images.
+     *  The images should only cover the band around the seam, as the pyramids are built over the
+     *  whole of them; merged_bitmap should have the same dimensions.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Bitmap blendPyramids(Bitmap lhs, Bitmap rhs) {
+    private void blendPyramids(Bitmap lhs, Bitmap rhs, Bitmap merged_bitmap) {
         long time_s = 0;
         if( MyDebug.LOG )
             time_s = System.currentTimeMillis();
@@ -634,8 +752,10 @@ public class PanoramaProcessor {
                 saveBitmap(best_path_rhs, "best_path_rhs.jpg");
             }*/
 
-            Allocation lhs_allocation = Allocation.createFromBitmap(rs, best_path_lhs);
-            Allocation rhs_allocation = Allocation.createFromBitmap(rs, best_path_rhs);
+            Allocation lhs_allocation = obtainAllocation(Element.RGBA_8888(rs), best_path_lhs.getWidth(), best_path_lhs.getHeight());
+            lhs_allocation.copyFrom(best_path_lhs);
+            Allocation rhs_allocation = obtainAllocation(Element.RGBA_8888(rs), best_path_rhs.getWidth(), best_path_rhs.getHeight());
+            rhs_allocation.copyFrom(best_path_rhs);
 
             int [] errors = new int[1];
             Allocation errorsAllocation = Allocation.createSized(rs, Element.I32(rs), 1);
@@ -688,8 +808,8 @@ public class PanoramaProcessor {
                     Log.d(TAG, "best_path [" + y + "]: " + best_path[y]);
             }
 
-            lhs_allocation.destroy();
-            rhs_allocation.destroy();
+            releaseAllocation(lhs_allocation);
+            releaseAllocation(rhs_allocation);
             errorsAllocation.destroy();
 
             if( best_path_lhs != lhs ) {
@@ -720,9 +840,11 @@ public class PanoramaProcessor {
         // debug
         /*if( MyDebug.LOG )
 		{
-			Bitmap lhs_collapsed = collapseLaplacianPyramid(script, lhs_pyramid);
+			Bitmap lhs_collapsed = Bitmap.createBitmap(lhs.getWidth(), lhs.getHeight(), Bitmap.Config.ARGB_8888);
+			collapseLaplacianPyramid(script, lhs_pyramid, lhs_collapsed);
 			saveBitmap(lhs_collapsed, "lhs_collapsed.jpg");
-			Bitmap rhs_collapsed = collapseLaplacianPyramid(script, rhs_pyramid);
+			Bitmap rhs_collapsed = Bitmap.createBitmap(rhs.getWidth(), rhs.getHeight(), Bitmap.Config.ARGB_8888);
+			collapseLaplacianPyramid(script, rhs_pyramid, rhs_collapsed);
 			saveBitmap(rhs_collapsed, "rhs_collapsed.jpg");
 			lhs_collapsed.recycle();
 			rhs_collapsed.recycle();
@@ -731,7 +853,7 @@ public class PanoramaProcessor {
         mergePyramids(pyramidBlendingScript, lhs_pyramid, rhs_pyramid, best_path, best_path_n_x);
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time after mergePyramids: " + (System.currentTimeMillis() - time_s));
-        Bitmap merged_bitmap = collapseLaplacianPyramid(pyramidBlendingScript, lhs_pyramid);
+        collapseLaplacianPyramid(pyramidBlendingScript, lhs_pyramid, merged_bitmap);
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time after collapseLaplacianPyramid: " + (System.currentTimeMillis() - time_s));
         // debug
@@ -742,21 +864,20 @@ public class PanoramaProcessor {
         }*/
 
         for(Allocation allocation : lhs_pyramid) {
-            allocation.destroy();
+            releaseAllocation(allocation);
         }
         for(Allocation allocation : rhs_pyramid) {
-            allocation.destroy();
+            releaseAllocation(allocation);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time taken: " + (System.currentTimeMillis() - time_s));
-        return merged_bitmap;
     }
 
     private static class FeatureMatch implements Comparable<FeatureMatch> {
         private final int index0, index1;
         private float distance; // from 0 to 1, higher means poorer match
 
-        private FeatureMatch(int index0, int index1) {
+        FeatureMatch(int index0, int index1) {
             this.index0 = index0;
             this.index1 = index1;
         }
@@ -779,106 +900,310 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-        final int wid = 2*feature_descriptor_radius+1;
-        final int wid2 = wid*wid;
-        for(int indx=st_indx;indx<nd_indx;indx++) {
-            FeatureMatch match = matches.get(indx);
-
-				/*float distance = 0;
-				for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-					for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-						int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-						int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-						//int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-						//int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-						int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-						int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-						int dist2 = value0*value0 + value1+value1;
-						distance += ((float)dist2)/65025.0f; // so distance for a given pixel is from 0 to 1
-					}
-				}
-				distance /= (float)wid2; // normalise from 0 to 1
-				match.distance = distance;*/
-
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
-            float fgsum = 0;
-
-            // much faster to read via getPixels() rather than pixel by pixel
-            //bitmaps.get(0).getPixels(pixels0, 0, wid, point0.x - feature_descriptor_radius, point0.y - feature_descriptor_radius, wid, wid);
-            //bitmaps.get(1).getPixels(pixels1, 0, wid, point1.x - feature_descriptor_radius, point1.y - feature_descriptor_radius, wid, wid);
-            //int pixel_idx = 0;
-
-            int pixel_idx0 = match.index0*wid2;
-            int pixel_idx1 = match.index1*wid2;
-
-            for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                    //int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                    //int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-
-                    //int pixel0 = pixels0[pixel_idx];
-                    //int pixel1 = pixels1[pixel_idx];
-                    //pixel_idx++;
-
-                    //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                    //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                    //int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                    //int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-
-                    int value0 = pixels0[pixel_idx0];
-                    int value1 = pixels1[pixel_idx1];
-                    pixel_idx0++;
-                    pixel_idx1++;
-
-                    fsum += value0;
-                    f2sum += value0*value0;
-                    gsum += value1;
-                    g2sum += value1*value1;
-                    fgsum += value0*value1;
-                }
-            }
-            float fden = wid2*f2sum - fsum*fsum;
-            float f_recip = fden==0 ? 0.0f : 1/ fden;
-            float gden = wid2*g2sum - gsum*gsum;
-            float g_recip = gden==0 ? 0.0f : 1/ gden;
-            float fg_corr = wid2*fgsum-fsum*gsum;
-            //if( MyDebug.LOG ) {
-            //	Log.d(TAG, "match distance: ");
-            //	Log.d(TAG, "    fg_corr: " + fg_corr);
-            //	Log.d(TAG, "    fden: " + fden);
-            //	Log.d(TAG, "    gden: " + gden);
-            //	Log.d(TAG, "    f_recip: " + f_recip);
-            //	Log.d(TAG, "    g_recip: " + g_recip);
-            //}
-            // negate, as we want it so that lower value means better match, and normalise to 0-1
-            match.distance = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+    /** Finds the corners in bitmap to use as features for autoAlignmentByFeature(), using the
+     *  current FeatureDetectorBackend. The corners are ordered by row, then by column.
+     *  Public for testing.
+     * @param feature_descriptor_radius Corners are only returned if they're at least this many
+     *                                  pixels from the edges of the bitmap.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Point [] detectFeatures(Bitmap bitmap, int feature_descriptor_radius) {
+        if( feature_detector_backend == FeatureDetectorBackend.FEATUREDETECTORBACKEND_JAVA ) {
+            return detectFeaturesJava(bitmap, feature_descriptor_radius);
         }
+        return detectFeaturesRenderscript(bitmap, feature_descriptor_radius);
     }
 
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
-        private final List<FeatureMatch> matches;
-        private final int st_indx;
-        private final int nd_indx;
-        private final int feature_descriptor_radius;
-        private final List<Bitmap> bitmaps;
-        private final int [] pixels0;
-        private final int [] pixels1;
+    /** Finds the corners in bitmap using JavaFeatureDetector. Rather than searching for a
+     *  threshold, the strongest max_corners corners of each chunk are taken.
+     */
+    private Point [] detectFeaturesJava(Bitmap bitmap, int feature_descriptor_radius) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if( javaFeatureDetector == null ) {
+            javaFeatureDetector = new JavaFeatureDetector();
+        }
+        int [] pixels = new int[width*height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        int [] corners = javaFeatureDetector.detect(pixels, width, height, feature_n_y_chunks_c,
+                feature_total_max_corners_c/feature_n_y_chunks_c, feature_min_threshold_c, feature_descriptor_radius);
+        Point [] points = new Point[corners.length];
+        for(int i=0;i<corners.length;i++) {
+            points[i] = new Point(corners[i] % width, corners[i] / width);
+        }
+        return points;
+    }
 
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-            this.matches = matches;
-            this.st_indx = st_indx;
-            this.nd_indx = nd_indx;
-            this.feature_descriptor_radius = feature_descriptor_radius;
-            this.bitmaps = bitmaps;
-            this.pixels0 = pixels0;
-            this.pixels1 = pixels1;
+    /** Finds the corners in bitmap using feature_detector.rs. For each chunk, the corner threshold
+     *  is searched for that gives between max_corners/2 and max_corners corners.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Point [] detectFeaturesRenderscript(Bitmap bitmap, int feature_descriptor_radius) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        initRenderscript();
+        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+
+        // create RenderScript
+		if( featureDetectorScript == null ) {
+            featureDetectorScript = new ScriptC_feature_detector(rs);
         }
 
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+        if( MyDebug.LOG )
+            Log.d(TAG, "convert to greyscale");
+        Allocation gs_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
+        //createMTBScript.set_out_bitmap(gs_allocation);
+        //createMTBScript.forEach_create_greyscale(allocations[i]);
+        featureDetectorScript.forEach_create_greyscale(allocation, gs_allocation);
+        //saveAllocation("gs_bitmap" + debug_index + "_" + i + ".png", gs_allocation);
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "compute derivatives");
+        Allocation ix_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
+        Allocation iy_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
+        featureDetectorScript.set_bitmap(gs_allocation);
+        featureDetectorScript.set_bitmap_Ix(ix_allocation);
+        featureDetectorScript.set_bitmap_Iy(iy_allocation);
+        featureDetectorScript.forEach_compute_derivatives(gs_allocation);
+
+		/*if( MyDebug.LOG ) {
+			// debugging
+            byte [] bytes_x = new byte[width*height];
+            byte [] bytes_y = new byte[width*height];
+            ix_allocation.copyTo(bytes_x);
+            iy_allocation.copyTo(bytes_y);
+            int [] pixels_x = new int[width*height];
+            int [] pixels_y = new int[width*height];
+			for(int j=0;j<width*height;j++) {
+                int b = bytes_x[j];
+                if( b < 0 )
+                    b += 255;
+                pixels_x[j] = Color.argb(255, b, b, b);
+                b = bytes_y[j];
+                if( b < 0 )
+                    b += 255;
+                pixels_y[j] = Color.argb(255, b, b, b);
+			}
+            Bitmap bitmap_x = Bitmap.createBitmap(pixels_x, width, height, Bitmap.Config.ARGB_8888);
+            Bitmap bitmap_y = Bitmap.createBitmap(pixels_y, width, height, Bitmap.Config.ARGB_8888);
+            File file_x = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/ix_bitmap" + debug_index + "_" + i + ".png");
+            File file_y = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/iy_bitmap" + debug_index + "_" + i + ".png");
+			try {
+                MainActivity mActivity = (MainActivity) context;
+
+				OutputStream outputStream = new FileOutputStream(file_x);
+				bitmap_x.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+				outputStream.close();
+				mActivity.getStorageUtils().broadcastFile(file_x, true, false, true);
+
+                outputStream = new FileOutputStream(file_y);
+                bitmap_y.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+                outputStream.close();
+                mActivity.getStorageUtils().broadcastFile(file_y, true, false, true);
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+            bitmap_x.recycle();
+            bitmap_y.recycle();
+		}*/
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "call corner detector script");
+        Allocation strength_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32(rs), width, height));
+        featureDetectorScript.set_bitmap(gs_allocation);
+        featureDetectorScript.set_bitmap_Ix(ix_allocation);
+        featureDetectorScript.set_bitmap_Iy(iy_allocation);
+        featureDetectorScript.forEach_corner_detector(gs_allocation, strength_allocation);
+
+		/*if( MyDebug.LOG ) {
+			// debugging
+			float [] bytes = new float[width*height];
+			strength_allocation.copyTo(bytes);
+			int [] pixels = new int[width*height];
+			float max_value = 0.0f;
+			for(int j=0;j<width*height;j++) {
+				if( bytes[j] < 1.0f )
+					bytes[j] = 0.0f;
+				else
+					bytes[j] = (float)Math.log10(bytes[j]);
+				if( bytes[j] > max_value )
+					max_value = bytes[j];
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "strength max_value: " + max_value);
+			for(int j=0;j<width*height;j++) {
+				float value = bytes[j]/max_value;
+				int c = (int)(255.0f*value+0.5f);
+				if( c > 255 )
+					c = 255;
+				else if( c < 0 )
+					c = 0;
+				pixels[j] = Color.argb(255, c, c, c);
+			}
+			Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+			File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/corner_strength_bitmap" + debug_index + "_" + i + ".jpg");
+			try {
+				OutputStream outputStream = new FileOutputStream(file);
+				bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+				outputStream.close();
+				MainActivity mActivity = (MainActivity) context;
+				mActivity.getStorageUtils().broadcastFile(file, true, false, true);
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+			bitmap.recycle();
+		}*/
+
+        ix_allocation.destroy();
+        //noinspection UnusedAssignment
+        ix_allocation = null;
+        iy_allocation.destroy();
+        //noinspection UnusedAssignment
+        iy_allocation = null;
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "find local maxima");
+        // reuse gs_allocation (since it's on the same U8 type that we want)
+        Allocation local_max_features_allocation = gs_allocation;
+        //noinspection UnusedAssignment
+        gs_allocation = null;
+
+		/*featureDetectorScript.set_corner_threshold(100000000.0f);
+		featureDetectorScript.set_bitmap(strength_allocation);
+		featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation);
+		// collect points
+		byte [] bytes = new byte[width*height];
+		local_max_features_allocation.copyTo(bytes);
+		// find points
+		List<Point> points = new ArrayList<>();
+		for(int y=feature_descriptor_radius;y<height-feature_descriptor_radius;y++) {
+			for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
+				int j = y*width + x;
+				// remember, bytes are signed!
+				if( bytes[j] != 0 ) {
+					Point point = new Point(x, y);
+					points.add(point);
+				}
+			}
+		}
+		points_arrays[i] = points.toArray(new Point[0]);
+		*/
+
+        featureDetectorScript.set_bitmap(strength_allocation);
+        final int n_y_chunks = feature_n_y_chunks_c;
+        final int max_corners = feature_total_max_corners_c/n_y_chunks;
+        final int min_corners = max_corners/2;
+        byte [] bytes = new byte[width*height];
+
+        List<Point> all_points = new ArrayList<>();
+        for(int cy=0;cy<n_y_chunks;cy++) {
+            if( MyDebug.LOG )
+                Log.d(TAG, ">>> find corners, chunk " + cy + " / " + n_y_chunks);
+            float threshold = 5000000.0f;
+            final float min_threshold = feature_min_threshold_c;
+            float low_threshold = 0.0f;
+            float high_threshold = -1.0f;
+            int start_y = (cy*height)/n_y_chunks;
+            int stop_y = ((cy+1)*height)/n_y_chunks;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "    start_y: " + start_y);
+                Log.d(TAG, "    stop_y: " + stop_y);
+            }
+            final int max_iter = 10;
+            for(int count=0;;count++) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### attempt " + count + " try threshold: " + threshold + " [ " + low_threshold + " : " + high_threshold + " ]");
+                featureDetectorScript.set_corner_threshold(threshold);
+                Script.LaunchOptions launch_options = new Script.LaunchOptions();
+                launch_options.setX(0, width);
+                launch_options.setY(start_y, stop_y);
+                featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation, launch_options);
+
+                // collect points
+                local_max_features_allocation.copyTo(bytes);
+                // find points
+                List<Point> points = new ArrayList<>();
+                for(int y=Math.max(start_y, feature_descriptor_radius);y<Math.min(stop_y, height-feature_descriptor_radius);y++) {
+                    for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
+                        int j = y*width + x;
+                        // remember, bytes are signed!
+                        if( bytes[j] != 0 ) {
+                            Point point = new Point(x, y);
+                            points.add(point);
+                        }
+                    }
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    " + points.size() + " points");
+                if( points.size() >= min_corners && points.size() <= max_corners ) {
+                    all_points.addAll(points);
+                    break;
+                }
+                else if( points.size() < min_corners ) {
+                    if( threshold <= min_threshold ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "    hit minimum threshold: " + threshold);
+                        all_points.addAll(points);
+                        break;
+                    }
+                    else if( count+1 == max_iter ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "    too few points but hit max iterations: " + points.size());
+                        all_points.addAll(points);
+                        //if( true )
+                        //    throw new RuntimeException("too few points: " + points.size()); // test
+                        break;
+                    }
+                    else {
+                        high_threshold = threshold;
+                        threshold = 0.5f * ( low_threshold + threshold );
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "    reduced threshold to: " + threshold);
+						/*if( low_threshold == 0.0f ) {
+							throw new RuntimeException();
+						}*/
+						/*if( count == 0 ) {
+							throw new RuntimeException();
+						}*/
+                    }
+                }
+                else if( count+1 == max_iter ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "    too many points but hit max iterations: " + points.size());
+                    // arbitrarily take a subset
+                    points.subList(max_corners,points.size()).clear();
+                    all_points.addAll(points);
+                    //if( true )
+                    //    throw new RuntimeException("too many points: " + points.size()); // test
+                    break;
+                }
+                else {
+                    low_threshold = threshold;
+                    if( high_threshold < 0.0f ) {
+                        threshold *= 10.0f;
+                    }
+                    else
+                        threshold = 0.5f * ( threshold + high_threshold );
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "    increased threshold to: " + threshold);
+                }
+            }
         }
+        strength_allocation.destroy();
+        //noinspection UnusedAssignment
+        strength_allocation = null;
+
+        local_max_features_allocation.destroy();
+        //noinspection UnusedAssignment
+        local_max_features_allocation = null;
+
+        allocation.destroy();
+        //noinspection UnusedAssignment
+        allocation = null;
+
+        return all_points.toArray(new Point[0]);
     }
 
     static class AutoAlignmentByFeatureResult {
@@ -895,8 +1220,29 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Returns the transformation predicted by the gyro prior, in the form returned by
+     *  autoAlignmentByFeature().
+     */
+    private static AutoAlignmentByFeatureResult priorResult(int width, int height, PanoramaGyroPrior prior) {
+        // the prior rotates about the centre c and then translates by d, but we want to rotate about the origin and then translate:
+        // R[x-c] + c + d = R[x] + (d + c - R[c])
+        float centre_x = width/2.0f;
+        float centre_y = height/2.0f;
+        float rotated_centre_x = (float)(centre_x * Math.cos(prior.rotation) - centre_y * Math.sin(prior.rotation));
+        float rotated_centre_y = (float)(centre_x * Math.sin(prior.rotation) + centre_y * Math.cos(prior.rotation));
+        int offset_x = (int)(prior.offset_x + centre_x - rotated_centre_x + 0.5f);
+        int offset_y = (int)(prior.offset_y + centre_y - rotated_centre_y + 0.5f);
+        return new AutoAlignmentByFeatureResult(offset_x, offset_y, prior.rotation, 1.0f);
+    }
+
+    /** Finds the transformation to map bitmaps.get(0) onto bitmaps.get(1).
+     * @param prior If non-null, the transformation predicted from the gyro. Matches are first only
+     *              searched for near to where the prior predicts, falling back to searching the
+     *              whole of the images if too few are found. The prior is also returned if the
+     *              images don't have enough features to match (e.g., for low texture scenes).
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, int debug_index) throws PanoramaProcessorException {
+    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, PanoramaGyroPrior prior, int debug_index) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "autoAlignmentByFeature");
             Log.d(TAG, "width: " + width);
@@ -910,23 +1256,6 @@ public class PanoramaProcessor {
             throw new PanoramaProcessorException(PanoramaProcessorException.INVALID_N_IMAGES);
         }
 
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after initRenderscript: " + (System.currentTimeMillis() - time_s));
-        Allocation [] allocations = new Allocation[bitmaps.size()];
-        for(int i=0;i<bitmaps.size();i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after creating allocations: " + (System.currentTimeMillis() - time_s));
-
-        // create RenderScript
-		if( featureDetectorScript == null ) {
-            featureDetectorScript = new ScriptC_feature_detector(rs);
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after create featureDetectorScript: " + (System.currentTimeMillis() - time_s));
-
         //final int feature_descriptor_radius = 2; // radius of square used to compare features
         final int feature_descriptor_radius = 3; // radius of square used to compare features
         //final int feature_descriptor_radius = 5; // radius of square used to compare features
@@ -935,270 +1264,9 @@ public class PanoramaProcessor {
         for(int i=0;i<bitmaps.size();i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "detect features for image: " + i);
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "convert to greyscale");
-            Allocation gs_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            //createMTBScript.set_out_bitmap(gs_allocation);
-            //createMTBScript.forEach_create_greyscale(allocations[i]);
-            featureDetectorScript.forEach_create_greyscale(allocations[i], gs_allocation);
-            //saveAllocation("gs_bitmap" + debug_index + "_" + i + ".png", gs_allocation);
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "compute derivatives");
-            Allocation ix_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            Allocation iy_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_compute_derivatives(gs_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-                byte [] bytes_x = new byte[width*height];
-                byte [] bytes_y = new byte[width*height];
-                ix_allocation.copyTo(bytes_x);
-                iy_allocation.copyTo(bytes_y);
-                int [] pixels_x = new int[width*height];
-                int [] pixels_y = new int[width*height];
-				for(int j=0;j<width*height;j++) {
-                    int b = bytes_x[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_x[j] = Color.argb(255, b, b, b);
-                    b = bytes_y[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_y[j] = Color.argb(255, b, b, b);
-				}
-                Bitmap bitmap_x = Bitmap.createBitmap(pixels_x, width, height, Bitmap.Config.ARGB_8888);
-                Bitmap bitmap_y = Bitmap.createBitmap(pixels_y, width, height, Bitmap.Config.ARGB_8888);
-                File file_x = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/ix_bitmap" + debug_index + "_" + i + ".png");
-                File file_y = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/iy_bitmap" + debug_index + "_" + i + ".png");
-				try {
-                    MainActivity mActivity = (MainActivity) context;
-
-					OutputStream outputStream = new FileOutputStream(file_x);
-					bitmap_x.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-					outputStream.close();
-					mActivity.getStorageUtils().broadcastFile(file_x, true, false, true);
-
-                    outputStream = new FileOutputStream(file_y);
-                    bitmap_y.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-                    outputStream.close();
-                    mActivity.getStorageUtils().broadcastFile(file_y, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-                bitmap_x.recycle();
-                bitmap_y.recycle();
-			}*/
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "call corner detector script for image: " + i);
-            Allocation strength_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_corner_detector(gs_allocation, strength_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-				float [] bytes = new float[width*height];
-				strength_allocation.copyTo(bytes);
-				int [] pixels = new int[width*height];
-				float max_value = 0.0f;
-				for(int j=0;j<width*height;j++) {
-					if( bytes[j] < 1.0f )
-						bytes[j] = 0.0f;
-					else
-						bytes[j] = (float)Math.log10(bytes[j]);
-					if( bytes[j] > max_value )
-						max_value = bytes[j];
-				}
-				if( MyDebug.LOG )
-					Log.d(TAG, "strength max_value: " + max_value);
-				for(int j=0;j<width*height;j++) {
-					float value = bytes[j]/max_value;
-					int c = (int)(255.0f*value+0.5f);
-					if( c > 255 )
-						c = 255;
-					else if( c < 0 )
-						c = 0;
-					pixels[j] = Color.argb(255, c, c, c);
-				}
-				Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
-				File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/corner_strength_bitmap" + debug_index + "_" + i + ".jpg");
-				try {
-					OutputStream outputStream = new FileOutputStream(file);
-					bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-					outputStream.close();
-					MainActivity mActivity = (MainActivity) context;
-					mActivity.getStorageUtils().broadcastFile(file, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-				bitmap.recycle();
-			}*/
-
-            ix_allocation.destroy();
-            //noinspection UnusedAssignment
-            ix_allocation = null;
-            iy_allocation.destroy();
-            //noinspection UnusedAssignment
-            iy_allocation = null;
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "find local maxima for image: " + i);
-            // reuse gs_allocation (since it's on the same U8 type that we want)
-            Allocation local_max_features_allocation = gs_allocation;
-            //noinspection UnusedAssignment
-            gs_allocation = null;
-
-			/*featureDetectorScript.set_corner_threshold(100000000.0f);
-			featureDetectorScript.set_bitmap(strength_allocation);
-			featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation);
-			// collect points
-			byte [] bytes = new byte[width*height];
-			local_max_features_allocation.copyTo(bytes);
-			// find points
-			List<Point> points = new ArrayList<>();
-			for(int y=feature_descriptor_radius;y<height-feature_descriptor_radius;y++) {
-				for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-					int j = y*width + x;
-					// remember, bytes are signed!
-					if( bytes[j] != 0 ) {
-						Point point = new Point(x, y);
-						points.add(point);
-					}
-				}
-			}
-			points_arrays[i] = points.toArray(new Point[0]);
-			*/
-
-            featureDetectorScript.set_bitmap(strength_allocation);
-            //final int n_y_chunks = 1;
-            final int n_y_chunks = 2;
-            //final int n_y_chunks = 3;
-            //final int n_y_chunks = 4;
-            //final int total_max_corners = 500;
-            final int total_max_corners = 200;
-            final int max_corners = total_max_corners/n_y_chunks;
-            final int min_corners = max_corners/2;
-            byte [] bytes = new byte[width*height];
-
-            List<Point> all_points = new ArrayList<>();
-            for(int cy=0;cy<n_y_chunks;cy++) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, ">>> find corners, chunk " + cy + " / " + n_y_chunks);
-                float threshold = 5000000.0f;
-                // setting a min_threshold fixes testPanorama11, also helps testPanorama1
-                // note that this needs to be at least 1250000.0f - at 625000.0f, testPanorama1
-                // still has problems and in fact ends up being worse than having no min threshold
-                final float min_threshold = 1250000.0f;
-                //final float min_threshold = 625000.0f;
-                float low_threshold = 0.0f;
-                float high_threshold = -1.0f;
-                int start_y = (cy*height)/n_y_chunks;
-                int stop_y = ((cy+1)*height)/n_y_chunks;
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    start_y: " + start_y);
-                    Log.d(TAG, "    stop_y: " + stop_y);
-                }
-                final int max_iter = 10;
-                for(int count=0;;count++) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "### attempt " + count + " try threshold: " + threshold + " [ " + low_threshold + " : " + high_threshold + " ]");
-                    featureDetectorScript.set_corner_threshold(threshold);
-                    Script.LaunchOptions launch_options = new Script.LaunchOptions();
-                    launch_options.setX(0, width);
-                    launch_options.setY(start_y, stop_y);
-                    featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation, launch_options);
-
-                    // collect points
-                    local_max_features_allocation.copyTo(bytes);
-                    // find points
-                    List<Point> points = new ArrayList<>();
-                    for(int y=Math.max(start_y, feature_descriptor_radius);y<Math.min(stop_y, height-feature_descriptor_radius);y++) {
-                        for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-                            int j = y*width + x;
-                            // remember, bytes are signed!
-                            if( bytes[j] != 0 ) {
-                                Point point = new Point(x, y);
-                                points.add(point);
-                            }
-                        }
-                    }
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "    " + points.size() + " points");
-                    if( points.size() >= min_corners && points.size() <= max_corners ) {
-                        all_points.addAll(points);
-                        break;
-                    }
-                    else if( points.size() < min_corners ) {
-                        if( threshold <= min_threshold ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    hit minimum threshold: " + threshold);
-                            all_points.addAll(points);
-                            break;
-                        }
-                        else if( count+1 == max_iter ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    too few points but hit max iterations: " + points.size());
-                            all_points.addAll(points);
-                            //if( true )
-                            //    throw new RuntimeException("too few points: " + points.size()); // test
-                            break;
-                        }
-                        else {
-                            high_threshold = threshold;
-                            threshold = 0.5f * ( low_threshold + threshold );
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    reduced threshold to: " + threshold);
-							/*if( low_threshold == 0.0f ) {
-								throw new RuntimeException();
-							}*/
-							/*if( count == 0 ) {
-								throw new RuntimeException();
-							}*/
-                        }
-                    }
-                    else if( count+1 == max_iter ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "    too many points but hit max iterations: " + points.size());
-                        // arbitrarily take a subset
-                        points.subList(max_corners,points.size()).clear();
-                        all_points.addAll(points);
-                        //if( true )
-                        //    throw new RuntimeException("too many points: " + points.size()); // test
-                        break;
-                    }
-                    else {
-                        low_threshold = threshold;
-                        if( high_threshold < 0.0f ) {
-                            threshold *= 10.0f;
-                        }
-                        else
-                            threshold = 0.5f * ( threshold + high_threshold );
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "    increased threshold to: " + threshold);
-                    }
-                }
-            }
-            points_arrays[i] = all_points.toArray(new Point[0]);
-
+            points_arrays[i] = detectFeatures(bitmaps.get(i), feature_descriptor_radius);
             if( MyDebug.LOG )
                 Log.d(TAG, "### image: " + i + " has " + points_arrays[i].length + " points");
-
-            strength_allocation.destroy();
-            //noinspection UnusedAssignment
-            strength_allocation = null;
-
-            local_max_features_allocation.destroy();
-            //noinspection UnusedAssignment
-            local_max_features_allocation = null;
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after feature detection: " + (System.currentTimeMillis() - time_s));
@@ -1211,121 +1279,116 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
+            if( prior != null ) {
+                return priorResult(width, height, prior);
             }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
+        if( prior != null ) {
+            AutoAlignmentByFeatureResult res = matchFeatures(width, height, bitmaps, points_arrays, feature_descriptor_radius, prior, true, debug_index, time_s);
+            if( res != null ) {
+                return res;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "too few matches near gyro prior, fall back to full search");
+        }
+        return matchFeatures(width, height, bitmaps, points_arrays, feature_descriptor_radius, prior, false, debug_index, time_s);
+    }
+
+    /** Matches the features for autoAlignmentByFeature().
+     * @param use_prior_window If true, only consider matches within prior.tolerance of where the
+     *                         prior predicts, and return null if too few are found.
+     */
+    private AutoAlignmentByFeatureResult matchFeatures(int width, int height, List<Bitmap> bitmaps, Point [][] points_arrays, final int feature_descriptor_radius,
+                                                       PanoramaGyroPrior prior, boolean use_prior_window, int debug_index, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "matchFeatures, use_prior_window: " + use_prior_window);
         // generate candidate matches
-        //noinspection UnnecessaryLocalVariable
-        final int max_match_dist_x = width;
-        final int max_match_dist_y = height/16;
-        final int max_match_dist2 = max_match_dist_x*max_match_dist_x + max_match_dist_y*max_match_dist_y;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "max_match_dist_x: " + max_match_dist_x);
-            Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
-            Log.d(TAG, "max_match_dist2: " + max_match_dist2);
-        }
-        List<FeatureMatch> matches = new ArrayList<>();
-        for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
+        final int max_match_dist2;
+        if( use_prior_window ) {
+            final int max_match_dist = (int)Math.ceil(prior.tolerance);
+            max_match_dist2 = max_match_dist*max_match_dist;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "prior offset: " + prior.offset_x + " , " + prior.offset_y);
+                Log.d(TAG, "prior rotation: " + prior.rotation);
+                Log.d(TAG, "max_match_dist: " + max_match_dist);
             }
         }
+        else {
+            //noinspection UnnecessaryLocalVariable
+            final int max_match_dist_x = width;
+            final int max_match_dist_y = height/16;
+            max_match_dist2 = max_match_dist_x*max_match_dist_x + max_match_dist_y*max_match_dist_y;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "max_match_dist_x: " + max_match_dist_x);
+                Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
+                Log.d(TAG, "max_match_dist2: " + max_match_dist2);
+            }
+        }
+        int [][] points_x = new int[2][];
+        int [][] points_y = new int[2][];
+        for(int i=0;i<2;i++) {
+            points_x[i] = new int[points_arrays[i].length];
+            points_y[i] = new int[points_arrays[i].length];
+            for(int j=0;j<points_arrays[i].length;j++) {
+                points_x[i][j] = points_arrays[i][j].x;
+                points_y[i][j] = points_arrays[i][j].y;
+            }
+        }
+        int [] search_x0 = points_x[0];
+        int [] search_y0 = points_y[0];
+        if( use_prior_window ) {
+            // search around where the prior predicts each feature of the first image to be in the second image
+            final float centre_x = width/2.0f;
+            final float centre_y = height/2.0f;
+            final float cos_rotation = (float)Math.cos(prior.rotation);
+            final float sin_rotation = (float)Math.sin(prior.rotation);
+            search_x0 = new int[points_arrays[0].length];
+            search_y0 = new int[points_arrays[0].length];
+            for(int j=0;j<points_arrays[0].length;j++) {
+                float dx = points_x[0][j] - centre_x;
+                float dy = points_y[0][j] - centre_y;
+                search_x0[j] = (int)(dx * cos_rotation - dy * sin_rotation + centre_x + prior.offset_x + 0.5f);
+                search_y0[j] = (int)(dx * sin_rotation + dy * cos_rotation + centre_y + prior.offset_y + 0.5f);
+            }
+        }
+        // only consider a match if close enough in actual distance
+        JavaFeatureMatcher.Candidates candidates = JavaFeatureMatcher.findCandidates(search_x0, search_y0, points_x[1], points_y[1], max_match_dist2);
         if( MyDebug.LOG )
-            Log.d(TAG, "### possible matches: " + matches.size());
+            Log.d(TAG, "### possible matches: " + candidates.getNMatches());
+        if( use_prior_window && candidates.getNMatches() == 0 ) {
+            return null;
+        }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
         // compute distances between matches
+        List<FeatureMatch> matches = new ArrayList<>(candidates.getNMatches());
         {
             final int wid = 2*feature_descriptor_radius+1;
             final int wid2 = wid*wid;
-            int [] pixels0 = new int[points_arrays[0].length*wid2];
-            int [] pixels1 = new int[points_arrays[1].length*wid2];
-            for(int i=0;i<points_arrays[0].length;i++) {
-                int x = points_arrays[0][i].x;
-                int y = points_arrays[0][i].y;
-                bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            for(int i=0;i<points_arrays[1].length;i++) {
-                int x = points_arrays[1][i].x;
-                int y = points_arrays[1][i].y;
-                bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            // convert to greyscale
-            for(int i=0;i<pixels0.length;i++) {
-                int pixel = pixels0[i];
-                pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-            for(int i=0;i<pixels1.length;i++) {
-                int pixel = pixels1[i];
-                pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-
-            final boolean use_smp = true;
-            if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
-                if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
+            JavaFeatureMatcher.Descriptors [] descriptors = new JavaFeatureMatcher.Descriptors[2];
+            for(int i=0;i<2;i++) {
+                int [] patches = new int[points_arrays[i].length*wid2];
+                for(int j=0;j<points_arrays[i].length;j++) {
+                    int x = points_arrays[i][j].x;
+                    int y = points_arrays[i][j].y;
+                    bitmaps.get(i).getPixels(patches, j*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
+                descriptors[i] = JavaFeatureMatcher.createDescriptors(patches, points_arrays[i].length, feature_descriptor_radius);
             }
-            else {
-                int st_indx = 0, nd_indx = matches.size();
-				/*final int wid = 2*feature_descriptor_radius+1;
-				final int wid2 = wid*wid;
-				int [] pixels0 = new int[wid2];
-				int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### autoAlignmentByFeature: time after creating descriptors: " + (System.currentTimeMillis() - time_s));
+
+            if( javaFeatureMatcher == null ) {
+                javaFeatureMatcher = new JavaFeatureMatcher();
+            }
+            float [] distances = javaFeatureMatcher.computeDistances(candidates, descriptors[0], descriptors[1]);
+            for(int i=0;i<candidates.getNMatches();i++) {
+                FeatureMatch match = new FeatureMatch(candidates.getIndex0(i), candidates.getIndex1(i));
+                match.distance = distances[i];
+                matches.add(match);
             }
         }
         if( MyDebug.LOG )
@@ -1398,16 +1461,21 @@ public class PanoramaProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### found: " + actual_matches.size() + " matches");
         Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
+        // but don't want too few matches - need at least 4 to get a good transform for testPanorama18, images _2 to _3;
+        // and at least 5 to get good transform for testPanorama30_galaxys10e, images _0 to _1
+        //final int n_minimum_matches_c = 4;
+        final int n_minimum_matches_c = 5;
+        if( use_prior_window && actual_matches.size() < n_minimum_matches_c ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "too few matches near gyro prior");
+            return null;
+        }
 
         // but now choose only best actual matches
         // using 0.4 rather than 0.7 helps testPanorama15 images _5 to _6, to get rid of incorrect grass matches (together with Lowe's test)
         //int n_matches = (int)(actual_matches.size()*0.1)+1;
         int n_matches = (int)(actual_matches.size()*0.4)+1;
         //int n_matches = (int)(actual_matches.size()*0.7)+1;
-        // but don't want too few matches - need at least 4 to get a good transform for testPanorama18, images _2 to _3;
-        // and at least 5 to get good transform for testPanorama30_galaxys10e, images _0 to _1
-        //final int n_minimum_matches_c = 4;
-        final int n_minimum_matches_c = 5;
         /*if( n_matches < n_minimum_matches_c ) {
             throw new RuntimeException("n_matches: " + n_matches);
         }*/
@@ -1434,14 +1502,9 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
+            if( prior != null ) {
+                return priorResult(width, height, prior);
             }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
@@ -1464,6 +1527,9 @@ public class PanoramaProcessor {
             Log.d(TAG, "min_rotation_dist: " + min_rotation_dist);
         //final float min_rotation_dist2 = 1.0e-5f;
         final float min_rotation_dist2 = min_rotation_dist*min_rotation_dist;
+        // when searching near the prior, also reject rotations that would move the ends of the images by more than
+        // the prior's tolerance
+        final float max_prior_rotation_error = use_prior_window ? 2.0f*prior.tolerance/height : 0.0f;
 
         List<FeatureMatch> ransac_matches = new ArrayList<>(); // used for debugging: the matches that were used to define the transform
         if( use_ransac ) {
@@ -1577,6 +1643,9 @@ public class PanoramaProcessor {
                         if( Math.abs(angle) > 30.0f*Math.PI/180.0f ) {
                             // reject too large angles
                             continue;
+                        }
+                        if( use_prior_window && Math.abs(angle - prior.rotation) > max_prior_rotation_error ) {
+                            continue;
                         }
 						/*if( MyDebug.LOG ) {
 							Log.d(TAG, "ransac: " + i + " , " + j + ": ");
@@ -1675,6 +1744,11 @@ public class PanoramaProcessor {
             actual_matches = best_inliers;
             if( MyDebug.LOG )
                 Log.d(TAG, "### autoAlignmentByFeature: time after RANSAC: " + (System.currentTimeMillis() - time_s));
+            if( use_prior_window && actual_matches.size() < n_minimum_matches_c ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "too few inliers near gyro prior: " + actual_matches.size());
+                return null;
+            }
             if( MyDebug.LOG ) {
                 for(FeatureMatch match : actual_matches) {
                     Log.d(TAG, "    after ransac: actual match between " + match.index0 + " and " + match.index1 + " distance: " + match.distance);
@@ -1965,14 +2039,6 @@ public class PanoramaProcessor {
             bitmap.recycle();
         }
 
-        // free allocations
-        for(int i=0;i<allocations.length;i++) {
-            if( allocations[i] != null ) {
-                allocations[i].destroy();
-                allocations[i] = null;
-            }
-        }
-
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: total time: " + (System.currentTimeMillis() - time_s));
         return new AutoAlignmentByFeatureResult(offset_x, offset_y, rotation, y_scale);
@@ -2030,7 +2096,7 @@ public class PanoramaProcessor {
     }
 
     private Bitmap createProjectedBitmap(final Rect src_rect_workspace, final Rect dst_rect_workspace, final Bitmap bitmap, final Paint p, final int bitmap_width, final int bitmap_height, final double camera_angle, final int centre_shift_x) {
-        Bitmap projected_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
+        Bitmap projected_bitmap = createBitmap(bitmap_width, bitmap_height);
         {
             // project
             Canvas projected_canvas = new Canvas(projected_bitmap);
@@ -2083,9 +2149,16 @@ public class PanoramaProcessor {
         return projected_bitmap;
     }
 
+    /**
+     * @param blend_lhs    Workspace for blending with the previous image, of dimensions returned by
+     *                     getBlendBandWidth() and getBlendBandHeight(). Similarly for blend_rhs
+     *                     and blend_merged. These are reused for every image, so that we only ever
+     *                     need the memory for the band around a single seam.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void renderPanoramaImage(final int i, final int n_bitmaps, final Rect src_rect_workspace, final Rect dst_rect_workspace,
                                      final Bitmap bitmap, final Paint p, final int bitmap_width, final int bitmap_height,
+                                     final Bitmap blend_lhs, final Bitmap blend_rhs, final Bitmap blend_merged,
                                      final int blend_hwidth, final int slice_width, final int offset_x,
                                      final Bitmap panorama, final Canvas canvas, final int crop_x0, final int crop_y0,
                                      final int align_x, final int align_y, final int dst_offset_x, final int shift_stop_x, final int centre_shift_x,
@@ -2112,8 +2185,8 @@ public class PanoramaProcessor {
             final int blend_dimension = getBlendDimension();
 
             // ensure we blend images that are a multiple of blend_dimension
-            int blend_width = nextMultiple(2*blend_hwidth, blend_dimension);
-            int blend_height = nextMultiple(bitmap_height, blend_dimension);
+            int blend_width = getBlendBandWidth(blend_hwidth);
+            int blend_height = getBlendBandHeight(bitmap_height);
             if( MyDebug.LOG ) {
                 Log.d(TAG, "blend_dimension: " + blend_dimension);
                 Log.d(TAG, "blend_hwidth: " + blend_hwidth);
@@ -2130,7 +2203,9 @@ public class PanoramaProcessor {
             // For the y crop, there isn't any advantage to shifting.
 
             //Bitmap lhs = Bitmap.createBitmap(panorama, offset_x + dst_offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap lhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap lhs = blend_lhs;
+            // clear what was left from the previous image, in case the source rect runs off the panorama
+            lhs.eraseColor(Color.TRANSPARENT);
             {
                 Canvas lhs_canvas = new Canvas(lhs);
                 src_rect_workspace.set(offset_x + dst_offset_x - blend_hwidth, 0, offset_x + dst_offset_x + blend_hwidth, bitmap_height);
@@ -2141,7 +2216,8 @@ public class PanoramaProcessor {
             }
 
             //Bitmap rhs = Bitmap.createBitmap(projected_bitmap, offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap rhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap rhs = blend_rhs;
+            rhs.eraseColor(Color.TRANSPARENT);
             {
                 Canvas rhs_canvas = new Canvas(rhs);
                 src_rect_workspace.set(offset_x - blend_hwidth, 0, offset_x + blend_hwidth, bitmap_height);
@@ -2154,7 +2230,8 @@ public class PanoramaProcessor {
                 Log.d(TAG, "rhs dimensions: " + rhs.getWidth() + " x " + rhs.getHeight());
             }
             //Bitmap blended_bitmap = blend_panorama_alpha(lhs, rhs);
-            Bitmap blended_bitmap = blendPyramids(lhs, rhs);
+            Bitmap blended_bitmap = blend_merged;
+            blendPyramids(lhs, rhs, blended_bitmap);
             /*Bitmap blended_bitmap = Bitmap.createBitmap(2*blend_hwidth, bitmap_height, Bitmap.Config.ARGB_8888);
             Canvas blended_canvas = new Canvas(blended_bitmap);
             p.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.ADD));
@@ -2183,9 +2260,6 @@ public class PanoramaProcessor {
             // note it's intentional that we don't shift for crop_y0, see comment above
             canvas.drawBitmap(blended_bitmap, offset_x + dst_offset_x - blend_hwidth - crop_x0, 0, p);
 
-            lhs.recycle();
-            rhs.recycle();
-            blended_bitmap.recycle();
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after blending for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
@@ -2269,7 +2343,7 @@ public class PanoramaProcessor {
         p.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER)); // reset
         */
 
-        projected_bitmap.recycle();
+        freeBitmap(projected_bitmap);
         /*if( rotated_bitmap != null ) {
             rotated_bitmap.recycle();
         }*/
@@ -2558,7 +2632,7 @@ public class PanoramaProcessor {
     private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
                                            List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
                                            final int offset_x, final int slice_width, final int align_hwidth,
-                                           long time_s) throws PanoramaProcessorException {
+                                           PanoramaGyroPrior [] gyro_priors, long time_s) throws PanoramaProcessorException {
         Matrix cumulative_transform = new Matrix();
         int align_x = 0, align_y = 0;
         int dst_offset_x = 0;
@@ -2649,7 +2723,8 @@ public class PanoramaProcessor {
                 if( MyDebug.LOG )
                     Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
                 if( use_align_by_feature ) {
-                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
+                    PanoramaGyroPrior prior = gyro_priors != null && gyro_priors[i] != null ? gyro_priors[i].downscale(align_downsample) : null;
+                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, prior, i);
                     this_align_x = res.offset_x;
                     this_align_y = res.offset_y;
                     angle_z = res.rotation;
@@ -2816,6 +2891,18 @@ public class PanoramaProcessor {
         Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
         Canvas canvas = new Canvas(panorama);
 
+        // the bitmaps for blending the seams are allocated once and shared by all the images
+        Bitmap blend_lhs = null;
+        Bitmap blend_rhs = null;
+        Bitmap blend_merged = null;
+        if( bitmaps.size() > 1 && blend_hwidth > 0 ) {
+            int blend_width = getBlendBandWidth(blend_hwidth);
+            int blend_height = getBlendBandHeight(bitmap_height);
+            blend_lhs = createBitmap(blend_width, blend_height);
+            blend_rhs = createBitmap(blend_width, blend_height);
+            blend_merged = createBitmap(blend_width, blend_height);
+        }
+
         for(int i=0;i<bitmaps.size();i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "render bitmap: " + i);
@@ -2883,7 +2970,7 @@ public class PanoramaProcessor {
                 }
 
                 {
-                    Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
+                    Bitmap rotated_bitmap = createBitmap(bitmap_width, bitmap_height);
                     Canvas rotated_canvas = new Canvas(rotated_bitmap);
                     rotated_canvas.save();
 
@@ -2902,22 +2989,39 @@ public class PanoramaProcessor {
 
             renderPanoramaImage(i, bitmaps.size(), src_rect, dst_rect,
                     bitmap, p, bitmap_width, bitmap_height,
+                    blend_lhs, blend_rhs, blend_merged,
                     blend_hwidth, slice_width, offset_x,
                     panorama, canvas, crop_x0, crop_y0,
                     align_x, align_y, dst_offset_x, shift_stop_x, centre_shift_x,
                     camera_angle, time_s);
 
             if( free_bitmap ) {
-                bitmap.recycle();
+                freeBitmap(bitmap);
             }
 
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after rendering " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
+
+        if( blend_lhs != null ) {
+            freeBitmap(blend_lhs);
+            freeBitmap(blend_rhs);
+            freeBitmap(blend_merged);
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        return panorama(bitmaps, panorama_pics_per_screen, camera_angle_y, crop, null);
+    }
+
+    /**
+     * @param gyro_rotation_matrices If non-null, the gyro rotation matrix for each of the bitmaps
+     *                               (see PanoramaGyroPrior.computePriors()), used as the starting
+     *                               point for aligning the bitmaps.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop, List<float []> gyro_rotation_matrices) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "panorama");
             Log.d(TAG, "camera_angle_y: " + camera_angle_y);
@@ -2995,8 +3099,15 @@ public class PanoramaProcessor {
         List<Integer> align_x_values = new ArrayList<>();
         List<Integer> dst_offset_x_values = new ArrayList<>();
 
+        PanoramaGyroPrior [] gyro_priors = null;
+        if( gyro_rotation_matrices != null && gyro_rotation_matrices.size() == bitmaps.size() ) {
+            gyro_priors = PanoramaGyroPrior.computePriors(gyro_rotation_matrices, bitmap_width, camera_angle, panorama_pics_per_screen, Math.toRadians(gyro_prior_tolerance_degrees_c));
+            if( MyDebug.LOG )
+                Log.d(TAG, "gyro_priors: " + (gyro_priors != null));
+        }
+
         computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
-                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
+                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, gyro_priors, time_s);
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
         // the transforms
@@ -3120,7 +3231,7 @@ public class PanoramaProcessor {
             Log.d(TAG, "### time after rendering bitmaps: " + (System.currentTimeMillis() - time_s));
 
         for(Bitmap bitmap : bitmaps) {
-            bitmap.recycle();
+            freeBitmap(bitmap);
         }
         bitmaps.clear();
 
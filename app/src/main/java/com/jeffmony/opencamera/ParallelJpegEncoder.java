@@ -0,0 +1,423 @@
+package com.jeffmony.opencamera;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java baseline JPEG encoder that encodes the image on multiple threads. The image is split
+ *  into horizontal bands of whole MCU rows, and the restart interval is set to the number of MCUs
+ *  in a band, so each band can be encoded independently on a ForkJoinPool, and the results
+ *  concatenated with restart markers in between. The output is a standard baseline JPEG (YCbCr
+ *  with 4:2:0 chroma subsampling, and the standard Huffman tables), with the quantisation tables
+ *  scaled for the quality in the same way as libjpeg (so a given quality matches
+ *  Bitmap.compress()).
+ *  To limit memory, only a batch of bands is encoded at a time, and written out before the next
+ *  batch is started.
+ */
+public class ParallelJpegEncoder {
+    private static final String TAG = "ParallelJpegEncoder";
+
+    private static final int mcu_size_c = 16; // size of each MCU, for 4:2:0
+    private static final int band_mcu_rows_c = 4; // number of MCU rows in each band
+    private static final int batch_bands_per_thread_c = 2; // number of bands per thread to encode before writing them out
+
+    // standard quantisation tables, from Annex K.1 of the JPEG specification, in natural order
+    private static final int [] std_luminance_quant_table = {
+            16,  11,  10,  16,  24,  40,  51,  61,
+            12,  12,  14,  19,  26,  58,  60,  55,
+            14,  13,  16,  24,  40,  57,  69,  56,
+            14,  17,  22,  29,  51,  87,  80,  62,
+            18,  22,  37,  56,  68, 109, 103,  77,
+            24,  35,  55,  64,  81, 104, 113,  92,
+            49,  64,  78,  87, 103, 121, 120, 101,
+            72,  92,  95,  98, 112, 100, 103,  99
+    };
+    private static final int [] std_chrominance_quant_table = {
+            17,  18,  24,  47,  99,  99,  99,  99,
+            18,  21,  26,  66,  99,  99,  99,  99,
+            24,  26,  56,  99,  99,  99,  99,  99,
+            47,  66,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99
+    };
+    // scale factors for the AAN forward DCT
+    private static final double [] aan_scale_factors = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    /** Supplies the pixels to encode.
+     */
+    public interface PixelSource {
+        /** Reads the ARGB pixels (in the format returned by Bitmap.getPixels()) for the rows
+         *  [y, y+n_rows) into pixels, with a stride of the image width. This may be called from
+         *  several threads at once.
+         */
+        void getPixels(int [] pixels, int y, int n_rows);
+    }
+
+    private final ForkJoinPool pool;
+
+    /** Creates an encoder that runs on the ForkJoinPool shared with JavaHDRMerger.
+     */
+    public ParallelJpegEncoder() {
+        this(JavaHDRMerger.getSharedPool());
+    }
+
+    /** Creates an encoder that runs on the supplied pool (e.g., a pool with parallelism 1 to force
+     *  single threaded operation).
+     */
+    public ParallelJpegEncoder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Scales the standard quantisation table for the quality, as jpeg_quality_scaling() and
+     *  jpeg_add_quant_table() in libjpeg.
+     */
+    private static int [] getQuantTable(int [] std_table, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - 2*quality;
+        int [] table = new int[64];
+        for(int i=0;i<64;i++) {
+            int value = (std_table[i] * scale + 50) / 100;
+            table[i] = Math.max(1, Math.min(255, value));
+        }
+        return table;
+    }
+
+    /** Returns the multipliers to convert the output of forwardDCT() to quantised coefficients.
+     */
+    private static float [] getDivisors(int [] quant_table) {
+        float [] divisors = new float[64];
+        for(int i=0;i<64;i++) {
+            divisors[i] = (float)(1.0 / (quant_table[i] * aan_scale_factors[i >> 3] * aan_scale_factors[i & 7] * 8.0));
+        }
+        return divisors;
+    }
+
+    /** The data shared between the tasks for a single image.
+     */
+    private static class EncodeState {
+        final PixelSource source;
+        final int width;
+        final int height;
+        final int mcus_x;
+        final int band_mcu_rows;
+        final int n_bands;
+        final float [] luminance_divisors;
+        final float [] chrominance_divisors;
+        final JpegTransformer.JpegWriter [] outputs; // the encoded data for each band in the current batch
+        int batch_start; // the first band in the current batch
+
+        EncodeState(PixelSource source, int width, int height, int mcus_x, int band_mcu_rows, int n_bands, float [] luminance_divisors, float [] chrominance_divisors, int batch_size) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.mcus_x = mcus_x;
+            this.band_mcu_rows = band_mcu_rows;
+            this.n_bands = n_bands;
+            this.luminance_divisors = luminance_divisors;
+            this.chrominance_divisors = chrominance_divisors;
+            this.outputs = new JpegTransformer.JpegWriter[batch_size];
+        }
+    }
+
+    private static class EncodeTask extends RecursiveAction {
+        private final EncodeState state;
+        private final int band_start;
+        private final int band_end;
+
+        EncodeTask(EncodeState state, int band_start, int band_end) {
+            this.state = state;
+            this.band_start = band_start;
+            this.band_end = band_end;
+        }
+
+        @Override
+        protected void compute() {
+            int n_bands = band_end - band_start;
+            if( n_bands > 1 ) {
+                int band_mid = band_start + n_bands/2;
+                invokeAll(new EncodeTask(state, band_start, band_mid), new EncodeTask(state, band_mid, band_end));
+                return;
+            }
+            state.outputs[band_start - state.batch_start] = encodeBand(state, band_start);
+        }
+    }
+
+    /** Encodes the image, writing the JPEG to outputStream.
+     * @param quality The JPEG quality, from 1 to 100.
+     */
+    public void encode(PixelSource source, int width, int height, int quality, OutputStream outputStream) throws IOException {
+        if( width <= 0 || height <= 0 || width > 65535 || height > 65535 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid size: " + width + " x " + height);
+        }
+        long time_s = 0;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "encode: " + width + " x " + height + " quality " + quality);
+            time_s = System.currentTimeMillis();
+        }
+        int [] luminance_quant_table = getQuantTable(std_luminance_quant_table, quality);
+        int [] chrominance_quant_table = getQuantTable(std_chrominance_quant_table, quality);
+        int mcus_x = (width + mcu_size_c - 1) / mcu_size_c;
+        int mcus_y = (height + mcu_size_c - 1) / mcu_size_c;
+        // the restart interval is stored as 16 bits
+        int band_mcu_rows = Math.max(1, Math.min(band_mcu_rows_c, 65535 / mcus_x));
+        int n_bands = (mcus_y + band_mcu_rows - 1) / band_mcu_rows;
+        int batch_size = batch_bands_per_thread_c * pool.getParallelism();
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_bands: " + n_bands + " band_mcu_rows: " + band_mcu_rows);
+
+        JpegTransformer.JpegWriter header = new JpegTransformer.JpegWriter(1024);
+        writeHeader(header, width, height, luminance_quant_table, chrominance_quant_table, n_bands > 1 ? mcus_x * band_mcu_rows : 0);
+        header.writeTo(outputStream);
+
+        EncodeState state = new EncodeState(source, width, height, mcus_x, band_mcu_rows, n_bands,
+                getDivisors(luminance_quant_table), getDivisors(chrominance_quant_table), batch_size);
+        for(int batch_start=0;batch_start<n_bands;batch_start+=batch_size) {
+            int batch_end = Math.min(batch_start + batch_size, n_bands);
+            state.batch_start = batch_start;
+            pool.invoke(new EncodeTask(state, batch_start, batch_end));
+            for(int band=batch_start;band<batch_end;band++) {
+                state.outputs[band - batch_start].writeTo(outputStream);
+                state.outputs[band - batch_start] = null;
+            }
+        }
+        outputStream.write(new byte[]{(byte)0xFF, (byte)0xD9});
+        if( MyDebug.LOG )
+            Log.d(TAG, "encode time: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Encodes the supplied pixels (width*height entries, in the format returned by
+     *  Bitmap.getPixels()).
+     */
+    public byte [] encode(final int [] pixels, final int width, int height, int quality) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encode(new PixelSource() {
+                @Override
+                public void getPixels(int [] band_pixels, int y, int n_rows) {
+                    System.arraycopy(pixels, y*width, band_pixels, 0, n_rows*width);
+                }
+            }, width, height, quality, stream);
+        }
+        catch(IOException e) {
+            // shouldn't happen for ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void writeQuantTable(JpegTransformer.JpegWriter writer, int table_id, int [] table) {
+        writer.writeByte(table_id);
+        for(int i=0;i<64;i++) {
+            writer.writeByte(table[JpegTransformer.zigzag[i]]);
+        }
+    }
+
+    private static void writeHeader(JpegTransformer.JpegWriter writer, int width, int height, int [] luminance_quant_table, int [] chrominance_quant_table, int restart_interval) {
+        writer.writeU16(0xFFD8);
+
+        // JFIF header
+        writer.writeU16(0xFFE0);
+        writer.writeU16(16);
+        writer.writeByte('J');
+        writer.writeByte('F');
+        writer.writeByte('I');
+        writer.writeByte('F');
+        writer.writeByte(0);
+        writer.writeU16(0x0101); // version
+        writer.writeByte(0); // no units
+        writer.writeU16(1); // pixel aspect ratio
+        writer.writeU16(1);
+        writer.writeByte(0); // no thumbnail
+        writer.writeByte(0);
+
+        writer.writeU16(0xFFDB);
+        writer.writeU16(2 + 2*65);
+        writeQuantTable(writer, 0, luminance_quant_table);
+        writeQuantTable(writer, 1, chrominance_quant_table);
+
+        writer.writeU16(0xFFC0);
+        writer.writeU16(2 + 6 + 3*3);
+        writer.writeByte(8);
+        writer.writeU16(height);
+        writer.writeU16(width);
+        writer.writeByte(3);
+        writer.writeByte(1); // Y
+        writer.writeByte(0x22);
+        writer.writeByte(0);
+        writer.writeByte(2); // Cb
+        writer.writeByte(0x11);
+        writer.writeByte(1);
+        writer.writeByte(3); // Cr
+        writer.writeByte(0x11);
+        writer.writeByte(1);
+
+        JpegTransformer.writeStandardHuffmanTables(writer, true);
+
+        if( restart_interval > 0 ) {
+            writer.writeU16(0xFFDD);
+            writer.writeU16(4);
+            writer.writeU16(restart_interval);
+        }
+
+        writer.writeU16(0xFFDA);
+        writer.writeU16(2 + 1 + 2*3 + 3);
+        writer.writeByte(3);
+        writer.writeByte(1);
+        writer.writeByte(0x00);
+        writer.writeByte(2);
+        writer.writeByte(0x11);
+        writer.writeByte(3);
+        writer.writeByte(0x11);
+        writer.writeByte(0);
+        writer.writeByte(63);
+        writer.writeByte(0);
+    }
+
+    /** Encodes a band of MCU rows. As the restart interval is the size of a band, the band starts
+     *  with the DC predictions reset, and is followed by a restart marker (unless it's the last
+     *  band).
+     */
+    private static JpegTransformer.JpegWriter encodeBand(EncodeState state, int band) {
+        final int width = state.width;
+        int y_start = band * state.band_mcu_rows * mcu_size_c;
+        int n_rows = Math.min(state.band_mcu_rows * mcu_size_c, state.height - y_start);
+        int [] pixels = new int[width * n_rows];
+        state.source.getPixels(pixels, y_start, n_rows);
+
+        // convert to YCbCr, with the chroma subsampled 2x2, and padded to whole MCUs by repeating
+        // the last column and row
+        int plane_width = state.mcus_x * mcu_size_c;
+        int plane_height = ((n_rows + mcu_size_c - 1) / mcu_size_c) * mcu_size_c;
+        int chroma_width = plane_width/2;
+        float [] luma = new float[plane_width * plane_height];
+        float [] cb = new float[chroma_width * plane_height/2];
+        float [] cr = new float[chroma_width * plane_height/2];
+        for(int y=0;y<plane_height;y+=2) {
+            int chroma_index = (y/2) * chroma_width;
+            for(int x=0;x<plane_width;x+=2,chroma_index++) {
+                float sum_cb = 0.0f, sum_cr = 0.0f;
+                for(int dy=0;dy<2;dy++) {
+                    int row = Math.min(y + dy, n_rows-1) * width;
+                    for(int dx=0;dx<2;dx++) {
+                        int color = pixels[row + Math.min(x + dx, width-1)];
+                        int r = (color >> 16) & 0xff;
+                        int g = (color >> 8) & 0xff;
+                        int b = color & 0xff;
+                        // level shift by 128, so the luma is centred on 0 for the DCT
+                        luma[(y + dy) * plane_width + x + dx] = 0.299f*r + 0.587f*g + 0.114f*b - 128.0f;
+                        sum_cb += -0.168736f*r - 0.331264f*g + 0.5f*b;
+                        sum_cr += 0.5f*r - 0.418688f*g - 0.081312f*b;
+                    }
+                }
+                cb[chroma_index] = 0.25f * sum_cb;
+                cr[chroma_index] = 0.25f * sum_cr;
+            }
+        }
+
+        JpegTransformer.JpegWriter writer = new JpegTransformer.JpegWriter(pixels.length / 4);
+        float [] block = new float[64];
+        int [] coefficients = new int[64];
+        int dc_y = 0, dc_cb = 0, dc_cr = 0;
+        for(int mcu_y=0;mcu_y<plane_height/mcu_size_c;mcu_y++) {
+            for(int mcu_x=0;mcu_x<state.mcus_x;mcu_x++) {
+                for(int by=0;by<2;by++) {
+                    for(int bx=0;bx<2;bx++) {
+                        readBlock(luma, plane_width, mcu_x*mcu_size_c + bx*8, mcu_y*mcu_size_c + by*8, block);
+                        quantiseBlock(block, state.luminance_divisors, coefficients);
+                        JpegTransformer.encodeBlock(writer, JpegTransformer.dc_luminance_encoder, JpegTransformer.ac_luminance_encoder, coefficients, dc_y);
+                        dc_y = coefficients[0];
+                    }
+                }
+                readBlock(cb, chroma_width, mcu_x*8, mcu_y*8, block);
+                quantiseBlock(block, state.chrominance_divisors, coefficients);
+                JpegTransformer.encodeBlock(writer, JpegTransformer.dc_chrominance_encoder, JpegTransformer.ac_chrominance_encoder, coefficients, dc_cb);
+                dc_cb = coefficients[0];
+                readBlock(cr, chroma_width, mcu_x*8, mcu_y*8, block);
+                quantiseBlock(block, state.chrominance_divisors, coefficients);
+                JpegTransformer.encodeBlock(writer, JpegTransformer.dc_chrominance_encoder, JpegTransformer.ac_chrominance_encoder, coefficients, dc_cr);
+                dc_cr = coefficients[0];
+            }
+        }
+        writer.flushBits();
+        if( band < state.n_bands-1 ) {
+            writer.writeU16(0xFFD0 + (band % 8));
+        }
+        return writer;
+    }
+
+    private static void readBlock(float [] plane, int stride, int x, int y, float [] block) {
+        for(int i=0;i<8;i++) {
+            System.arraycopy(plane, (y + i) * stride + x, block, i*8, 8);
+        }
+    }
+
+    /** Applies the forward DCT to the block, and quantises the result into coefficients (in
+     *  natural order).
+     */
+    private static void quantiseBlock(float [] block, float [] divisors, int [] coefficients) {
+        forwardDCT(block);
+        for(int i=0;i<64;i++) {
+            int value = Math.round(block[i] * divisors[i]);
+            // clamp to the range that can be coded for 8-bit precision
+            coefficients[i] = Math.max(-1023, Math.min(1023, value));
+        }
+    }
+
+    /** In-place forward DCT, using the floating point AAN algorithm as in jfdctflt.c from libjpeg.
+     *  The output is scaled by 8 times the aan_scale_factors for each row and column, which are
+     *  included in the divisors.
+     */
+    private static void forwardDCT(float [] data) {
+        // rows, then columns
+        for(int pass=0;pass<2;pass++) {
+            int step = pass == 0 ? 1 : 8; // step between elements
+            int next = pass == 0 ? 8 : 1; // step between rows or columns
+            for(int i=0;i<8;i++) {
+                int o = i * next;
+                float tmp0 = data[o] + data[o + 7*step];
+                float tmp7 = data[o] - data[o + 7*step];
+                float tmp1 = data[o + step] + data[o + 6*step];
+                float tmp6 = data[o + step] - data[o + 6*step];
+                float tmp2 = data[o + 2*step] + data[o + 5*step];
+                float tmp5 = data[o + 2*step] - data[o + 5*step];
+                float tmp3 = data[o + 3*step] + data[o + 4*step];
+                float tmp4 = data[o + 3*step] - data[o + 4*step];
+
+                // even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[o] = tmp10 + tmp11;
+                data[o + 4*step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[o + 2*step] = tmp13 + z1;
+                data[o + 6*step] = tmp13 - z1;
+
+                // odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[o + 5*step] = z13 + z2;
+                data[o + 3*step] = z13 - z2;
+                data[o + step] = z11 + z4;
+                data[o + 7*step] = z11 - z4;
+            }
+        }
+    }
+}
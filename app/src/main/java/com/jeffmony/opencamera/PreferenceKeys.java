@@ -216,6 +216,19 @@ public class PreferenceKeys {
 
     public static final String SaveLocationHistorySAFBasePreferenceKey = "save_location_history_saf";
 
+    // the following are used by LatestMediaIndex, rather than being user preferences - they're stored in
+    // LatestMediaIndex's own preferences file, rather than the default shared preferences
+
+    public static final String LatestMediaFolderPreferenceKey = "latest_media_folder";
+
+    public static final String LatestMediaUriPreferenceKey = "latest_media_uri";
+
+    public static final String LatestMediaMediaStoreUriPreferenceKey = "latest_media_mediastore_uri";
+
+    public static final String LatestMediaVideoPreferenceKey = "latest_media_video";
+
+    public static final String LatestMediaRawPreferenceKey = "latest_media_raw";
+
     public static final String SavePhotoPrefixPreferenceKey = "preference_save_photo_prefix";
 
     public static final String SaveVideoPrefixPreferenceKey = "preference_save_video_prefix";
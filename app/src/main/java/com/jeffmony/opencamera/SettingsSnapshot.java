@@ -0,0 +1,529 @@
+package com.jeffmony.opencamera;
+
+import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.preview.Preview;
+
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** An immutable copy of the preferences that are read when taking photos or drawing the preview,
+ *  already parsed into primitives and enums. MyApplicationInterface rebuilds this whenever the
+ *  shared preferences change, so that code that runs per photo or per frame can read fields
+ *  instead of looking up and parsing the preferences each time.
+ *  Only the user's preferences are stored here - whether a setting is actually available (e.g.,
+ *  whether the camera supports the photo mode) is still checked by the callers.
+ */
+public class SettingsSnapshot {
+    private static final String TAG = "SettingsSnapshot";
+
+    public enum GhostImage {
+        OFF,
+        LAST,
+        SELECTED
+    }
+
+    public enum Grid {
+        NONE,
+        GRID_3X3,
+        PHI_3X3,
+        GRID_4X2,
+        CROSSHAIR,
+        GOLDEN_SPIRAL_RIGHT,
+        GOLDEN_SPIRAL_LEFT,
+        GOLDEN_SPIRAL_UPSIDE_DOWN_RIGHT,
+        GOLDEN_SPIRAL_UPSIDE_DOWN_LEFT,
+        GOLDEN_TRIANGLE_1,
+        GOLDEN_TRIANGLE_2,
+        DIAGONALS
+    }
+
+    // photo mode and capture
+    public final MyApplicationInterface.PhotoMode photo_mode; // the requested photo mode, before checking if it's supported
+    public final int image_quality; // the jpeg quality for saving, as set by the user
+    public final ImageSaver.Request.ImageFormat image_format;
+    public final boolean raw; // whether RAW+JPEG or RAW only is enabled
+    public final boolean raw_only;
+    public final boolean allow_raw_for_expo_bracketing;
+    public final boolean allow_raw_for_focus_bracketing;
+    public final boolean hdr_save_expo;
+    public final HDRProcessor.TonemappingAlgorithm hdr_tonemapping_algorithm;
+    public final String hdr_contrast_enhancement;
+    public final ImageSaver.Request.SaveBase nr_save_base;
+    public final ImageSaver.Request.SaveBase panorama_save_base;
+    public final boolean panorama_crop;
+    public final int fast_burst_n_images;
+    public final int expo_bracketing_n_images;
+    public final double expo_bracketing_stops;
+    public final int focus_bracketing_n_images;
+    public final boolean focus_bracketing_add_infinity;
+    public final String iso;
+    public final boolean face_detection;
+    public final long timer_delay; // in ms
+    public final boolean timer_beep;
+    public final boolean timer_speak;
+    public final String repeat_mode;
+    public final long repeat_interval; // in ms
+    public final boolean pause_preview;
+    public final boolean shutter_sound;
+    public final boolean show_toasts;
+    public final boolean thumbnail_animation;
+    public final boolean touch_capture;
+    public final boolean double_tap_capture;
+    public final boolean mirror_front_photo;
+    public final boolean auto_stabilise; // the preference, not checking whether auto-stabilise is supported
+    public final boolean camera2_fake_flash;
+    public final boolean camera2_dummy_capture_hack;
+    public final boolean camera2_fast_burst;
+    public final boolean camera2_photo_video_recording;
+
+    // location and exif
+    public final boolean geotagging;
+    public final boolean require_location;
+    public final boolean geodirection;
+    public final boolean add_ypr_to_comments;
+    public final ImageSaver.Request.RemoveDeviceExif remove_device_exif;
+    public final String exif_artist;
+    public final String exif_copyright;
+
+    // stamp
+    public final String stamp; // passed to ImageSaver.Request.preference_stamp
+    public final boolean has_stamp;
+    public final String text_stamp;
+    public final int stamp_font_size;
+    public final int stamp_font_color;
+    public final String stamp_style;
+    public final String stamp_date_format;
+    public final String stamp_time_format;
+    public final String stamp_gps_format;
+    public final String units_distance;
+
+    // on screen display
+    public final boolean show_time;
+    public final boolean show_camera_id;
+    public final boolean show_free_memory;
+    public final boolean show_iso;
+    public final boolean show_video_max_amp;
+    public final boolean show_zoom;
+    public final boolean show_battery;
+    public final boolean show_angle;
+    public final int angle_highlight_color;
+    public final boolean show_geo_direction;
+    public final boolean show_angle_line;
+    public final boolean show_pitch_lines;
+    public final boolean show_geo_direction_lines;
+    public final boolean take_photo_border;
+    public final boolean preview_size_wysiwyg;
+    public final boolean immersive_mode_everything;
+    public final Grid grid;
+    public final double crop_guide_ratio; // or -1.0 if no crop guide
+    public final GhostImage ghost_image;
+    public final String ghost_selected_image;
+    public final int ghost_image_alpha; // from 0 to 255
+    public final Preview.HistogramType histogram_type; // or null if the histogram is disabled
+    public final int zebra_stripes_threshold; // or 0 if zebra stripes are disabled
+    public final int zebra_stripes_color_foreground;
+    public final int zebra_stripes_color_background;
+    public final boolean focus_peaking;
+    public final int focus_peaking_color;
+
+    /** The preference keys read by the constructor. MyApplicationInterface only rebuilds the
+     *  snapshot when one of these changes, so this must be updated whenever a preference is added
+     *  to the snapshot.
+     */
+    private static final Set<String> keys = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            PreferenceKeys.PhotoModePreferenceKey,
+            PreferenceKeys.QualityPreferenceKey,
+            PreferenceKeys.ImageFormatPreferenceKey,
+            PreferenceKeys.RawPreferenceKey,
+            PreferenceKeys.AllowRawForExpoBracketingPreferenceKey,
+            PreferenceKeys.AllowRawForFocusBracketingPreferenceKey,
+            PreferenceKeys.HDRSaveExpoPreferenceKey,
+            PreferenceKeys.HDRTonemappingPreferenceKey,
+            PreferenceKeys.HDRContrastEnhancementPreferenceKey,
+            PreferenceKeys.NRSaveExpoPreferenceKey,
+            PreferenceKeys.PanoramaSaveExpoPreferenceKey,
+            PreferenceKeys.PanoramaCropPreferenceKey,
+            PreferenceKeys.FastBurstNImagesPreferenceKey,
+            PreferenceKeys.ExpoBracketingNImagesPreferenceKey,
+            PreferenceKeys.ExpoBracketingStopsPreferenceKey,
+            PreferenceKeys.FocusBracketingNImagesPreferenceKey,
+            PreferenceKeys.FocusBracketingAddInfinityPreferenceKey,
+            PreferenceKeys.ISOPreferenceKey,
+            PreferenceKeys.FaceDetectionPreferenceKey,
+            PreferenceKeys.TimerPreferenceKey,
+            PreferenceKeys.TimerBeepPreferenceKey,
+            PreferenceKeys.TimerSpeakPreferenceKey,
+            PreferenceKeys.RepeatModePreferenceKey,
+            PreferenceKeys.RepeatIntervalPreferenceKey,
+            PreferenceKeys.PausePreviewPreferenceKey,
+            PreferenceKeys.ShutterSoundPreferenceKey,
+            PreferenceKeys.ShowToastsPreferenceKey,
+            PreferenceKeys.ThumbnailAnimationPreferenceKey,
+            PreferenceKeys.TouchCapturePreferenceKey,
+            PreferenceKeys.FrontCameraMirrorKey,
+            PreferenceKeys.AutoStabilisePreferenceKey,
+            PreferenceKeys.Camera2FakeFlashPreferenceKey,
+            PreferenceKeys.Camera2DummyCaptureHackPreferenceKey,
+            PreferenceKeys.Camera2FastBurstPreferenceKey,
+            PreferenceKeys.Camera2PhotoVideoRecordingPreferenceKey,
+            PreferenceKeys.LocationPreferenceKey,
+            PreferenceKeys.RequireLocationPreferenceKey,
+            PreferenceKeys.GPSDirectionPreferenceKey,
+            PreferenceKeys.AddYPRToComments,
+            PreferenceKeys.RemoveDeviceExifPreferenceKey,
+            PreferenceKeys.ExifArtistPreferenceKey,
+            PreferenceKeys.ExifCopyrightPreferenceKey,
+            PreferenceKeys.StampPreferenceKey,
+            PreferenceKeys.TextStampPreferenceKey,
+            PreferenceKeys.StampFontSizePreferenceKey,
+            PreferenceKeys.StampFontColorPreferenceKey,
+            PreferenceKeys.StampStyleKey,
+            PreferenceKeys.StampDateFormatPreferenceKey,
+            PreferenceKeys.StampTimeFormatPreferenceKey,
+            PreferenceKeys.StampGPSFormatPreferenceKey,
+            PreferenceKeys.UnitsDistancePreferenceKey,
+            PreferenceKeys.ShowTimePreferenceKey,
+            PreferenceKeys.ShowCameraIDPreferenceKey,
+            PreferenceKeys.ShowFreeMemoryPreferenceKey,
+            PreferenceKeys.ShowISOPreferenceKey,
+            PreferenceKeys.ShowVideoMaxAmpPreferenceKey,
+            PreferenceKeys.ShowZoomPreferenceKey,
+            PreferenceKeys.ShowBatteryPreferenceKey,
+            PreferenceKeys.ShowAnglePreferenceKey,
+            PreferenceKeys.ShowAngleHighlightColorPreferenceKey,
+            PreferenceKeys.ShowGeoDirectionPreferenceKey,
+            PreferenceKeys.ShowAngleLinePreferenceKey,
+            PreferenceKeys.ShowPitchLinesPreferenceKey,
+            PreferenceKeys.ShowGeoDirectionLinesPreferenceKey,
+            PreferenceKeys.TakePhotoBorderPreferenceKey,
+            PreferenceKeys.PreviewSizePreferenceKey,
+            PreferenceKeys.ImmersiveModePreferenceKey,
+            PreferenceKeys.ShowGridPreferenceKey,
+            PreferenceKeys.ShowCropGuidePreferenceKey,
+            PreferenceKeys.GhostImagePreferenceKey,
+            PreferenceKeys.GhostSelectedImageSAFPreferenceKey,
+            PreferenceKeys.GhostImageAlphaPreferenceKey,
+            PreferenceKeys.HistogramPreferenceKey,
+            PreferenceKeys.ZebraStripesPreferenceKey,
+            PreferenceKeys.ZebraStripesForegroundColorPreferenceKey,
+            PreferenceKeys.ZebraStripesBackgroundColorPreferenceKey,
+            PreferenceKeys.FocusPeakingPreferenceKey,
+            PreferenceKeys.FocusPeakingColorPreferenceKey
+    )));
+
+    /** Whether a change to the supplied preference key means the snapshot needs to be rebuilt.
+     * @param key The key that changed, or null if all the preferences were cleared.
+     */
+    static boolean usesKey(String key) {
+        return key == null || keys.contains(key);
+    }
+
+    SettingsSnapshot(SharedPreferences sharedPreferences) {
+        long debug_time = 0;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "SettingsSnapshot");
+            debug_time = System.nanoTime();
+        }
+
+        photo_mode = parsePhotoMode(sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std"));
+        image_quality = parseInt(sharedPreferences.getString(PreferenceKeys.QualityPreferenceKey, "90"), 90);
+        switch( sharedPreferences.getString(PreferenceKeys.ImageFormatPreferenceKey, "preference_image_format_jpeg") ) {
+            case "preference_image_format_webp":
+                image_format = ImageSaver.Request.ImageFormat.WEBP;
+                break;
+            case "preference_image_format_png":
+                image_format = ImageSaver.Request.ImageFormat.PNG;
+                break;
+            default:
+                image_format = ImageSaver.Request.ImageFormat.STD;
+                break;
+        }
+        String raw_pref = sharedPreferences.getString(PreferenceKeys.RawPreferenceKey, "preference_raw_no");
+        raw = raw_pref.equals("preference_raw_yes") || raw_pref.equals("preference_raw_only");
+        raw_only = raw_pref.equals("preference_raw_only");
+        allow_raw_for_expo_bracketing = sharedPreferences.getBoolean(PreferenceKeys.AllowRawForExpoBracketingPreferenceKey, true);
+        allow_raw_for_focus_bracketing = sharedPreferences.getBoolean(PreferenceKeys.AllowRawForFocusBracketingPreferenceKey, true);
+        hdr_save_expo = sharedPreferences.getBoolean(PreferenceKeys.HDRSaveExpoPreferenceKey, false);
+        String tonemapping_algorithm_pref = sharedPreferences.getString(PreferenceKeys.HDRTonemappingPreferenceKey, "preference_hdr_tonemapping_default");
+        switch( tonemapping_algorithm_pref ) {
+            case "preference_hdr_tonemapping_clamp":
+                hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP;
+                break;
+            case "preference_hdr_tonemapping_exponential":
+                hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL;
+                break;
+            case "preference_hdr_tonemapping_default": // reinhard
+                hdr_tonemapping_algorithm = HDRProcessor.default_tonemapping_algorithm_c;
+                break;
+            case "preference_hdr_tonemapping_aces":
+                hdr_tonemapping_algorithm = HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_ACES;
+                break;
+            default:
+                Log.e(TAG, "unhandled case for tonemapping: " + tonemapping_algorithm_pref);
+                hdr_tonemapping_algorithm = HDRProcessor.default_tonemapping_algorithm_c;
+                break;
+        }
+        hdr_contrast_enhancement = sharedPreferences.getString(PreferenceKeys.HDRContrastEnhancementPreferenceKey, "preference_hdr_contrast_enhancement_smart");
+        switch( sharedPreferences.getString(PreferenceKeys.NRSaveExpoPreferenceKey, "preference_nr_save_no") ) {
+            case "preference_nr_save_single":
+                nr_save_base = ImageSaver.Request.SaveBase.SAVEBASE_FIRST;
+                break;
+            case "preference_nr_save_all":
+                nr_save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL;
+                break;
+            default:
+                nr_save_base = ImageSaver.Request.SaveBase.SAVEBASE_NONE;
+                break;
+        }
+        switch( sharedPreferences.getString(PreferenceKeys.PanoramaSaveExpoPreferenceKey, "preference_panorama_save_no") ) {
+            case "preference_panorama_save_all":
+                panorama_save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL;
+                break;
+            case "preference_panorama_save_all_plus_debug":
+                panorama_save_base = ImageSaver.Request.SaveBase.SAVEBASE_ALL_PLUS_DEBUG;
+                break;
+            default:
+                panorama_save_base = ImageSaver.Request.SaveBase.SAVEBASE_NONE;
+                break;
+        }
+        panorama_crop = sharedPreferences.getString(PreferenceKeys.PanoramaCropPreferenceKey, "preference_panorama_crop_on").equals("preference_panorama_crop_on");
+        fast_burst_n_images = parseInt(sharedPreferences.getString(PreferenceKeys.FastBurstNImagesPreferenceKey, "5"), 5);
+        expo_bracketing_n_images = parseInt(sharedPreferences.getString(PreferenceKeys.ExpoBracketingNImagesPreferenceKey, "3"), 3);
+        String n_stops_s = sharedPreferences.getString(PreferenceKeys.ExpoBracketingStopsPreferenceKey, "2");
+        double n_stops;
+        try {
+            n_stops = Double.parseDouble(n_stops_s);
+        }
+        catch(NumberFormatException exception) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "n_stops_s invalid format: " + n_stops_s);
+            n_stops = 2.0;
+        }
+        expo_bracketing_stops = n_stops;
+        focus_bracketing_n_images = parseInt(sharedPreferences.getString(PreferenceKeys.FocusBracketingNImagesPreferenceKey, "3"), 3);
+        focus_bracketing_add_infinity = sharedPreferences.getBoolean(PreferenceKeys.FocusBracketingAddInfinityPreferenceKey, false);
+        iso = sharedPreferences.getString(PreferenceKeys.ISOPreferenceKey, CameraController.ISO_DEFAULT);
+        face_detection = sharedPreferences.getBoolean(PreferenceKeys.FaceDetectionPreferenceKey, false);
+        timer_delay = (long)parseInt(sharedPreferences.getString(PreferenceKeys.TimerPreferenceKey, "0"), 0) * 1000;
+        timer_beep = sharedPreferences.getBoolean(PreferenceKeys.TimerBeepPreferenceKey, true);
+        timer_speak = sharedPreferences.getBoolean(PreferenceKeys.TimerSpeakPreferenceKey, false);
+        repeat_mode = sharedPreferences.getString(PreferenceKeys.RepeatModePreferenceKey, "1");
+        String repeat_interval_value = sharedPreferences.getString(PreferenceKeys.RepeatIntervalPreferenceKey, "0");
+        long repeat_interval_ms;
+        try {
+            repeat_interval_ms = (long)(Float.parseFloat(repeat_interval_value) * 1000);
+        }
+        catch(NumberFormatException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to parse repeat interval value: " + repeat_interval_value);
+            repeat_interval_ms = 0;
+        }
+        repeat_interval = repeat_interval_ms;
+        pause_preview = sharedPreferences.getBoolean(PreferenceKeys.PausePreviewPreferenceKey, false);
+        shutter_sound = sharedPreferences.getBoolean(PreferenceKeys.ShutterSoundPreferenceKey, true);
+        show_toasts = sharedPreferences.getBoolean(PreferenceKeys.ShowToastsPreferenceKey, true);
+        thumbnail_animation = sharedPreferences.getBoolean(PreferenceKeys.ThumbnailAnimationPreferenceKey, true);
+        String touch_capture_pref = sharedPreferences.getString(PreferenceKeys.TouchCapturePreferenceKey, "none");
+        touch_capture = touch_capture_pref.equals("single");
+        double_tap_capture = touch_capture_pref.equals("double");
+        mirror_front_photo = sharedPreferences.getString(PreferenceKeys.FrontCameraMirrorKey, "preference_front_camera_mirror_no").equals("preference_front_camera_mirror_photo");
+        auto_stabilise = sharedPreferences.getBoolean(PreferenceKeys.AutoStabilisePreferenceKey, false);
+        camera2_fake_flash = sharedPreferences.getBoolean(PreferenceKeys.Camera2FakeFlashPreferenceKey, false);
+        camera2_dummy_capture_hack = sharedPreferences.getBoolean(PreferenceKeys.Camera2DummyCaptureHackPreferenceKey, false);
+        camera2_fast_burst = sharedPreferences.getBoolean(PreferenceKeys.Camera2FastBurstPreferenceKey, true);
+        camera2_photo_video_recording = sharedPreferences.getBoolean(PreferenceKeys.Camera2PhotoVideoRecordingPreferenceKey, true);
+
+        geotagging = sharedPreferences.getBoolean(PreferenceKeys.LocationPreferenceKey, false);
+        require_location = sharedPreferences.getBoolean(PreferenceKeys.RequireLocationPreferenceKey, false);
+        geodirection = sharedPreferences.getBoolean(PreferenceKeys.GPSDirectionPreferenceKey, false);
+        add_ypr_to_comments = sharedPreferences.getBoolean(PreferenceKeys.AddYPRToComments, false);
+        switch( sharedPreferences.getString(PreferenceKeys.RemoveDeviceExifPreferenceKey, "preference_remove_device_exif_off") ) {
+            case "preference_remove_device_exif_on":
+                remove_device_exif = ImageSaver.Request.RemoveDeviceExif.ON;
+                break;
+            case "preference_remove_device_exif_keep_datetime":
+                remove_device_exif = ImageSaver.Request.RemoveDeviceExif.KEEP_DATETIME;
+                break;
+            default:
+                remove_device_exif = ImageSaver.Request.RemoveDeviceExif.OFF;
+                break;
+        }
+        exif_artist = sharedPreferences.getString(PreferenceKeys.ExifArtistPreferenceKey, "");
+        exif_copyright = sharedPreferences.getString(PreferenceKeys.ExifCopyrightPreferenceKey, "");
+
+        stamp = sharedPreferences.getString(PreferenceKeys.StampPreferenceKey, "preference_stamp_no");
+        has_stamp = stamp.equals("preference_stamp_yes");
+        text_stamp = sharedPreferences.getString(PreferenceKeys.TextStampPreferenceKey, "");
+        stamp_font_size = parseInt(sharedPreferences.getString(PreferenceKeys.StampFontSizePreferenceKey, "12"), 12);
+        stamp_font_color = Color.parseColor(sharedPreferences.getString(PreferenceKeys.StampFontColorPreferenceKey, "#ffffff"));
+        stamp_style = sharedPreferences.getString(PreferenceKeys.StampStyleKey, "preference_stamp_style_shadowed");
+        stamp_date_format = sharedPreferences.getString(PreferenceKeys.StampDateFormatPreferenceKey, "preference_stamp_dateformat_default");
+        stamp_time_format = sharedPreferences.getString(PreferenceKeys.StampTimeFormatPreferenceKey, "preference_stamp_timeformat_default");
+        stamp_gps_format = sharedPreferences.getString(PreferenceKeys.StampGPSFormatPreferenceKey, "preference_stamp_gpsformat_default");
+        units_distance = sharedPreferences.getString(PreferenceKeys.UnitsDistancePreferenceKey, "preference_units_distance_m");
+
+        show_time = sharedPreferences.getBoolean(PreferenceKeys.ShowTimePreferenceKey, true);
+        show_camera_id = sharedPreferences.getBoolean(PreferenceKeys.ShowCameraIDPreferenceKey, true);
+        show_free_memory = sharedPreferences.getBoolean(PreferenceKeys.ShowFreeMemoryPreferenceKey, true);
+        show_iso = sharedPreferences.getBoolean(PreferenceKeys.ShowISOPreferenceKey, true);
+        show_video_max_amp = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
+        show_zoom = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
+        show_battery = sharedPreferences.getBoolean(PreferenceKeys.ShowBatteryPreferenceKey, true);
+        show_angle = sharedPreferences.getBoolean(PreferenceKeys.ShowAnglePreferenceKey, false);
+        angle_highlight_color = Color.parseColor(sharedPreferences.getString(PreferenceKeys.ShowAngleHighlightColorPreferenceKey, "#14e715"));
+        show_geo_direction = sharedPreferences.getBoolean(PreferenceKeys.ShowGeoDirectionPreferenceKey, false);
+        show_angle_line = sharedPreferences.getBoolean(PreferenceKeys.ShowAngleLinePreferenceKey, false);
+        show_pitch_lines = sharedPreferences.getBoolean(PreferenceKeys.ShowPitchLinesPreferenceKey, false);
+        show_geo_direction_lines = sharedPreferences.getBoolean(PreferenceKeys.ShowGeoDirectionLinesPreferenceKey, false);
+        take_photo_border = sharedPreferences.getBoolean(PreferenceKeys.TakePhotoBorderPreferenceKey, true);
+        preview_size_wysiwyg = sharedPreferences.getString(PreferenceKeys.PreviewSizePreferenceKey, "preference_preview_size_wysiwyg").equals("preference_preview_size_wysiwyg");
+        immersive_mode_everything = sharedPreferences.getString(PreferenceKeys.ImmersiveModePreferenceKey, "immersive_mode_low_profile").equals("immersive_mode_everything");
+        grid = parseGrid(sharedPreferences.getString(PreferenceKeys.ShowGridPreferenceKey, "preference_grid_none"));
+        crop_guide_ratio = parseCropGuide(sharedPreferences.getString(PreferenceKeys.ShowCropGuidePreferenceKey, "crop_guide_none"));
+        switch( sharedPreferences.getString(PreferenceKeys.GhostImagePreferenceKey, "preference_ghost_image_off") ) {
+            case "preference_ghost_image_last":
+                ghost_image = GhostImage.LAST;
+                break;
+            case "preference_ghost_image_selected":
+                ghost_image = GhostImage.SELECTED;
+                break;
+            default:
+                ghost_image = GhostImage.OFF;
+                break;
+        }
+        ghost_selected_image = sharedPreferences.getString(PreferenceKeys.GhostSelectedImageSAFPreferenceKey, "");
+        // we store the preference as a percentage from 0 to 100, but scale this to 0 to 255
+        ghost_image_alpha = (int)(parseInt(sharedPreferences.getString(PreferenceKeys.GhostImageAlphaPreferenceKey, "50"), 50)*2.55f+0.1f);
+        switch( sharedPreferences.getString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_off") ) {
+            case "preference_histogram_off":
+                histogram_type = null;
+                break;
+            case "preference_histogram_rgb":
+                histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_RGB;
+                break;
+            case "preference_histogram_luminance":
+                histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE;
+                break;
+            case "preference_histogram_intensity":
+                histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_INTENSITY;
+                break;
+            case "preference_histogram_lightness":
+                histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_LIGHTNESS;
+                break;
+            default:
+                histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_VALUE;
+                break;
+        }
+        zebra_stripes_threshold = parseInt(sharedPreferences.getString(PreferenceKeys.ZebraStripesPreferenceKey, "0"), 0);
+        zebra_stripes_color_foreground = Color.parseColor(sharedPreferences.getString(PreferenceKeys.ZebraStripesForegroundColorPreferenceKey, "#ff000000"));
+        zebra_stripes_color_background = Color.parseColor(sharedPreferences.getString(PreferenceKeys.ZebraStripesBackgroundColorPreferenceKey, "#ffffffff"));
+        focus_peaking = !sharedPreferences.getString(PreferenceKeys.FocusPeakingPreferenceKey, "preference_focus_peaking_off").equals("preference_focus_peaking_off");
+        focus_peaking_color = Color.parseColor(sharedPreferences.getString(PreferenceKeys.FocusPeakingColorPreferenceKey, "#ffffff"));
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "SettingsSnapshot: time to build: " + (System.nanoTime() - debug_time)/1000 + "us");
+    }
+
+    private static int parseInt(String value, int default_value) {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch(NumberFormatException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to parse int value: " + value);
+            return default_value;
+        }
+    }
+
+    private static MyApplicationInterface.PhotoMode parsePhotoMode(String photo_mode_pref) {
+        switch( photo_mode_pref ) {
+            case "preference_photo_mode_dro":
+                return MyApplicationInterface.PhotoMode.DRO;
+            case "preference_photo_mode_hdr":
+                return MyApplicationInterface.PhotoMode.HDR;
+            case "preference_photo_mode_expo_bracketing":
+                return MyApplicationInterface.PhotoMode.ExpoBracketing;
+            case "preference_photo_mode_focus_bracketing":
+                return MyApplicationInterface.PhotoMode.FocusBracketing;
+            case "preference_photo_mode_fast_burst":
+                return MyApplicationInterface.PhotoMode.FastBurst;
+            case "preference_photo_mode_noise_reduction":
+                return MyApplicationInterface.PhotoMode.NoiseReduction;
+            case "preference_photo_mode_panorama":
+                return MyApplicationInterface.PhotoMode.Panorama;
+            case "preference_photo_mode_x_auto":
+                return MyApplicationInterface.PhotoMode.X_Auto;
+            case "preference_photo_mode_x_hdr":
+                return MyApplicationInterface.PhotoMode.X_HDR;
+            case "preference_photo_mode_x_night":
+                return MyApplicationInterface.PhotoMode.X_Night;
+            case "preference_photo_mode_x_bokeh":
+                return MyApplicationInterface.PhotoMode.X_Bokeh;
+            case "preference_photo_mode_x_beauty":
+                return MyApplicationInterface.PhotoMode.X_Beauty;
+        }
+        return MyApplicationInterface.PhotoMode.Standard;
+    }
+
+    private static Grid parseGrid(String grid_pref) {
+        switch( grid_pref ) {
+            case "preference_grid_3x3":
+                return Grid.GRID_3X3;
+            case "preference_grid_phi_3x3":
+                return Grid.PHI_3X3;
+            case "preference_grid_4x2":
+                return Grid.GRID_4X2;
+            case "preference_grid_crosshair":
+                return Grid.CROSSHAIR;
+            case "preference_grid_golden_spiral_right":
+                return Grid.GOLDEN_SPIRAL_RIGHT;
+            case "preference_grid_golden_spiral_left":
+                return Grid.GOLDEN_SPIRAL_LEFT;
+            case "preference_grid_golden_spiral_upside_down_right":
+                return Grid.GOLDEN_SPIRAL_UPSIDE_DOWN_RIGHT;
+            case "preference_grid_golden_spiral_upside_down_left":
+                return Grid.GOLDEN_SPIRAL_UPSIDE_DOWN_LEFT;
+            case "preference_grid_golden_triangle_1":
+                return Grid.GOLDEN_TRIANGLE_1;
+            case "preference_grid_golden_triangle_2":
+                return Grid.GOLDEN_TRIANGLE_2;
+            case "preference_grid_diagonals":
+                return Grid.DIAGONALS;
+        }
+        return Grid.NONE;
+    }
+
+    private static double parseCropGuide(String crop_guide_pref) {
+        switch( crop_guide_pref ) {
+            case "crop_guide_1":
+                return 1.0;
+            case "crop_guide_1.25":
+                return 1.25;
+            case "crop_guide_1.33":
+                return 1.33333333;
+            case "crop_guide_1.4":
+                return 1.4;
+            case "crop_guide_1.5":
+                return 1.5;
+            case "crop_guide_1.78":
+                return 1.77777778;
+            case "crop_guide_1.85":
+                return 1.85;
+            case "crop_guide_2":
+                return 2.0;
+            case "crop_guide_2.33":
+                return 2.33333333;
+            case "crop_guide_2.35":
+                return 2.35006120; // actually 1920:817
+            case "crop_guide_2.4":
+                return 2.4;
+        }
+        return -1.0;
+    }
+}
@@ -54,6 +54,8 @@ public class StorageUtils {
 
     private final Context context;
     private final MyApplicationInterface applicationInterface;
+    private final LatestMediaIndex latest_media_index;
+    private final ThumbnailCache thumbnail_cache;
     private Uri last_media_scanned; // mediastore uri
     private boolean last_media_scanned_is_raw;
     private boolean last_media_scanned_hasnoexifdatetime;
@@ -73,6 +75,8 @@ public class StorageUtils {
     StorageUtils(Context context, MyApplicationInterface applicationInterface) {
         this.context = context;
         this.applicationInterface = applicationInterface;
+        this.latest_media_index = new LatestMediaIndex(context);
+        this.thumbnail_cache = ThumbnailCache.getInstance(context);
     }
 
     Uri getLastMediaScanned() {
@@ -116,6 +120,46 @@ public class StorageUtils {
         }
     }
 
+    ThumbnailCache getThumbnailCache() {
+        return thumbnail_cache;
+    }
+
+    /** Returns a string identifying the current save folder, for LatestMediaIndex.
+     */
+    private String getSaveFolderKey() {
+        if( isUsingSAF() )
+            return "saf:" + getSaveLocationSAF();
+        return "file:" + getSaveLocation();
+    }
+
+    /** Records a newly saved photo or video in the LatestMediaIndex, so that the gallery icon can be
+     *  updated without having to search for the latest media.
+     * @param uri       The uri that the media was saved to (for the File API, this should be a file
+     *                  uri). This is also the key for the thumbnail in getThumbnailCache().
+     * @param media_uri The mediastore uri for the media, or null if we don't know it yet (if the
+     *                  media is later scanned with broadcastFile(), this will be set then).
+     */
+    void recordLatestMedia(Uri uri, Uri media_uri, boolean video, boolean raw) {
+        latest_media_index.record(getSaveFolderKey(), uri, media_uri, video, raw);
+    }
+
+    /** Returns the most recent media that we saved to the current save folder, or null if not
+     *  known. Note that the media may have since been deleted.
+     */
+    LatestMediaIndex.Entry getIndexedLatestMedia() {
+        return latest_media_index.getEntry(getSaveFolderKey());
+    }
+
+    /** Forgets the most recent media that we saved, e.g., if it's been deleted.
+     */
+    void clearIndexedLatestMedia() {
+        LatestMediaIndex.Entry entry = latest_media_index.getEntry(getSaveFolderKey());
+        if( entry != null ) {
+            thumbnail_cache.remove(entry.uri.toString());
+        }
+        latest_media_index.clear();
+    }
+
     /** Sends the intents to announce the new file to other Android applications. E.g., cloud storage applications like
      *  OwnCloud use this to listen for new photos/videos to automatically upload.
      *  Note that on Android 7 onwards, these broadcasts are deprecated and won't have any effect - see:
@@ -286,6 +330,8 @@ public class StorageUtils {
                             if( set_last_scanned ) {
                                 boolean is_raw = filenameIsRaw(file.getName());
                                 setLastMediaScanned(uri, is_raw, hasnoexifdatetime, saf_uri != null ? saf_uri : uri);
+                                // the latest media index records the uri we saved to
+                                latest_media_index.setMediaUri(saf_uri != null ? saf_uri : Uri.fromFile(file), uri);
                             }
                             announceUri(uri, is_new_picture, is_new_video);
                             applicationInterface.scannedFile(file, uri);
@@ -0,0 +1,254 @@
+package com.jeffmony.opencamera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** A two level (memory and disk) cache of the thumbnails shown for the gallery icon, keyed by the
+ *  uri of the photo or video. Thumbnails are added when the media is saved, from the bitmap we
+ *  already have in memory, so that MainActivity.updateGalleryIcon() never needs to decode the saved
+ *  file. The disk level (in the application's cache folder) means this still works after the
+ *  application is restarted.
+ *  Thumbnails should already be rotated to the orientation they're displayed in. The cache stores
+ *  its own reduced size copies, and returns new copies, as callers such as DrawPreview recycle the
+ *  thumbnails they're given.
+ *  There is a single cache for the process (see getInstance()), so the memory cache survives the
+ *  activity being recreated.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final String folder_name_c = "thumbnails";
+    private static final int max_disk_entries_c = 16; // we only really need the most recent, but keep a few in case the most recent are deleted
+    private static final int jpeg_quality_c = 90;
+    private static final int max_size_c = 512; // maximum width or height of cached thumbnails, plenty for the gallery icon
+    private static final long keep_alive_ms_c = 10000; // the disk thread exits after being idle for this time
+
+    private static ThumbnailCache instance;
+
+    private final File folder;
+    private final LruCache<String, Bitmap> memory_cache;
+    private final ThreadPoolExecutor disk_executor; // so that callers don't wait for thumbnails to be written
+
+    /** Returns the cache for this process, creating it if necessary.
+     */
+    static synchronized ThumbnailCache getInstance(Context context) {
+        if( instance == null ) {
+            // use the application context, as the cache outlives the activity
+            instance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ThumbnailCache(Context context) {
+        this.folder = new File(context.getCacheDir(), folder_name_c);
+        // a single thread, so thumbnails are written and removed in order
+        this.disk_executor = new ThreadPoolExecutor(1, 1, keep_alive_ms_c, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        this.disk_executor.allowCoreThreadTimeOut(true);
+        // thumbnails are small, so a small fraction of the heap is plenty
+        int max_kb = (int)(Runtime.getRuntime().maxMemory() / (1024*32));
+        if( MyDebug.LOG )
+            Log.d(TAG, "memory cache size: " + max_kb + "KB");
+        this.memory_cache = new LruCache<String, Bitmap>(max_kb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    /** Adds a copy of the thumbnail to the cache, so the caller is free to recycle the supplied
+     *  thumbnail. The thumbnail is written to disk on a background thread.
+     */
+    void put(String key, Bitmap thumbnail) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "put: " + key);
+        final Bitmap copy = createCopy(thumbnail);
+        if( copy == null ) {
+            return;
+        }
+        memory_cache.put(key, copy);
+        final File file = getFile(key);
+        disk_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, copy);
+            }
+        });
+    }
+
+    /** Returns a copy of the cached thumbnail, which the caller owns, or null if not in the cache.
+     *  If not in the memory cache, this will read it from disk, so shouldn't be called on the UI
+     *  thread (see getFromMemory()).
+     */
+    Bitmap get(String key) {
+        Bitmap thumbnail = memory_cache.get(key);
+        if( thumbnail != null ) {
+            return copy(thumbnail);
+        }
+        File file = getFile(key);
+        synchronized( this ) {
+            if( file.exists() ) {
+                thumbnail = BitmapFactory.decodeFile(file.getAbsolutePath());
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "read from disk: " + key + " : " + thumbnail);
+        if( thumbnail != null ) {
+            memory_cache.put(key, thumbnail);
+            thumbnail = copy(thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /** As get(), but only checks the memory cache, so is fast enough to call on the UI thread.
+     */
+    Bitmap getFromMemory(String key) {
+        Bitmap thumbnail = memory_cache.get(key);
+        return thumbnail == null ? null : copy(thumbnail);
+    }
+
+    /** Returns a copy of the thumbnail, reduced in size if larger than max_size_c, or null if we
+     *  ran out of memory.
+     */
+    private static Bitmap createCopy(Bitmap thumbnail) {
+        int width = thumbnail.getWidth();
+        int height = thumbnail.getHeight();
+        int max_dim = Math.max(width, height);
+        if( max_dim <= max_size_c ) {
+            return copy(thumbnail);
+        }
+        int new_width = Math.max(1, (width * max_size_c) / max_dim);
+        int new_height = Math.max(1, (height * max_size_c) / max_dim);
+        try {
+            return Bitmap.createScaledBitmap(thumbnail, new_width, new_height, true);
+        }
+        catch(OutOfMemoryError e) {
+            Log.e(TAG, "failed to scale thumbnail");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Bitmap copy(Bitmap thumbnail) {
+        try {
+            return thumbnail.copy(thumbnail.getConfig() != null ? thumbnail.getConfig() : Bitmap.Config.ARGB_8888, false);
+        }
+        catch(OutOfMemoryError e) {
+            Log.e(TAG, "failed to copy thumbnail");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Removes a thumbnail from the cache (e.g., because the media has been deleted).
+     */
+    void remove(String key) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "remove: " + key);
+        memory_cache.remove(key);
+        final File file = getFile(key);
+        disk_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized( ThumbnailCache.this ) {
+                    if( file.exists() && !file.delete() ) {
+                        Log.e(TAG, "failed to delete: " + file);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Clears the memory cache, if the system is short of memory. Note we keep the memory cache
+     *  when the UI is merely hidden, as the point is to have the thumbnail ready when resuming.
+     */
+    void trimMemory(int level) {
+        if( level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "trimMemory: evict all");
+            memory_cache.evictAll();
+        }
+    }
+
+    private synchronized void write(File file, Bitmap thumbnail) {
+        if( !folder.exists() && !folder.mkdirs() ) {
+            Log.e(TAG, "failed to create folder: " + folder);
+            return;
+        }
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, jpeg_quality_c, outputStream);
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to write thumbnail: " + file);
+            e.printStackTrace();
+        }
+        finally {
+            if( outputStream != null ) {
+                try {
+                    outputStream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // remove the oldest thumbnails
+        File [] files = folder.listFiles();
+        if( files != null && files.length > max_disk_entries_c ) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    // most recent first
+                    long time1 = o1.lastModified(), time2 = o2.lastModified();
+                    return time1 == time2 ? 0 : time1 > time2 ? -1 : 1;
+                }
+            });
+            for(int i=max_disk_entries_c;i<files.length;i++) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "delete old thumbnail: " + files[i]);
+                if( !files[i].delete() ) {
+                    Log.e(TAG, "failed to delete: " + files[i]);
+                }
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        String name;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte [] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder();
+            for(byte b : hash) {
+                builder.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            name = builder.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            // MD5 should always be available
+            e.printStackTrace();
+            name = Integer.toHexString(key.hashCode());
+        }
+        return new File(folder, name + ".jpg");
+    }
+}
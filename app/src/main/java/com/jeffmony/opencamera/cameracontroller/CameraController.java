@@ -3,6 +3,7 @@ package com.jeffmony.opencamera.cameracontroller;
 import com.jeffmony.opencamera.MyDebug;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -272,14 +273,17 @@ public abstract class CameraController {
     public interface PictureCallback {
         void onStarted(); // called immediately before we start capturing the picture
         void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
-        void onPictureTaken(byte[] data);
+        /** The callee owns data, and should call data.release() when done with it.
+         */
+        void onPictureTaken(ImageBuffer data);
         /** Only called if RAW is requested.
          *  Caller should call raw_image.close() when done with the image.
          */
         void onRawPictureTaken(RawImage raw_image);
         /** Only called if burst is requested.
+         *  The callee owns the images, and should call release() on each when done with them.
          */
-        void onBurstPictureTaken(List<byte[]> images);
+        void onBurstPictureTaken(List<ImageBuffer> images);
         /** Only called if burst is requested.
          */
         void onRawBurstPictureTaken(List<RawImage> raw_images);
@@ -312,6 +316,14 @@ public abstract class CameraController {
         void onError();
     }
 
+    /** Interface to define callback for receiving low resolution YUV_420_888 preview frames, for
+     *  analysis such as histograms. This callback is called on a background thread. The buffers
+     *  are only valid until the callback returns.
+     */
+    public interface PreviewAnalysisCallback {
+        void onPreviewFrame(int width, int height, ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride);
+    }
+
     public static class Face {
         public final int score;
         /* The rect has values from [-1000,-1000] (for top-left) to [1000,1000] (for bottom-right) for whatever is
@@ -583,6 +595,37 @@ public abstract class CameraController {
     public void updatePreviewTexture() {
         // dummy implementation
     }
+    /** Sets a callback to receive low resolution preview frames for analysis, or null to stop
+     *  receiving frames. Frames are only delivered for photo mode, and not when RAW is enabled.
+     *  If the callback is set while a preview is running, frames will only be delivered once the
+     *  preview is next restarted.
+     *  @return Whether preview frames for analysis are supported.
+     */
+    public boolean setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        // dummy implementation
+        return false;
+    }
+    /** For testing: returns the number of changes to the preview settings that were sent to the
+     *  camera as a new request. Only supported for Camera2 API.
+     */
+    public int getNPreviewRequestsIssued() {
+        // dummy implementation
+        return 0;
+    }
+    /** For testing: returns the number of changes to the preview settings that were sent together
+     *  with an earlier change, rather than as their own request. Only supported for Camera2 API.
+     */
+    public int getNPreviewRequestsCoalesced() {
+        // dummy implementation
+        return 0;
+    }
+    /** For testing: returns the number of changes to the preview settings that weren't sent to the
+     *  camera, as the settings were unchanged. Only supported for Camera2 API.
+     */
+    public int getNPreviewRequestsUnchanged() {
+        // dummy implementation
+        return 0;
+    }
     /** Starts the camera preview.
      *  @throws CameraControllerException if the camera preview fails to start.
      */
@@ -1760,16 +1760,16 @@ public class CameraController1 extends CameraController {
                         // also allows us to reorder from dark to light
                         // since we took the images with the base exposure being first
                         int n_half_images = pending_burst_images.size()/2;
-                        List<byte []> images = new ArrayList<>();
+                        List<ImageBuffer> images = new ArrayList<>();
                         // darker images
                         for(int i=0;i<n_half_images;i++) {
-                            images.add(pending_burst_images.get(i+1));
+                            images.add(ImageBuffer.wrap(pending_burst_images.get(i+1)));
                         }
                         // base image
-                        images.add(pending_burst_images.get(0));
+                        images.add(ImageBuffer.wrap(pending_burst_images.get(0)));
                         // lighter images
                         for(int i=0;i<n_half_images;i++) {
-                            images.add(pending_burst_images.get(n_half_images+1));
+                            images.add(ImageBuffer.wrap(pending_burst_images.get(n_half_images+1)));
                         }
 
                         picture.onBurstPictureTaken(images);
@@ -1807,7 +1807,7 @@ public class CameraController1 extends CameraController {
                     }
                 }
                 else {
-                    picture.onPictureTaken(data);
+                    picture.onPictureTaken(ImageBuffer.wrap(data));
                     picture.onCompleted();
                 }
             }
@@ -12,6 +12,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Activity;
 import android.content.Context;
@@ -50,6 +53,7 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
@@ -174,6 +178,26 @@ public class CameraController2 extends CameraController {
 
     private CaptureRequest.Builder previewBuilder;
     private boolean previewIsVideoMode;
+    private CaptureRequest last_repeating_request; // the last repeating request sent to the camera, or null if not known; must synchronize on background_camera_lock
+    private final Handler request_update_handler = new Handler(Looper.getMainLooper());
+    private final Runnable request_update_flush_runnable = new Runnable() {
+        @Override
+        public void run() {
+            request_update_scheduler.flush(System.nanoTime());
+        }
+    };
+    // used to batch together changes to the preview settings from the UI thread, so that we send at most one new repeating request per preview frame
+    private final RequestUpdateScheduler request_update_scheduler = new RequestUpdateScheduler(new RequestUpdateScheduler.Callback() {
+        @Override
+        public void postFlush(long delay_ms) {
+            request_update_handler.postDelayed(request_update_flush_runnable, delay_ms);
+        }
+
+        @Override
+        public boolean issueRequest() {
+            return setRepeatingRequestIfChanged();
+        }
+    });
     private AutoFocusCallback autofocus_cb;
     private long autofocus_time_ms = -1; // time we set autofocus_cb to non-null
     private static final long autofocus_timeout_c = 1000; // timeout for calling autofocus_cb (applies for both auto and continuous focus)
@@ -182,9 +206,16 @@ public class CameraController2 extends CameraController {
     private FaceDetectionListener face_detection_listener;
     private int last_faces_detected = -1;
     private final Object open_camera_lock = new Object(); // lock to wait for camera to be opened from CameraDevice.StateCallback
-    private final Object background_camera_lock = new Object(); // lock to synchronize between UI thread and the background "CameraBackground" thread/handler
+    /** Lock to synchronize between the UI thread and the background "CameraBackground"
+     *  thread/handler. It guards the camera and capture session lifetime, the request builders,
+     *  and the burst bookkeeping (n_burst*, slow_burst_capture_requests etc) along with
+     *  picture_cb. The autofocus/precapture state is not guarded by this lock, see CaptureState,
+     *  and nor is the state that image_thread checks for each image, see BurstState.
+     */
+    private final Object background_camera_lock = new Object();
 
     private ImageReader imageReader;
+    private ImageBufferPool imageBufferPool; // buffers for the JPEG data read from imageReader
 
     private BurstType burst_type = BurstType.BURSTTYPE_NONE;
     // for BURSTTYPE_EXPO:
@@ -220,8 +251,67 @@ public class CameraController2 extends CameraController {
     private OnImageAvailableListener onImageAvailableListener;
     private OnRawImageAvailableListener onRawImageAvailableListener;
     private PictureCallback picture_cb;
-    private boolean jpeg_todo; // whether we are still waiting for JPEG images
-    private boolean raw_todo; // whether we are still waiting for RAW images
+    /** The state that image_thread checks for each image, before reading it: whether we're still
+     *  waiting for JPEG and RAW images, and the next capture to request for a slow burst. This is
+     *  held in atomics rather than being guarded by background_camera_lock, so that image_thread
+     *  can drop unwanted images and request the next capture without waiting for the lock.
+     */
+    private static class BurstState {
+        private final AtomicBoolean jpeg_todo = new AtomicBoolean(); // whether we are still waiting for JPEG images
+        private final AtomicBoolean raw_todo = new AtomicBoolean(); // whether we are still waiting for RAW images
+        private final AtomicInteger slow_burst_next_request = new AtomicInteger(); // index in slow_burst_capture_requests of the next capture to request (not used for focus bracketing)
+
+        /** Called when starting to take a photo.
+         */
+        void start(boolean want_raw) {
+            raw_todo.set(want_raw);
+            jpeg_todo.set(true);
+        }
+
+        /** Called if taking a photo fails, so that any images still to arrive are discarded.
+         */
+        void stop() {
+            jpeg_todo.set(false);
+            raw_todo.set(false);
+        }
+
+        boolean isJpegTodo() {
+            return jpeg_todo.get();
+        }
+
+        boolean isRawTodo() {
+            return raw_todo.get();
+        }
+
+        void setJpegDone() {
+            jpeg_todo.set(false);
+        }
+
+        void setRawDone() {
+            raw_todo.set(false);
+        }
+
+        void setSlowBurstNextRequest(int next_request) {
+            slow_burst_next_request.set(next_request);
+        }
+
+        /** Returns the index of the next slow burst capture to request, and advances it, or -1 if
+         *  all n_requests captures have already been requested.
+         */
+        int takeSlowBurstNextRequest(int n_requests) {
+            while( true ) {
+                int next_request = slow_burst_next_request.get();
+                if( next_request >= n_requests ) {
+                    return -1;
+                }
+                if( slow_burst_next_request.compareAndSet(next_request, next_request+1) ) {
+                    return next_request;
+                }
+            }
+        }
+    }
+    private final BurstState burst_state = new BurstState();
+    // the remaining burst bookkeeping is guarded by background_camera_lock, as it spans several fields that are updated together
     private boolean done_all_captures; // whether we've received the capture for the image (or all images if a burst)
     //private CaptureRequest pending_request_when_ready;
     private int n_burst; // number of expected (remaining) burst JPEG images in this capture
@@ -229,7 +319,7 @@ public class CameraController2 extends CameraController {
     private int n_burst_total; // total number of expected burst images in this capture (if known) (same for JPEG and RAW)
     private int n_burst_raw; // number of expected (remaining) burst RAW images in this capture
     private boolean burst_single_request; // if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
-    private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    private final List<ImageBuffer> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
     private final List<RawImage> pending_burst_images_raw = new ArrayList<>();
     private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
     private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
@@ -240,6 +330,13 @@ public class CameraController2 extends CameraController {
     private List<int[]> ae_fps_ranges;
     private List<int[]> hs_fps_ranges;
     //private ImageReader previewImageReader;
+    private volatile PreviewAnalysisCallback preview_analysis_cb;
+    private ImageReader previewAnalysisImageReader; // low resolution YUV frames for preview_analysis_cb, only used for photo sessions
+    private HandlerThread preview_analysis_thread;
+    private Handler preview_analysis_handler;
+    private HandlerThread image_thread; // thread that the imageReader and imageReaderRaw listeners run on
+    private Handler image_handler;
+    private final Object image_reader_lock = new Object(); // lock so that imageReader and imageReaderRaw aren't closed whilst image_thread is reading from them
     private SurfaceTexture texture;
     private Surface surface_texture;
     private HandlerThread thread;
@@ -253,14 +350,22 @@ public class CameraController2 extends CameraController {
     private int picture_width;
     private int picture_height;
     
-    private static final int STATE_NORMAL = 0;
-    private static final int STATE_WAITING_AUTOFOCUS = 1;
-    private static final int STATE_WAITING_PRECAPTURE_START = 2;
-    private static final int STATE_WAITING_PRECAPTURE_DONE = 3;
-    private static final int STATE_WAITING_FAKE_PRECAPTURE_START = 4;
-    private static final int STATE_WAITING_FAKE_PRECAPTURE_DONE = 5;
-    private int state = STATE_NORMAL;
-    private long precapture_state_change_time_ms = -1; // time we changed state for precapture modes
+    /** The states for an autofocus or precapture that we're waiting on the camera to complete.
+     *  The state is set by the UI thread when starting or cancelling an operation, but is advanced
+     *  by the camera background thread as capture results arrive, in handleStateChange(). So rather
+     *  than relying on a lock, the background thread only acts on a result if it succeeds in
+     *  atomically changing the state it saw, see transitionCaptureState().
+     */
+    private enum CaptureState {
+        NORMAL,
+        WAITING_AUTOFOCUS,
+        WAITING_PRECAPTURE_START,
+        WAITING_PRECAPTURE_DONE,
+        WAITING_FAKE_PRECAPTURE_START,
+        WAITING_FAKE_PRECAPTURE_DONE
+    }
+    private final AtomicReference<CaptureState> capture_state = new AtomicReference<>(CaptureState.NORMAL);
+    private volatile long precapture_state_change_time_ms = -1; // time we changed state for precapture modes
     private static final long precapture_start_timeout_c = 2000;
     private static final long precapture_done_timeout_c = 3000;
 
@@ -305,6 +410,30 @@ public class CameraController2 extends CameraController {
      */
     private final static long max_preview_exposure_time_c = 1000000000L/5;
 
+    /** Sets the capture state, regardless of the current state. Used when starting or cancelling
+     *  an operation.
+     */
+    private void setCaptureState(CaptureState new_state, long state_change_time_ms) {
+        // set the time first, so that another thread that sees the new state also sees the new time
+        precapture_state_change_time_ms = state_change_time_ms;
+        capture_state.set(new_state);
+    }
+
+    /** Advances the capture state from old_state to new_state, but only if we're still in
+     *  old_state. The caller should only act on the change of state if this returns true - if it
+     *  returns false, another thread has changed the state in the meantime (e.g., the autofocus
+     *  was cancelled), so the result that caused the transition is out of date.
+     */
+    private boolean transitionCaptureState(CaptureState old_state, CaptureState new_state, long state_change_time_ms) {
+        if( !capture_state.compareAndSet(old_state, new_state) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "capture state changed from " + old_state + " before it could change to " + new_state);
+            return false;
+        }
+        precapture_state_change_time_ms = state_change_time_ms;
+        return true;
+    }
+
     private void resetCaptureResultInfo() {
         capture_result_is_ae_scanning = false;
         capture_result_ae = null;
@@ -1449,51 +1578,142 @@ public class CameraController2 extends CameraController {
         return value;
     }
 
+    /** For slow bursts (other than focus bracketing, which has its own delays), requests the next
+     *  capture of the burst on the camera background thread. This is called as soon as each JPEG
+     *  image is available, rather than after it's been read and passed to the application, so that
+     *  the time between captures doesn't depend on the size of the JPEG.
+     */
+    private void requestNextSlowBurstCapture() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ErrorCallback push_take_picture_error_cb = null;
+                synchronized( background_camera_lock ) {
+                    if( slow_burst_capture_requests == null || burst_type == BurstType.BURSTTYPE_FOCUS ) {
+                        return;
+                    }
+                    else if( camera == null || !hasCaptureSession() ) { // make sure camera wasn't released in the meantime
+                        return;
+                    }
+                    int next_request = burst_state.takeSlowBurstNextRequest(slow_burst_capture_requests.size());
+                    if( next_request == -1 ) {
+                        return;
+                    }
+                    if( MyDebug.LOG ) {
+                        Log.d(TAG, "request slow burst capture: " + next_request);
+                        Log.d(TAG, "time since start: " + (System.currentTimeMillis() - slow_burst_start_ms));
+                    }
+                    try {
+                        captureSession.capture(slow_burst_capture_requests.get(next_request), previewCaptureCallback, handler);
+                    }
+                    catch(CameraAccessException e) {
+                        if( MyDebug.LOG ) {
+                            Log.e(TAG, "failed to take next burst");
+                            Log.e(TAG, "reason: " + e.getReason());
+                            Log.e(TAG, "message: " + e.getMessage());
+                        }
+                        e.printStackTrace();
+                        burst_state.stop();
+                        picture_cb = null;
+                        push_take_picture_error_cb = take_picture_error_cb;
+                    }
+                }
+
+                // need to call callbacks without a lock, and on the UI thread
+                if( push_take_picture_error_cb != null ) {
+                    final ErrorCallback error_cb = push_take_picture_error_cb;
+                    final Activity activity = (Activity)context;
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            error_cb.onError();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
     private class OnImageAvailableListener implements ImageReader.OnImageAvailableListener {
-        private boolean skip_next_image = false; // whether to ignore the next image (used for dummy_capture_hack)
+        private final AtomicBoolean skip_next_image = new AtomicBoolean(); // whether to ignore the next image (used for dummy_capture_hack)
 
+        /** Runs on image_thread. Copying the JPEG data can take a while for large images, so this
+         *  only reads the image, and hands off everything else: requesting the next capture of a
+         *  slow burst to the camera background thread, and the burst bookkeeping and picture
+         *  callbacks to the UI thread. Images that aren't wanted (see BurstState) are dropped
+         *  without being copied.
+         */
         @Override
         public void onImageAvailable(ImageReader reader) {
             if( MyDebug.LOG )
                 Log.d(TAG, "new still image available");
-            if( picture_cb == null || !jpeg_todo ) {
-                // in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
-                // or strange behaviour where an old image appears when the user next takes a photo
-                Log.e(TAG, "no picture callback available");
+            final ImageBuffer bytes;
+            synchronized( image_reader_lock ) {
+                if( reader != imageReader ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "image reader was closed");
+                    return;
+                }
                 Image image = reader.acquireNextImage();
-                if( image != null )
+                if( image == null ) {
+                    // can happen if camera closed whilst taking photo - this happens in testTakePhotoAutoFocusReleaseDuringPhoto() on Pixel 6 Pro
+                    Log.e(TAG, "onImageAvailable: image is null");
+                    return;
+                }
+                if( !burst_state.isJpegTodo() ) {
+                    // in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
+                    // or strange behaviour where an old image appears when the user next takes a photo
+                    Log.e(TAG, "no JPEG image expected");
                     image.close();
-                return;
+                    return;
+                }
+                if( skip_next_image.compareAndSet(true, false) ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "skipping image");
+                    image.close();
+                    return;
+                }
+                // don't wait until we've read the image
+                requestNextSlowBurstCapture();
+                if( MyDebug.LOG )
+                    Log.d(TAG, "image timestamp: " + image.getTimestamp());
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                // copy into a pooled buffer rather than a new byte array, to reduce garbage collection
+                bytes = imageBufferPool.copyOf(buffer);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "read " + bytes.size() + " bytes");
+                image.close();
             }
-            if( skip_next_image ) {
+
+            final Activity activity = (Activity)context;
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onImageRead(bytes);
+                }
+            });
+        }
+
+        /** Called on the UI thread with the JPEG data read by onImageAvailable().
+         */
+        private void onImageRead(ImageBuffer bytes) {
+            if( onImageAvailableListener != this ) {
                 if( MyDebug.LOG )
-                    Log.d(TAG, "skipping image");
-                skip_next_image = false;
-                Image image = reader.acquireNextImage();
-                if( image != null )
-                    image.close();
+                    Log.d(TAG, "image reader was closed, discard image");
+                bytes.release();
+                return;
+            }
+            if( picture_cb == null || !burst_state.isJpegTodo() ) {
+                // the photo may have completed or failed since onImageAvailable() checked
+                Log.e(TAG, "no picture callback available");
+                bytes.release();
                 return;
             }
 
-            List<byte []> single_burst_complete_images = null;
+            List<ImageBuffer> single_burst_complete_images = null;
             boolean call_takePhotoPartial = false;
             boolean call_takePhotoCompleted = false;
 
-            Image image = reader.acquireNextImage();
-            if( image == null ) {
-                // can happen if camera closed whilst taking photo - this happens in testTakePhotoAutoFocusReleaseDuringPhoto() on Pixel 6 Pro
-                Log.e(TAG, "onImageAvailable: image is null");
-                return;
-            }
-            if( MyDebug.LOG )
-                Log.d(TAG, "image timestamp: " + image.getTimestamp());
-            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte [] bytes = new byte[buffer.remaining()];
-            if( MyDebug.LOG )
-                Log.d(TAG, "read " + bytes.length + " bytes");
-            buffer.get(bytes);
-            image.close();
-
             synchronized( background_camera_lock ) {
                 n_burst_taken++;
                 if( MyDebug.LOG ) {
@@ -1569,7 +1789,7 @@ public class CameraController2 extends CameraController {
             }
 
             if( MyDebug.LOG )
-                Log.d(TAG, "done onImageAvailable");
+                Log.d(TAG, "done onImageRead");
         }
 
         /** Called when an image has been received, but we're in a burst mode, and not all images have
@@ -1583,31 +1803,13 @@ public class CameraController2 extends CameraController {
             ErrorCallback push_take_picture_error_cb = null;
 
             synchronized( background_camera_lock ) {
-                if( slow_burst_capture_requests != null ) {
+                // for other slow bursts, the next capture has already been requested by requestNextSlowBurstCapture()
+                if( slow_burst_capture_requests != null && burst_type == BurstType.BURSTTYPE_FOCUS ) {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "need to execute the next capture");
                         Log.d(TAG, "time since start: " + (System.currentTimeMillis() - slow_burst_start_ms));
                     }
-                    if( burst_type != BurstType.BURSTTYPE_FOCUS ) {
-                        try {
-                            if( camera != null && hasCaptureSession() ) { // make sure camera wasn't released in the meantime
-                                captureSession.capture(slow_burst_capture_requests.get(n_burst_taken), previewCaptureCallback, handler);
-                            }
-                        }
-                        catch(CameraAccessException e) {
-                            if( MyDebug.LOG ) {
-                                Log.e(TAG, "failed to take next burst");
-                                Log.e(TAG, "reason: " + e.getReason());
-                                Log.e(TAG, "message: " + e.getMessage());
-                            }
-                            e.printStackTrace();
-                            jpeg_todo = false;
-                            raw_todo = false;
-                            picture_cb = null;
-                            push_take_picture_error_cb = take_picture_error_cb;
-                        }
-                    }
-                    else if( previewBuilder != null ) { // make sure camera wasn't released in the meantime
+                    if( previewBuilder != null ) { // make sure camera wasn't released in the meantime
                         if( MyDebug.LOG )
                             Log.d(TAG, "focus bracketing");
 
@@ -1663,8 +1865,7 @@ public class CameraController2 extends CameraController {
                                 Log.e(TAG, "message: " + e.getMessage());
                             }
                             e.printStackTrace();
-                            jpeg_todo = false;
-                            raw_todo = false;
+                            burst_state.stop();
                             picture_cb = null;
                             push_take_picture_error_cb = take_picture_error_cb;
                         }
@@ -1697,8 +1898,7 @@ public class CameraController2 extends CameraController {
                                                 Log.e(TAG, "message: " + e.getMessage());
                                             }
                                             e.printStackTrace();
-                                            jpeg_todo = false;
-                                            raw_todo = false;
+                                            burst_state.stop();
                                             picture_cb = null;
                                             if( take_picture_error_cb != null ) {
                                                 take_picture_error_cb.onError();
@@ -1726,9 +1926,7 @@ public class CameraController2 extends CameraController {
             if( MyDebug.LOG )
                 Log.d(TAG, "takePhotoCompleted");
             // need to set jpeg_todo to false before calling onCompleted, as that may reenter CameraController to take another photo (if in auto-repeat burst mode) - see testTakePhotoRepeat()
-            synchronized( background_camera_lock ) {
-                jpeg_todo = false;
-            }
+            burst_state.setJpegDone();
             checkImagesCompleted();
         }
     }
@@ -1736,7 +1934,7 @@ public class CameraController2 extends CameraController {
     private class OnRawImageAvailableListener implements ImageReader.OnImageAvailableListener {
         private final Queue<CaptureResult> capture_results = new LinkedList<>();
         private final Queue<Image> images = new LinkedList<>();
-        private boolean skip_next_image = false; // whether to ignore the next image (used for dummy_capture_hack)
+        private final AtomicBoolean skip_next_image = new AtomicBoolean(); // whether to ignore the next image (used for dummy_capture_hack)
 
         void setCaptureResult(CaptureResult capture_result) {
             if( MyDebug.LOG )
@@ -1880,9 +2078,7 @@ public class CameraController2 extends CameraController {
 
                 // need to call outside of lock (because they can lead to calls to external callbacks)
                 if( call_takePhotoCompleted ) {
-                    synchronized( background_camera_lock ) {
-                        raw_todo = false;
-                    }
+                    burst_state.setRawDone();
                     checkImagesCompleted();
                 }
             }
@@ -1891,40 +2087,72 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "done processImage");
         }
 
+        /** Runs on image_thread. Acquires the image, then hands off to the UI thread, to be
+         *  consistent with setCaptureResult()->processImage(). As for OnImageAvailableListener,
+         *  images that aren't wanted are closed straight away.
+         */
         @Override
         public void onImageAvailable(ImageReader reader) {
             if( MyDebug.LOG )
                 Log.d(TAG, "new still raw image available");
-            if( picture_cb == null || !raw_todo ) {
+            final Image image;
+            synchronized( image_reader_lock ) {
+                if( reader != imageReaderRaw ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "raw image reader was closed");
+                    return;
+                }
+                image = reader.acquireNextImage();
+            }
+            if( image == null ) {
+                Log.e(TAG, "RAW onImageAvailable: image is null");
+                return;
+            }
+            if( !burst_state.isRawTodo() ) {
                 // in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
                 // or strange behaviour where an old image appears when the user next takes a photo
-                Log.e(TAG, "no picture callback available");
-                Image this_image = reader.acquireNextImage();
-                if( this_image != null )
-                    this_image.close();
+                Log.e(TAG, "no RAW image expected");
+                image.close();
                 return;
             }
-            if( skip_next_image ) {
+            if( skip_next_image.compareAndSet(true, false) ) {
                 if( MyDebug.LOG )
-                    Log.d(TAG, "skipping image");
-                skip_next_image = false;
-                Image image = reader.acquireNextImage();
-                if( image != null )
-                    image.close();
+                    Log.d(TAG, "skipping raw image");
+                image.close();
+                return;
+            }
+
+            final Activity activity = (Activity)context;
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onImageAcquired(image);
+                }
+            });
+        }
+
+        /** Called on the UI thread with the image acquired by onImageAvailable().
+         */
+        private void onImageAcquired(Image image) {
+            if( onRawImageAvailableListener != this ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "raw image reader was closed, discard image");
+                image.close();
+                return;
+            }
+            if( picture_cb == null || !burst_state.isRawTodo() ) {
+                // the photo may have completed or failed since onImageAvailable() checked
+                Log.e(TAG, "no picture callback available");
+                image.close();
                 return;
             }
             synchronized( background_camera_lock ) {
                 // see comment above in setCaptureResult() for why we synchronize
-                Image image = reader.acquireNextImage();
-                if( image == null ) {
-                    Log.e(TAG, "RAW onImageAvailable: image is null");
-                    return;
-                }
                 images.add(image);
             }
             processImage();
             if( MyDebug.LOG )
-                Log.d(TAG, "done (RAW) onImageAvailable");
+                Log.d(TAG, "done (RAW) onImageAcquired");
         }
     }
     
@@ -2291,6 +2519,7 @@ public class CameraController2 extends CameraController {
      */
     private void closeCaptureSession() {
         synchronized( background_camera_lock ) {
+            last_repeating_request = null;
             if( captureSession != null ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "close capture session");
@@ -2317,6 +2546,10 @@ public class CameraController2 extends CameraController {
     public void release() {
         if( MyDebug.LOG )
             Log.d(TAG, "release: " + this);
+        request_update_scheduler.cancel();
+        request_update_handler.removeCallbacks(request_update_flush_runnable);
+        if( MyDebug.LOG )
+            Log.d(TAG, "preview updates: " + request_update_scheduler);
         closeCaptureSession();
         previewBuilder = null;
         previewIsVideoMode = false;
@@ -2329,6 +2562,29 @@ public class CameraController2 extends CameraController {
             previewImageReader.close();
             previewImageReader = null;
         }*/
+        if( image_thread != null ) {
+            image_thread.quitSafely();
+            try {
+                image_thread.join();
+                image_thread = null;
+                image_handler = null;
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        closePreviewAnalysisImageReader();
+        if( preview_analysis_thread != null ) {
+            preview_analysis_thread.quitSafely();
+            try {
+                preview_analysis_thread.join();
+                preview_analysis_thread = null;
+                preview_analysis_handler = null;
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
         if( thread != null ) {
             // should only close thread after closing the camera, otherwise we get messages "sending message to a Handler on a dead thread"
             // see https://sourceforge.net/p/opencamera/discussion/general/thread/32c2b01b/?limit=25
@@ -2417,15 +2673,33 @@ public class CameraController2 extends CameraController {
     private void closePictureImageReader() {
         if( MyDebug.LOG )
             Log.d(TAG, "closePictureImageReader()");
-        if( imageReader != null ) {
-            imageReader.close();
-            imageReader = null;
-            onImageAvailableListener = null;
+        synchronized( image_reader_lock ) {
+            // synchronize, so we don't close an image reader whilst image_thread is reading from it
+            if( imageReader != null ) {
+                imageReader.close();
+                imageReader = null;
+                onImageAvailableListener = null;
+            }
+            if( imageReaderRaw != null ) {
+                imageReaderRaw.close();
+                imageReaderRaw = null;
+                onRawImageAvailableListener = null;
+            }
         }
-        if( imageReaderRaw != null ) {
-            imageReaderRaw.close();
-            imageReaderRaw = null;
-            onRawImageAvailableListener = null;
+    }
+
+    private void closePreviewAnalysisImageReader() {
+        if( previewAnalysisImageReader != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "closePreviewAnalysisImageReader()");
+            synchronized( background_camera_lock ) {
+                if( previewBuilder != null ) {
+                    previewBuilder.removeTarget(previewAnalysisImageReader.getSurface());
+                }
+                last_repeating_request = null;
+            }
+            previewAnalysisImageReader.close();
+            previewAnalysisImageReader = null;
         }
     }
 
@@ -3699,21 +3973,11 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "already set");
             return false;
         }
-        try {
-            temperature = Math.max(temperature, min_white_balance_temperature_c);
-            temperature = Math.min(temperature, max_white_balance_temperature_c);
-            camera_settings.white_balance_temperature = temperature;
-            if( camera_settings.setWhiteBalance(previewBuilder) ) {
-                setRepeatingRequest();
-            }
-        }
-        catch(CameraAccessException e) {
-            if( MyDebug.LOG ) {
-                Log.e(TAG, "failed to set white balance temperature");
-                Log.e(TAG, "reason: " + e.getReason());
-                Log.e(TAG, "message: " + e.getMessage());
-            }
-            e.printStackTrace();
+        temperature = Math.max(temperature, min_white_balance_temperature_c);
+        temperature = Math.min(temperature, max_white_balance_temperature_c);
+        camera_settings.white_balance_temperature = temperature;
+        if( camera_settings.setWhiteBalance(previewBuilder) ) {
+            requestPreviewUpdate();
         }
         return true;
     }
@@ -4101,19 +4365,9 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "already set");
             return false;
         }
-        try {
-            camera_settings.iso = iso;
-            if( camera_settings.setAEMode(previewBuilder, false) ) {
-                setRepeatingRequest();
-            }
-        }
-        catch(CameraAccessException e) {
-            if( MyDebug.LOG ) {
-                Log.e(TAG, "failed to set ISO");
-                Log.e(TAG, "reason: " + e.getReason());
-                Log.e(TAG, "message: " + e.getMessage());
-            }
-            e.printStackTrace();
+        camera_settings.iso = iso;
+        if( camera_settings.setAEMode(previewBuilder, false) ) {
+            requestPreviewUpdate();
         }
         return true;
     }
@@ -4141,20 +4395,10 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "already set");
             return false;
         }
-        try {
-            camera_settings.exposure_time = exposure_time;
-            if( camera_settings.setAEMode(previewBuilder, false) ) {
-                setRepeatingRequest();
-            }
+        camera_settings.exposure_time = exposure_time;
+        if( camera_settings.setAEMode(previewBuilder, false) ) {
+            requestPreviewUpdate();
         }
-        catch(CameraAccessException e) {
-            if( MyDebug.LOG ) {
-                Log.e(TAG, "failed to set exposure time");
-                Log.e(TAG, "reason: " + e.getReason());
-                Log.e(TAG, "message: " + e.getMessage());
-            }
-            e.printStackTrace();
-        } 
         return true;
     }
 
@@ -4498,16 +4742,26 @@ public class CameraController2 extends CameraController {
             throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
         }
         // maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader
-        imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
+        final int max_images = 2;
+        imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, max_images);
+        // The pool needs to cover the images held by the imageReader, plus those still waiting to be
+        // saved; buffers beyond this are still allocated, but not kept once released.
+        // The capacity is an upper bound for the size of a JPEG of this resolution.
+        imageBufferPool = new ImageBufferPool(2*max_images, (int)Math.min(Integer.MAX_VALUE, (3L*picture_width*picture_height)/2));
         //imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, 2);
         if( MyDebug.LOG ) {
             Log.d(TAG, "created new imageReader: " + imageReader);
             Log.d(TAG, "imageReader surface: " + imageReader.getSurface().toString());
         }
-        // It's intentional that we pass a handler on null, so the OnImageAvailableListener runs on the UI thread.
-        // If ever we want to change this on future, we should ensure that all image available listeners (JPEG+RAW) are
-        // using the same handler/thread.
-        imageReader.setOnImageAvailableListener(onImageAvailableListener = new OnImageAvailableListener(), null);
+        // Images are received on their own thread, so that reading large JPEGs doesn't block either the UI thread or
+        // the camera background thread - the listeners hand off to the UI thread once the image has been read.
+        // All image available listeners (JPEG+RAW) should use the same handler/thread.
+        if( image_thread == null ) {
+            image_thread = new HandlerThread("CameraImages");
+            image_thread.start();
+            image_handler = new Handler(image_thread.getLooper());
+        }
+        imageReader.setOnImageAvailableListener(onImageAvailableListener = new OnImageAvailableListener(), image_handler);
         if( want_raw && raw_size != null&& !previewIsVideoMode  ) {
             // unlike the JPEG imageReader, we can't read the data and close the image straight away, so we need to allow a larger
             // value for maxImages
@@ -4516,25 +4770,131 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "created new imageReaderRaw: " + imageReaderRaw);
                 Log.d(TAG, "imageReaderRaw surface: " + imageReaderRaw.getSurface().toString());
             }
-            // see note above for imageReader.setOnImageAvailableListener for why we use a null handler
-            imageReaderRaw.setOnImageAvailableListener(onRawImageAvailableListener = new OnRawImageAvailableListener(), null);
+            // see note above for imageReader.setOnImageAvailableListener
+            imageReaderRaw.setOnImageAvailableListener(onRawImageAvailableListener = new OnRawImageAvailableListener(), image_handler);
         }
     }
     
+    /** Creates previewAnalysisImageReader, if preview frames for analysis are wanted and supported
+     *  for the capture session about to be created.
+     */
+    private void createPreviewAnalysisImageReader() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createPreviewAnalysisImageReader");
+        if( hasCaptureSession() ) {
+            // as for createPictureImageReader(), the surface must be passed to the captureSession when it's created
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't create preview analysis image reader when captureSession running!");
+            throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+        }
+        closePreviewAnalysisImageReader();
+        if( preview_analysis_cb == null || preview_width == 0 || preview_height == 0 ) {
+            return;
+        }
+        StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        android.util.Size [] sizes = configs == null ? null : configs.getOutputSizes(ImageFormat.YUV_420_888);
+        if( sizes == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no YUV output sizes");
+            return;
+        }
+        // choose the smallest size that's large enough for the histogram and zebra stripes/focus peaking,
+        // and which matches the aspect ratio of the preview (so the outputs line up with the preview)
+        final int min_width_c = 320;
+        final double aspect_tolerance_c = 0.01;
+        double preview_aspect = ((double)preview_width)/(double)preview_height;
+        android.util.Size best_size = null;
+        for(android.util.Size size : sizes) {
+            if( size.getWidth() < min_width_c || size.getWidth() > preview_width )
+                continue;
+            double aspect = ((double)size.getWidth())/(double)size.getHeight();
+            if( Math.abs(aspect - preview_aspect) > aspect_tolerance_c )
+                continue;
+            if( best_size == null || size.getWidth() < best_size.getWidth() )
+                best_size = size;
+        }
+        if( best_size == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no YUV output size matching preview aspect ratio");
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "preview analysis size: " + best_size.getWidth() + " x " + best_size.getHeight());
+        if( preview_analysis_thread == null ) {
+            preview_analysis_thread = new HandlerThread("PreviewAnalysis");
+            preview_analysis_thread.start();
+            preview_analysis_handler = new Handler(preview_analysis_thread.getLooper());
+        }
+        // we always use acquireLatestImage() and close the image straight away, so only need 2 images
+        previewAnalysisImageReader = ImageReader.newInstance(best_size.getWidth(), best_size.getHeight(), ImageFormat.YUV_420_888, 2);
+        // run on a separate thread to the camera callbacks, so that analysing frames doesn't delay them
+        previewAnalysisImageReader.setOnImageAvailableListener(new OnPreviewAnalysisImageAvailableListener(), preview_analysis_handler);
+    }
+
+    private class OnPreviewAnalysisImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // if analysis is slower than the frame rate, skip to the most recent frame
+            Image image = reader.acquireLatestImage();
+            if( image == null ) {
+                return;
+            }
+            try {
+                PreviewAnalysisCallback cb = preview_analysis_cb;
+                if( cb != null ) {
+                    Image.Plane [] planes = image.getPlanes();
+                    cb.onPreviewFrame(image.getWidth(), image.getHeight(),
+                            planes[0].getBuffer(), planes[0].getRowStride(),
+                            planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+                }
+            }
+            finally {
+                image.close();
+            }
+        }
+    }
+
+    @Override
+    public int getNPreviewRequestsIssued() {
+        return request_update_scheduler.getNIssued();
+    }
+
+    @Override
+    public int getNPreviewRequestsCoalesced() {
+        return request_update_scheduler.getNCoalesced();
+    }
+
+    @Override
+    public int getNPreviewRequestsUnchanged() {
+        return request_update_scheduler.getNUnchanged();
+    }
+
+    @Override
+    public boolean setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewAnalysisCallback: " + cb);
+        this.preview_analysis_cb = cb;
+        return true;
+    }
+
     private void clearPending() {
         if( MyDebug.LOG )
             Log.d(TAG, "clearPending");
+        for(ImageBuffer image : pending_burst_images) {
+            image.release();
+        }
         pending_burst_images.clear();
         pending_burst_images_raw.clear();
         pending_raw_image = null;
         if( onImageAvailableListener != null ) {
-            onImageAvailableListener.skip_next_image = false;
+            onImageAvailableListener.skip_next_image.set(false);
         }
         if( onRawImageAvailableListener != null ) {
             onRawImageAvailableListener.clear();
-            onRawImageAvailableListener.skip_next_image = false;
+            onRawImageAvailableListener.skip_next_image.set(false);
         }
         slow_burst_capture_requests = null;
+        burst_state.setSlowBurstNextRequest(0);
         n_burst = 0;
         n_burst_taken = 0;
         n_burst_total = 0;
@@ -4549,9 +4909,7 @@ public class CameraController2 extends CameraController {
         // takePendingRaw() always called on UI thread, and pending_raw_image only used on UI thread, so shouldn't need to
         // synchronize for that
         if( pending_raw_image != null ) {
-            synchronized( background_camera_lock ) {
-                raw_todo = false;
-            }
+            burst_state.setRawDone();
             // don't call callback with lock
             picture_cb.onRawPictureTaken(pending_raw_image);
             // pending_raw_image should be closed by the application (we don't do it here, so that applications can keep hold of the data, e.g., in a queue for background processing)
@@ -4577,12 +4935,12 @@ public class CameraController2 extends CameraController {
                 if( MyDebug.LOG )
                     Log.d(TAG, "no picture_cb");
             }
-            else if( !jpeg_todo && !raw_todo ) {
+            else if( !burst_state.isJpegTodo() && !burst_state.isRawTodo() ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "all image callbacks now completed");
                 completed = true;
             }
-            else if( !jpeg_todo && pending_raw_image != null ) {
+            else if( !burst_state.isJpegTodo() && pending_raw_image != null ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "jpeg callback already done, can now call pending raw callback");
                 take_pending_raw = true;
@@ -4788,17 +5146,7 @@ public class CameraController2 extends CameraController {
             camera_settings.setCropRegion(previewBuilder);
         }
         this.current_zoom_value = value;
-        try {
-            setRepeatingRequest();
-        }
-        catch(CameraAccessException e) {
-            if( MyDebug.LOG ) {
-                Log.e(TAG, "failed to set zoom");
-                Log.e(TAG, "reason: " + e.getReason());
-                Log.e(TAG, "message: " + e.getMessage());
-            }
-            e.printStackTrace();
-        } 
+        requestPreviewUpdate();
     }
 
     @Override
@@ -4819,17 +5167,7 @@ public class CameraController2 extends CameraController {
         camera_settings.has_ae_exposure_compensation = true;
         camera_settings.ae_exposure_compensation = new_exposure;
         if( camera_settings.setExposureCompensation(previewBuilder) ) {
-            try {
-                setRepeatingRequest();
-            }
-            catch(CameraAccessException e) {
-                if( MyDebug.LOG ) {
-                    Log.e(TAG, "failed to set exposure compensation");
-                    Log.e(TAG, "reason: " + e.getReason());
-                    Log.e(TAG, "message: " + e.getMessage());
-                }
-                e.printStackTrace();
-            } 
+            requestPreviewUpdate();
             return true;
         }
         return false;
@@ -5010,17 +5348,7 @@ public class CameraController2 extends CameraController {
         camera_settings.focus_distance = focus_distance;
         camera_settings.focus_distance_manual = focus_distance;
         camera_settings.setFocusDistance(previewBuilder);
-        try {
-            setRepeatingRequest();
-        }
-        catch(CameraAccessException e) {
-            if( MyDebug.LOG ) {
-                Log.e(TAG, "failed to set focus distance");
-                Log.e(TAG, "reason: " + e.getReason());
-                Log.e(TAG, "message: " + e.getMessage());
-            }
-            e.printStackTrace();
-        } 
+        requestPreviewUpdate();
         return true;
     }
 
@@ -5552,6 +5880,7 @@ public class CameraController2 extends CameraController {
                 else {
                     captureSession.setRepeatingRequest(request, previewCaptureCallback, handler);
                 }
+                last_repeating_request = request;
                 if( MyDebug.LOG )
                     Log.d(TAG, "setRepeatingRequest done");
             }
@@ -5564,6 +5893,65 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    /** Call on the UI thread when the preview settings in previewBuilder have been changed, to
+     *  send them to the camera. Changes made in quick succession are sent together, with at most one
+     *  new repeating request per preview frame.
+     */
+    private void requestPreviewUpdate() {
+        request_update_scheduler.setFrameIntervalNs(capture_result_has_frame_duration ? capture_result_frame_duration : 0);
+        request_update_scheduler.requestUpdate(System.nanoTime());
+    }
+
+    /** Sends the current settings in previewBuilder as a new repeating request, unless they are
+     *  the same as the last repeating request.
+     * @return Whether a new repeating request was sent.
+     */
+    private boolean setRepeatingRequestIfChanged() {
+        synchronized( background_camera_lock ) {
+            if( camera == null || previewBuilder == null || !hasCaptureSession() ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "no camera or capture session");
+                return false;
+            }
+            CaptureRequest request = previewBuilder.build();
+            if( last_repeating_request != null && sameRequestSettings(request, last_repeating_request) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "preview settings unchanged");
+                return false;
+            }
+            try {
+                setRepeatingRequest(request);
+            }
+            catch(CameraAccessException e) {
+                if( MyDebug.LOG ) {
+                    Log.e(TAG, "failed to update preview");
+                    Log.e(TAG, "reason: " + e.getReason());
+                    Log.e(TAG, "message: " + e.getMessage());
+                }
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Whether the two requests have the same keys set to the same values. Note that this doesn't
+     *  compare the target surfaces.
+     */
+    private static boolean sameRequestSettings(CaptureRequest request0, CaptureRequest request1) {
+        List<CaptureRequest.Key<?>> keys = request0.getKeys();
+        if( !keys.equals(request1.getKeys()) ) {
+            return false;
+        }
+        for(CaptureRequest.Key<?> key : keys) {
+            // use deepEquals so that array values (e.g., metering regions) are compared by contents
+            if( !Arrays.deepEquals(new Object[]{request0.get(key)}, new Object[]{request1.get(key)}) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void capture() throws CameraAccessException {
         capture(previewBuilder.build());
     }
@@ -5704,6 +6092,14 @@ public class CameraController2 extends CameraController {
                 // in some cases need to recreate picture imageReader and the texture default buffer size (e.g., see test testTakePhotoPreviewPaused())
                 createPictureImageReader();
             }
+            if( video_recorder == null && !want_video_high_speed && imageReaderRaw == null && sessionType != SessionType.SESSIONTYPE_EXTENSION ) {
+                // preview + YUV + JPEG is a guaranteed stream combination for all hardware levels, but
+                // adding a further RAW stream isn't
+                createPreviewAnalysisImageReader();
+            }
+            else {
+                closePreviewAnalysisImageReader();
+            }
             if( texture != null ) {
                 // need to set the texture size
                 if( MyDebug.LOG )
@@ -5720,6 +6116,7 @@ public class CameraController2 extends CameraController {
                         if( MyDebug.LOG )
                             Log.d(TAG, "remove old target: " + surface_texture);
                         previewBuilder.removeTarget(surface_texture);
+                        last_repeating_request = null;
                     }
                     this.surface_texture = new Surface(texture);
                     if( MyDebug.LOG )
@@ -5766,6 +6163,9 @@ public class CameraController2 extends CameraController {
                         captureSession = session;
                         extensionSession = eSession;
                         previewBuilder.addTarget(surface_texture);
+                        if( previewAnalysisImageReader != null ) {
+                            previewBuilder.addTarget(previewAnalysisImageReader.getSurface());
+                        }
                         if( video_recorder != null ) {
                             if( MyDebug.LOG ) {
                                 Log.d(TAG, "add video recorder surface to previewBuilder: " + video_recorder_surface);
@@ -5837,8 +6237,7 @@ public class CameraController2 extends CameraController {
                                 Log.e(TAG, "message: " + e.getMessage());
                             }
                             e.printStackTrace();
-                            jpeg_todo = false;
-                            raw_todo = false;
+                            burst_state.stop();
                             picture_cb = null;
                             if( take_picture_error_cb != null ) {
                                 take_picture_error_cb.onError();
@@ -5870,6 +6269,9 @@ public class CameraController2 extends CameraController {
                 else if( imageReaderRaw != null ) {
                     surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), imageReaderRaw.getSurface());
                 }
+                else if( previewAnalysisImageReader != null ) {
+                    surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), previewAnalysisImageReader.getSurface());
+                }
                 else {
                     surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
                 }
@@ -6029,7 +6431,7 @@ public class CameraController2 extends CameraController {
             // If the caller hasn't set a focus mode, but focus modes are supported, it's still better to explicitly set one rather than leaving to the
             // builder's default - e.g., problem on Android emulator with LIMITED camera where it only supported infinity focus (CONTROL_AF_MODE_OFF), but
             // the preview builder defaults to CONTROL_AF_MODE_CONTINUOUS_PICTURE! This meant we froze when trying to take a photo, because we thought
-            // we were in continuous picture mode and so waited in state STATE_WAITING_AUTOFOCUS, but the focus never occurred.
+            // we were in continuous picture mode and so waited in state WAITING_AUTOFOCUS, but the focus never occurred.
             // Ideally the caller to CameraController2 (Preview) should always explicitly set a focus mode if at least 1 focus mode is supported. At the
             // time of writing, Preview only sets a focus if at least 2 focus modes are supported. But even if we fix that in future, still good to have
             // well defined behaviour at the CameraController level.
@@ -6260,9 +6662,8 @@ public class CameraController2 extends CameraController {
                 }
             }
             if( MyDebug.LOG )
-                Log.d(TAG, "state is now STATE_WAITING_AUTOFOCUS");
-            state = STATE_WAITING_AUTOFOCUS;
-            precapture_state_change_time_ms = -1;
+                Log.d(TAG, "state is now WAITING_AUTOFOCUS");
+            setCaptureState(CaptureState.WAITING_AUTOFOCUS, -1);
             this.capture_follows_autofocus_hint = capture_follows_autofocus_hint;
             this.autofocus_cb = cb;
             this.autofocus_time_ms = System.currentTimeMillis();
@@ -6321,8 +6722,7 @@ public class CameraController2 extends CameraController {
                     Log.e(TAG, "message: " + e.getMessage());
                 }
                 e.printStackTrace();
-                state = STATE_NORMAL;
-                precapture_state_change_time_ms = -1;
+                setCaptureState(CaptureState.NORMAL, -1);
                 push_autofocus_cb = autofocus_cb;
                 autofocus_cb = null;
                 this.autofocus_time_ms = -1;
@@ -6389,8 +6789,7 @@ public class CameraController2 extends CameraController {
             this.autofocus_cb = null;
             this.autofocus_time_ms = -1;
             this.capture_follows_autofocus_hint = false;
-            state = STATE_NORMAL;
-            precapture_state_change_time_ms = -1;
+            setCaptureState(CaptureState.NORMAL, -1);
             try {
                 setRepeatingRequest();
             }
@@ -6500,14 +6899,16 @@ public class CameraController2 extends CameraController {
                 n_burst = 1;
                 n_burst_taken = 0;
                 n_burst_total = n_burst;
-                n_burst_raw = raw_todo ? n_burst : 0;
+                n_burst_raw = burst_state.isRawTodo() ? n_burst : 0;
                 burst_single_request = false;
                 if( !previewIsVideoMode ) {
                     // need to stop preview before capture (as done in Camera2Basic; otherwise we get bugs such as flash remaining on after taking a photo with flash)
                     // but don't do this in video mode - if we're taking photo snapshots while video recording, we don't want to pause video!
                     // update: bug with flash may have been device specific (things are fine with Nokia 8)
-                    if( sessionType != SessionType.SESSIONTYPE_EXTENSION )
+                    if( sessionType != SessionType.SESSIONTYPE_EXTENSION ) {
                         captureSession.stopRepeating();
+                        last_repeating_request = null;
+                    }
                 }
             }
             catch(CameraAccessException e) {
@@ -6518,8 +6919,7 @@ public class CameraController2 extends CameraController {
                 }
                 e.printStackTrace();
                 ok = false;
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 push_take_picture_error_cb = take_picture_error_cb;
                 take_picture_error_cb = null;
@@ -6529,8 +6929,7 @@ public class CameraController2 extends CameraController {
                     Log.d(TAG, "captureSession already closed!");
                 e.printStackTrace();
                 ok = false;
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 // don't report error, as camera is closed or closing
             }
@@ -6593,8 +6992,7 @@ public class CameraController2 extends CameraController {
                     e.printStackTrace();
                     //noinspection UnusedAssignment
                     ok = false;
-                    jpeg_todo = false;
-                    raw_todo = false;
+                    burst_state.stop();
                     picture_cb = null;
                     push_take_picture_error_cb = take_picture_error_cb;
                 }
@@ -6604,8 +7002,7 @@ public class CameraController2 extends CameraController {
                     e.printStackTrace();
                     //noinspection UnusedAssignment
                     ok = false;
-                    jpeg_todo = false;
-                    raw_todo = false;
+                    burst_state.stop();
                     picture_cb = null;
                     // don't report error, as camera is closed or closing
                 }
@@ -6724,7 +7121,7 @@ public class CameraController2 extends CameraController {
                 // shouldn't add preview surface as a target - see note in takePictureAfterPrecapture()
                 // but also, adding the preview surface causes the dark/light exposures to be visible, which we don't want
                 stillBuilder.addTarget(imageReader.getSurface());
-                if( raw_todo )
+                if( burst_state.isRawTodo() )
                     stillBuilder.addTarget(imageReaderRaw.getSurface());
 
                 if( burst_type == BurstType.BURSTTYPE_EXPO ) {
@@ -6804,9 +7201,9 @@ public class CameraController2 extends CameraController {
                     requests.add( stillBuilder.build() );
                     n_dummy_requests++;
                     if( onImageAvailableListener != null )
-                        onImageAvailableListener.skip_next_image = true;
+                        onImageAvailableListener.skip_next_image.set(true);
                     if( onRawImageAvailableListener != null )
-                        onRawImageAvailableListener.skip_next_image = true;
+                        onRawImageAvailableListener.skip_next_image.set(true);
                 }
 
                 // darker images
@@ -6944,7 +7341,7 @@ public class CameraController2 extends CameraController {
                 n_burst = requests.size() - n_dummy_requests;
                 n_burst_total = n_burst;
                 n_burst_taken = 0;
-                n_burst_raw = raw_todo ? n_burst : 0;
+                n_burst_raw = burst_state.isRawTodo() ? n_burst : 0;
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "n_burst: " + n_burst);
                     Log.d(TAG, "burst_single_request: " + burst_single_request);
@@ -6952,6 +7349,7 @@ public class CameraController2 extends CameraController {
 
                 if( !previewIsVideoMode ) {
                     captureSession.stopRepeating(); // see note under takePictureAfterPrecapture()
+                    last_repeating_request = null;
                 }
             }
             catch(CameraAccessException e) {
@@ -6962,8 +7360,7 @@ public class CameraController2 extends CameraController {
                 }
                 e.printStackTrace();
                 ok = false;
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 push_take_picture_error_cb = take_picture_error_cb;
             }
@@ -6972,8 +7369,7 @@ public class CameraController2 extends CameraController {
                     Log.d(TAG, "captureSession already closed!");
                 e.printStackTrace();
                 ok = false;
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 // don't report error, as camera is closed or closing
             }
@@ -7008,6 +7404,7 @@ public class CameraController2 extends CameraController {
                             Log.d(TAG, "using slow burst");
                         slow_burst_capture_requests = requests;
                         slow_burst_start_ms = System.currentTimeMillis();
+                        burst_state.setSlowBurstNextRequest(1);
                         captureSession.capture(requests.get(0), previewCaptureCallback, handler);
                     }
 
@@ -7022,8 +7419,7 @@ public class CameraController2 extends CameraController {
                     e.printStackTrace();
                     //noinspection UnusedAssignment
                     ok = false;
-                    jpeg_todo = false;
-                    raw_todo = false;
+                    burst_state.stop();
                     picture_cb = null;
                     push_take_picture_error_cb = take_picture_error_cb;
                 }
@@ -7033,8 +7429,7 @@ public class CameraController2 extends CameraController {
                     e.printStackTrace();
                     //noinspection UnusedAssignment
                     ok = false;
-                    jpeg_todo = false;
-                    raw_todo = false;
+                    burst_state.stop();
                     picture_cb = null;
                     // don't report error, as camera is closed or closing
                 }
@@ -7113,7 +7508,7 @@ public class CameraController2 extends CameraController {
                 if( burst_type == BurstType.BURSTTYPE_CONTINUOUS ) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "continuous burst mode");
-                    raw_todo = false; // RAW works in continuous burst mode, but makes things very slow...
+                    burst_state.setRawDone(); // RAW works in continuous burst mode, but makes things very slow...
                     if( continuing_fast_burst ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "continuing fast burst");
@@ -7169,10 +7564,10 @@ public class CameraController2 extends CameraController {
                     n_burst = burst_requested_n_images;
                     n_burst_taken = 0;
                 }
-                if( raw_todo )
+                if( burst_state.isRawTodo() )
                     stillBuilder.addTarget(imageReaderRaw.getSurface());
                 n_burst_total = n_burst;
-                n_burst_raw = raw_todo ? n_burst : 0;
+                n_burst_raw = burst_state.isRawTodo() ? n_burst : 0;
                 burst_single_request = false;
 
                 if( MyDebug.LOG )
@@ -7193,8 +7588,7 @@ public class CameraController2 extends CameraController {
                 }
                 e.printStackTrace();
                 ok = false;
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 push_take_picture_error_cb = take_picture_error_cb;
             }
@@ -7315,8 +7709,7 @@ public class CameraController2 extends CameraController {
                                             Log.e(TAG, "message: " + e.getMessage());
                                         }
                                         e.printStackTrace();
-                                        jpeg_todo = false;
-                                        raw_todo = false;
+                                        burst_state.stop();
                                         picture_cb = null;
                                         push_take_picture_error_cb = take_picture_error_cb;
                                     }
@@ -7343,8 +7736,7 @@ public class CameraController2 extends CameraController {
                     e.printStackTrace();
                     //noinspection UnusedAssignment
                     ok = false;
-                    jpeg_todo = false;
-                    raw_todo = false;
+                    burst_state.stop();
                     picture_cb = null;
                     push_take_picture_error_cb = take_picture_error_cb;
                 }
@@ -7392,14 +7784,15 @@ public class CameraController2 extends CameraController {
 
                 precaptureBuilder.addTarget(getPreviewSurface());
 
-                state = STATE_WAITING_PRECAPTURE_START;
-                precapture_state_change_time_ms = System.currentTimeMillis();
+                setCaptureState(CaptureState.WAITING_PRECAPTURE_START, System.currentTimeMillis());
 
-                // first set precapture to idle - this is needed, otherwise we hang in state STATE_WAITING_PRECAPTURE_START, because precapture already occurred whilst autofocusing, and it doesn't occur again unless we first set the precapture trigger to idle
+                // first set precapture to idle - this is needed, otherwise we hang in state WAITING_PRECAPTURE_START, because precapture already occurred whilst autofocusing, and it doesn't occur again unless we first set the precapture trigger to idle
                 if( MyDebug.LOG )
                     Log.d(TAG, "capture with precaptureBuilder");
                 captureSession.capture(precaptureBuilder.build(), previewCaptureCallback, handler);
                 captureSession.setRepeatingRequest(precaptureBuilder.build(), previewCaptureCallback, handler);
+                // bypasses setRepeatingRequest(CaptureRequest), so the camera is no longer running last_repeating_request
+                last_repeating_request = null;
 
                 // now set precapture
                 precaptureBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START);
@@ -7412,8 +7805,7 @@ public class CameraController2 extends CameraController {
                     Log.e(TAG, "message: " + e.getMessage());
                 }
                 e.printStackTrace();
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 push_take_picture_error_cb = take_picture_error_cb;
             }
@@ -7482,8 +7874,7 @@ public class CameraController2 extends CameraController {
         }
 
         synchronized( background_camera_lock ) {
-            state = STATE_WAITING_FAKE_PRECAPTURE_START;
-            precapture_state_change_time_ms = System.currentTimeMillis();
+            setCaptureState(CaptureState.WAITING_FAKE_PRECAPTURE_START, System.currentTimeMillis());
             fake_precapture_turn_on_torch_id = null;
             try {
                 CaptureRequest request = previewBuilder.build();
@@ -7501,8 +7892,7 @@ public class CameraController2 extends CameraController {
                     Log.e(TAG, "message: " + e.getMessage());
                 }
                 e.printStackTrace();
-                jpeg_todo = false;
-                raw_todo = false;
+                burst_state.stop();
                 picture_cb = null;
                 push_take_picture_error_cb = take_picture_error_cb;
             }
@@ -7594,8 +7984,7 @@ public class CameraController2 extends CameraController {
                 return;
             }
             this.picture_cb = picture;
-            this.jpeg_todo = true;
-            this.raw_todo = imageReaderRaw != null;
+            burst_state.start(imageReaderRaw != null);
             this.done_all_captures = false;
             this.take_picture_error_cb = error;
             this.fake_precapture_torch_performed = false; // just in case still on?
@@ -7638,7 +8027,7 @@ public class CameraController2 extends CameraController {
                         // taking the photo, ae convergence may have already occurred - so if we called runFakePrecapture(), we'd just get
                         // stuck waiting for CONTROL_AE_STATE_SEARCHING which will never happen, until we hit the timeout - it works,
                         // but it means taking photos is slower as we have to wait until the timeout
-                        // Instead we assume that ae scanning has already started, so go straight to STATE_WAITING_FAKE_PRECAPTURE_DONE,
+                        // Instead we assume that ae scanning has already started, so go straight to WAITING_FAKE_PRECAPTURE_DONE,
                         // which means wait until we're no longer CONTROL_AE_STATE_SEARCHING.
                         // (Note, we don't want to go straight to takePictureAfterPrecapture(), as it might be that ae scanning is still
                         // taking place.)
@@ -7646,8 +8035,7 @@ public class CameraController2 extends CameraController {
                         // at worst this is tricky to get working, and at best, taking photos would be slower.
                         fake_precapture_torch_performed = true; // so we know to fire the torch when capturing
                         test_fake_flash_precapture++; // for testing, should treat this same as if we did do the precapture
-                        state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
-                        precapture_state_change_time_ms = System.currentTimeMillis();
+                        setCaptureState(CaptureState.WAITING_FAKE_PRECAPTURE_DONE, System.currentTimeMillis());
                     }
                     else {
                         call_runFakePrecapture = true;
@@ -8223,17 +8611,19 @@ public class CameraController2 extends CameraController {
                 fake_precapture_turn_on_torch_id = null;
             }
 
-            if( state == STATE_NORMAL ) {
+            // take a copy, as the state may be changed by other threads whilst we're processing it
+            CaptureState state = capture_state.get();
+            if( state == CaptureState.NORMAL ) {
                 // do nothing
             }
-            else if( state == STATE_WAITING_AUTOFOCUS ) {
+            else if( state == CaptureState.WAITING_AUTOFOCUS ) {
                 if( af_state == null ) {
                     // autofocus shouldn't really be requested if af not available, but still allow this rather than getting stuck waiting for autofocus to complete
                     if( MyDebug.LOG )
                         Log.e(TAG, "waiting for autofocus but af_state is null");
                     test_af_state_null_focus++;
-                    state = STATE_NORMAL;
-                    precapture_state_change_time_ms = -1;
+                    if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                        return; // state was changed by another thread in the meantime
                     if( autofocus_cb != null ) {
                         autofocus_cb.onAutoFocus(false);
                         autofocus_cb = null;
@@ -8254,8 +8644,8 @@ public class CameraController2 extends CameraController {
                                 Log.d(TAG, "onCaptureCompleted: autofocus failed");
                             Log.d(TAG, "af_state: " + af_state);
                         }
-                        state = STATE_NORMAL;
-                        precapture_state_change_time_ms = -1;
+                        if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                            return; // state was changed by another thread in the meantime
                         if( use_fake_precapture_mode && fake_precapture_torch_focus_performed ) {
                             fake_precapture_torch_focus_performed = false;
                             if( !capture_follows_autofocus_hint ) {
@@ -8312,7 +8702,7 @@ public class CameraController2 extends CameraController {
                     }
                 }
             }
-            else if( state == STATE_WAITING_PRECAPTURE_START ) {
+            else if( state == CaptureState.WAITING_PRECAPTURE_START ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "waiting for precapture start...");
                 if( MyDebug.LOG ) {
@@ -8328,19 +8718,17 @@ public class CameraController2 extends CameraController {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "precapture started after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
-                    state = STATE_WAITING_PRECAPTURE_DONE;
-                    precapture_state_change_time_ms = System.currentTimeMillis();
+                    transitionCaptureState(state, CaptureState.WAITING_PRECAPTURE_DONE, System.currentTimeMillis());
                 }
                 else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_start_timeout_c ) {
                     // hack - give up waiting - sometimes we never get a CONTROL_AE_STATE_PRECAPTURE so would end up stuck
                     // always log error, so we can look for it when manually testing with logging disabled
                     Log.e(TAG, "precapture start timeout");
                     count_precapture_timeout++;
-                    state = STATE_WAITING_PRECAPTURE_DONE;
-                    precapture_state_change_time_ms = System.currentTimeMillis();
+                    transitionCaptureState(state, CaptureState.WAITING_PRECAPTURE_DONE, System.currentTimeMillis());
                 }
             }
-            else if( state == STATE_WAITING_PRECAPTURE_DONE ) {
+            else if( state == CaptureState.WAITING_PRECAPTURE_DONE ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "waiting for precapture done...");
                 if( MyDebug.LOG ) {
@@ -8353,8 +8741,8 @@ public class CameraController2 extends CameraController {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "precapture completed after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
-                    state = STATE_NORMAL;
-                    precapture_state_change_time_ms = -1;
+                    if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                        return; // state was changed by another thread in the meantime
                     takePictureAfterPrecapture();
                 }
                 else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_done_timeout_c ) {
@@ -8362,12 +8750,12 @@ public class CameraController2 extends CameraController {
                     // always log error, so we can look for it when manually testing with logging disabled
                     Log.e(TAG, "precapture done timeout");
                     count_precapture_timeout++;
-                    state = STATE_NORMAL;
-                    precapture_state_change_time_ms = -1;
+                    if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                        return; // state was changed by another thread in the meantime
                     takePictureAfterPrecapture();
                 }
             }
-            else if( state == STATE_WAITING_FAKE_PRECAPTURE_START ) {
+            else if( state == CaptureState.WAITING_FAKE_PRECAPTURE_START ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "waiting for fake precapture start...");
                 if( MyDebug.LOG ) {
@@ -8385,8 +8773,7 @@ public class CameraController2 extends CameraController {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "fake precapture started after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
-                    state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
-                    precapture_state_change_time_ms = System.currentTimeMillis();
+                    transitionCaptureState(state, CaptureState.WAITING_FAKE_PRECAPTURE_DONE, System.currentTimeMillis());
                 }
                 else if( fake_precapture_turn_on_torch_id == null && camera_settings.has_iso && precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > 100 ) {
                     // When using manual ISO, we can't make use of changes to the ae_state - but at the same time, we don't
@@ -8397,20 +8784,19 @@ public class CameraController2 extends CameraController {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "fake precapture started after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
-                    state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
-                    precapture_state_change_time_ms = System.currentTimeMillis();
+                    transitionCaptureState(state, CaptureState.WAITING_FAKE_PRECAPTURE_DONE, System.currentTimeMillis());
                 }
                 else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_start_timeout_c ) {
                     // just in case
                     // always log error, so we can look for it when manually testing with logging disabled
                     Log.e(TAG, "fake precapture start timeout");
                     count_precapture_timeout++;
-                    state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
-                    precapture_state_change_time_ms = System.currentTimeMillis();
+                    if( !transitionCaptureState(state, CaptureState.WAITING_FAKE_PRECAPTURE_DONE, System.currentTimeMillis()) )
+                        return; // state was changed by another thread in the meantime
                     fake_precapture_turn_on_torch_id = null;
                 }
             }
-            else if( state == STATE_WAITING_FAKE_PRECAPTURE_DONE ) {
+            else if( state == CaptureState.WAITING_FAKE_PRECAPTURE_DONE ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "waiting for fake precapture done...");
                 if( MyDebug.LOG ) {
@@ -8425,8 +8811,8 @@ public class CameraController2 extends CameraController {
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "fake precapture completed after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
-                    state = STATE_NORMAL;
-                    precapture_state_change_time_ms = -1;
+                    if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                        return; // state was changed by another thread in the meantime
                     takePictureAfterPrecapture();
                 }
                 else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_done_timeout_c ) {
@@ -8434,8 +8820,8 @@ public class CameraController2 extends CameraController {
                     // always log error, so we can look for it when manually testing with logging disabled
                     Log.e(TAG, "fake precapture done timeout");
                     count_precapture_timeout++;
-                    state = STATE_NORMAL;
-                    precapture_state_change_time_ms = -1;
+                    if( !transitionCaptureState(state, CaptureState.NORMAL, -1) )
+                        return; // state was changed by another thread in the meantime
                     takePictureAfterPrecapture();
                 }
             }
@@ -0,0 +1,127 @@
+package com.jeffmony.opencamera.cameracontroller;
+
+import android.util.Log;
+
+import com.jeffmony.opencamera.MyDebug;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Holds compressed frames (e.g., the JPEGs of an HDR, NR or panorama capture) in memory mapped
+ *  scratch files, rather than on the Java heap. Frames are appended to the current mapped segment,
+ *  and a new segment is mapped when that's full.
+ *  The scratch files are deleted as soon as they've been mapped, so the storage is reclaimed once
+ *  the mappings are garbage collected (or the process dies), and no stale files can be left behind.
+ *  Frames are returned as ImageBuffers that view the mapped memory. These don't need to be released
+ *  (though it's harmless to do so), and remain valid after the store is closed.
+ */
+public class FrameStore {
+    private static final String TAG = "FrameStore";
+
+    private static final long min_free_space_c = 64*1024*1024; // space to leave free on the storage, as running out of space when writing to a mapping would crash
+
+    private final File dir;
+    private final long segment_size;
+    // the following should be synchronized to this
+    private MappedByteBuffer segment; // the segment that frames are currently appended to
+    private int n_frames;
+    private int n_segments;
+    private long total_bytes;
+    private boolean closed;
+
+    /**
+     * @param dir          Directory for the scratch files, e.g., Context.getCacheDir().
+     * @param segment_size The size of each mapped segment. Frames larger than this get a segment
+     *                     of their own.
+     */
+    public FrameStore(File dir, long segment_size) {
+        if( segment_size <= 0 || segment_size > Integer.MAX_VALUE ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("invalid segment size: " + segment_size);
+        }
+        this.dir = dir;
+        this.segment_size = segment_size;
+    }
+
+    /** Copies the data in src (from its position to its limit) into the store, and consumes src.
+     * @return A buffer viewing the stored frame.
+     * @throws IOException If a new segment was needed, but couldn't be mapped (e.g., if there
+     *                     isn't enough free storage). The caller should keep the frame on the heap
+     *                     instead.
+     */
+    public synchronized ImageBuffer append(ByteBuffer src) throws IOException {
+        if( closed ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("FrameStore is closed");
+        }
+        int size = src.remaining();
+        if( segment == null || segment.remaining() < size ) {
+            segment = mapSegment(Math.max(segment_size, size));
+        }
+        ByteBuffer frame = segment.slice();
+        frame.limit(size);
+        frame.put(src);
+        segment.position(segment.position() + size);
+        n_frames++;
+        total_bytes += size;
+        return new ImageBuffer(null, frame, size);
+    }
+
+    private MappedByteBuffer mapSegment(long size) throws IOException {
+        if( size > Integer.MAX_VALUE ) {
+            throw new IOException("frame too large: " + size);
+        }
+        if( dir.getUsableSpace() < size + min_free_space_c ) {
+            throw new IOException("not enough free space for segment of " + size + " bytes");
+        }
+        File file = File.createTempFile("frames", ".tmp", dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                // the mapping remains valid after the file is closed
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                n_segments++;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "mapped segment " + n_segments + " of " + size + " bytes");
+                return buffer;
+            }
+            finally {
+                raf.close();
+            }
+        }
+        finally {
+            // it's safe to delete the file whilst it's mapped
+            if( !file.delete() ) {
+                Log.e(TAG, "failed to delete scratch file: " + file);
+            }
+        }
+    }
+
+    /** Stops appending to the store. Frames already returned remain valid.
+     */
+    public synchronized void close() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "close: " + n_frames + " frames, " + total_bytes + " bytes in " + n_segments + " segments");
+        closed = true;
+        segment = null;
+    }
+
+    public synchronized int getNFrames() {
+        return n_frames;
+    }
+
+    public synchronized int getNSegments() {
+        return n_segments;
+    }
+
+    /** Returns the total size of the frames appended so far.
+     */
+    public synchronized long getTotalBytes() {
+        return total_bytes;
+    }
+}
@@ -0,0 +1,161 @@
+package com.jeffmony.opencamera.cameracontroller;
+
+import android.util.Log;
+
+import com.jeffmony.opencamera.MyDebug;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/** Holds the compressed data for an image (e.g., a JPEG), either in a (typically direct) buffer
+ *  obtained from an ImageBufferPool, or wrapping a byte array.
+ *  The buffer is reference counted: whoever is passed an ImageBuffer owns one reference, and must
+ *  call release() when done with it (or pass it on to something else that will). Call retain()
+ *  to hold an additional reference. Once the count drops to zero, the buffer is returned to its
+ *  pool, and this object must no longer be used.
+ */
+public class ImageBuffer {
+    private static final String TAG = "ImageBuffer";
+
+    private final ImageBufferPool pool; // null if not pooled
+    private final ByteBuffer buffer;
+    private final int size;
+    private int ref_count = 1; // should be synchronized to this
+
+    ImageBuffer(ImageBufferPool pool, ByteBuffer buffer, int size) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /** Returns an ImageBuffer for the supplied data, without copying it. The data must not be
+     *  modified afterwards.
+     */
+    public static ImageBuffer wrap(byte [] data) {
+        return new ImageBuffer(null, ByteBuffer.wrap(data), data.length);
+    }
+
+    /** Returns the length of the image data, in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    private synchronized void checkNotReleased() {
+        if( ref_count <= 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("ImageBuffer used after being released");
+        }
+    }
+
+    public synchronized void retain() {
+        checkNotReleased();
+        ref_count++;
+    }
+
+    public void release() {
+        boolean recycle;
+        synchronized( this ) {
+            checkNotReleased();
+            ref_count--;
+            recycle = ref_count == 0;
+        }
+        if( recycle && pool != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "return buffer to pool");
+            pool.recycle(buffer);
+        }
+    }
+
+    /** Returns a read-only view of the image data, with position 0 and limit size().
+     */
+    public ByteBuffer getBuffer() {
+        checkNotReleased();
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(0);
+        view.limit(size);
+        return view;
+    }
+
+    /** Returns the image data as a byte array. This avoids a copy if this ImageBuffer wraps a byte
+     *  array, so the returned array must not be modified.
+     */
+    public byte [] toByteArray() {
+        checkNotReleased();
+        if( buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == size ) {
+            return buffer.array();
+        }
+        byte [] data = new byte[size];
+        getBuffer().get(data);
+        return data;
+    }
+
+    /** Writes the image data to the supplied stream. If this is a FileOutputStream, a direct buffer
+     *  is written via its channel, without copying the data to the Java heap.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        writeTo(outputStream, 0);
+    }
+
+    /** As writeTo(OutputStream), but only writes the image data from the supplied offset.
+     */
+    public void writeTo(OutputStream outputStream, int offset) throws IOException {
+        checkNotReleased();
+        if( offset < 0 || offset > size ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("invalid offset " + offset + " for size " + size);
+        }
+        if( buffer.hasArray() ) {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + offset, size - offset);
+        }
+        else {
+            ByteBuffer view = getBuffer();
+            view.position(offset);
+            // n.b., we don't close the channel, as that would close outputStream
+            WritableByteChannel channel = outputStream instanceof FileOutputStream ? ((FileOutputStream)outputStream).getChannel() : Channels.newChannel(outputStream);
+            while( view.hasRemaining() ) {
+                channel.write(view);
+            }
+        }
+    }
+
+    /** Returns a stream for reading the image data.
+     */
+    public InputStream getInputStream() {
+        final ByteBuffer view = getBuffer();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return view.hasRemaining() ? (view.get() & 0xff) : -1;
+            }
+
+            @Override
+            public int read(byte [] b, int off, int len) {
+                if( len == 0 )
+                    return 0;
+                else if( !view.hasRemaining() )
+                    return -1;
+                len = Math.min(len, view.remaining());
+                view.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skip = (int)Math.max(0, Math.min(n, view.remaining()));
+                view.position(view.position() + skip);
+                return skip;
+            }
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package com.jeffmony.opencamera.cameracontroller;
+
+import android.util.Log;
+
+import com.jeffmony.opencamera.MyDebug;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A pool of direct ByteBuffers used to hold compressed image data as it comes off the camera, so
+ *  that we don't have to allocate a new (large) byte array on the Java heap for every photo.
+ *  Buffers are handed out as reference counted ImageBuffers, and return to the pool once
+ *  released. If an ImageBuffer is never released (e.g., it's dropped due to an error), its
+ *  buffer is just garbage collected, and the pool allocates a new one when needed.
+ */
+public class ImageBufferPool {
+    private static final String TAG = "ImageBufferPool";
+
+    private final int max_buffers;
+    private final int max_capacity;
+    // the following should be synchronized to this
+    private final List<ByteBuffer> free_buffers = new ArrayList<>();
+    private int n_allocated;
+    private int n_reused;
+
+    /**
+     * @param max_buffers  The maximum number of buffers to keep in the pool when not in use.
+     * @param max_capacity The maximum size of a pooled buffer. Requests larger than this are
+     *                     satisfied with a buffer that isn't returned to the pool.
+     */
+    public ImageBufferPool(int max_buffers, int max_capacity) {
+        if( max_buffers < 0 || max_capacity <= 0 ) {
+            // throw runtime exception, as this is a programming error
+            throw new RuntimeException("invalid pool size: " + max_buffers + " , " + max_capacity);
+        }
+        this.max_buffers = max_buffers;
+        this.max_capacity = max_capacity;
+    }
+
+    /** Returns a buffer for the data currently in src (from its position to its limit), and
+     *  consumes src.
+     */
+    public ImageBuffer copyOf(ByteBuffer src) {
+        int size = src.remaining();
+        ByteBuffer buffer = obtainBuffer(size);
+        buffer.clear();
+        buffer.put(src);
+        return new ImageBuffer(size <= max_capacity ? this : null, buffer, size);
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        if( size > max_capacity ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "size " + size + " larger than max capacity " + max_capacity);
+            return ByteBuffer.allocateDirect(size);
+        }
+        synchronized( this ) {
+            for(int i=free_buffers.size()-1;i>=0;i--) {
+                if( free_buffers.get(i).capacity() >= size ) {
+                    n_reused++;
+                    return free_buffers.remove(i);
+                }
+            }
+            n_allocated++;
+        }
+        // JPEG sizes vary from photo to photo, so allocate with headroom to make it more likely that
+        // the buffer can be reused
+        int capacity = Math.min(max_capacity, size + size/4);
+        if( MyDebug.LOG )
+            Log.d(TAG, "allocate buffer of capacity " + capacity + " for size " + size);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        synchronized( this ) {
+            if( free_buffers.size() < max_buffers ) {
+                free_buffers.add(buffer);
+                return;
+            }
+            else if( free_buffers.size() > 0 ) {
+                // prefer to keep the larger buffers
+                int smallest = 0;
+                for(int i=1;i<free_buffers.size();i++) {
+                    if( free_buffers.get(i).capacity() < free_buffers.get(smallest).capacity() )
+                        smallest = i;
+                }
+                if( free_buffers.get(smallest).capacity() < buffer.capacity() ) {
+                    free_buffers.set(smallest, buffer);
+                }
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "pool full, discarding buffer");
+    }
+
+    /** Returns the number of unused buffers currently held by the pool.
+     */
+    public synchronized int getFreeCount() {
+        return free_buffers.size();
+    }
+
+    /** Returns the number of pooled buffers that had to be newly allocated.
+     */
+    public synchronized int getAllocatedCount() {
+        return n_allocated;
+    }
+
+    /** Returns the number of times a buffer was reused from the pool.
+     */
+    public synchronized int getReusedCount() {
+        return n_reused;
+    }
+}
@@ -47,6 +47,17 @@ public class RawImage {
         }
     }
 
+    /** Returns the size of the image data held by this object, in bytes.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for(Image.Plane plane : image.getPlanes()) {
+            bytes += plane.getBuffer().capacity();
+        }
+        return bytes;
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
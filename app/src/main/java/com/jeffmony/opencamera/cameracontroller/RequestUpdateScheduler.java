@@ -0,0 +1,150 @@
+package com.jeffmony.opencamera.cameracontroller;
+
+/** Limits how often changes to the preview settings are sent to the camera. The first change is
+ *  sent straight away, but further changes within the same frame are held back and sent together
+ *  as a single update once the frame has passed, so that a fast gesture (e.g., pinch zoom, or
+ *  dragging a manual focus or exposure seekbar) results in at most one new repeating request per
+ *  preview frame.
+ *  This class doesn't use any Android APIs, so that it can be run on a standard JVM (e.g., for unit
+ *  testing).
+ */
+public class RequestUpdateScheduler {
+    //private static final String TAG = "RequestUpdateScheduler";
+
+    public interface Callback {
+        /** Called when flush() should be called after the supplied delay.
+         */
+        void postFlush(long delay_ms);
+
+        /** Called to send the current settings to the camera.
+         * @return Whether a new request was sent, or false if the settings hadn't changed since the
+         *         last request, so there was nothing to send.
+         */
+        boolean issueRequest();
+    }
+
+    public static final long default_frame_interval_ns_c = 1000000000L/30;
+    private static final long max_frame_interval_ns_c = 200000000L; // so that updates aren't held back for too long in low light
+
+    private final Callback callback;
+    private long frame_interval_ns = default_frame_interval_ns_c;
+    private long last_issue_time_ns = -1;
+    private boolean pending; // whether an update is waiting for flush()
+
+    private int n_requested;
+    private int n_issued;
+    private int n_unchanged;
+    private int n_coalesced;
+
+    public RequestUpdateScheduler(Callback callback) {
+        this.callback = callback;
+    }
+
+    /** Sets the time between preview frames. Values of 0 or less mean to use the default.
+     */
+    public synchronized void setFrameIntervalNs(long frame_interval_ns) {
+        if( frame_interval_ns <= 0 )
+            frame_interval_ns = default_frame_interval_ns_c;
+        this.frame_interval_ns = Math.min(frame_interval_ns, max_frame_interval_ns_c);
+    }
+
+    public synchronized long getFrameIntervalNs() {
+        return frame_interval_ns;
+    }
+
+    /** Call when the settings have changed and need to be sent to the camera.
+     * @param time_ns The current time, from System.nanoTime().
+     */
+    public void requestUpdate(long time_ns) {
+        long delay_ns;
+        synchronized( this ) {
+            n_requested++;
+            if( pending ) {
+                // will be sent with the update that's already waiting
+                n_coalesced++;
+                return;
+            }
+            long time_since_issue_ns = time_ns - last_issue_time_ns;
+            if( last_issue_time_ns != -1 && time_since_issue_ns >= 0 && time_since_issue_ns < frame_interval_ns ) {
+                pending = true;
+                delay_ns = frame_interval_ns - time_since_issue_ns;
+            }
+            else {
+                last_issue_time_ns = time_ns;
+                delay_ns = -1;
+            }
+        }
+        // call back outside of the lock, as the callback may need to take other locks
+        if( delay_ns >= 0 ) {
+            long delay_ms = Math.max((delay_ns + 999999)/1000000, 1);
+            callback.postFlush(delay_ms);
+        }
+        else {
+            issue();
+        }
+    }
+
+    /** Sends any update that's waiting. Should be called following a call to Callback.postFlush().
+     * @param time_ns The current time, from System.nanoTime().
+     */
+    public void flush(long time_ns) {
+        synchronized( this ) {
+            if( !pending ) {
+                return;
+            }
+            pending = false;
+            last_issue_time_ns = time_ns;
+        }
+        issue();
+    }
+
+    private void issue() {
+        boolean issued = callback.issueRequest();
+        synchronized( this ) {
+            if( issued )
+                n_issued++;
+            else
+                n_unchanged++;
+        }
+    }
+
+    /** Discards any update that's waiting, e.g., when the camera is closed.
+     */
+    public synchronized void cancel() {
+        pending = false;
+        last_issue_time_ns = -1;
+    }
+
+    public synchronized boolean isPending() {
+        return pending;
+    }
+
+    /** Returns the number of times requestUpdate() has been called.
+     */
+    public synchronized int getNRequested() {
+        return n_requested;
+    }
+
+    /** Returns the number of requests sent to the camera.
+     */
+    public synchronized int getNIssued() {
+        return n_issued;
+    }
+
+    /** Returns the number of updates that weren't sent, as the settings were unchanged.
+     */
+    public synchronized int getNUnchanged() {
+        return n_unchanged;
+    }
+
+    /** Returns the number of updates that were merged into an update that was already waiting.
+     */
+    public synchronized int getNCoalesced() {
+        return n_coalesced;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requested: " + n_requested + " issued: " + n_issued + " unchanged: " + n_unchanged + " coalesced: " + n_coalesced;
+    }
+}
@@ -18,6 +18,7 @@ import androidx.annotation.RequiresApi;
 
 import com.jeffmony.opencamera.MyDebug;
 import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
 import com.jeffmony.opencamera.cameracontroller.RawImage;
 
 /** Provides communication between the Preview and the rest of the application
@@ -240,8 +241,8 @@ public interface ApplicationInterface {
 
     // callbacks
     void onDrawPreview(Canvas canvas);
-    boolean onPictureTaken(byte [] data, Date current_date);
-    boolean onBurstPictureTaken(List<byte []> images, Date current_date);
+    boolean onPictureTaken(ImageBuffer data, Date current_date); // should call data.release() when done with the image
+    boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date); // should call release() on each image when done with them
     boolean onRawPictureTaken(RawImage raw_image, Date current_date);
     boolean onRawBurstPictureTaken(List<RawImage> raw_images, Date current_date);
     void onCaptureStarted(); // called immediately before we start capturing the picture
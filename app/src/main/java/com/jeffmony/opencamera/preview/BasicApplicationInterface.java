@@ -14,6 +14,7 @@ import android.view.MotionEvent;
 import androidx.annotation.RequiresApi;
 
 import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
 import com.jeffmony.opencamera.cameracontroller.RawImage;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
@@ -642,7 +643,10 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
     }
 
     @Override
-    public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
+    public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
+        for(ImageBuffer image : images) {
+            image.release();
+        }
         return false;
     }
 
@@ -14,6 +14,7 @@ import com.jeffmony.opencamera.cameracontroller.CameraControllerException;
 import com.jeffmony.opencamera.cameracontroller.CameraControllerManager;
 import com.jeffmony.opencamera.cameracontroller.CameraControllerManager1;
 import com.jeffmony.opencamera.cameracontroller.CameraControllerManager2;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
 import com.jeffmony.opencamera.preview.ApplicationInterface.NoFreeStorageException;
 import com.jeffmony.opencamera.preview.camerasurface.CameraSurface;
 import com.jeffmony.opencamera.preview.camerasurface.MySurfaceView;
@@ -24,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 //import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -67,6 +69,7 @@ import android.os.Build;
 import android.os.Bundle;
 //import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
@@ -143,12 +146,13 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using renderscript
     private ScriptC_histogram_compute histogramScript; // lazily create for performance
-    private boolean want_preview_bitmap; // whether application has requested we generate bitmap for the preview
+    private volatile boolean want_preview_bitmap; // whether application has requested we generate bitmap for the preview
     private Bitmap preview_bitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
     private RefreshPreviewBitmapTask refreshPreviewBitmapTask;
 
-    private boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
+    // the want_* flags and their parameters are volatile, as they're also read by the preview analysis thread
+    private volatile boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
     public enum HistogramType {
         HISTOGRAM_TYPE_RGB,
         HISTOGRAM_TYPE_LUMINANCE,
@@ -156,21 +160,38 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         HISTOGRAM_TYPE_INTENSITY,
         HISTOGRAM_TYPE_LIGHTNESS
     }
-    private HistogramType histogram_type = HistogramType.HISTOGRAM_TYPE_VALUE;
+    private volatile HistogramType histogram_type = HistogramType.HISTOGRAM_TYPE_VALUE;
     private int [] histogram;
     private long last_histogram_time_ms; // time the last histogram was updated
 
-    private boolean want_zebra_stripes; // whether to generate zebra stripes bitmap, requires want_preview_bitmap==true
-    private int zebra_stripes_threshold; // pixels with max rgb value equal to or greater than this threshold are marked with zebra stripes
-    private int zebra_stripes_color_foreground;
-    private int zebra_stripes_color_background;
+    private volatile boolean want_zebra_stripes; // whether to generate zebra stripes bitmap, requires want_preview_bitmap==true
+    private volatile int zebra_stripes_threshold; // pixels with max rgb value equal to or greater than this threshold are marked with zebra stripes
+    private volatile int zebra_stripes_color_foreground;
+    private volatile int zebra_stripes_color_background;
     private Bitmap zebra_stripes_bitmap_buffer;
     private Bitmap zebra_stripes_bitmap;
 
-    private boolean want_focus_peaking; // whether to generate focus peaking bitmap, requires want_preview_bitmap==true
+    private volatile boolean want_focus_peaking; // whether to generate focus peaking bitmap, requires want_preview_bitmap==true
     private Bitmap focus_peaking_bitmap_buffer;
     private Bitmap focus_peaking_bitmap;
 
+    // If the camera controller supports it (see CameraController.setPreviewAnalysisCallback()), the histogram, zebra stripes
+    // and focus peaking are computed from low resolution YUV frames as they arrive, instead of by RefreshPreviewBitmapTask.
+    // The results are double buffered: the analysis thread writes to the *_back buffers, which are then swapped with the
+    // front buffers on the UI thread.
+    private final PreviewAnalyzer previewAnalyzer = new PreviewAnalyzer(); // only accessed on the preview analysis thread
+    private final Handler preview_analysis_ui_handler = new Handler(Looper.getMainLooper());
+    private volatile boolean preview_analysis_publish_pending; // whether the back buffers are waiting to be swapped
+    private volatile int preview_analysis_rotation; // rotation from the camera frames to the preview, see updatePreviewAnalysisOrientation()
+    private volatile boolean preview_analysis_mirror;
+    private int [] preview_analysis_histogram_back;
+    private Bitmap preview_analysis_zebra_stripes_back;
+    private Bitmap preview_analysis_focus_peaking_back;
+    private int [] preview_analysis_histogram;
+    private Bitmap preview_analysis_zebra_stripes;
+    private Bitmap preview_analysis_focus_peaking;
+    private long last_preview_analysis_time_ms; // time the analysis results were last swapped, or 0 if none
+
     private final Matrix camera_to_preview_matrix = new Matrix();
     private final Matrix preview_to_camera_matrix = new Matrix();
     private double preview_targetRatio;
@@ -2079,6 +2100,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             camera_controller.setRaw(false, 0);
         }
 
+        // set before the preview is started, as the camera controller may need to add an output for the frames
+        setPreviewAnalysisCallback();
+
         setupBurstMode();
 
         {
@@ -4002,6 +4026,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             // note the code to make the rotation relative to the camera sensor is done in camera_controller.setDisplayOrientation()
             camera_controller.setDisplayOrientation(degrees);
         }
+        updatePreviewAnalysisOrientation();
     }
 
     // for taking photos - see http://developer.android.com/reference/android/hardware/Camera.Parameters.html#setRotation(int)
@@ -6360,7 +6385,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
-            public void onPictureTaken(byte[] data) {
+            public void onPictureTaken(ImageBuffer data) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onPictureTaken");
                 initDate();
@@ -6384,7 +6409,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
-            public void onBurstPictureTaken(List<byte[]> images) {
+            public void onBurstPictureTaken(List<ImageBuffer> images) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onBurstPictureTaken");
                 initDate();
@@ -7921,6 +7946,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( cameraSurface instanceof TextureView ) {
             want_preview_bitmap = true;
             recreatePreviewBitmap();
+            // if the preview is already running, frames will only arrive once it's restarted - until then we fall back to RefreshPreviewBitmapTask
+            setPreviewAnalysisCallback();
         }
     }
 
@@ -7930,6 +7957,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         freePreviewBitmap();
         want_preview_bitmap = false;
         histogramScript = null; // to help garbage collection
+        setPreviewAnalysisCallback();
+        preview_analysis_histogram = null;
+        preview_analysis_zebra_stripes = null;
+        preview_analysis_focus_peaking = null;
+        last_preview_analysis_time_ms = 0;
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -8101,9 +8133,13 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
     public void disableHistogram() {
         this.want_histogram = false;
+        this.preview_analysis_histogram = null;
     }
 
     public int [] getHistogram() {
+        if( isPreviewAnalysisActive() ) {
+            return this.preview_analysis_histogram;
+        }
         return this.histogram;
     }
 
@@ -8121,10 +8157,14 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( this.want_zebra_stripes ) {
             this.want_zebra_stripes = false;
             freeZebraStripesBitmap();
+            this.preview_analysis_zebra_stripes = null;
         }
     }
 
     public Bitmap getZebraStripesBitmap() {
+        if( isPreviewAnalysisActive() ) {
+            return this.preview_analysis_zebra_stripes;
+        }
         return this.zebra_stripes_bitmap;
     }
 
@@ -8139,13 +8179,162 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( this.want_focus_peaking ) {
             this.want_focus_peaking = false;
             freeFocusPeakingBitmap();
+            this.preview_analysis_focus_peaking = null;
         }
     }
 
     public Bitmap getFocusPeakingBitmap() {
+        if( isPreviewAnalysisActive() ) {
+            return this.preview_analysis_focus_peaking;
+        }
         return this.focus_peaking_bitmap;
     }
 
+    /** Registers or unregisters for preview frames for analysis from the camera controller,
+     *  depending on whether a preview bitmap is wanted.
+     */
+    private void setPreviewAnalysisCallback() {
+        if( camera_controller == null ) {
+            return;
+        }
+        boolean supported = camera_controller.setPreviewAnalysisCallback(want_preview_bitmap ? previewAnalysisCallback : null);
+        if( MyDebug.LOG )
+            Log.d(TAG, "preview analysis supported: " + supported);
+        updatePreviewAnalysisOrientation();
+    }
+
+    /** Updates the orientation to apply to the camera frames for analysis, so that the outputs
+     *  match the preview as displayed (as for the bitmaps from RefreshPreviewBitmapTask).
+     */
+    private void updatePreviewAnalysisOrientation() {
+        if( camera_controller == null ) {
+            return;
+        }
+        int degrees = getDisplayRotationDegrees();
+        int camera_orientation = camera_controller.getCameraOrientation();
+        // as for Camera.setDisplayOrientation(), for front cameras the preview is mirrored before the rotation
+        if( camera_controller.getFacing() == CameraController.Facing.FACING_FRONT ) {
+            preview_analysis_rotation = (360 - (camera_orientation + degrees) % 360) % 360;
+            preview_analysis_mirror = true;
+        }
+        else {
+            preview_analysis_rotation = (camera_orientation - degrees + 360) % 360;
+            preview_analysis_mirror = false;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "preview_analysis_rotation: " + preview_analysis_rotation);
+            Log.d(TAG, "preview_analysis_mirror: " + preview_analysis_mirror);
+        }
+    }
+
+    /** Whether the histogram, zebra stripes and focus peaking are being generated from frames for
+     *  analysis, rather than by RefreshPreviewBitmapTask.
+     */
+    private boolean isPreviewAnalysisActive() {
+        // if frames stop arriving (e.g., the camera controller no longer supplies them for the
+        // current session), fall back to RefreshPreviewBitmapTask
+        final long timeout_ms = 500;
+        return last_preview_analysis_time_ms != 0 && System.currentTimeMillis() < last_preview_analysis_time_ms + timeout_ms;
+    }
+
+    private final CameraController.PreviewAnalysisCallback previewAnalysisCallback = new CameraController.PreviewAnalysisCallback() {
+        @Override
+        public void onPreviewFrame(int width, int height, ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride) {
+            analyzePreviewFrame(width, height, y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride);
+        }
+    };
+
+    private final Runnable swapPreviewAnalysisRunnable = new Runnable() {
+        @Override
+        public void run() {
+            swapPreviewAnalysis();
+        }
+    };
+
+    /** Called on the preview analysis thread for each frame.
+     */
+    private void analyzePreviewFrame(int width, int height, ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride) {
+        if( preview_analysis_publish_pending ) {
+            // the UI thread hasn't taken the previous results yet, so drop this frame rather than falling behind
+            return;
+        }
+        // take local copies, as these can be changed on the UI thread
+        final boolean want_histogram = want_preview_bitmap && this.want_histogram;
+        final HistogramType histogram_type = this.histogram_type;
+        final boolean want_zebra_stripes = want_preview_bitmap && this.want_zebra_stripes;
+        final boolean want_focus_peaking = want_preview_bitmap && this.want_focus_peaking;
+        if( !want_histogram && !want_zebra_stripes && !want_focus_peaking ) {
+            return;
+        }
+
+        previewAnalyzer.setFrameSize(width, height, preview_analysis_rotation, preview_analysis_mirror);
+        previewAnalyzer.setHistogramType(want_histogram ? histogram_type : null);
+        previewAnalyzer.setZebraStripes(want_zebra_stripes, zebra_stripes_threshold, zebra_stripes_color_foreground, zebra_stripes_color_background);
+        previewAnalyzer.setFocusPeaking(want_focus_peaking);
+        previewAnalyzer.analyze(y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride);
+
+        // copy the results to the back buffers - these are only reallocated if the size or histogram type changes
+        final int output_width = previewAnalyzer.getOutputWidth();
+        final int output_height = previewAnalyzer.getOutputHeight();
+        if( want_histogram ) {
+            // as for RefreshPreviewBitmapTask.computeHistogram(), RGB histograms have the three channels concatenated
+            int length = histogram_type == HistogramType.HISTOGRAM_TYPE_RGB ? 256*3 : 256;
+            if( preview_analysis_histogram_back == null || preview_analysis_histogram_back.length != length ) {
+                preview_analysis_histogram_back = new int[length];
+            }
+            System.arraycopy(previewAnalyzer.getHistogram(), 0, preview_analysis_histogram_back, 0, length);
+        }
+        else {
+            preview_analysis_histogram_back = null;
+        }
+        if( want_zebra_stripes ) {
+            preview_analysis_zebra_stripes_back = copyPreviewAnalysisBitmap(preview_analysis_zebra_stripes_back, previewAnalyzer.getZebraStripes(), output_width, output_height);
+        }
+        else {
+            preview_analysis_zebra_stripes_back = null;
+        }
+        if( want_focus_peaking ) {
+            preview_analysis_focus_peaking_back = copyPreviewAnalysisBitmap(preview_analysis_focus_peaking_back, previewAnalyzer.getFocusPeaking(), output_width, output_height);
+        }
+        else {
+            preview_analysis_focus_peaking_back = null;
+        }
+
+        preview_analysis_publish_pending = true;
+        preview_analysis_ui_handler.post(swapPreviewAnalysisRunnable);
+    }
+
+    private static Bitmap copyPreviewAnalysisBitmap(Bitmap bitmap, int [] pixels, int width, int height) {
+        if( bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height ) {
+            // n.b., we don't recycle the old bitmap, as it may still be in use by the UI thread
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /** Called on the UI thread to make the latest results from analyzePreviewFrame() available.
+     */
+    private void swapPreviewAnalysis() {
+        if( want_preview_bitmap ) {
+            int [] histogram = preview_analysis_histogram;
+            preview_analysis_histogram = preview_analysis_histogram_back;
+            preview_analysis_histogram_back = histogram;
+
+            Bitmap zebra_stripes = preview_analysis_zebra_stripes;
+            preview_analysis_zebra_stripes = preview_analysis_zebra_stripes_back;
+            preview_analysis_zebra_stripes_back = zebra_stripes;
+
+            Bitmap focus_peaking = preview_analysis_focus_peaking;
+            preview_analysis_focus_peaking = preview_analysis_focus_peaking_back;
+            preview_analysis_focus_peaking_back = focus_peaking;
+
+            last_preview_analysis_time_ms = System.currentTimeMillis();
+        }
+        // the analysis thread can now write to the back buffers
+        preview_analysis_publish_pending = false;
+    }
+
     private static class RefreshPreviewBitmapTaskResult {
         int [] new_histogram;
         Bitmap new_zebra_stripes_bitmap;
@@ -8522,7 +8711,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         long time_now = System.currentTimeMillis();
         if( want_preview_bitmap && preview_bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
                 !is_paused && !applicationInterface.isPreviewInBackground() &&
-                !refreshPreviewBitmapTaskIsRunning() && time_now > last_preview_bitmap_time_ms + refresh_time ) {
+                !refreshPreviewBitmapTaskIsRunning() && time_now > last_preview_bitmap_time_ms + refresh_time &&
+                !isPreviewAnalysisActive() ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "refreshPreviewBitmap");
             // even if we're running the background task at a faster rate (due to zebra stripes etc), we still update the histogram
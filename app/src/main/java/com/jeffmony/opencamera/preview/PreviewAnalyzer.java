@@ -0,0 +1,332 @@
+package com.jeffmony.opencamera.preview;
+
+import java.nio.ByteBuffer;
+
+/** Computes the histogram, zebra stripes and focus peaking for the preview from low resolution
+ *  YUV_420_888 frames (see CameraController.PreviewAnalysisCallback), rather than from a Bitmap read
+ *  back from the TextureView. The results are equivalent to the kernels in histogram_compute.rs,
+ *  except that focus peaking is computed from the luminance only. The luminance histogram and focus
+ *  peaking work directly on the Y plane; the chroma planes are only read when RGB values are needed.
+ *  All buffers are reused between frames, so analysing a frame doesn't allocate memory (unless the
+ *  frame size changes).
+ *  This class isn't thread safe; it's expected that all frames are analysed on the same thread.
+ */
+public class PreviewAnalyzer {
+    //private static final String TAG = "PreviewAnalyzer";
+
+    // histogram_compute.rs/generate_focus_peaking() uses a threshold of 256*256 for the sum of the
+    // squares over the 3 colour channels, so for greyscale the equivalent threshold is a third of this
+    private static final int focus_peaking_threshold_c = 256*256/3;
+
+    private int width;
+    private int height;
+    private int chroma_width;
+    private int chroma_height;
+
+    // mapping from the frame to the output bitmaps: pixel (x, y) of the frame is stored at
+    // output_origin + x*output_step_x + y*output_step_y
+    private int output_width;
+    private int output_height;
+    private int output_origin;
+    private int output_step_x;
+    private int output_step_y;
+
+    private Preview.HistogramType histogram_type; // null if no histogram is wanted
+    private boolean want_zebra_stripes;
+    private int zebra_stripes_threshold;
+    private int zebra_stripes_color_foreground;
+    private int zebra_stripes_color_background;
+    private boolean want_focus_peaking;
+
+    private byte [] luma;
+    private byte [] chroma_u;
+    private byte [] chroma_v;
+    private byte [] row_buffer; // for reading interleaved chroma rows
+    private byte [] edges; // focus peaking, before filtering
+    private final int [] histogram = new int[256*3];
+    private int [] zebra_stripes;
+    private int [] focus_peaking;
+
+    /** Sets the size of the frames to analyse, and the orientation of the output bitmaps relative
+     *  to the frames.
+     * @param width    Width of the frames, should be even.
+     * @param height   Height of the frames, should be even.
+     * @param rotation Clockwise rotation in degrees (a multiple of 90) to apply to the frame to give
+     *                 the output bitmaps.
+     * @param mirror   Whether to flip the frame horizontally, before applying the rotation.
+     */
+    public void setFrameSize(int width, int height, int rotation, boolean mirror) {
+        if( width != this.width || height != this.height ) {
+            this.width = width;
+            this.height = height;
+            this.chroma_width = (width+1)/2;
+            this.chroma_height = (height+1)/2;
+            luma = new byte[width*height];
+            chroma_u = null;
+            chroma_v = null;
+            row_buffer = null;
+            edges = null;
+            zebra_stripes = null;
+            focus_peaking = null;
+        }
+
+        switch( rotation ) {
+            case 0:
+                output_width = width;
+                output_height = height;
+                output_origin = 0;
+                output_step_x = 1;
+                output_step_y = width;
+                break;
+            case 90:
+                output_width = height;
+                output_height = width;
+                output_origin = height-1;
+                output_step_x = height;
+                output_step_y = -1;
+                break;
+            case 180:
+                output_width = width;
+                output_height = height;
+                output_origin = width*height-1;
+                output_step_x = -1;
+                output_step_y = -width;
+                break;
+            case 270:
+                output_width = height;
+                output_height = width;
+                output_origin = (width-1)*height;
+                output_step_x = -height;
+                output_step_y = 1;
+                break;
+            default:
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("unsupported rotation: " + rotation);
+        }
+        if( mirror ) {
+            // x becomes width-1-x
+            output_origin += (width-1)*output_step_x;
+            output_step_x = -output_step_x;
+        }
+    }
+
+    /**
+     * @param histogram_type The type of histogram to compute, or null for no histogram.
+     */
+    public void setHistogramType(Preview.HistogramType histogram_type) {
+        this.histogram_type = histogram_type;
+    }
+
+    public void setZebraStripes(boolean want_zebra_stripes, int zebra_stripes_threshold, int zebra_stripes_color_foreground, int zebra_stripes_color_background) {
+        this.want_zebra_stripes = want_zebra_stripes;
+        this.zebra_stripes_threshold = zebra_stripes_threshold;
+        this.zebra_stripes_color_foreground = zebra_stripes_color_foreground;
+        this.zebra_stripes_color_background = zebra_stripes_color_background;
+    }
+
+    public void setFocusPeaking(boolean want_focus_peaking) {
+        this.want_focus_peaking = want_focus_peaking;
+    }
+
+    public int getOutputWidth() {
+        return output_width;
+    }
+
+    public int getOutputHeight() {
+        return output_height;
+    }
+
+    /** Returns the histogram computed by the last call to analyze(). For HISTOGRAM_TYPE_RGB this
+     *  has 256*3 entries (red, then green, then blue), otherwise only the first 256 entries are used.
+     *  The array is reused for the next frame.
+     */
+    public int [] getHistogram() {
+        return histogram;
+    }
+
+    /** Returns the ARGB zebra stripes computed by the last call to analyze(), of size
+     *  getOutputWidth()*getOutputHeight(). The array is reused for the next frame.
+     */
+    public int [] getZebraStripes() {
+        return zebra_stripes;
+    }
+
+    /** Returns the ARGB focus peaking computed by the last call to analyze(), of size
+     *  getOutputWidth()*getOutputHeight(). The array is reused for the next frame.
+     */
+    public int [] getFocusPeaking() {
+        return focus_peaking;
+    }
+
+    /** Analyses a frame, of the size set by setFrameSize(). The parameters are as for
+     *  CameraController.PreviewAnalysisCallback.onPreviewFrame(). Note that this changes the
+     *  positions of the buffers.
+     */
+    public void analyze(ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride) {
+        if( luma == null ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("setFrameSize() not called");
+        }
+        for(int y=0;y<height;y++) {
+            y_plane.position(y*y_row_stride);
+            y_plane.get(luma, y*width, width);
+        }
+
+        boolean want_rgb = want_zebra_stripes || ( histogram_type != null && histogram_type != Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE );
+        if( want_rgb ) {
+            if( chroma_u == null ) {
+                chroma_u = new byte[chroma_width*chroma_height];
+                chroma_v = new byte[chroma_width*chroma_height];
+                row_buffer = new byte[(chroma_width-1)*Math.max(uv_pixel_stride, 1)+1];
+            }
+            else if( row_buffer.length < (chroma_width-1)*uv_pixel_stride+1 ) {
+                row_buffer = new byte[(chroma_width-1)*uv_pixel_stride+1];
+            }
+            readChromaPlane(u_plane, uv_row_stride, uv_pixel_stride, chroma_u);
+            readChromaPlane(v_plane, uv_row_stride, uv_pixel_stride, chroma_v);
+        }
+
+        if( histogram_type != null || want_zebra_stripes ) {
+            computeHistogramAndZebraStripes();
+        }
+        if( want_focus_peaking ) {
+            computeFocusPeaking();
+        }
+    }
+
+    private void readChromaPlane(ByteBuffer plane, int row_stride, int pixel_stride, byte [] chroma) {
+        for(int y=0;y<chroma_height;y++) {
+            plane.position(y*row_stride);
+            if( pixel_stride == 1 ) {
+                plane.get(chroma, y*chroma_width, chroma_width);
+            }
+            else {
+                plane.get(row_buffer, 0, (chroma_width-1)*pixel_stride+1);
+                int indx = y*chroma_width;
+                for(int x=0;x<chroma_width;x++) {
+                    chroma[indx++] = row_buffer[x*pixel_stride];
+                }
+            }
+        }
+    }
+
+    private void computeHistogramAndZebraStripes() {
+        final Preview.HistogramType histogram_type = this.histogram_type;
+        final boolean want_zebra_stripes = this.want_zebra_stripes;
+        if( histogram_type != null ) {
+            for(int i=0;i<histogram.length;i++) {
+                histogram[i] = 0;
+            }
+        }
+        if( want_zebra_stripes && zebra_stripes == null ) {
+            zebra_stripes = new int[width*height];
+        }
+        final int zebra_stripes_width = Math.max(output_width/20, 1);
+        final boolean luminance_only = !want_zebra_stripes && histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE;
+
+        for(int y=0;y<height;y++) {
+            int indx = y*width;
+            int chroma_indx = (y/2)*chroma_width;
+            int output_indx = output_origin + y*output_step_y;
+            for(int x=0;x<width;x++,indx++,output_indx+=output_step_x) {
+                int luminance = luma[indx] & 0xff;
+                if( luminance_only ) {
+                    histogram[luminance]++;
+                    continue;
+                }
+                // convert from full range BT.601 YUV (as used by JPEG), in 16 bit fixed point
+                int u = (chroma_u[chroma_indx + x/2] & 0xff) - 128;
+                int v = (chroma_v[chroma_indx + x/2] & 0xff) - 128;
+                int r = clamp(luminance + ((91881*v + 32768) >> 16));
+                int g = clamp(luminance - ((22554*u + 46802*v + 32768) >> 16));
+                int b = clamp(luminance + ((116130*u + 32768) >> 16));
+                int value = Math.max(r, Math.max(g, b));
+
+                if( histogram_type != null ) {
+                    switch( histogram_type ) {
+                        case HISTOGRAM_TYPE_RGB:
+                            histogram[r]++;
+                            histogram[256+g]++;
+                            histogram[512+b]++;
+                            break;
+                        case HISTOGRAM_TYPE_LUMINANCE:
+                            histogram[luminance]++;
+                            break;
+                        case HISTOGRAM_TYPE_VALUE:
+                            histogram[value]++;
+                            break;
+                        case HISTOGRAM_TYPE_INTENSITY:
+                            // equivalent to rounding (r+g+b)/3 to the nearest integer
+                            histogram[(2*(r+g+b)+3)/6]++;
+                            break;
+                        case HISTOGRAM_TYPE_LIGHTNESS:
+                            histogram[(Math.min(r, Math.min(g, b)) + value + 1)/2]++;
+                            break;
+                    }
+                }
+
+                if( want_zebra_stripes ) {
+                    int color = 0;
+                    if( value >= zebra_stripes_threshold ) {
+                        int output_y = output_indx / output_width;
+                        int output_x = output_indx - output_y*output_width;
+                        int stripe = (output_x + output_y)/zebra_stripes_width;
+                        color = stripe % 2 == 0 ? zebra_stripes_color_background : zebra_stripes_color_foreground;
+                    }
+                    zebra_stripes[output_indx] = color;
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    private void computeFocusPeaking() {
+        if( edges == null ) {
+            edges = new byte[width*height];
+        }
+        if( focus_peaking == null ) {
+            focus_peaking = new int[width*height];
+        }
+
+        // as histogram_compute.rs/generate_focus_peaking(), but on the luminance
+        for(int y=0;y<height;y++) {
+            int indx = y*width;
+            if( y == 0 || y == height-1 ) {
+                for(int x=0;x<width;x++) {
+                    edges[indx+x] = 0;
+                }
+                continue;
+            }
+            edges[indx] = 0;
+            edges[indx+width-1] = 0;
+            for(int x=1;x<width-1;x++) {
+                int i = indx + x;
+                int sum = (luma[i-width-1] & 0xff) + (luma[i-width] & 0xff) + (luma[i-width+1] & 0xff)
+                        + (luma[i-1] & 0xff) + (luma[i+1] & 0xff)
+                        + (luma[i+width-1] & 0xff) + (luma[i+width] & 0xff) + (luma[i+width+1] & 0xff);
+                int value = 8*(luma[i] & 0xff) - sum;
+                edges[i] = (byte)(value*value > focus_peaking_threshold_c ? 1 : 0);
+            }
+        }
+
+        // as histogram_compute.rs/generate_focus_peaking_filtered()
+        for(int y=0;y<height;y++) {
+            int indx = y*width;
+            int output_indx = output_origin + y*output_step_y;
+            for(int x=0;x<width;x++,indx++,output_indx+=output_step_x) {
+                boolean on;
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    int count = edges[indx-width] + edges[indx-1] + edges[indx] + edges[indx+1] + edges[indx+width];
+                    on = count >= 3;
+                }
+                else {
+                    on = edges[indx] != 0;
+                }
+                focus_peaking[output_indx] = on ? 0xffffffff : 0;
+            }
+        }
+    }
+}
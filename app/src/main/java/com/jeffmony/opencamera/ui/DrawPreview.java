@@ -15,7 +15,7 @@ import com.jeffmony.opencamera.LocationSupplier;
 import com.jeffmony.opencamera.MainActivity;
 import com.jeffmony.opencamera.MyApplicationInterface;
 import com.jeffmony.opencamera.MyDebug;
-import com.jeffmony.opencamera.PreferenceKeys;
+import com.jeffmony.opencamera.SettingsSnapshot;
 import com.jeffmony.opencamera.preview.ApplicationInterface;
 import com.jeffmony.opencamera.R;
 import com.jeffmony.opencamera.cameracontroller.CameraController;
@@ -25,7 +25,6 @@ import android.app.KeyguardManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -42,7 +41,6 @@ import android.graphics.Typeface;
 import android.location.Location;
 import android.net.Uri;
 import android.os.BatteryManager;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Pair;
 import android.view.Display;
@@ -76,11 +74,9 @@ public class DrawPreview {
     private boolean cover_preview; // whether to cover the preview for Camera2 API
     private long camera_inactive_time_ms = -1; // if != -1, the time when the camera became inactive
 
-    // store to avoid calling PreferenceManager.getDefaultSharedPreferences() repeatedly
-    private final SharedPreferences sharedPreferences;
-
     // cached preferences (need to call updateSettings() to refresh):
     private boolean has_settings;
+    private SettingsSnapshot settings; // the snapshot the cached preferences were read from
     private MyApplicationInterface.PhotoMode photoMode;
     private boolean show_time_pref;
     private boolean show_camera_id_pref;
@@ -107,8 +103,11 @@ public class DrawPreview {
     private boolean is_high_speed;
     private float capture_rate_factor;
     private boolean auto_stabilise_pref;
-    private String preference_grid_pref;
-    private String ghost_image_pref;
+    private SettingsSnapshot.Grid grid_pref;
+    private double crop_guide_ratio_pref;
+    private boolean iso_auto_pref;
+    private boolean mirror_front_photo_pref;
+    private SettingsSnapshot.GhostImage ghost_image_pref;
     private String ghost_selected_image_pref = "";
     private Bitmap ghost_selected_image_bitmap;
     private int ghost_image_alpha;
@@ -253,6 +252,30 @@ public class DrawPreview {
     private String OSDLine1;
     private String OSDLine2;
 
+    // layers that are kept between frames, so they only need to be re-rendered when they change
+    private final RetainedLayer grid_layer = new RetainedLayer("grid");
+    private SettingsSnapshot.Grid grid_layer_grid; // the settings grid_layer was rendered for
+    private boolean grid_layer_crop_guide;
+    private double grid_layer_crop_guide_ratio;
+    private double grid_layer_preview_aspect_ratio;
+    private boolean grid_layer_portrait;
+    private final RetainedLayer info_text_layer = new RetainedLayer("info_text");
+    private String info_layer_time_text; // the text and positions info_text_layer was rendered for
+    private String info_layer_camera_id_text;
+    private String info_layer_free_memory_text;
+    private String info_layer_iso_text;
+    private String info_layer_osd_line1;
+    private String info_layer_osd_line2;
+    private int info_layer_iso_text_color;
+    private int info_layer_location_x;
+    private int info_layer_top_y;
+    private int info_layer_bottom_y;
+    private int info_layer_device_ui_rotation;
+    private int info_layer_location_y; // the location_y following the text in info_text_layer
+
+    private final FrameTimeCounter frame_time_counter = new FrameTimeCounter();
+    private long last_frame_time_log_ms;
+
     private final static int histogram_width_dp = 100;
     private final static int histogram_height_dp = 60;
 
@@ -262,7 +285,6 @@ public class DrawPreview {
         if( MyDebug.LOG )
             Log.d(TAG, "DrawPreview");
         this.main_activity = main_activity;
-        this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(main_activity);
         this.applicationInterface = applicationInterface;
         // n.b., don't call updateSettings() here, as it may rely on things that aren't yet initialise (e.g., the preview)
         // see testHDRRestart
@@ -409,6 +431,9 @@ public class DrawPreview {
             ghost_selected_image_bitmap = null;
         }
         ghost_selected_image_pref = "";
+
+        grid_layer.release();
+        info_text_layer.release();
     }
 
     private Context getContext() {
@@ -582,42 +607,45 @@ public class DrawPreview {
         if( MyDebug.LOG )
             Log.d(TAG, "updateSettings");
 
+        // n.b., read settings first, so that if the preferences change while we're running, we'll
+        // notice on the next frame
+        SettingsSnapshot settings = applicationInterface.getSettings();
+        this.settings = settings;
+
         photoMode = applicationInterface.getPhotoMode();
         if( MyDebug.LOG )
             Log.d(TAG, "photoMode: " + photoMode);
 
-        show_time_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowTimePreferenceKey, true);
+        show_time_pref = settings.show_time;
         // reset in case user changes the preference:
         dateFormatTimeInstance = DateFormat.getTimeInstance();
         current_time_string = null;
         last_current_time_time = 0;
         text_bounds_time = null;
 
-        show_camera_id_pref = main_activity.isMultiCam() && sharedPreferences.getBoolean(PreferenceKeys.ShowCameraIDPreferenceKey, true);
+        show_camera_id_pref = main_activity.isMultiCam() && settings.show_camera_id;
         //show_camera_id_pref = true; // test
-        show_free_memory_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowFreeMemoryPreferenceKey, true);
-        show_iso_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowISOPreferenceKey, true);
-        show_video_max_amp_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
-        show_zoom_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
-        show_battery_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowBatteryPreferenceKey, true);
+        show_free_memory_pref = settings.show_free_memory;
+        show_iso_pref = settings.show_iso;
+        show_video_max_amp_pref = settings.show_video_max_amp;
+        show_zoom_pref = settings.show_zoom;
+        show_battery_pref = settings.show_battery;
 
-        show_angle_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowAnglePreferenceKey, false);
-        String angle_highlight_color = sharedPreferences.getString(PreferenceKeys.ShowAngleHighlightColorPreferenceKey, "#14e715");
-        angle_highlight_color_pref = Color.parseColor(angle_highlight_color);
-        show_geo_direction_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowGeoDirectionPreferenceKey, false);
+        show_angle_pref = settings.show_angle;
+        angle_highlight_color_pref = settings.angle_highlight_color;
+        show_geo_direction_pref = settings.show_geo_direction;
 
-        take_photo_border_pref = sharedPreferences.getBoolean(PreferenceKeys.TakePhotoBorderPreferenceKey, true);
-        preview_size_wysiwyg_pref = sharedPreferences.getString(PreferenceKeys.PreviewSizePreferenceKey, "preference_preview_size_wysiwyg").equals("preference_preview_size_wysiwyg");
-        store_location_pref = sharedPreferences.getBoolean(PreferenceKeys.LocationPreferenceKey, false);
+        take_photo_border_pref = settings.take_photo_border;
+        preview_size_wysiwyg_pref = settings.preview_size_wysiwyg;
+        store_location_pref = settings.geotagging;
 
-        show_angle_line_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowAngleLinePreferenceKey, false);
-        show_pitch_lines_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowPitchLinesPreferenceKey, false);
-        show_geo_direction_lines_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowGeoDirectionLinesPreferenceKey, false);
+        show_angle_line_pref = settings.show_angle_line;
+        show_pitch_lines_pref = settings.show_pitch_lines;
+        show_geo_direction_lines_pref = settings.show_geo_direction_lines;
 
-        String immersive_mode = sharedPreferences.getString(PreferenceKeys.ImmersiveModePreferenceKey, "immersive_mode_low_profile");
-        immersive_mode_everything_pref = immersive_mode.equals("immersive_mode_everything");
+        immersive_mode_everything_pref = settings.immersive_mode_everything;
 
-        has_stamp_pref = applicationInterface.getStampPref().equals("preference_stamp_yes");
+        has_stamp_pref = settings.has_stamp;
         is_raw_pref = applicationInterface.getRawPref() != ApplicationInterface.RawPref.RAWPREF_JPEG_ONLY;
         is_raw_only_pref = applicationInterface.isRawOnly();
         is_face_detection_pref = applicationInterface.getFaceDetectionPref();
@@ -628,11 +656,14 @@ public class DrawPreview {
 
         auto_stabilise_pref = applicationInterface.getAutoStabilisePref();
 
-        preference_grid_pref = sharedPreferences.getString(PreferenceKeys.ShowGridPreferenceKey, "preference_grid_none");
+        grid_pref = settings.grid;
+        crop_guide_ratio_pref = settings.crop_guide_ratio;
+        iso_auto_pref = settings.iso.equals("auto");
+        mirror_front_photo_pref = settings.mirror_front_photo;
 
-        ghost_image_pref = sharedPreferences.getString(PreferenceKeys.GhostImagePreferenceKey, "preference_ghost_image_off");
-        if( ghost_image_pref.equals("preference_ghost_image_selected") ) {
-            String new_ghost_selected_image_pref = sharedPreferences.getString(PreferenceKeys.GhostSelectedImageSAFPreferenceKey, "");
+        ghost_image_pref = settings.ghost_image;
+        if( ghost_image_pref == SettingsSnapshot.GhostImage.SELECTED ) {
+            String new_ghost_selected_image_pref = settings.ghost_selected_image;
             if( MyDebug.LOG )
                 Log.d(TAG, "new_ghost_selected_image_pref: " + new_ghost_selected_image_pref);
 
@@ -676,52 +707,18 @@ public class DrawPreview {
             }
             ghost_selected_image_pref = "";
         }
-        ghost_image_alpha = applicationInterface.getGhostImageAlpha();
+        ghost_image_alpha = settings.ghost_image_alpha;
 
-        String histogram_pref = sharedPreferences.getString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_off");
-        want_histogram = !histogram_pref.equals("preference_histogram_off") && main_activity.supportsPreviewBitmaps();
-        histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_VALUE;
-        if( want_histogram ) {
-            switch( histogram_pref ) {
-                case "preference_histogram_rgb":
-                    histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_RGB;
-                    break;
-                case "preference_histogram_luminance":
-                    histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE;
-                    break;
-                case "preference_histogram_value":
-                    histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_VALUE;
-                    break;
-                case "preference_histogram_intensity":
-                    histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_INTENSITY;
-                    break;
-                case "preference_histogram_lightness":
-                    histogram_type = Preview.HistogramType.HISTOGRAM_TYPE_LIGHTNESS;
-                    break;
-            }
-        }
+        want_histogram = settings.histogram_type != null && main_activity.supportsPreviewBitmaps();
+        histogram_type = want_histogram ? settings.histogram_type : Preview.HistogramType.HISTOGRAM_TYPE_VALUE;
 
-        String zebra_stripes_value = sharedPreferences.getString(PreferenceKeys.ZebraStripesPreferenceKey, "0");
-        try {
-            zebra_stripes_threshold = Integer.parseInt(zebra_stripes_value);
-        }
-        catch(NumberFormatException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "failed to parse zebra_stripes_value: " + zebra_stripes_value);
-            e.printStackTrace();
-            zebra_stripes_threshold = 0;
-        }
+        zebra_stripes_threshold = settings.zebra_stripes_threshold;
         want_zebra_stripes = zebra_stripes_threshold != 0 & main_activity.supportsPreviewBitmaps();
+        zebra_stripes_color_foreground = settings.zebra_stripes_color_foreground;
+        zebra_stripes_color_background = settings.zebra_stripes_color_background;
 
-        String zebra_stripes_color_foreground_value = sharedPreferences.getString(PreferenceKeys.ZebraStripesForegroundColorPreferenceKey, "#ff000000");
-        zebra_stripes_color_foreground = Color.parseColor(zebra_stripes_color_foreground_value);
-        String zebra_stripes_color_background_value = sharedPreferences.getString(PreferenceKeys.ZebraStripesBackgroundColorPreferenceKey, "#ffffffff");
-        zebra_stripes_color_background = Color.parseColor(zebra_stripes_color_background_value);
-
-        String focus_peaking_pref = sharedPreferences.getString(PreferenceKeys.FocusPeakingPreferenceKey, "preference_focus_peaking_off");
-        want_focus_peaking = !focus_peaking_pref.equals("preference_focus_peaking_off") && main_activity.supportsPreviewBitmaps();
-        String focus_peaking_color = sharedPreferences.getString(PreferenceKeys.FocusPeakingColorPreferenceKey, "#ffffff");
-        focus_peaking_color_pref = Color.parseColor(focus_peaking_color);
+        want_focus_peaking = settings.focus_peaking && main_activity.supportsPreviewBitmaps();
+        focus_peaking_color_pref = settings.focus_peaking_color;
 
         last_camera_id_time = 0; // in case camera id changed
         last_view_angles_time = 0; // force view angles to be recomputed
@@ -730,6 +727,10 @@ public class DrawPreview {
 
         focus_seekbars_margin_left = -1; // needed as the focus seekbars can only be updated when visible
 
+        // force layers to be re-rendered, in case they depend on settings that aren't part of their keys
+        grid_layer.invalidate();
+        info_text_layer.invalidate();
+
         has_settings = true;
     }
 
@@ -842,22 +843,22 @@ public class DrawPreview {
 
         p.setStrokeWidth(stroke_width);
 
-        switch( preference_grid_pref ) {
-            case "preference_grid_3x3":
+        switch( grid_pref ) {
+            case GRID_3X3:
                 p.setColor(Color.WHITE);
                 canvas.drawLine(canvas.getWidth() / 3.0f, 0.0f, canvas.getWidth() / 3.0f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(2.0f * canvas.getWidth() / 3.0f, 0.0f, 2.0f * canvas.getWidth() / 3.0f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(0.0f, canvas.getHeight() / 3.0f, canvas.getWidth() - 1.0f, canvas.getHeight() / 3.0f, p);
                 canvas.drawLine(0.0f, 2.0f * canvas.getHeight() / 3.0f, canvas.getWidth() - 1.0f, 2.0f * canvas.getHeight() / 3.0f, p);
                 break;
-            case "preference_grid_phi_3x3":
+            case PHI_3X3:
                 p.setColor(Color.WHITE);
                 canvas.drawLine(canvas.getWidth() / 2.618f, 0.0f, canvas.getWidth() / 2.618f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(1.618f * canvas.getWidth() / 2.618f, 0.0f, 1.618f * canvas.getWidth() / 2.618f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(0.0f, canvas.getHeight() / 2.618f, canvas.getWidth() - 1.0f, canvas.getHeight() / 2.618f, p);
                 canvas.drawLine(0.0f, 1.618f * canvas.getHeight() / 2.618f, canvas.getWidth() - 1.0f, 1.618f * canvas.getHeight() / 2.618f, p);
                 break;
-            case "preference_grid_4x2":
+            case GRID_4X2:
                 p.setColor(Color.GRAY);
                 canvas.drawLine(canvas.getWidth() / 4.0f, 0.0f, canvas.getWidth() / 4.0f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(canvas.getWidth() / 2.0f, 0.0f, canvas.getWidth() / 2.0f, canvas.getHeight() - 1.0f, p);
@@ -869,27 +870,27 @@ public class DrawPreview {
                 canvas.drawLine(canvas.getWidth() / 2.0f, canvas.getHeight() / 2.0f - crosshairs_radius, canvas.getWidth() / 2.0f, canvas.getHeight() / 2.0f + crosshairs_radius, p);
                 canvas.drawLine(canvas.getWidth() / 2.0f - crosshairs_radius, canvas.getHeight() / 2.0f, canvas.getWidth() / 2.0f + crosshairs_radius, canvas.getHeight() / 2.0f, p);
                 break;
-            case "preference_grid_crosshair":
+            case CROSSHAIR:
                 p.setColor(Color.WHITE);
                 canvas.drawLine(canvas.getWidth() / 2.0f, 0.0f, canvas.getWidth() / 2.0f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(0.0f, canvas.getHeight() / 2.0f, canvas.getWidth() - 1.0f, canvas.getHeight() / 2.0f, p);
                 break;
-            case "preference_grid_golden_spiral_right":
-            case "preference_grid_golden_spiral_left":
-            case "preference_grid_golden_spiral_upside_down_right":
-            case "preference_grid_golden_spiral_upside_down_left":
+            case GOLDEN_SPIRAL_RIGHT:
+            case GOLDEN_SPIRAL_LEFT:
+            case GOLDEN_SPIRAL_UPSIDE_DOWN_RIGHT:
+            case GOLDEN_SPIRAL_UPSIDE_DOWN_LEFT:
                 canvas.save();
-                switch( preference_grid_pref ) {
-                    case "preference_grid_golden_spiral_left":
+                switch( grid_pref ) {
+                    case GOLDEN_SPIRAL_LEFT:
                         canvas.scale(-1.0f, 1.0f, canvas.getWidth() * 0.5f, canvas.getHeight() * 0.5f);
                         break;
-                    case "preference_grid_golden_spiral_right":
+                    case GOLDEN_SPIRAL_RIGHT:
                         // no transformation needed
                         break;
-                    case "preference_grid_golden_spiral_upside_down_left":
+                    case GOLDEN_SPIRAL_UPSIDE_DOWN_LEFT:
                         canvas.rotate(180.0f, canvas.getWidth() * 0.5f, canvas.getHeight() * 0.5f);
                         break;
-                    case "preference_grid_golden_spiral_upside_down_right":
+                    case GOLDEN_SPIRAL_UPSIDE_DOWN_RIGHT:
                         canvas.scale(1.0f, -1.0f, canvas.getWidth() * 0.5f, canvas.getHeight() * 0.5f);
                         break;
                 }
@@ -980,14 +981,14 @@ public class DrawPreview {
                 p.setStyle(Paint.Style.FILL); // reset
 
                 break;
-            case "preference_grid_golden_triangle_1":
-            case "preference_grid_golden_triangle_2":
+            case GOLDEN_TRIANGLE_1:
+            case GOLDEN_TRIANGLE_2:
                 p.setColor(Color.WHITE);
                 double theta = Math.atan2(canvas.getWidth(), canvas.getHeight());
                 double dist = canvas.getHeight() * Math.cos(theta);
                 float dist_x = (float) (dist * Math.sin(theta));
                 float dist_y = (float) (dist * Math.cos(theta));
-                if( preference_grid_pref.equals("preference_grid_golden_triangle_1") ) {
+                if( grid_pref == SettingsSnapshot.Grid.GOLDEN_TRIANGLE_1 ) {
                     canvas.drawLine(0.0f, canvas.getHeight() - 1.0f, canvas.getWidth() - 1.0f, 0.0f, p);
                     canvas.drawLine(0.0f, 0.0f, dist_x, canvas.getHeight() - dist_y, p);
                     canvas.drawLine(canvas.getWidth() - 1.0f - dist_x, dist_y - 1.0f, canvas.getWidth() - 1.0f, canvas.getHeight() - 1.0f, p);
@@ -998,7 +999,7 @@ public class DrawPreview {
                     canvas.drawLine(dist_x, dist_y - 1.0f, 0.0f, canvas.getHeight() - 1.0f, p);
                 }
                 break;
-            case "preference_grid_diagonals":
+            case DIAGONALS:
                 p.setColor(Color.WHITE);
                 canvas.drawLine(0.0f, 0.0f, canvas.getHeight() - 1.0f, canvas.getHeight() - 1.0f, p);
                 canvas.drawLine(canvas.getHeight() - 1.0f, 0.0f, 0.0f, canvas.getHeight() - 1.0f, p);
@@ -1010,48 +1011,48 @@ public class DrawPreview {
         }
     }
 
+    /** Draws the grid and crop guides. These only change when the settings or the preview change,
+     *  so rather than drawing them every frame, they're kept in grid_layer.
+     */
+    private void drawGridsAndCropGuides(Canvas canvas) {
+        Preview preview = main_activity.getPreview();
+        boolean want_crop_guide = ( preview.isVideo() || preview_size_wysiwyg_pref ) && preview.getTargetRatio() > 0.0 && crop_guide_ratio_pref > 0.0;
+        if( preview.getCameraController() == null || ( grid_pref == SettingsSnapshot.Grid.NONE && !want_crop_guide ) ) {
+            // nothing to draw, so free the memory
+            grid_layer.release();
+            return;
+        }
+        double preview_aspect_ratio = want_crop_guide ? preview.getCurrentPreviewAspectRatio() : 0.0;
+        boolean portrait = main_activity.getSystemOrientation() == MainActivity.SystemOrientation.PORTRAIT;
+        if( grid_layer.needsUpdate(canvas) || grid_layer_grid != grid_pref || grid_layer_crop_guide != want_crop_guide ||
+                grid_layer_crop_guide_ratio != crop_guide_ratio_pref || grid_layer_preview_aspect_ratio != preview_aspect_ratio || grid_layer_portrait != portrait ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "update grid layer");
+            Canvas layer_canvas = grid_layer.beginUpdate(canvas);
+            if( layer_canvas != null ) {
+                drawGrids(layer_canvas);
+                drawCropGuides(layer_canvas);
+                grid_layer.endUpdate();
+                grid_layer_grid = grid_pref;
+                grid_layer_crop_guide = want_crop_guide;
+                grid_layer_crop_guide_ratio = crop_guide_ratio_pref;
+                grid_layer_preview_aspect_ratio = preview_aspect_ratio;
+                grid_layer_portrait = portrait;
+            }
+        }
+        if( !grid_layer.draw(canvas) ) {
+            // failed to render the layer, so draw directly
+            drawGrids(canvas);
+            drawCropGuides(canvas);
+        }
+    }
+
     private void drawCropGuides(Canvas canvas) {
         Preview preview = main_activity.getPreview();
         CameraController camera_controller = preview.getCameraController();
         if( preview.isVideo() || preview_size_wysiwyg_pref ) {
-            String preference_crop_guide = sharedPreferences.getString(PreferenceKeys.ShowCropGuidePreferenceKey, "crop_guide_none");
-            if( camera_controller != null && preview.getTargetRatio() > 0.0 && !preference_crop_guide.equals("crop_guide_none") ) {
-                double crop_ratio = -1.0;
-                switch(preference_crop_guide) {
-                    case "crop_guide_1":
-                        crop_ratio = 1.0;
-                        break;
-                    case "crop_guide_1.25":
-                        crop_ratio = 1.25;
-                        break;
-                    case "crop_guide_1.33":
-                        crop_ratio = 1.33333333;
-                        break;
-                    case "crop_guide_1.4":
-                        crop_ratio = 1.4;
-                        break;
-                    case "crop_guide_1.5":
-                        crop_ratio = 1.5;
-                        break;
-                    case "crop_guide_1.78":
-                        crop_ratio = 1.77777778;
-                        break;
-                    case "crop_guide_1.85":
-                        crop_ratio = 1.85;
-                        break;
-                    case "crop_guide_2":
-                        crop_ratio = 2.0;
-                        break;
-                    case "crop_guide_2.33":
-                        crop_ratio = 2.33333333;
-                        break;
-                    case "crop_guide_2.35":
-                        crop_ratio = 2.35006120; // actually 1920:817
-                        break;
-                    case "crop_guide_2.4":
-                        crop_ratio = 2.4;
-                        break;
-                }
+            if( camera_controller != null && preview.getTargetRatio() > 0.0 ) {
+                double crop_ratio = crop_guide_ratio_pref;
                 if( crop_ratio > 0.0 ) {
                     // we should compare to getCurrentPreviewAspectRatio() not getTargetRatio(), as the actual preview
                     // aspect ratio may differ to the requested photo/video resolution's aspect ratio, in which case it's still useful
@@ -1115,8 +1116,6 @@ public class DrawPreview {
         p.setTextAlign(Paint.Align.LEFT);
         int location_x = top_x;
         int location_y = top_y;
-        final int gap_x = (int) (8 * scale + 0.5f); // convert dps to pixels
-        final int gap_y = (int) (0 * scale + 0.5f); // convert dps to pixels
         final int icon_gap_y = (int) (2 * scale + 0.5f); // convert dps to pixels
         if( ui_rotation == 90 || ui_rotation == 270 ) {
             // n.b., this is only for when lock_to_landscape==true, so we don't look at device_ui_rotation
@@ -1134,8 +1133,7 @@ public class DrawPreview {
             align_right = true;
         }
 
-        int first_line_height = 0;
-        int first_line_xshift = 0;
+        // update the cached strings - these change at most every half a second or so
         if( show_time_pref ) {
             if( current_time_string == null || time_ms/1000 > last_current_time_time/1000 ) {
                 // avoid creating a new calendar object every time
@@ -1155,24 +1153,6 @@ public class DrawPreview {
             // http://code.google.com/p/android/issues/detail?id=42104
             // update: now seems to be fixed
             // also possibly related https://code.google.com/p/android/issues/detail?id=181201
-            //int height = applicationInterface.drawTextWithBackground(canvas, p, current_time_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP);
-            if( text_bounds_time == null ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "compute text_bounds_time");
-                text_bounds_time = new Rect();
-                // better to not use a fixed string like "00:00:00" as don't want to make assumptions - e.g., in 12 hour format we'll have the appended am/pm to account for!
-                Calendar calendar = Calendar.getInstance();
-                calendar.set(100, 0, 1, 10, 59, 59);
-                String bounds_time_string = dateFormatTimeInstance.format(calendar.getTime());
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bounds_time_string:" + bounds_time_string);
-                p.getTextBounds(bounds_time_string, 0, bounds_time_string.length(), text_bounds_time);
-            }
-            first_line_xshift += text_bounds_time.width() + gap_x;
-            int height = applicationInterface.drawTextWithBackground(canvas, p, current_time_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_time);
-            height += gap_y;
-            // don't update location_y yet, as we have time and cameraid shown on the same line
-            first_line_height = Math.max(first_line_height, height);
         }
         if( show_camera_id_pref && camera_controller != null ) {
             if( camera_id_string == null || time_ms > last_camera_id_time + 10000 ) {
@@ -1181,27 +1161,7 @@ public class DrawPreview {
                 camera_id_string = getContext().getResources().getString(R.string.camera_id) + ":" + preview.getCameraId(); // intentionally don't put a space
                 last_camera_id_time = time_ms;
             }
-            if( text_bounds_camera_id == null ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "compute text_bounds_camera_id");
-                text_bounds_camera_id = new Rect();
-                p.getTextBounds(camera_id_string, 0, camera_id_string.length(), text_bounds_camera_id);
-            }
-            int xpos = align_right ? location_x - first_line_xshift : location_x + first_line_xshift;
-            int height = applicationInterface.drawTextWithBackground(canvas, p, camera_id_string, Color.WHITE, Color.BLACK, xpos, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_camera_id);
-            height += gap_y;
-            // don't update location_y yet, as we have time and cameraid shown on the same line
-            first_line_height = Math.max(first_line_height, height);
-        }
-        // update location_y for first line (time and camera id)
-        if( device_ui_rotation == 90 ) {
-            // upside-down portrait
-            location_y -= first_line_height;
         }
-        else {
-            location_y += first_line_height;
-        }
-
         if( camera_controller != null && show_free_memory_pref ) {
             if( last_free_memory_time == 0 || time_ms > last_free_memory_time + 10000 ) {
                 // don't call this too often, for UI performance
@@ -1219,40 +1179,8 @@ public class DrawPreview {
                 }
                 last_free_memory_time = time_ms; // always set this, so that in case of free memory not being available, we aren't calling freeMemory() every frame
             }
-            if( free_memory_gb >= 0.0f && free_memory_gb_string != null ) {
-                //int height = applicationInterface.drawTextWithBackground(canvas, p, free_memory_gb_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP);
-                if( text_bounds_free_memory == null ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "compute text_bounds_free_memory");
-                    text_bounds_free_memory = new Rect();
-                    p.getTextBounds(free_memory_gb_string, 0, free_memory_gb_string.length(), text_bounds_free_memory);
-                }
-                int height = applicationInterface.drawTextWithBackground(canvas, p, free_memory_gb_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_free_memory);
-                height += gap_y;
-                if( device_ui_rotation == 90 ) {
-                    location_y -= height;
-                }
-                else {
-                    location_y += height;
-                }
-            }
-        }
-
-        // Now draw additional info on the lower left corner if needed
-        int y_offset = (int) (27 * scale + 0.5f);
-        p.setTextSize(24 * scale + 0.5f); // convert dps to pixels
-        if (OSDLine1 != null && OSDLine1.length() > 0) {
-            applicationInterface.drawTextWithBackground(canvas, p, OSDLine1,
-                    Color.WHITE, Color.BLACK,  location_x, bottom_y - y_offset,
-                    MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
         }
-        if (OSDLine2 != null && OSDLine2.length() > 0) {
-            applicationInterface.drawTextWithBackground(canvas, p, OSDLine2,
-                    Color.WHITE, Color.BLACK, location_x, bottom_y,
-                    MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
-        }
-        p.setTextSize(16 * scale + 0.5f); // Restore text size
-
+        int iso_text_color = Color.rgb(255, 235, 59); // Yellow 500
         if( camera_controller != null && show_iso_pref ) {
             if( iso_exposure_string == null || time_ms > last_iso_exposure_time + 500 ) {
                 iso_exposure_string = "";
@@ -1285,8 +1213,7 @@ public class DrawPreview {
                 if( camera_controller.captureResultIsAEScanning() ) {
                     // only show as scanning if in auto ISO mode (problem on Nexus 6 at least that if we're in manual ISO mode, after pausing and
                     // resuming, the camera driver continually reports CONTROL_AE_STATE_SEARCHING)
-                    String value = sharedPreferences.getString(PreferenceKeys.ISOPreferenceKey, CameraController.ISO_DEFAULT);
-                    if( value.equals("auto") ) {
+                    if( iso_auto_pref ) {
                         is_scanning = true;
                     }
                 }
@@ -1295,32 +1222,70 @@ public class DrawPreview {
             }
 
             if( iso_exposure_string.length() > 0 ) {
-                int text_color = Color.rgb(255, 235, 59); // Yellow 500
                 if( is_scanning ) {
                     // we only change the color if ae scanning is at least a certain time, otherwise we get a lot of flickering of the color
                     if( ae_started_scanning_ms == -1 ) {
                         ae_started_scanning_ms = time_ms;
                     }
                     else if( time_ms - ae_started_scanning_ms > 500 ) {
-                        text_color = Color.rgb(244, 67, 54); // Red 500
+                        iso_text_color = Color.rgb(244, 67, 54); // Red 500
                     }
                 }
                 else {
                     ae_started_scanning_ms = -1;
                 }
-                // can't cache the bounds rect, as the width may change significantly as the ISO or exposure values change
-                int height = applicationInterface.drawTextWithBackground(canvas, p, iso_exposure_string, text_color, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, ybounds_text, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
-                height += gap_y;
-                // only move location_y if we actually print something (because on old camera API, even if the ISO option has
-                // been enabled, we'll never be able to display the on-screen ISO)
-                if( device_ui_rotation == 90 ) {
-                    location_y -= height;
-                }
-                else {
-                    location_y += height;
+            }
+        }
+
+        String time_text = show_time_pref ? current_time_string : null;
+        String camera_id_text = show_camera_id_pref && camera_controller != null ? camera_id_string : null;
+        String free_memory_text = camera_controller != null && show_free_memory_pref && free_memory_gb >= 0.0f ? free_memory_gb_string : null;
+        String iso_text = camera_controller != null && show_iso_pref && iso_exposure_string.length() > 0 ? iso_exposure_string : null;
+
+        // Rather than drawing the text every frame, keep it in a layer that's only re-rendered when
+        // the text or its position changes. The layer is drawn without any rotation, so isn't used
+        // if ui_rotation != 0.
+        boolean use_info_text_layer = ui_rotation == 0;
+        if( use_info_text_layer ) {
+            if( info_text_layer.needsUpdate(canvas) ||
+                    !sameText(time_text, info_layer_time_text) ||
+                    !sameText(camera_id_text, info_layer_camera_id_text) ||
+                    !sameText(free_memory_text, info_layer_free_memory_text) ||
+                    !sameText(iso_text, info_layer_iso_text) ||
+                    !sameText(OSDLine1, info_layer_osd_line1) ||
+                    !sameText(OSDLine2, info_layer_osd_line2) ||
+                    iso_text_color != info_layer_iso_text_color ||
+                    location_x != info_layer_location_x ||
+                    location_y != info_layer_top_y ||
+                    bottom_y != info_layer_bottom_y ||
+                    device_ui_rotation != info_layer_device_ui_rotation ) {
+                Canvas layer_canvas = info_text_layer.beginUpdate(canvas);
+                if( layer_canvas != null ) {
+                    info_layer_location_y = drawInfoText(layer_canvas, time_text, camera_id_text, free_memory_text, iso_text, iso_text_color, location_x, location_y, bottom_y, align_right, device_ui_rotation);
+                    info_text_layer.endUpdate();
+                    info_layer_time_text = time_text;
+                    info_layer_camera_id_text = camera_id_text;
+                    info_layer_free_memory_text = free_memory_text;
+                    info_layer_iso_text = iso_text;
+                    info_layer_osd_line1 = OSDLine1;
+                    info_layer_osd_line2 = OSDLine2;
+                    info_layer_iso_text_color = iso_text_color;
+                    info_layer_location_x = location_x;
+                    info_layer_top_y = location_y;
+                    info_layer_bottom_y = bottom_y;
+                    info_layer_device_ui_rotation = device_ui_rotation;
                 }
             }
         }
+        else {
+            info_text_layer.release();
+        }
+        if( use_info_text_layer && info_text_layer.draw(canvas) ) {
+            location_y = info_layer_location_y;
+        }
+        else {
+            location_y = drawInfoText(canvas, time_text, camera_id_text, free_memory_text, iso_text, iso_text_color, location_x, location_y, bottom_y, align_right, device_ui_rotation);
+        }
 
         // padding to align with earlier text
         final int flash_padding = (int) (1 * scale + 0.5f); // convert dps to pixels
@@ -1670,6 +1635,112 @@ public class DrawPreview {
         }
     }
 
+    /** Draws the lines of info text (time, camera id, free memory, ISO/exposure, and the OSD
+     *  lines). Text that shouldn't be shown should be passed as null.
+     * @return The y coordinate for the line following the info text.
+     */
+    private int drawInfoText(Canvas canvas, String time_text, String camera_id_text, String free_memory_text, String iso_text, int iso_text_color,
+                             int location_x, int location_y, int bottom_y, boolean align_right, int device_ui_rotation) {
+        final int gap_x = (int) (8 * scale + 0.5f); // convert dps to pixels
+        final int gap_y = (int) (0 * scale + 0.5f); // convert dps to pixels
+
+        int first_line_height = 0;
+        int first_line_xshift = 0;
+        if( time_text != null ) {
+            //int height = applicationInterface.drawTextWithBackground(canvas, p, time_text, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP);
+            if( text_bounds_time == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "compute text_bounds_time");
+                text_bounds_time = new Rect();
+                // better to not use a fixed string like "00:00:00" as don't want to make assumptions - e.g., in 12 hour format we'll have the appended am/pm to account for!
+                Calendar calendar = Calendar.getInstance();
+                calendar.set(100, 0, 1, 10, 59, 59);
+                String bounds_time_string = dateFormatTimeInstance.format(calendar.getTime());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "bounds_time_string:" + bounds_time_string);
+                p.getTextBounds(bounds_time_string, 0, bounds_time_string.length(), text_bounds_time);
+            }
+            first_line_xshift += text_bounds_time.width() + gap_x;
+            int height = applicationInterface.drawTextWithBackground(canvas, p, time_text, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_time);
+            height += gap_y;
+            // don't update location_y yet, as we have time and cameraid shown on the same line
+            first_line_height = Math.max(first_line_height, height);
+        }
+        if( camera_id_text != null ) {
+            if( text_bounds_camera_id == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "compute text_bounds_camera_id");
+                text_bounds_camera_id = new Rect();
+                p.getTextBounds(camera_id_text, 0, camera_id_text.length(), text_bounds_camera_id);
+            }
+            int xpos = align_right ? location_x - first_line_xshift : location_x + first_line_xshift;
+            int height = applicationInterface.drawTextWithBackground(canvas, p, camera_id_text, Color.WHITE, Color.BLACK, xpos, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_camera_id);
+            height += gap_y;
+            // don't update location_y yet, as we have time and cameraid shown on the same line
+            first_line_height = Math.max(first_line_height, height);
+        }
+        // update location_y for first line (time and camera id)
+        if( device_ui_rotation == 90 ) {
+            // upside-down portrait
+            location_y -= first_line_height;
+        }
+        else {
+            location_y += first_line_height;
+        }
+
+        if( free_memory_text != null ) {
+            //int height = applicationInterface.drawTextWithBackground(canvas, p, free_memory_text, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP);
+            if( text_bounds_free_memory == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "compute text_bounds_free_memory");
+                text_bounds_free_memory = new Rect();
+                p.getTextBounds(free_memory_text, 0, free_memory_text.length(), text_bounds_free_memory);
+            }
+            int height = applicationInterface.drawTextWithBackground(canvas, p, free_memory_text, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, text_bounds_free_memory);
+            height += gap_y;
+            if( device_ui_rotation == 90 ) {
+                location_y -= height;
+            }
+            else {
+                location_y += height;
+            }
+        }
+
+        // Now draw additional info on the lower left corner if needed
+        int y_offset = (int) (27 * scale + 0.5f);
+        p.setTextSize(24 * scale + 0.5f); // convert dps to pixels
+        if (OSDLine1 != null && OSDLine1.length() > 0) {
+            applicationInterface.drawTextWithBackground(canvas, p, OSDLine1,
+                    Color.WHITE, Color.BLACK,  location_x, bottom_y - y_offset,
+                    MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+        }
+        if (OSDLine2 != null && OSDLine2.length() > 0) {
+            applicationInterface.drawTextWithBackground(canvas, p, OSDLine2,
+                    Color.WHITE, Color.BLACK, location_x, bottom_y,
+                    MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+        }
+        p.setTextSize(16 * scale + 0.5f); // Restore text size
+
+        if( iso_text != null ) {
+            // can't cache the bounds rect, as the width may change significantly as the ISO or exposure values change
+            int height = applicationInterface.drawTextWithBackground(canvas, p, iso_text, iso_text_color, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, ybounds_text, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+            height += gap_y;
+            // only move location_y if we actually print something (because on old camera API, even if the ISO option has
+            // been enabled, we'll never be able to display the on-screen ISO)
+            if( device_ui_rotation == 90 ) {
+                location_y -= height;
+            }
+            else {
+                location_y += height;
+            }
+        }
+        return location_y;
+    }
+
+    private static boolean sameText(String text1, String text2) {
+        return text1 == null ? text2 == null : text1.equals(text2);
+    }
+
     /** Draws histogram for a single color channel.
      * @param canvas Canvas to draw onto.
      * @param histogram_channel The histogram for this color.
@@ -2718,9 +2789,30 @@ public class DrawPreview {
     }
 
     public void onDrawPreview(Canvas canvas) {
+        long start_ns = System.nanoTime();
+        drawPreview(canvas);
+        long end_ns = System.nanoTime();
+        // n.b., getFrameRate() is the delay between frames in ms, not a rate
+        frame_time_counter.onFrame(start_ns, end_ns, main_activity.getPreview().getFrameRate()*1000000L);
+        if( MyDebug.LOG ) {
+            long time_ms = System.currentTimeMillis();
+            if( time_ms > last_frame_time_log_ms + 10000 ) {
+                Log.d(TAG, "onDrawPreview " + frame_time_counter + " grid layer updates: " + grid_layer.getNUpdates() + " info text layer updates: " + info_text_layer.getNUpdates());
+                last_frame_time_log_ms = time_ms;
+            }
+        }
+    }
+
+    /** Returns the statistics for how long onDrawPreview() takes, e.g., for testing.
+     */
+    public FrameTimeCounter getFrameTimeCounter() {
+        return frame_time_counter;
+    }
+
+    private void drawPreview(Canvas canvas) {
 		/*if( MyDebug.LOG )
 			Log.d(TAG, "onDrawPreview");*/
-        if( !has_settings ) {
+        if( !has_settings || settings != applicationInterface.getSettings() ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "onDrawPreview: need to update settings");
             updateSettings();
@@ -2848,13 +2940,11 @@ public class DrawPreview {
             p.setStyle(Paint.Style.FILL); // reset
             p.setStrokeWidth(stroke_width); // reset
         }
-        drawGrids(canvas);
-
-        drawCropGuides(canvas);
+        drawGridsAndCropGuides(canvas);
 
         // n.b., don't display ghost image if front_screen_flash==true (i.e., frontscreen flash is in operation), otherwise
         // the effectiveness of the "flash" is reduced
-        if( last_thumbnail != null && !last_thumbnail_is_video && camera_controller != null && ( show_last_image || ( allow_ghost_last_image && !front_screen_flash && ghost_image_pref.equals("preference_ghost_image_last") ) ) ) {
+        if( last_thumbnail != null && !last_thumbnail_is_video && camera_controller != null && ( show_last_image || ( allow_ghost_last_image && !front_screen_flash && ghost_image_pref == SettingsSnapshot.GhostImage.LAST ) ) ) {
             // If changing this code, ensure that pause preview still works when:
             // - Taking a photo in portrait or landscape - and check rotating the device while preview paused
             // - Taking a photo with lock to portrait/landscape options still shows the thumbnail with aspect ratio preserved
@@ -3033,7 +3123,7 @@ public class DrawPreview {
         last_image_matrix.preRotate(this_ui_rotation, bitmap.getWidth()/2.0f, bitmap.getHeight()/2.0f);
         if( flip_front ) {
             boolean is_front_facing = camera_controller != null && (camera_controller.getFacing() == CameraController.Facing.FACING_FRONT);
-            if( is_front_facing && !sharedPreferences.getString(PreferenceKeys.FrontCameraMirrorKey, "preference_front_camera_mirror_no").equals("preference_front_camera_mirror_photo") ) {
+            if( is_front_facing && !mirror_front_photo_pref ) {
                 last_image_matrix.preScale(-1.0f, 1.0f, bitmap.getWidth()/2.0f, 0.0f);
             }
         }
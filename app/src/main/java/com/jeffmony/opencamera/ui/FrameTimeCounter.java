@@ -0,0 +1,88 @@
+package com.jeffmony.opencamera.ui;
+
+/** Records how long the on-screen display takes to draw, and estimates how many frames are being
+ *  dropped, so that rendering performance can be checked on a device (or from a test).
+ *  This class doesn't use any Android APIs, so that it can be run on a standard JVM (e.g., for unit
+ *  testing).
+ */
+public class FrameTimeCounter {
+    //private static final String TAG = "FrameTimeCounter";
+
+    private static final long max_gap_ns_c = 1000000000L; // gaps between frames longer than this are assumed to be due to drawing being paused, rather than dropped frames
+
+    private long last_frame_start_ns = -1;
+    private int n_frames;
+    private int n_slow_frames;
+    private int n_dropped_frames;
+    private long total_draw_time_ns;
+    private long max_draw_time_ns;
+
+    /** Records a frame.
+     * @param start_ns          The time drawing started, from System.nanoTime().
+     * @param end_ns            The time drawing finished, from System.nanoTime().
+     * @param frame_interval_ns How often we expect to be drawn.
+     */
+    public synchronized void onFrame(long start_ns, long end_ns, long frame_interval_ns) {
+        long draw_time_ns = end_ns - start_ns;
+        n_frames++;
+        total_draw_time_ns += draw_time_ns;
+        max_draw_time_ns = Math.max(max_draw_time_ns, draw_time_ns);
+        if( draw_time_ns > frame_interval_ns ) {
+            n_slow_frames++;
+        }
+        if( last_frame_start_ns != -1 && frame_interval_ns > 0 ) {
+            long gap_ns = start_ns - last_frame_start_ns;
+            if( gap_ns < max_gap_ns_c && 2*gap_ns > 3*frame_interval_ns ) {
+                // the number of frames that should have been drawn in the gap, rounded to the nearest frame
+                long n_expected = (gap_ns + frame_interval_ns/2) / frame_interval_ns;
+                n_dropped_frames += (int)(n_expected - 1);
+            }
+        }
+        last_frame_start_ns = start_ns;
+    }
+
+    /** Returns the number of frames drawn.
+     */
+    public synchronized int getNFrames() {
+        return n_frames;
+    }
+
+    /** Returns the number of frames that took longer to draw than the frame interval.
+     */
+    public synchronized int getNSlowFrames() {
+        return n_slow_frames;
+    }
+
+    /** Returns the estimated number of frames that were missed, from the gaps between frames.
+     */
+    public synchronized int getNDroppedFrames() {
+        return n_dropped_frames;
+    }
+
+    /** Returns the average time taken to draw a frame, in nanoseconds.
+     */
+    public synchronized long getAverageDrawTimeNs() {
+        return n_frames == 0 ? 0 : total_draw_time_ns / n_frames;
+    }
+
+    /** Returns the longest time taken to draw a frame, in nanoseconds.
+     */
+    public synchronized long getMaxDrawTimeNs() {
+        return max_draw_time_ns;
+    }
+
+    public synchronized void reset() {
+        last_frame_start_ns = -1;
+        n_frames = 0;
+        n_slow_frames = 0;
+        n_dropped_frames = 0;
+        total_draw_time_ns = 0;
+        max_draw_time_ns = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames: " + n_frames + " slow: " + n_slow_frames + " dropped: " + n_dropped_frames +
+                " average: " + getAverageDrawTimeNs()/1000 + "us max: " + max_draw_time_ns/1000 + "us";
+    }
+}
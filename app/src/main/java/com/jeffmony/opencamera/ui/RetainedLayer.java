@@ -0,0 +1,196 @@
+package com.jeffmony.opencamera.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RenderNode;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.jeffmony.opencamera.MyDebug;
+
+/** A layer of the on-screen display that is kept between frames, so that it only needs to be
+ *  re-rendered when what it shows changes, rather than every frame. The caller is responsible for
+ *  deciding when the contents are out of date.
+ *  On Android 10+ with a hardware accelerated canvas the layer is a RenderNode (so costs no extra
+ *  memory, and is replayed by the render thread), otherwise it's a bitmap the size of the canvas.
+ */
+public class RetainedLayer {
+    private static final String TAG = "RetainedLayer";
+
+    private final String name;
+    private RenderNode render_node;
+    private Bitmap bitmap;
+    private Canvas bitmap_canvas;
+    private boolean using_render_node; // whether the current contents are in render_node rather than bitmap
+    private boolean recording; // whether we're between beginUpdate() and endUpdate()
+    private boolean valid;
+    private int width;
+    private int height;
+    private int n_updates;
+
+    public RetainedLayer(String name) {
+        this.name = name;
+    }
+
+    private static boolean useRenderNode(Canvas canvas) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated();
+    }
+
+    /** Whether the layer must be re-rendered before it can be drawn onto the supplied canvas, even
+     *  if its contents haven't changed.
+     */
+    public boolean needsUpdate(Canvas canvas) {
+        return !valid || width != canvas.getWidth() || height != canvas.getHeight() || using_render_node != useRenderNode(canvas);
+    }
+
+    /** Call to start re-rendering the layer, for drawing onto the supplied canvas. Draw the contents
+     *  onto the returned canvas, then call endUpdate().
+     * @return The canvas to draw the layer's contents onto, or null if we ran out of memory, in
+     *         which case the caller should draw directly instead.
+     */
+    public Canvas beginUpdate(Canvas canvas) {
+        if( recording ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("already updating layer " + name);
+        }
+        valid = false;
+        width = canvas.getWidth();
+        height = canvas.getHeight();
+        using_render_node = useRenderNode(canvas);
+        Canvas layer_canvas;
+        if( using_render_node ) {
+            releaseBitmap();
+            layer_canvas = beginRenderNode();
+        }
+        else {
+            releaseRenderNode();
+            layer_canvas = beginBitmap();
+        }
+        recording = layer_canvas != null;
+        return layer_canvas;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private Canvas beginRenderNode() {
+        if( render_node == null ) {
+            render_node = new RenderNode(name);
+            // the contents may extend outside of the canvas, e.g., if it's rotated
+            render_node.setClipToBounds(false);
+        }
+        render_node.setPosition(0, 0, width, height);
+        return render_node.beginRecording(width, height);
+    }
+
+    private Canvas beginBitmap() {
+        if( bitmap != null && ( bitmap.getWidth() != width || bitmap.getHeight() != height ) ) {
+            releaseBitmap();
+        }
+        if( bitmap == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "create bitmap for " + name + ": " + width + " x " + height);
+            try {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            catch(OutOfMemoryError e) {
+                Log.e(TAG, "failed to create bitmap for layer " + name);
+                e.printStackTrace();
+                return null;
+            }
+            bitmap_canvas = new Canvas(bitmap);
+        }
+        else {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap_canvas;
+    }
+
+    /** Call when finished drawing onto the canvas returned by beginUpdate().
+     */
+    public void endUpdate() {
+        if( !recording ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("not updating layer " + name);
+        }
+        if( using_render_node ) {
+            endRenderNode();
+        }
+        recording = false;
+        valid = true;
+        n_updates++;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void endRenderNode() {
+        render_node.endRecording();
+    }
+
+    /** Draws the layer onto the supplied canvas, using the canvas's current matrix.
+     * @return Whether the layer was drawn. Returns false if the layer isn't available, in which
+     *         case the caller should draw directly instead.
+     */
+    public boolean draw(Canvas canvas) {
+        if( needsUpdate(canvas) ) {
+            return false;
+        }
+        if( using_render_node ) {
+            drawRenderNode(canvas);
+        }
+        else {
+            canvas.drawBitmap(bitmap, 0.0f, 0.0f, null);
+        }
+        return true;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void drawRenderNode(Canvas canvas) {
+        canvas.drawRenderNode(render_node);
+    }
+
+    /** Marks the contents as out of date, so that needsUpdate() will return true.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /** Returns the number of times the layer has been re-rendered.
+     */
+    public int getNUpdates() {
+        return n_updates;
+    }
+
+    /** Frees the memory used by the layer. The layer can still be used afterwards, it will simply
+     *  need to be re-rendered.
+     */
+    public void release() {
+        valid = false;
+        releaseBitmap();
+        releaseRenderNode();
+    }
+
+    private void releaseBitmap() {
+        if( bitmap != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmap for " + name);
+            bitmap.recycle();
+            bitmap = null;
+            bitmap_canvas = null;
+        }
+    }
+
+    private void releaseRenderNode() {
+        if( render_node != null ) {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
+                discardRenderNode();
+            }
+            render_node = null;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void discardRenderNode() {
+        render_node.discardDisplayList();
+    }
+}
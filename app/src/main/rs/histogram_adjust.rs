@@ -41,6 +41,7 @@ float hdr_alpha = 0.5f; // 0.0 means no change, 1.0 means fully equalise
 int n_tiles = 0;
 int width = 0;
 int height = 0;
+int y_offset = 0; // offset of the allocation's rows within the image, if only processing a strip of the image
 
 static int getEqualValue(int histogram_offset, int value) {
     int cdf_v = rsGetElementAt_int(c_histogram, histogram_offset+value);
@@ -57,7 +58,7 @@ uchar4 __attribute__((kernel)) histogram_adjust(uchar4 in, uint32_t x, uint32_t
     value = max(value, in.b);
 
     float tx = ((float)x*n_tiles)/(float)width - 0.5f;
-    float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+    float ty = ((float)(y+y_offset)*n_tiles)/(float)height - 0.5f;
     
     int ix = (int)floor(tx);
     int iy = (int)floor(ty);
@@ -2,29 +2,58 @@ package net.sourceforge.opencamera.test;
 
 import android.media.CamcorderProfile;
 
-import net.sourceforge.opencamera.MainActivity;
-import net.sourceforge.opencamera.MyApplicationInterface;
-import net.sourceforge.opencamera.cameracontroller.CameraController;
-import net.sourceforge.opencamera.cameracontroller.CameraController2;
-import net.sourceforge.opencamera.HDRProcessor;
-import net.sourceforge.opencamera.ImageSaver;
-import net.sourceforge.opencamera.LocationSupplier;
-import net.sourceforge.opencamera.preview.Preview;
-import net.sourceforge.opencamera.preview.VideoQualityHandler;
-import net.sourceforge.opencamera.TextFormatter;
-import net.sourceforge.opencamera.ui.DrawPreview;
-import net.sourceforge.opencamera.ui.MainUI;
-import net.sourceforge.opencamera.ui.PopupView;
+import com.jeffmony.opencamera.MainActivity;
+import com.jeffmony.opencamera.MyApplicationInterface;
+import com.jeffmony.opencamera.cameracontroller.CameraController;
+import com.jeffmony.opencamera.cameracontroller.CameraController2;
+import com.jeffmony.opencamera.cameracontroller.FrameStore;
+import com.jeffmony.opencamera.cameracontroller.ImageBuffer;
+import com.jeffmony.opencamera.cameracontroller.ImageBufferPool;
+import com.jeffmony.opencamera.cameracontroller.RequestUpdateScheduler;
+import com.jeffmony.opencamera.HDRProcessor;
+import com.jeffmony.opencamera.ExifSplicer;
+import com.jeffmony.opencamera.ImageSaver;
+import com.jeffmony.opencamera.ImageSaverPipeline;
+import com.jeffmony.opencamera.JavaFeatureDetector;
+import com.jeffmony.opencamera.JavaFeatureMatcher;
+import com.jeffmony.opencamera.JavaHDRMerger;
+import com.jeffmony.opencamera.JavaMTBAligner;
+import com.jeffmony.opencamera.JpegTransformer;
+import com.jeffmony.opencamera.LocationSupplier;
+import com.jeffmony.opencamera.MemoryBudget;
+import com.jeffmony.opencamera.PanoramaGyroPrior;
+import com.jeffmony.opencamera.ParallelJpegEncoder;
+import com.jeffmony.opencamera.preview.Preview;
+import com.jeffmony.opencamera.preview.PreviewAnalyzer;
+import com.jeffmony.opencamera.preview.VideoQualityHandler;
+import com.jeffmony.opencamera.TextFormatter;
+import com.jeffmony.opencamera.ui.DrawPreview;
+import com.jeffmony.opencamera.ui.FrameTimeCounter;
+import com.jeffmony.opencamera.ui.MainUI;
+import com.jeffmony.opencamera.ui.PopupView;
 
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
 
 import static org.junit.Assert.*;
 
@@ -540,7 +569,7 @@ public class UnitTest {
     public void testImageSaverQueueSize() {
         Log.d(TAG, "testImageSaverQueueSize");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        // if any of these values change, review the comments in ImageSaver.computeMemoryBudget().
 
         assertTrue(ImageSaver.computeQueueSize(64) >= 6);
 
@@ -554,6 +583,468 @@ public class UnitTest {
         assertTrue(ImageSaver.computeQueueSize(512) <= 70);
     }
 
+    @Test
+    public void testImageSaverMemoryBudget() {
+        Log.d(TAG, "testImageSaverMemoryBudget");
+
+        final long megabyte = 1024*1024;
+
+        // should always allow at least a RAW+JPEG photo at the reference resolution
+        assertTrue(ImageSaver.computeMemoryBudget(0) >= ImageSaver.estimateRawBytes(0) + ImageSaver.estimateJpegBytes(0));
+        assertTrue(ImageSaver.computeMemoryBudget(64*megabyte) >= ImageSaver.computeMemoryBudget(0));
+
+        long prev_budget = 0;
+        for(long heap : new long[]{64, 128, 256, 512, 1024}) {
+            long budget = ImageSaver.computeMemoryBudget(heap*megabyte);
+            assertTrue(budget >= prev_budget);
+            // must reserve memory for post-processing
+            assertTrue(budget < heap*megabyte);
+            prev_budget = budget;
+        }
+        // reserve 160MB for post-processing and HDR operations on large heaps
+        assertEquals(352*megabyte, ImageSaver.computeMemoryBudget(512*megabyte));
+        assertEquals(864*megabyte, ImageSaver.computeMemoryBudget(1024*megabyte));
+    }
+
+    @Test
+    public void testImageSaverBitmapPoolCapacity() {
+        Log.d(TAG, "testImageSaverBitmapPoolCapacity");
+
+        final long megabyte = 1024*1024;
+
+        final int [][] resolutions = new int[][]{{0, 0}, {640, 480}, {4000, 3000}, {6000, 4000}, {8160, 6120}};
+        long prev_capacity = 0;
+        for(long heap : new long[]{64, 96, 128, 192, 256, 384, 512, 768, 1024}) {
+            long max_memory = heap*megabyte;
+            long capacity = ImageSaver.computeBitmapPoolCapacity(max_memory, 0, 0);
+            assertTrue(capacity >= prev_capacity);
+            prev_capacity = capacity;
+            for(int [] resolution : resolutions) {
+                capacity = ImageSaver.computeBitmapPoolCapacity(max_memory, resolution[0], resolution[1]);
+                assertTrue(capacity > 0);
+                // pooled bitmaps aren't charged to the budget, so the pool plus the budget must never exceed the heap
+                assertTrue("heap " + heap + "MB " + resolution[0] + "x" + resolution[1] + ": " + capacity,
+                        capacity + ImageSaver.computeMemoryBudget(max_memory) <= max_memory);
+            }
+        }
+        // half of the 160MB reserved for post-processing on large heaps
+        assertEquals(80*megabyte, ImageSaver.computeBitmapPoolCapacity(512*megabyte, 0, 0));
+        assertEquals(80*megabyte, ImageSaver.computeBitmapPoolCapacity(512*megabyte, 4000, 3000));
+        // enough for a 12MP ARGB_8888 bitmap
+        assertTrue(ImageSaver.computeBitmapPoolCapacity(512*megabyte, 0, 0) >= 4000L*3000L*4L);
+        // raised to hold one 24MP bitmap, as that still fits in the reserve
+        assertEquals(6000L*4000L*4L, ImageSaver.computeBitmapPoolCapacity(512*megabyte, 6000, 4000));
+        // but a 50MP bitmap doesn't fit alongside the budget, so isn't pooled
+        assertEquals(80*megabyte, ImageSaver.computeBitmapPoolCapacity(512*megabyte, 8160, 6120));
+        // on a 64MB heap, only 34MB is left over once the 30MB minimum budget is taken
+        assertEquals(17*megabyte, ImageSaver.computeBitmapPoolCapacity(64*megabyte, 4000, 3000));
+    }
+
+    @Test
+    public void testImageSaverRequestBytes() {
+        Log.d(TAG, "testImageSaverRequestBytes");
+
+        // a 50MP JPEG should be estimated as much larger than a 12MP JPEG
+        long jpeg_12mp = ImageSaver.estimateJpegBytes(4000*3000);
+        long jpeg_50mp = ImageSaver.estimateJpegBytes(8160*6120);
+        assertTrue(jpeg_50mp > 4*jpeg_12mp);
+        assertTrue(ImageSaver.estimateRawBytes(4000*3000) > jpeg_12mp);
+        // unknown resolution
+        assertTrue(ImageSaver.estimateJpegBytes(0) > 0);
+        assertTrue(ImageSaver.estimateRawBytes(0) > ImageSaver.estimateJpegBytes(0));
+
+        assertEquals(1000, ImageSaver.computeRequestBytes(1000, 0, 0, 4000, 3000));
+        assertEquals(1000 + 2000, ImageSaver.computeRequestBytes(1000, 2000, 0, 0, 0));
+        // 3 decoded ARGB_8888 bitmaps for HDR
+        assertEquals(1000 + 3L*4*4000*3000, ImageSaver.computeRequestBytes(1000, 0, 3, 4000, 3000));
+        // check we don't overflow for large sensors
+        assertEquals(8L*4*8160*6120, ImageSaver.computeRequestBytes(0, 0, 8, 8160, 6120));
+    }
+
+    @Test
+    public void testTiledHDR() {
+        Log.d(TAG, "testTiledHDR");
+
+        final long megabyte = 1024*1024;
+        // 12MP HDR fits in the reserve for large heap 512MB, but 50MP and 108MP don't
+        assertFalse(ImageSaver.useTiledHDR(3, 4000, 3000, 512*megabyte));
+        assertTrue(ImageSaver.useTiledHDR(3, 8160, 6120, 512*megabyte));
+        assertTrue(ImageSaver.useTiledHDR(3, 12000, 9000, 512*megabyte));
+        // smaller heaps reserve less
+        assertTrue(ImageSaver.useTiledHDR(3, 4000, 3000, 128*megabyte));
+        // never for DRO
+        assertFalse(ImageSaver.useTiledHDR(1, 12000, 9000, 128*megabyte));
+
+        // the reduced images must fit in the 160MB reserve for large heap 512MB, and be no more than 16MP
+        final long reserve = 160*megabyte;
+        assertEquals(1, HDRProcessor.computeTiledAlignSampleSize(4000, 3000, 3, reserve));
+        assertEquals(2, HDRProcessor.computeTiledAlignSampleSize(8160, 6120, 3, reserve));
+        assertEquals(4, HDRProcessor.computeTiledAlignSampleSize(12000, 9000, 3, reserve));
+        // more images, or a smaller reserve, need a larger sample size
+        assertEquals(4, HDRProcessor.computeTiledAlignSampleSize(8160, 6120, 5, reserve));
+        assertEquals(2, HDRProcessor.computeTiledAlignSampleSize(4000, 3000, 3, 80*megabyte));
+        for(int n_images=2;n_images<=7;n_images++) {
+            for(long heap_reserve : new long[]{40*megabyte, 80*megabyte, reserve}) {
+                int sample_size = HDRProcessor.computeTiledAlignSampleSize(12000, 9000, n_images, heap_reserve);
+                assertTrue(4L * n_images * (12000/sample_size) * (9000/sample_size) <= heap_reserve);
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws InterruptedException {
+        Log.d(TAG, "testMemoryBudget");
+
+        final MemoryBudget budget = new MemoryBudget(100);
+        assertEquals(100, budget.getCapacity());
+        assertEquals(0, budget.getUsed());
+        assertEquals(100, budget.getAvailable());
+
+        // if nothing is held, we always admit, even if larger than the capacity
+        assertFalse(budget.wouldBlock(1000));
+
+        budget.acquire(60);
+        assertEquals(60, budget.getUsed());
+        assertEquals(40, budget.getAvailable());
+        assertFalse(budget.wouldBlock(40));
+        assertTrue(budget.wouldBlock(41));
+
+        budget.acquire(40);
+        assertEquals(100, budget.getUsed());
+        assertEquals(0, budget.getAvailable());
+        assertTrue(budget.wouldBlock(1));
+        assertFalse(budget.wouldBlock(0));
+
+        // check acquire() blocks until enough is released
+        final boolean [] acquired = new boolean[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    budget.acquire(50);
+                    synchronized( acquired ) {
+                        acquired[0] = true;
+                    }
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        synchronized( acquired ) {
+            assertFalse(acquired[0]);
+        }
+        budget.release(40);
+        Thread.sleep(100);
+        synchronized( acquired ) {
+            // only 40 bytes free, still not enough
+            assertFalse(acquired[0]);
+        }
+        budget.release(60);
+        thread.join(10000);
+        synchronized( acquired ) {
+            assertTrue(acquired[0]);
+        }
+        assertEquals(50, budget.getUsed());
+        assertEquals(100, budget.getPeakUsed());
+
+        budget.release(50);
+        assertEquals(0, budget.getUsed());
+
+        try {
+            budget.release(1);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        try {
+            // can only grow a reservation that's been acquired
+            budget.grow(10);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        // growing never blocks, even if it exceeds the capacity
+        budget.acquire(80);
+        budget.grow(70);
+        assertEquals(150, budget.getUsed());
+        assertEquals(150, budget.getPeakUsed());
+        assertTrue(budget.wouldBlock(1));
+        budget.release(150);
+        assertEquals(0, budget.getUsed());
+        assertFalse(budget.wouldBlock(1000));
+    }
+
+    @Test
+    public void testFrameStore() throws IOException {
+        Log.d(TAG, "testFrameStore");
+
+        File dir = File.createTempFile("test_frame_store", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        try {
+            FrameStore store = new FrameStore(dir, 1000);
+            Random random = new Random(0);
+            // include a frame that fills a segment exactly, and one larger than a segment
+            int [] sizes = new int[]{300, 600, 100, 400, 2500, 1};
+            byte [][] data = new byte[sizes.length][];
+            ImageBuffer [] frames = new ImageBuffer[sizes.length];
+            for(int i=0;i<sizes.length;i++) {
+                data[i] = new byte[sizes[i]];
+                random.nextBytes(data[i]);
+                ByteBuffer src = ByteBuffer.allocateDirect(sizes[i]);
+                src.put(data[i]);
+                src.flip();
+                frames[i] = store.append(src);
+                assertFalse(src.hasRemaining());
+                assertEquals(sizes[i], frames[i].size());
+                // scratch files are deleted as soon as they're mapped
+                assertEquals(0, dir.list().length);
+            }
+            assertEquals(sizes.length, store.getNFrames());
+            assertEquals(3901, store.getTotalBytes());
+            // segments hold 300+600+100, 400, 2500 and 1 bytes
+            assertEquals(4, store.getNSegments());
+
+            store.close();
+            try {
+                store.append(ByteBuffer.wrap(data[0]));
+                fail();
+            }
+            catch(RuntimeException e) {
+                // expected
+            }
+
+            // frames remain valid after the store is closed
+            for(int i=0;i<sizes.length;i++) {
+                assertArrayEquals(data[i], frames[i].toByteArray());
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                frames[i].writeTo(outputStream);
+                assertArrayEquals(data[i], outputStream.toByteArray());
+                frames[i].release();
+            }
+        }
+        finally {
+            assertTrue(dir.delete());
+        }
+    }
+
+    @Test
+    public void testImageBufferPool() throws IOException {
+        Log.d(TAG, "testImageBufferPool");
+
+        ImageBufferPool pool = new ImageBufferPool(2, 1000);
+        byte [] data = new byte[100];
+        for(int i=0;i<data.length;i++) {
+            data[i] = (byte)i;
+        }
+
+        ImageBuffer image = pool.copyOf(ByteBuffer.wrap(data));
+        assertEquals(100, image.size());
+        assertArrayEquals(data, image.toByteArray());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(0, pool.getFreeCount());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        image.writeTo(outputStream);
+        assertArrayEquals(data, outputStream.toByteArray());
+        InputStream inputStream = image.getInputStream();
+        assertEquals(0, inputStream.read());
+        byte [] read_data = new byte[200];
+        assertEquals(99, inputStream.read(read_data, 0, read_data.length));
+        assertEquals(99, read_data[98]);
+        assertEquals(-1, inputStream.read());
+
+        // buffer is only returned to the pool once all references are released
+        image.retain();
+        image.release();
+        assertEquals(0, pool.getFreeCount());
+        image.release();
+        assertEquals(1, pool.getFreeCount());
+        try {
+            image.release();
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        // a similar size should reuse the buffer
+        ImageBuffer image2 = pool.copyOf(ByteBuffer.wrap(data, 0, 90));
+        assertEquals(90, image2.size());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(0, pool.getFreeCount());
+        byte [] expected = new byte[90];
+        System.arraycopy(data, 0, expected, 0, expected.length);
+        assertArrayEquals(expected, image2.toByteArray());
+        image2.release();
+
+        // larger than max capacity, so not pooled
+        ImageBuffer large_image = pool.copyOf(ByteBuffer.wrap(new byte[2000]));
+        assertEquals(2000, large_image.size());
+        large_image.release();
+        assertEquals(1, pool.getFreeCount());
+
+        // pool doesn't keep more than max_buffers
+        ImageBuffer [] images = new ImageBuffer[3];
+        for(int i=0;i<images.length;i++) {
+            images[i] = pool.copyOf(ByteBuffer.wrap(data));
+        }
+        for(ImageBuffer buffer : images) {
+            buffer.release();
+        }
+        assertEquals(2, pool.getFreeCount());
+
+        // wrapping a byte array shouldn't copy
+        ImageBuffer wrapped = ImageBuffer.wrap(data);
+        assertSame(data, wrapped.toByteArray());
+        wrapped.release();
+    }
+
+    /** Returns a (truncated) JPEG with a little endian Exif segment containing Make, Orientation,
+     *  DateTimeOriginal, and an IFD1.
+     */
+    private static byte [] createExifJpeg() {
+        ByteBuffer tiff = ByteBuffer.allocate(116).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+        // IFD0
+        tiff.putShort((short)3);
+        tiff.putShort((short)0x010F).putShort((short)2).putInt(9).putInt(50); // Make
+        tiff.putShort((short)0x0112).putShort((short)3).putInt(1).putShort((short)6).putShort((short)0); // Orientation
+        tiff.putShort((short)0x8769).putShort((short)4).putInt(1).putInt(60); // Exif IFD pointer
+        tiff.putInt(98); // IFD1
+        tiff.put("TestMake\0".getBytes()).put((byte)0);
+        // Exif IFD
+        tiff.putShort((short)1);
+        tiff.putShort((short)0x9003).putShort((short)2).putInt(20).putInt(78); // DateTimeOriginal
+        tiff.putInt(0);
+        tiff.put("2020:01:02 03:04:05\0".getBytes());
+        // IFD1
+        tiff.putShort((short)1);
+        tiff.putShort((short)0x0201).putShort((short)4).putInt(1).putInt(0);
+        tiff.putInt(0);
+        assertEquals(116, tiff.position());
+
+        byte [] scan = {(byte)0xFF, (byte)0xDA, 0, 4, 1, 2, 3, 4, 5, (byte)0xFF, (byte)0xD9};
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + 4 + 6 + 116 + scan.length);
+        jpeg.put((byte)0xFF).put((byte)0xD8);
+        jpeg.put((byte)0xFF).put((byte)0xE1).putShort((short)(2 + 6 + 116));
+        jpeg.put("Exif\0\0".getBytes());
+        jpeg.put(tiff.array());
+        jpeg.put(scan);
+        return jpeg.array();
+    }
+
+    @Test
+    public void testExifSplicer() {
+        Log.d(TAG, "testExifSplicer");
+
+        byte [] jpeg = createExifJpeg();
+        ExifSplicer exif = ExifSplicer.parse(ByteBuffer.wrap(jpeg));
+        assertNotNull(exif);
+        assertEquals("TestMake", exif.getAttribute("Make"));
+        assertEquals("6", exif.getAttribute("Orientation"));
+        assertEquals("2020:01:02 03:04:05", exif.getAttribute("DateTimeOriginal"));
+        assertFalse(exif.hasAttribute("GPSLatitude"));
+        assertFalse(exif.hasAttribute("Artist"));
+        assertEquals(jpeg.length - 11, exif.getResumeOffset());
+
+        // invalid values are ignored
+        exif.setAttribute("Orientation", "not a number");
+        assertEquals("6", exif.getAttribute("Orientation"));
+
+        exif.setAttribute("Artist", "Test Artist");
+        exif.setAttribute("DateTimeDigitized", "2020:01:02 03:04:06");
+        exif.setAttribute("GPSImgDirection", "12345/100");
+        exif.setAttribute("GPSImgDirectionRef", "M");
+        exif.setAttribute("GPSTimeStamp", "12:34:56");
+        exif.setGpsInfo("gps", 51.5, -0.25, -10.0, 0.0f, 0);
+        assertEquals("Test Artist", exif.getAttribute("Artist"));
+
+        byte [] header = exif.getHeader();
+        assertNotNull(header);
+        int resume_offset = exif.getResumeOffset();
+        byte [] new_jpeg = new byte[header.length + jpeg.length - resume_offset];
+        System.arraycopy(header, 0, new_jpeg, 0, header.length);
+        System.arraycopy(jpeg, resume_offset, new_jpeg, header.length, jpeg.length - resume_offset);
+
+        // check the rest of the jpeg is unchanged
+        for(int i=0;i<jpeg.length - resume_offset;i++) {
+            assertEquals(jpeg[resume_offset + i], new_jpeg[header.length + i]);
+        }
+
+        ExifSplicer new_exif = ExifSplicer.parse(ByteBuffer.wrap(new_jpeg));
+        assertNotNull(new_exif);
+        assertEquals(header.length, new_exif.getResumeOffset());
+        assertEquals("TestMake", new_exif.getAttribute("Make"));
+        assertEquals("6", new_exif.getAttribute("Orientation"));
+        assertEquals("2020:01:02 03:04:05", new_exif.getAttribute("DateTimeOriginal"));
+        assertEquals("2020:01:02 03:04:06", new_exif.getAttribute("DateTimeDigitized"));
+        assertEquals("Test Artist", new_exif.getAttribute("Artist"));
+        assertEquals("12345/100", new_exif.getAttribute("GPSImgDirection"));
+        assertEquals("M", new_exif.getAttribute("GPSImgDirectionRef"));
+        assertEquals("0/1,0/1,0/1", new_exif.getAttribute("GPSTimeStamp")); // overwritten by setGpsInfo()
+        assertEquals("1970:01:01", new_exif.getAttribute("GPSDateStamp"));
+        assertEquals("51/1,30/1,0/10000000", new_exif.getAttribute("GPSLatitude"));
+        assertEquals("N", new_exif.getAttribute("GPSLatitudeRef"));
+        assertEquals("0/1,15/1,0/10000000", new_exif.getAttribute("GPSLongitude"));
+        assertEquals("W", new_exif.getAttribute("GPSLongitudeRef"));
+        assertEquals("100000/10000", new_exif.getAttribute("GPSAltitude"));
+        assertEquals("1", new_exif.getAttribute("GPSAltitudeRef"));
+        assertEquals("gps", new_exif.getAttribute("GPSProcessingMethod"));
+        assertTrue(new_exif.hasThumbnail());
+
+        // removing the thumbnail, and setting long values
+        exif = ExifSplicer.parse(ByteBuffer.wrap(jpeg));
+        assertNotNull(exif);
+        assertTrue(exif.hasThumbnail());
+        exif.removeThumbnail();
+        assertFalse(exif.hasThumbnail());
+        exif.setAttribute("PixelXDimension", "3000");
+        exif.setAttribute("PixelYDimension", "4000");
+        header = exif.getHeader();
+        assertNotNull(header);
+        resume_offset = exif.getResumeOffset();
+        new_jpeg = new byte[header.length + jpeg.length - resume_offset];
+        System.arraycopy(header, 0, new_jpeg, 0, header.length);
+        System.arraycopy(jpeg, resume_offset, new_jpeg, header.length, jpeg.length - resume_offset);
+        new_exif = ExifSplicer.parse(ByteBuffer.wrap(new_jpeg));
+        assertNotNull(new_exif);
+        assertFalse(new_exif.hasThumbnail());
+        assertEquals("TestMake", new_exif.getAttribute("Make"));
+        assertEquals("6", new_exif.getAttribute("Orientation"));
+        assertEquals("2020:01:02 03:04:05", new_exif.getAttribute("DateTimeOriginal"));
+        assertEquals("3000", new_exif.getAttribute("PixelXDimension"));
+        assertEquals("4000", new_exif.getAttribute("PixelYDimension"));
+
+        // no exif segment
+        byte [] no_exif = {(byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xDA, 0, 2, (byte)0xFF, (byte)0xD9};
+        assertNull(ExifSplicer.parse(ByteBuffer.wrap(no_exif)));
+        // not a jpeg
+        assertNull(ExifSplicer.parse(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5})));
+        // invalid offset
+        byte [] invalid = createExifJpeg();
+        invalid[12 + 4] = 100;
+        assertNull(ExifSplicer.parse(ByteBuffer.wrap(invalid)));
+
+        // values that don't fit in a single segment
+        ExifSplicer large_exif = ExifSplicer.parse(ByteBuffer.wrap(jpeg));
+        assertNotNull(large_exif);
+        StringBuilder large_string = new StringBuilder();
+        for(int i=0;i<70000;i++) {
+            large_string.append('a');
+        }
+        large_exif.setAttribute("Artist", large_string.toString());
+        assertNull(large_exif.getHeader());
+    }
+
     @Test
     public void testImageSaverRequestCost() {
         Log.d(TAG, "testImageSaverRequestCost");
@@ -563,6 +1054,165 @@ public class UnitTest {
 
     }
 
+    @Test
+    public void testImageSaverPipelineWorkers() {
+        Log.d(TAG, "testImageSaverPipelineWorkers");
+
+        int [] n_workers = ImageSaver.computePipelineWorkers(8, 64);
+        assertEquals(3, n_workers.length);
+        for(int n : n_workers) {
+            assertEquals(1, n);
+        }
+        assertEquals(2, ImageSaver.computePipelineMaxInFlight(n_workers));
+
+        n_workers = ImageSaver.computePipelineWorkers(1, 512);
+        for(int n : n_workers) {
+            assertEquals(1, n);
+        }
+
+        n_workers = ImageSaver.computePipelineWorkers(8, 512);
+        for(int n : n_workers) {
+            assertEquals(2, n);
+        }
+        assertEquals(3, ImageSaver.computePipelineMaxInFlight(n_workers));
+    }
+
+    /** Tests that items leave the final stage of ImageSaverPipeline in submission order, even
+     *  though they're processed out of order by the parallel stages.
+     */
+    @Test
+    public void testImageSaverPipelineOrdering() throws InterruptedException {
+        Log.d(TAG, "testImageSaverPipelineOrdering");
+
+        final int n_items = 40;
+        final int max_in_flight = 4;
+        final Random random = new Random(42);
+        final int [] delays = new int[n_items];
+        for(int i=0;i<n_items;i++) {
+            delays[i] = random.nextInt(5);
+        }
+        final List<Integer> output = Collections.synchronizedList(new ArrayList<Integer>());
+        ImageSaverPipeline.Handler<Integer> slow_handler = new ImageSaverPipeline.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                try {
+                    Thread.sleep(delays[item]);
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        List<ImageSaverPipeline.Stage<Integer>> stages = new ArrayList<>();
+        stages.add(new ImageSaverPipeline.Stage<>("decode", 3, slow_handler));
+        stages.add(new ImageSaverPipeline.Stage<>("encode", 2, slow_handler));
+        stages.add(new ImageSaverPipeline.Stage<>("write", 1, new ImageSaverPipeline.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                synchronized( output ) {
+                    output.add(item);
+                    output.notifyAll();
+                }
+            }
+        }));
+        ImageSaverPipeline<Integer> pipeline = new ImageSaverPipeline<>(stages, max_in_flight);
+        try {
+            for(int i=0;i<n_items;i++) {
+                pipeline.submit(i);
+                // submit() should block rather than let more than max_in_flight items into the pipeline
+                assertTrue(i+1 - output.size() <= max_in_flight);
+            }
+            synchronized( output ) {
+                while( output.size() < n_items ) {
+                    output.wait(10000);
+                }
+            }
+
+            assertEquals(n_items, output.size());
+            for(int i=0;i<n_items;i++) {
+                assertEquals(i, (int)output.get(i));
+            }
+
+            // the stats for the final stage are updated just after the handler returns
+            List<ImageSaverPipeline.StageStats> stats = pipeline.getStats();
+            for(int i=0;i<100 && stats.get(2).n_processed < n_items;i++) {
+                Thread.sleep(10);
+                stats = pipeline.getStats();
+            }
+            assertEquals(3, stats.size());
+            assertEquals("decode", stats.get(0).name);
+            assertEquals(3, stats.get(0).n_workers);
+            assertEquals("write", stats.get(2).name);
+            assertEquals(1, stats.get(2).n_workers);
+            for(ImageSaverPipeline.StageStats stage_stats : stats) {
+                assertEquals(0, stage_stats.queue_depth);
+                assertEquals(n_items, stage_stats.n_processed);
+                assertTrue(stage_stats.max_time_ns >= 0);
+            }
+            assertTrue(stats.get(0).total_time_ns > 0);
+        }
+        finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /** Tests that an exception from a stage's handler doesn't stop ImageSaverPipeline from
+     *  processing later items.
+     */
+    @Test
+    public void testImageSaverPipelineException() throws InterruptedException {
+        Log.d(TAG, "testImageSaverPipelineException");
+
+        final int n_items = 10;
+        final List<Integer> output = Collections.synchronizedList(new ArrayList<Integer>());
+        List<ImageSaverPipeline.Stage<Integer>> stages = new ArrayList<>();
+        stages.add(new ImageSaverPipeline.Stage<>("decode", 1, new ImageSaverPipeline.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                if( item == 6 )
+                    throw new OutOfMemoryError("test decode out of memory: " + item);
+                else if( item % 3 == 0 )
+                    throw new RuntimeException("test decode failure: " + item);
+            }
+        }));
+        stages.add(new ImageSaverPipeline.Stage<>("write", 1, new ImageSaverPipeline.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                if( item % 4 == 0 )
+                    throw new RuntimeException("test write failure: " + item);
+                synchronized( output ) {
+                    output.add(item);
+                    output.notifyAll();
+                }
+            }
+        }));
+        ImageSaverPipeline<Integer> pipeline = new ImageSaverPipeline<>(stages, 2);
+        try {
+            // if a worker thread was stopped by an exception, submit() would block forever
+            for(int i=0;i<n_items;i++) {
+                pipeline.submit(i);
+            }
+            final int n_expected = n_items - 3; // items 0, 4 and 8 fail in the write stage
+            synchronized( output ) {
+                for(int i=0;i<10 && output.size() < n_expected;i++) {
+                    output.wait(1000);
+                }
+            }
+            // items that failed in the decode stage are still passed on to the write stage
+            assertEquals(Arrays.asList(1, 2, 3, 5, 6, 7, 9), output);
+
+            // failures are recorded rather than silently dropped
+            List<ImageSaverPipeline.StageStats> stats = pipeline.getStats();
+            assertEquals(10, stats.get(0).n_processed);
+            assertEquals(4, stats.get(0).n_failed); // items 0, 3, 6 and 9
+            assertEquals(3, stats.get(1).n_failed); // items 0, 4 and 8
+            assertNotNull(pipeline.getLastFailure());
+        }
+        finally {
+            pipeline.shutdown();
+        }
+    }
+
     private static class float4 {
         final float r, g, b, a;
 
@@ -700,6 +1350,807 @@ public class UnitTest {
 
     }
 
+    private static int greyARGB(int value) {
+        return 0xff000000 | (value << 16) | (value << 8) | value;
+    }
+
+    /** Runs JavaHDRMerger on a single pixel, with no offsets.
+     */
+    private static int mergeHDRPixel(int [] pixels, float [] parameter_A, float [] parameter_B, JavaHDRMerger.TonemapParameters tonemap_parameters) {
+        int n_bitmaps = pixels.length;
+        int [][] inputs = new int[n_bitmaps][];
+        for(int i=0;i<n_bitmaps;i++) {
+            inputs[i] = new int[]{pixels[i]};
+        }
+        int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2;
+        int [] output = new int[1];
+        new JavaHDRMerger().merge(inputs, 1, 1, base_bitmap, n_bitmaps != 3, new int[n_bitmaps], new int[n_bitmaps], parameter_A, parameter_B, tonemap_parameters, output);
+        return output[0];
+    }
+
+    /** Tests that JavaHDRMerger leaves the image unchanged when merging identical images with
+     *  identity response functions and clamp tonemapping.
+     */
+    @Test
+    public void testJavaHDRMergeIdentity() {
+        Log.d(TAG, "testJavaHDRMergeIdentity");
+
+        JavaHDRMerger.TonemapParameters clamp = new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 11.2f);
+        Random random = new Random(0);
+        for(int n_bitmaps=2;n_bitmaps<=JavaHDRMerger.max_bitmaps_c;n_bitmaps++) {
+            float [] parameter_A = new float[n_bitmaps];
+            float [] parameter_B = new float[n_bitmaps];
+            for(int i=0;i<n_bitmaps;i++) {
+                parameter_A[i] = 1.0f;
+            }
+            for(int test=0;test<256+100;test++) {
+                // test every grey level, then some random colours
+                int color = test < 256 ? greyARGB(test) : (0xff000000 | random.nextInt(0x1000000));
+                int [] pixels = new int[n_bitmaps];
+                for(int i=0;i<n_bitmaps;i++) {
+                    pixels[i] = color;
+                }
+                assertEquals(color, mergeHDRPixel(pixels, parameter_A, parameter_B, clamp));
+            }
+        }
+    }
+
+    /** Tests JavaHDRMerger against reference values computed by hand from the process_hdr.rs
+     *  algorithm.
+     */
+    @Test
+    public void testJavaHDRMergeReference() {
+        Log.d(TAG, "testJavaHDRMergeReference");
+
+        final float [] identity_A = {1.0f, 1.0f, 1.0f};
+        final float [] identity_B = {0.0f, 0.0f, 0.0f};
+        int [] grey100 = {greyARGB(100), greyARGB(100), greyARGB(100)};
+
+        // clamp, with a dark base pixel so we take the value from the bright image, with deghosting:
+        // neighbour = 0.5*100 = 50, L = 3*30^2 = 2700, ghost_weight = 2700/(2700+2000),
+        // result = ghost_weight*20 + (1-ghost_weight)*50 = 32.77
+        int result = mergeHDRPixel(new int[]{greyARGB(20), greyARGB(20), greyARGB(100)}, new float[]{1.0f, 1.0f, 0.5f}, identity_B,
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 11.2f));
+        assertEquals(greyARGB(33), result);
+
+        // Reinhard: 2 * 255 * 100 / (255 + 100) = 143.66
+        result = mergeHDRPixel(grey100, identity_A, identity_B,
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 255.0f, 2.0f, 11.2f));
+        assertEquals(greyARGB(144), result);
+
+        // exponential: 255 * (1 - exp(-1.2 * 100 / 255)) = 95.72
+        result = mergeHDRPixel(grey100, identity_A, identity_B,
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL, 255.0f, 1.0f, 11.2f));
+        assertEquals(greyARGB(96), result);
+
+        // ACES: x = 100/255, 255 * x(2.51x + 0.03) / (x(2.43x + 0.59) + 0.14) = 136.2
+        result = mergeHDRPixel(grey100, identity_A, identity_B,
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_ACES, 255.0f, 1.0f, 11.2f));
+        assertEquals(greyARGB(136), result);
+
+        // FU2: W is chosen so that the maximum value maps to 255
+        result = mergeHDRPixel(new int[]{greyARGB(255), greyARGB(255), greyARGB(255)}, identity_A, identity_B,
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_FU2, 255.0f, 1.0f, JavaHDRMerger.fu2_exposure_bias_c * 255.0f));
+        assertEquals(greyARGB(255), result);
+
+        // hdr_n with 5 images and an overexposed base pixel: weight = 1 - 0.99*(122.5-96)/(127.5-96) = 0.1671,
+        // neighbour = 0.5*150 = 75, deghosted to 246.27 (L = 3*175^2), result = 0.1671*250 + 0.8329*246.27 = 246.89
+        result = mergeHDRPixel(new int[]{greyARGB(60), greyARGB(150), greyARGB(250), greyARGB(255), greyARGB(255)},
+                new float[]{4.0f, 0.5f, 1.0f, 0.5f, 0.25f}, new float[5],
+                new JavaHDRMerger.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 11.2f));
+        assertEquals(greyARGB(247), result);
+    }
+
+    /** Tests that JavaHDRMerger gives identical results whether run single threaded, in parallel,
+     *  or a strip at a time.
+     */
+    @Test
+    public void testJavaHDRMergeTiled() {
+        Log.d(TAG, "testJavaHDRMergeTiled");
+
+        final int width = 97;
+        final int height = 203;
+        Random random = new Random(0);
+        JavaHDRMerger single_merger = new JavaHDRMerger(new ForkJoinPool(1));
+        JavaHDRMerger parallel_merger = new JavaHDRMerger();
+        for(int n_bitmaps=2;n_bitmaps<=JavaHDRMerger.max_bitmaps_c;n_bitmaps++) {
+            for(HDRProcessor.TonemappingAlgorithm algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+                Log.d(TAG, "n_bitmaps: " + n_bitmaps + " algorithm: " + algorithm);
+                int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2;
+                int [][] inputs = new int[n_bitmaps][width*height];
+                int [] offsets_x = new int[n_bitmaps];
+                int [] offsets_y = new int[n_bitmaps];
+                float [] parameter_A = new float[n_bitmaps];
+                float [] parameter_B = new float[n_bitmaps];
+                for(int i=0;i<n_bitmaps;i++) {
+                    for(int j=0;j<width*height;j++) {
+                        inputs[i][j] = 0xff000000 | random.nextInt(0x1000000);
+                    }
+                    if( i != base_bitmap ) {
+                        offsets_x[i] = random.nextInt(21) - 10;
+                        offsets_y[i] = random.nextInt(21) - 10;
+                    }
+                    parameter_A[i] = (float)Math.pow(2.0, base_bitmap - i);
+                    parameter_B[i] = i == base_bitmap ? 0.0f : random.nextFloat();
+                }
+                JavaHDRMerger.TonemapParameters tonemap_parameters = new JavaHDRMerger.TonemapParameters(algorithm, 200.0f, 1.5f, 4.0f);
+
+                int [] single_output = new int[width*height];
+                single_merger.merge(inputs, width, height, base_bitmap, true, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, single_output);
+                int [] parallel_output = new int[width*height];
+                parallel_merger.merge(inputs, width, height, base_bitmap, true, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, parallel_output);
+                assertArrayEquals(single_output, parallel_output);
+
+                // now process in strips, passing only the rows needed for each strip
+                final int strip_height = 50;
+                int [] strip_output = new int[width*strip_height];
+                for(int y_start=0;y_start<height;y_start+=strip_height) {
+                    int y_end = Math.min(y_start+strip_height, height);
+                    int [][] strip_inputs = new int[n_bitmaps][];
+                    int [] inputs_y0 = new int[n_bitmaps];
+                    for(int i=0;i<n_bitmaps;i++) {
+                        int y0 = Math.max(y_start + offsets_y[i], 0);
+                        int y1 = Math.min(y_end + offsets_y[i], height);
+                        inputs_y0[i] = y0;
+                        strip_inputs[i] = new int[width*Math.max(y1-y0, 0)];
+                        if( y1 > y0 ) {
+                            System.arraycopy(inputs[i], y0*width, strip_inputs[i], 0, (y1-y0)*width);
+                        }
+                    }
+                    parallel_merger.mergeRows(strip_inputs, inputs_y0, width, height, base_bitmap, true, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, y_start, y_end, strip_output);
+                    for(int j=0;j<(y_end-y_start)*width;j++) {
+                        assertEquals(single_output[y_start*width + j], strip_output[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Creates a test image with detail at a range of scales, such that shifting by (shift_x, shift_y)
+     *  gives the same image as image 0: i.e., pixel (x+shift_x, y+shift_y) of the result equals
+     *  pixel (x, y) of image 0 (outside of the borders).
+     */
+    private static int [] createAlignTestImage(int width, int height, int shift_x, int shift_y, float brightness) {
+        final int pattern_size = 512;
+        Random random = new Random(0); // same pattern for each call
+        float [] pattern = new float[pattern_size*pattern_size];
+        for(int block_size=64;block_size>=2;block_size/=2) {
+            int n_blocks = pattern_size/block_size;
+            float [] values = new float[n_blocks*n_blocks];
+            for(int i=0;i<values.length;i++) {
+                values[i] = random.nextFloat() * block_size;
+            }
+            for(int y=0;y<pattern_size;y++) {
+                for(int x=0;x<pattern_size;x++) {
+                    pattern[y*pattern_size+x] += values[(y/block_size)*n_blocks + x/block_size];
+                }
+            }
+        }
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int px = Math.max(0, Math.min(pattern_size-1, x - shift_x + 100));
+                int py = Math.max(0, Math.min(pattern_size-1, y - shift_y + 100));
+                int value = Math.min(255, (int)(pattern[py*pattern_size+px] * brightness));
+                pixels[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | (value/2);
+            }
+        }
+        return pixels;
+    }
+
+    /** Tests that JavaMTBAligner finds the offsets for shifted images.
+     */
+    @Test
+    public void testJavaMTBAlign() {
+        Log.d(TAG, "testJavaMTBAlign");
+
+        final int width = 301;
+        final int height = 233;
+        final int [] shifts_x = {0, 3, -17, 30, -1};
+        final int [] shifts_y = {0, -9, 12, 1, -30};
+        final int base_bitmap = 0;
+        JavaMTBAligner.MTB [] mtbs = new JavaMTBAligner.MTB[shifts_x.length];
+        for(int i=0;i<shifts_x.length;i++) {
+            // vary the brightness, as with HDR images
+            float brightness = 1.0f + 0.25f*i;
+            int [] pixels = createAlignTestImage(width, height, shifts_x[i], shifts_y[i], brightness);
+            // median value for the pattern is approximately 63, before scaling by brightness
+            mtbs[i] = JavaMTBAligner.createMTB(pixels, width, height, (int)(63 * brightness));
+        }
+        int [] offsets_x = new int[shifts_x.length];
+        int [] offsets_y = new int[shifts_x.length];
+        new JavaMTBAligner().align(mtbs, base_bitmap, 64, 1, offsets_x, offsets_y);
+        for(int i=0;i<shifts_x.length;i++) {
+            Log.d(TAG, i + ": offsets " + offsets_x[i] + " , " + offsets_y[i]);
+            assertEquals(shifts_x[i], offsets_x[i]);
+            assertEquals(shifts_y[i], offsets_y[i]);
+        }
+    }
+
+    /** Reference implementation of the alignment done in HDRProcessor.autoAlignment() with
+     *  create_mtb.rs and align_mtb.rs, sampling every step_size'th pixel of the full resolution MTBs.
+     */
+    private static void alignMTBReference(int [][] images, int width, int height, int [] median_values, int base_bitmap, int initial_step_size, int min_step_size, int [] offsets_x, int [] offsets_y) {
+        int [][] mtbs = new int[images.length][width*height];
+        for(int i=0;i<images.length;i++) {
+            for(int j=0;j<width*height;j++) {
+                int color = images[i][j];
+                int value = Math.max((color >> 16) & 0xff, Math.max((color >> 8) & 0xff, color & 0xff));
+                if( Math.abs(value - median_values[i]) <= 4 )
+                    mtbs[i][j] = 127;
+                else if( value <= median_values[i] )
+                    mtbs[i][j] = 0;
+                else
+                    mtbs[i][j] = 255;
+            }
+        }
+        for(int i=0;i<images.length;i++) {
+            if( i == base_bitmap )
+                continue;
+            int step_size = initial_step_size;
+            while( step_size > min_step_size ) {
+                step_size /= 2;
+                int [] errors = new int[9];
+                for(int y=0;y<(height/step_size)*step_size;y+=step_size) {
+                    for(int x=0;x<(width/step_size)*step_size;x+=step_size) {
+                        int x1 = x + offsets_x[i];
+                        int y1 = y + offsets_y[i];
+                        if( x1 >= step_size && x1 < width-step_size && y1 >= step_size && y1 < height-step_size ) {
+                            int pixel0 = mtbs[base_bitmap][y*width+x];
+                            int c=0;
+                            for(int dy=-1;dy<=1;dy++) {
+                                for(int dx=-1;dx<=1;dx++) {
+                                    int pixel1 = mtbs[i][(y1+dy*step_size)*width + x1+dx*step_size];
+                                    if( pixel0 != pixel1 && pixel0 != 127 && pixel1 != 127 )
+                                        errors[c]++;
+                                    c++;
+                                }
+                            }
+                        }
+                    }
+                }
+                int best_id = 0;
+                for(int j=1;j<9;j++) {
+                    if( errors[j] < errors[best_id] )
+                        best_id = j;
+                }
+                offsets_x[i] += (best_id % 3 - 1) * step_size;
+                offsets_y[i] += (best_id / 3 - 1) * step_size;
+            }
+        }
+    }
+
+    /** Tests that JavaMTBAligner gives identical results to the reference implementation of the
+     *  RenderScript alignment, whether run single threaded or in parallel, including for noisy images
+     *  where the offsets aren't well defined.
+     */
+    @Test
+    public void testJavaMTBAlignReference() {
+        Log.d(TAG, "testJavaMTBAlignReference");
+
+        Random random = new Random(0);
+        JavaMTBAligner single_aligner = new JavaMTBAligner(new ForkJoinPool(1));
+        JavaMTBAligner parallel_aligner = new JavaMTBAligner();
+        for(int test=0;test<20;test++) {
+            int width = 20 + random.nextInt(300);
+            int height = 20 + random.nextInt(300);
+            int n_images = 2 + random.nextInt(4);
+            int base_bitmap = random.nextInt(n_images);
+            int initial_step_size = 1 << random.nextInt(7);
+            int min_step_size = random.nextBoolean() ? 1 : 2;
+            boolean noise = test % 2 == 1;
+            Log.d(TAG, "test " + test + ": " + width + "x" + height + " n_images: " + n_images + " initial_step_size: " + initial_step_size + " min_step_size: " + min_step_size);
+            int [][] images = new int[n_images][];
+            int [] median_values = new int[n_images];
+            JavaMTBAligner.MTB [] mtbs = new JavaMTBAligner.MTB[n_images];
+            for(int i=0;i<n_images;i++) {
+                images[i] = createAlignTestImage(width, height, random.nextInt(31) - 15, random.nextInt(31) - 15, 1.0f);
+                if( noise ) {
+                    for(int j=0;j<images[i].length;j++) {
+                        if( random.nextInt(4) == 0 )
+                            images[i][j] = 0xff000000 | random.nextInt(0x1000000);
+                    }
+                }
+                median_values[i] = 50 + random.nextInt(30);
+                mtbs[i] = JavaMTBAligner.createMTB(images[i], width, height, median_values[i]);
+            }
+
+            int [] exp_offsets_x = new int[n_images];
+            int [] exp_offsets_y = new int[n_images];
+            alignMTBReference(images, width, height, median_values, base_bitmap, initial_step_size, min_step_size, exp_offsets_x, exp_offsets_y);
+
+            int [] offsets_x = new int[n_images];
+            int [] offsets_y = new int[n_images];
+            single_aligner.align(mtbs, base_bitmap, initial_step_size, min_step_size, offsets_x, offsets_y);
+            assertArrayEquals(exp_offsets_x, offsets_x);
+            assertArrayEquals(exp_offsets_y, offsets_y);
+
+            offsets_x = new int[n_images];
+            offsets_y = new int[n_images];
+            parallel_aligner.align(mtbs, base_bitmap, initial_step_size, min_step_size, offsets_x, offsets_y);
+            assertArrayEquals(exp_offsets_x, offsets_x);
+            assertArrayEquals(exp_offsets_y, offsets_y);
+        }
+    }
+
+    /** Creates an image of randomly placed (possibly overlapping) rectangles, optionally with noise.
+     */
+    private static int [] createFeatureTestImage(Random random, int width, int height, int n_rects, boolean noise) {
+        int [] pixels = new int[width*height];
+        Arrays.fill(pixels, 0xff404040);
+        for(int i=0;i<n_rects;i++) {
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = Math.min(width, x0 + 4 + random.nextInt(width/4+1));
+            int y1 = Math.min(height, y0 + 4 + random.nextInt(height/4+1));
+            int color = 0xff000000 | random.nextInt(0x1000000);
+            for(int y=y0;y<y1;y++) {
+                Arrays.fill(pixels, y*width+x0, y*width+x1, color);
+            }
+        }
+        if( noise ) {
+            for(int i=0;i<pixels.length;i++) {
+                if( random.nextInt(8) == 0 )
+                    pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+            }
+        }
+        return pixels;
+    }
+
+    /** Reference implementation of feature_detector.rs/create_greyscale(), compute_derivatives() and
+     *  corner_detector(), written to follow the RenderScript as directly as possible.
+     */
+    private static float [] featureStrengthReference(int [] pixels, int width, int height) {
+        int [] grey = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            int color = pixels[i];
+            grey[i] = (int)(0.3*((color >> 16) & 0xff) + 0.59*((color >> 8) & 0xff) + 0.11*(color & 0xff));
+        }
+        int [] ix = new int[width*height];
+        int [] iy = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int dx = 0, dy = 0;
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    dx = Math.min(Math.max((grey[y*width+x+1] - grey[y*width+x-1])/2, -127), 128) + 127;
+                    dy = Math.min(Math.max((grey[(y+1)*width+x] - grey[(y-1)*width+x])/2, -127), 128) + 127;
+                }
+                ix[y*width+x] = dx;
+                iy[y*width+x] = dy;
+            }
+        }
+        final int radius = 2;
+        final int [] weights = {1, 4, 6, 4, 1};
+        float [] strength = new float[width*height];
+        for(int y=radius+1;y<height-radius-1;y++) {
+            for(int x=radius+1;x<width-radius-1;x++) {
+                long h00 = 0, h01 = 0, h11 = 0;
+                for(int cy=y-radius;cy<=y+radius;cy++) {
+                    for(int cx=x-radius;cx<=x+radius;cx++) {
+                        int dx = ix[cy*width+cx] - 127;
+                        int dy = iy[cy*width+cx] - 127;
+                        int weight = weights[2+cx-x] * weights[2+cy-y];
+                        h00 += weight*dx*dx;
+                        h01 += weight*dx*dy;
+                        h11 += weight*dy*dy;
+                    }
+                }
+                double det_H = (double)h00*h11 - (double)h01*h01;
+                double tr_H = h00 + h11;
+                strength[y*width+x] = (float)(det_H - 0.06*tr_H*tr_H);
+            }
+        }
+        return strength;
+    }
+
+    /** Reference implementation of the corner selection done by JavaFeatureDetector.detect(): all
+     *  the local maxima of each chunk (as found by feature_detector.rs/local_maximum()) are sorted by
+     *  strength, and the strongest are kept.
+     */
+    private static int [] detectFeaturesReference(float [] strength, int width, int height, int n_y_chunks, int max_corners, float min_threshold, int border) {
+        List<Integer> corners = new ArrayList<>();
+        for(int cy=0;cy<n_y_chunks;cy++) {
+            List<Integer> chunk_corners = new ArrayList<>();
+            for(int y=Math.max((cy*height)/n_y_chunks, border);y<Math.min(((cy+1)*height)/n_y_chunks, height-border);y++) {
+                for(int x=border;x<width-border;x++) {
+                    float value = strength[y*width+x];
+                    if( value < min_threshold || x < 2 || x >= width-2 || y < 2 || y >= height-2 )
+                        continue;
+                    boolean is_max = true;
+                    for(int dy=-2;dy<=2 && is_max;dy++) {
+                        for(int dx=-2;dx<=2 && is_max;dx++) {
+                            if( (dx != 0 || dy != 0) && !(value > strength[(y+dy)*width+x+dx]) )
+                                is_max = false;
+                        }
+                    }
+                    if( is_max )
+                        chunk_corners.add(y*width+x);
+                }
+            }
+            Collections.sort(chunk_corners, (a, b) -> {
+                int c = Float.compare(strength[b], strength[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            });
+            if( chunk_corners.size() > max_corners )
+                chunk_corners.subList(max_corners, chunk_corners.size()).clear();
+            Collections.sort(chunk_corners);
+            corners.addAll(chunk_corners);
+        }
+        int [] result = new int[corners.size()];
+        for(int i=0;i<result.length;i++) {
+            result[i] = corners.get(i);
+        }
+        return result;
+    }
+
+    /** Tests that JavaFeatureDetector gives identical corner strengths and corners to the reference
+     *  implementation, whether run single threaded or in parallel. Note that the reference
+     *  implementation follows the same algorithm, so this mainly checks the optimised and parallel
+     *  code paths - see testJavaFeatureDetectorStrength() for checks against values computed by hand,
+     *  and testPanoramaJavaFeatureDetector in InstrumentedTest for a comparison with the
+     *  RenderScript detector.
+     */
+    @Test
+    public void testJavaFeatureDetectorReference() {
+        Log.d(TAG, "testJavaFeatureDetectorReference");
+
+        Random random = new Random(0);
+        JavaFeatureDetector single_detector = new JavaFeatureDetector(new ForkJoinPool(1));
+        JavaFeatureDetector parallel_detector = new JavaFeatureDetector();
+        for(int test=0;test<20;test++) {
+            int width = 8 + random.nextInt(400);
+            int height = 8 + random.nextInt(400);
+            int n_y_chunks = 1 + random.nextInt(3);
+            int max_corners = 1 + random.nextInt(150);
+            int border = random.nextInt(5);
+            boolean noise = test % 2 == 1;
+            Log.d(TAG, "test " + test + ": " + width + "x" + height + " n_y_chunks: " + n_y_chunks + " max_corners: " + max_corners + " border: " + border);
+            int [] pixels = createFeatureTestImage(random, width, height, 20, noise);
+
+            float [] exp_strength = featureStrengthReference(pixels, width, height);
+            assertArrayEquals(exp_strength, single_detector.computeStrength(pixels, width, height), 0.0f);
+            assertArrayEquals(exp_strength, parallel_detector.computeStrength(pixels, width, height), 0.0f);
+
+            int [] exp_corners = detectFeaturesReference(exp_strength, width, height, n_y_chunks, max_corners, 1250000.0f, border);
+            assertArrayEquals(exp_corners, single_detector.detect(pixels, width, height, n_y_chunks, max_corners, 1250000.0f, border));
+            assertArrayEquals(exp_corners, parallel_detector.detect(pixels, width, height, n_y_chunks, max_corners, 1250000.0f, border));
+        }
+    }
+
+    /** Tests JavaFeatureDetector.computeStrength() against the Harris response computed by hand for
+     *  ramps (where the derivatives are constant), and checks that the strength is invariant under
+     *  transposing and mirroring the image.
+     */
+    @Test
+    public void testJavaFeatureDetectorStrength() {
+        Log.d(TAG, "testJavaFeatureDetectorStrength");
+
+        JavaFeatureDetector detector = new JavaFeatureDetector();
+        // 17 is chosen so that the greyscale conversion is exact for every value of the ramp
+        final int step = 17;
+        final int size = 16; // so the ramp goes from 0 to 255
+        final int border = 3; // radius of the window, plus 1 for the derivatives
+        int [] ramp_x = new int[size*size];
+        int [] ramp_y = new int[size*size];
+        int [] flat = new int[size*size];
+        for(int y=0;y<size;y++) {
+            for(int x=0;x<size;x++) {
+                ramp_x[y*size+x] = 0xff000000 | (step*x) * 0x010101;
+                ramp_y[y*size+x] = 0xff000000 | (step*y) * 0x010101;
+                flat[y*size+x] = 0xff808080;
+            }
+        }
+        // the derivative along the ramp is the step, and 0 across it; the weights of the 5x5 window
+        // sum to 16*16 = 256, so H = [[256*step^2, 0], [0, 0]], giving det(H) = 0 and
+        // strength = -0.06 * (256*step^2)^2
+        final double h = 256.0*step*step;
+        final float ramp_strength = (float)(-0.06*h*h);
+        float [] strength_x = detector.computeStrength(ramp_x, size, size);
+        float [] strength_y = detector.computeStrength(ramp_y, size, size);
+        float [] strength_flat = detector.computeStrength(flat, size, size);
+        for(int y=0;y<size;y++) {
+            for(int x=0;x<size;x++) {
+                boolean interior = x >= border && x < size-border && y >= border && y < size-border;
+                assertEquals(interior ? ramp_strength : 0.0f, strength_x[y*size+x], 0.0f);
+                assertEquals(interior ? ramp_strength : 0.0f, strength_y[y*size+x], 0.0f);
+                assertEquals(0.0f, strength_flat[y*size+x], 0.0f);
+            }
+        }
+
+        Random random = new Random(0);
+        for(int test=0;test<10;test++) {
+            int width = 8 + random.nextInt(200);
+            int height = 8 + random.nextInt(200);
+            int [] pixels = createFeatureTestImage(random, width, height, 20, test % 2 == 1);
+            int [] transposed = new int[width*height];
+            int [] mirrored = new int[width*height];
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    transposed[x*height+y] = pixels[y*width+x];
+                    mirrored[y*width+(width-1-x)] = pixels[y*width+x];
+                }
+            }
+            float [] strength = detector.computeStrength(pixels, width, height);
+            float [] strength_transposed = detector.computeStrength(transposed, height, width);
+            float [] strength_mirrored = detector.computeStrength(mirrored, width, height);
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    assertEquals(strength[y*width+x], strength_transposed[x*height+y], 0.0f);
+                    assertEquals(strength[y*width+x], strength_mirrored[y*width+(width-1-x)], 0.0f);
+                }
+            }
+        }
+    }
+
+    /** Tests that JavaFeatureDetector finds the corners of rectangles, and not their edges.
+     */
+    @Test
+    public void testJavaFeatureDetectorCorners() {
+        Log.d(TAG, "testJavaFeatureDetectorCorners");
+
+        final int width = 300;
+        final int height = 200;
+        int [] pixels = new int[width*height];
+        Arrays.fill(pixels, 0xff202020);
+        final int [][] rects = {{40, 30, 120, 90}, {180, 50, 260, 150}, {60, 120, 110, 180}};
+        for(int [] rect : rects) {
+            for(int y=rect[1];y<rect[3];y++) {
+                Arrays.fill(pixels, y*width+rect[0], y*width+rect[2], 0xffe0e0e0);
+            }
+        }
+
+        int [] corners = new JavaFeatureDetector().detect(pixels, width, height, 2, 100, 1250000.0f, 3);
+        Log.d(TAG, "found " + corners.length + " corners");
+        boolean [] found = new boolean[4*rects.length];
+        for(int i=0;i<corners.length;i++) {
+            int x = corners[i] % width;
+            int y = corners[i] / width;
+            if( i > 0 )
+                assertTrue(corners[i] > corners[i-1]);
+            // every corner must be near a corner of one of the rectangles
+            boolean near = false;
+            for(int j=0;j<rects.length;j++) {
+                for(int k=0;k<4;k++) {
+                    int cx = (k % 2 == 0) ? rects[j][0] : rects[j][2];
+                    int cy = (k / 2 == 0) ? rects[j][1] : rects[j][3];
+                    if( Math.abs(x - cx) <= 2 && Math.abs(y - cy) <= 2 ) {
+                        near = true;
+                        found[4*j+k] = true;
+                    }
+                }
+            }
+            assertTrue("unexpected corner at " + x + " , " + y, near);
+        }
+        for(int i=0;i<found.length;i++) {
+            assertTrue("missed corner " + i, found[i]);
+        }
+
+        // with fewer corners allowed, we should get the strongest
+        int [] few_corners = new JavaFeatureDetector().detect(pixels, width, height, 1, 5, 1250000.0f, 3);
+        assertEquals(5, few_corners.length);
+        float [] strength = new JavaFeatureDetector().computeStrength(pixels, width, height);
+        float min_few_strength = Float.MAX_VALUE;
+        for(int corner : few_corners) {
+            min_few_strength = Math.min(min_few_strength, strength[corner]);
+        }
+        for(int corner : corners) {
+            if( Arrays.binarySearch(few_corners, corner) < 0 )
+                assertTrue(strength[corner] <= min_few_strength);
+        }
+    }
+
+    /** Reference implementation of the distance between two feature descriptors, as originally
+     *  computed for each candidate match in PanoramaProcessor.autoAlignmentByFeature().
+     */
+    private static float featureDistanceReference(int [] patches0, int index0, int [] patches1, int index1, int wid2) {
+        float fsum = 0, gsum = 0;
+        float f2sum = 0, g2sum = 0;
+        float fgsum = 0;
+        for(int j=0;j<wid2;j++) {
+            int pixel0 = patches0[index0*wid2+j];
+            int pixel1 = patches1[index1*wid2+j];
+            int value0 = (int)(0.3*((pixel0 >> 16) & 0xff) + 0.59*((pixel0 >> 8) & 0xff) + 0.11*(pixel0 & 0xff));
+            int value1 = (int)(0.3*((pixel1 >> 16) & 0xff) + 0.59*((pixel1 >> 8) & 0xff) + 0.11*(pixel1 & 0xff));
+            fsum += value0;
+            f2sum += value0*value0;
+            gsum += value1;
+            g2sum += value1*value1;
+            fgsum += value0*value1;
+        }
+        float fden = wid2*f2sum - fsum*fsum;
+        float f_recip = fden==0 ? 0.0f : 1/ fden;
+        float gden = wid2*g2sum - gsum*gsum;
+        float g_recip = gden==0 ? 0.0f : 1/ gden;
+        float fg_corr = wid2*fgsum-fsum*gsum;
+        return 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+    }
+
+    /** Tests that JavaFeatureMatcher finds the same candidate matches as an exhaustive search, in
+     *  the same order, and gives identical distances to the reference implementation, whether run
+     *  single threaded or in parallel.
+     */
+    @Test
+    public void testJavaFeatureMatcherReference() {
+        Log.d(TAG, "testJavaFeatureMatcherReference");
+
+        Random random = new Random(0);
+        JavaFeatureMatcher single_matcher = new JavaFeatureMatcher(new ForkJoinPool(1));
+        JavaFeatureMatcher parallel_matcher = new JavaFeatureMatcher();
+        for(int test=0;test<20;test++) {
+            int width = 50 + random.nextInt(2000);
+            int height = 50 + random.nextInt(2000);
+            int [] n_points = {random.nextInt(250), random.nextInt(250)};
+            int feature_descriptor_radius = 1 + random.nextInt(3);
+            final int wid = 2*feature_descriptor_radius+1;
+            final int wid2 = wid*wid;
+            int max_match_dist_x = test % 2 == 0 ? width : width/4;
+            int max_match_dist_y = height/16;
+            int max_match_dist2 = max_match_dist_x*max_match_dist_x + max_match_dist_y*max_match_dist_y;
+            Log.d(TAG, "test " + test + ": " + width + "x" + height + " n_points: " + n_points[0] + " , " + n_points[1] + " radius: " + feature_descriptor_radius);
+
+            int [][] points_x = new int[2][];
+            int [][] points_y = new int[2][];
+            int [][] patches = new int[2][];
+            for(int i=0;i<2;i++) {
+                points_x[i] = new int[n_points[i]];
+                points_y[i] = new int[n_points[i]];
+                patches[i] = new int[n_points[i]*wid2];
+                for(int j=0;j<n_points[i];j++) {
+                    points_x[i][j] = random.nextInt(width);
+                    points_y[i][j] = random.nextInt(height);
+                    // include some flat patches, and some patches with a small range of values
+                    int mode = random.nextInt(4);
+                    int base = random.nextInt(0x1000000);
+                    for(int k=0;k<wid2;k++) {
+                        int color = mode == 0 ? base : mode == 1 ? base ^ random.nextInt(4) : random.nextInt(0x1000000);
+                        patches[i][j*wid2+k] = 0xff000000 | color;
+                    }
+                }
+            }
+
+            JavaFeatureMatcher.Candidates candidates = JavaFeatureMatcher.findCandidates(points_x[0], points_y[0], points_x[1], points_y[1], max_match_dist2);
+            List<int []> exp_candidates = new ArrayList<>();
+            for(int i=0;i<n_points[0];i++) {
+                for(int j=0;j<n_points[1];j++) {
+                    int dx = points_x[1][j] - points_x[0][i];
+                    int dy = points_y[1][j] - points_y[0][i];
+                    if( dx*dx + dy*dy < max_match_dist2 )
+                        exp_candidates.add(new int[]{i, j});
+                }
+            }
+            assertEquals(exp_candidates.size(), candidates.getNMatches());
+            float [] exp_distances = new float[exp_candidates.size()];
+            for(int i=0;i<exp_candidates.size();i++) {
+                assertEquals(exp_candidates.get(i)[0], candidates.getIndex0(i));
+                assertEquals(exp_candidates.get(i)[1], candidates.getIndex1(i));
+                exp_distances[i] = featureDistanceReference(patches[0], candidates.getIndex0(i), patches[1], candidates.getIndex1(i), wid2);
+            }
+
+            JavaFeatureMatcher.Descriptors descriptors0 = JavaFeatureMatcher.createDescriptors(patches[0], n_points[0], feature_descriptor_radius);
+            JavaFeatureMatcher.Descriptors descriptors1 = JavaFeatureMatcher.createDescriptors(patches[1], n_points[1], feature_descriptor_radius);
+            assertArrayEquals(exp_distances, single_matcher.computeDistances(candidates, descriptors0, descriptors1), 0.0f);
+            assertArrayEquals(exp_distances, parallel_matcher.computeDistances(candidates, descriptors0, descriptors1), 0.0f);
+        }
+    }
+
+    /** Returns the 3x3 matrix (stored by rows) for a rotation by angle radians about the axis
+     *  (0=x, 1=y, 2=z).
+     */
+    private static float [] gyroRotationMatrix(int axis, double angle) {
+        float c = (float)Math.cos(angle);
+        float s = (float)Math.sin(angle);
+        int i = (axis+1) % 3;
+        int j = (axis+2) % 3;
+        float [] matrix = new float[9];
+        matrix[axis*3+axis] = 1.0f;
+        matrix[i*3+i] = c;
+        matrix[i*3+j] = -s;
+        matrix[j*3+i] = s;
+        matrix[j*3+j] = c;
+        return matrix;
+    }
+
+    private static float [] gyroMultiply(float [] a, float [] b) {
+        float [] result = new float[9];
+        for(int i=0;i<3;i++) {
+            for(int j=0;j<3;j++) {
+                for(int k=0;k<3;k++) {
+                    result[i*3+j] += a[i*3+k]*b[k*3+j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Tests the priors that PanoramaGyroPrior computes for panorama alignment, for a sweep to the
+     *  right where each image is rotated from the ideal step in a different way, and that the
+     *  same priors are computed if the device is held in landscape.
+     */
+    @Test
+    public void testPanoramaGyroPrior() {
+        Log.d(TAG, "testPanoramaGyroPrior");
+
+        final int bitmap_width = 1500;
+        final double camera_angle = Math.toRadians(60.0);
+        final float pics_per_screen = 3.0f;
+        final double step = camera_angle/pics_per_screen;
+        final double pixels_per_radian = bitmap_width/camera_angle;
+        final double error = Math.toRadians(1.0);
+        // when held upright in portrait, sweeping to the right is a negative rotation about the device's y axis
+        List<float []> matrices = new ArrayList<>();
+        float [] matrix = gyroRotationMatrix(1, 0.2);
+        matrices.add(matrix);
+        // rotated too far to the right
+        matrix = gyroMultiply(matrix, gyroRotationMatrix(1, -(step+error)));
+        matrices.add(matrix);
+        // rotated upwards
+        matrix = gyroMultiply(matrix, gyroMultiply(gyroRotationMatrix(1, -step), gyroRotationMatrix(0, error)));
+        matrices.add(matrix);
+        // rotated anticlockwise
+        matrix = gyroMultiply(matrix, gyroMultiply(gyroRotationMatrix(1, -step), gyroRotationMatrix(2, error)));
+        matrices.add(matrix);
+        // rotated much too far
+        matrix = gyroMultiply(matrix, gyroRotationMatrix(1, -3.0*step));
+        matrices.add(matrix);
+        // exactly the ideal step
+        matrix = gyroMultiply(matrix, gyroRotationMatrix(1, -step));
+        matrices.add(matrix);
+
+        PanoramaGyroPrior [] priors = PanoramaGyroPrior.computePriors(matrices, bitmap_width, camera_angle, pics_per_screen, Math.toRadians(3.0));
+        assertNotNull(priors);
+        assertEquals(matrices.size(), priors.length);
+        // the combined rotations don't exactly separate into the individual errors, as the
+        // rotations don't commute
+        final float tol = (float)(0.1*error*pixels_per_radian);
+        final float rotation_tol = (float)(0.1*error);
+        assertNull(priors[0]);
+        assertEquals(error*pixels_per_radian, priors[1].offset_x, tol);
+        assertEquals(0.0f, priors[1].offset_y, tol);
+        assertEquals(0.0f, priors[1].rotation, rotation_tol);
+        assertEquals(0.0f, priors[2].offset_x, tol);
+        assertEquals(-error*pixels_per_radian, priors[2].offset_y, tol);
+        assertEquals(0.0f, priors[2].rotation, rotation_tol);
+        assertEquals(0.0f, priors[3].offset_x, tol);
+        assertEquals(0.0f, priors[3].offset_y, tol);
+        assertEquals(-error, priors[3].rotation, rotation_tol);
+        assertNull(priors[4]);
+        assertEquals(0.0f, priors[5].offset_x, tol);
+        assertEquals(0.0f, priors[5].offset_y, tol);
+        assertEquals(0.0f, priors[5].rotation, rotation_tol);
+        for(int i=1;i<priors.length;i++) {
+            if( priors[i] != null )
+                assertEquals(Math.toRadians(3.0)*pixels_per_radian, priors[i].tolerance, 1.0e-3f);
+        }
+
+        // the same sweep with the device held in landscape, in either direction, or upside down
+        for(int orientation=1;orientation<4;orientation++) {
+            float [] device = gyroRotationMatrix(2, orientation*0.5*Math.PI);
+            List<float []> landscape_matrices = new ArrayList<>();
+            for(float [] m : matrices) {
+                landscape_matrices.add(gyroMultiply(m, device));
+            }
+            PanoramaGyroPrior [] landscape_priors = PanoramaGyroPrior.computePriors(landscape_matrices, bitmap_width, camera_angle, pics_per_screen, Math.toRadians(3.0));
+            assertNotNull(landscape_priors);
+            for(int i=0;i<priors.length;i++) {
+                if( priors[i] == null ) {
+                    assertNull(landscape_priors[i]);
+                }
+                else {
+                    assertEquals(priors[i].offset_x, landscape_priors[i].offset_x, 1.0e-2f);
+                    assertEquals(priors[i].offset_y, landscape_priors[i].offset_y, 1.0e-2f);
+                    assertEquals(priors[i].rotation, landscape_priors[i].rotation, 1.0e-5f);
+                }
+            }
+        }
+
+        // rotating about the viewing direction isn't a panorama sweep
+        List<float []> roll_matrices = new ArrayList<>();
+        for(int i=0;i<4;i++) {
+            roll_matrices.add(gyroRotationMatrix(2, i*step));
+        }
+        assertNull(PanoramaGyroPrior.computePriors(roll_matrices, bitmap_width, camera_angle, pics_per_screen, Math.toRadians(3.0)));
+    }
+
     @Test
     public void testFocusBracketingDistances() {
         Log.d(TAG, "testFocusBracketingDistances");
@@ -1064,4 +2515,762 @@ public class UnitTest {
         checkCameraController2ZoomRatios(0.7f, 16.0f);
         checkCameraController2ZoomRatios(0.7f, 20.0f);
     }
+
+    /** Passes a YUV_420_888 frame to the analyzer, either with planar chroma, or with interleaved
+     *  chroma (as for NV21), and with padding at the end of each row.
+     */
+    private static void analyzePreviewTestFrame(PreviewAnalyzer analyzer, int width, int height, byte [] y, byte [] u, byte [] v, boolean interleaved) {
+        final int row_padding = 16;
+        int y_row_stride = width + row_padding;
+        ByteBuffer y_plane = ByteBuffer.allocate(y_row_stride*height);
+        for(int i=0;i<height;i++) {
+            y_plane.position(i*y_row_stride);
+            y_plane.put(y, i*width, width);
+        }
+        int chroma_width = width/2;
+        int chroma_height = height/2;
+        ByteBuffer u_plane, v_plane;
+        int uv_row_stride, uv_pixel_stride;
+        if( interleaved ) {
+            uv_pixel_stride = 2;
+            uv_row_stride = width + row_padding;
+            ByteBuffer vu = ByteBuffer.allocate(uv_row_stride*chroma_height);
+            for(int i=0;i<chroma_height;i++) {
+                for(int j=0;j<chroma_width;j++) {
+                    vu.put(i*uv_row_stride + 2*j, v[i*chroma_width + j]);
+                    vu.put(i*uv_row_stride + 2*j + 1, u[i*chroma_width + j]);
+                }
+            }
+            v_plane = vu.duplicate();
+            vu.position(1);
+            u_plane = vu.slice();
+        }
+        else {
+            uv_pixel_stride = 1;
+            uv_row_stride = chroma_width + row_padding;
+            u_plane = ByteBuffer.allocate(uv_row_stride*chroma_height);
+            v_plane = ByteBuffer.allocate(uv_row_stride*chroma_height);
+            for(int i=0;i<chroma_height;i++) {
+                u_plane.position(i*uv_row_stride);
+                u_plane.put(u, i*chroma_width, chroma_width);
+                v_plane.position(i*uv_row_stride);
+                v_plane.put(v, i*chroma_width, chroma_width);
+            }
+        }
+        analyzer.analyze(y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride);
+    }
+
+    /** Tests the histograms computed by PreviewAnalyzer.
+     */
+    @Test
+    public void testPreviewAnalyzerHistogram() {
+        Log.d(TAG, "testPreviewAnalyzerHistogram");
+
+        final int width = 64;
+        final int height = 32;
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[width*height/4];
+        byte [] v = new byte[width*height/4];
+        // grey ramp
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                y[i*width+j] = (byte)(4*j);
+            }
+        }
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrameSize(width, height, 0, false);
+        for(Preview.HistogramType histogram_type : Preview.HistogramType.values()) {
+            Log.d(TAG, "histogram_type: " + histogram_type);
+            analyzer.setHistogramType(histogram_type);
+            analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+            int [] histogram = analyzer.getHistogram();
+            int n_channels = histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_RGB ? 3 : 1;
+            for(int c=0;c<n_channels;c++) {
+                for(int i=0;i<256;i++) {
+                    // for greys, all histogram types should match the luminance
+                    assertEquals(i % 4 == 0 ? height : 0, histogram[256*c + i]);
+                }
+            }
+        }
+
+        // pure red
+        Arrays.fill(y, (byte)76);
+        Arrays.fill(u, (byte)85);
+        Arrays.fill(v, (byte)255);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_RGB);
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        int [] histogram = analyzer.getHistogram();
+        assertEquals(width*height, histogram[254]);
+        assertEquals(width*height, histogram[256]);
+        assertEquals(width*height, histogram[512]);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE);
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        assertEquals(width*height, histogram[76]);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_VALUE);
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        assertEquals(width*height, histogram[254]);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_INTENSITY);
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        assertEquals(width*height, histogram[85]);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_LIGHTNESS);
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        assertEquals(width*height, histogram[127]);
+        // the histogram array should be reused
+        assertSame(histogram, analyzer.getHistogram());
+    }
+
+    /** Tests that PreviewAnalyzer gives the same results for planar and interleaved chroma.
+     */
+    @Test
+    public void testPreviewAnalyzerInterleaved() {
+        Log.d(TAG, "testPreviewAnalyzerInterleaved");
+
+        final int width = 96;
+        final int height = 54;
+        Random random = new Random(0);
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[width*height/4];
+        byte [] v = new byte[width*height/4];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrameSize(width, height, 90, false);
+        analyzer.setHistogramType(Preview.HistogramType.HISTOGRAM_TYPE_RGB);
+        analyzer.setZebraStripes(true, 200, 0xff000000, 0xffffffff);
+        analyzer.setFocusPeaking(true);
+
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        int [] histogram = analyzer.getHistogram().clone();
+        int [] zebra_stripes = analyzer.getZebraStripes().clone();
+        int [] focus_peaking = analyzer.getFocusPeaking().clone();
+        int total = 0;
+        for(int i=0;i<256;i++) {
+            total += histogram[i];
+        }
+        assertEquals(width*height, total);
+
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, true);
+        assertArrayEquals(histogram, analyzer.getHistogram());
+        assertArrayEquals(zebra_stripes, analyzer.getZebraStripes());
+        assertArrayEquals(focus_peaking, analyzer.getFocusPeaking());
+    }
+
+    /** Tests the rotation and mirroring of the zebra stripes computed by PreviewAnalyzer.
+     */
+    @Test
+    public void testPreviewAnalyzerOrientation() {
+        Log.d(TAG, "testPreviewAnalyzerOrientation");
+
+        final int width = 8;
+        final int height = 4;
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[width*height/4];
+        byte [] v = new byte[width*height/4];
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+        // single bright pixel at (1, 0)
+        y[1] = (byte)255;
+
+        final int [] rotations =         {0, 90, 180, 270, 0, 90};
+        final boolean [] mirrors =       {false, false, false, false, true, true};
+        final int [] expected_widths =   {8, 4, 8, 4, 8, 4};
+        final int [] expected_xs =       {1, 3, 6, 0, 6, 3};
+        final int [] expected_ys =       {0, 1, 3, 6, 0, 6};
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setZebraStripes(true, 250, 0xff000000, 0xffffffff);
+        for(int i=0;i<rotations.length;i++) {
+            Log.d(TAG, "rotation " + rotations[i] + " mirror " + mirrors[i]);
+            analyzer.setFrameSize(width, height, rotations[i], mirrors[i]);
+            assertEquals(expected_widths[i], analyzer.getOutputWidth());
+            assertEquals(width*height/expected_widths[i], analyzer.getOutputHeight());
+            analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+            int [] zebra_stripes = analyzer.getZebraStripes();
+            for(int j=0;j<zebra_stripes.length;j++) {
+                boolean expected = j == expected_ys[i]*expected_widths[i] + expected_xs[i];
+                assertEquals(expected, zebra_stripes[j] != 0);
+            }
+        }
+    }
+
+    /** Tests the focus peaking computed by PreviewAnalyzer.
+     */
+    @Test
+    public void testPreviewAnalyzerFocusPeaking() {
+        Log.d(TAG, "testPreviewAnalyzerFocusPeaking");
+
+        final int width = 64;
+        final int height = 16;
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[width*height/4];
+        byte [] v = new byte[width*height/4];
+        Arrays.fill(y, (byte)100);
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrameSize(width, height, 0, false);
+        analyzer.setFocusPeaking(true);
+
+        // flat frame has no edges
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        int [] focus_peaking = analyzer.getFocusPeaking();
+        for(int value : focus_peaking) {
+            assertEquals(0, value);
+        }
+
+        // vertical edge between x=31 and x=32
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                y[i*width+j] = (byte)(j < 32 ? 0 : 255);
+            }
+        }
+        analyzePreviewTestFrame(analyzer, width, height, y, u, v, false);
+        // the output array should be reused
+        assertSame(focus_peaking, analyzer.getFocusPeaking());
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                boolean expected = i > 0 && i < height-1 && ( j == 31 || j == 32 );
+                assertEquals(expected ? 0xffffffff : 0, focus_peaking[i*width+j]);
+            }
+        }
+    }
+
+    /** Creates a JPEG of a test pattern with ImageIO.
+     */
+    private static byte [] createTestJpeg(int width, int height, int type) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                int r = (255*j)/width;
+                int g = (255*i)/height;
+                int b = ((i/8 + j/8) % 2) == 0 ? 64 : 192;
+                image.setRGB(j, i, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", stream));
+        return stream.toByteArray();
+    }
+
+    private static BufferedImage decodeTestJpeg(byte [] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        return image;
+    }
+
+    /** Tests that JpegTransformer gives the same image as transforming the decoded pixels.
+     */
+    @Test
+    public void testJpegTransformer() throws IOException {
+        Log.d(TAG, "testJpegTransformer");
+
+        final int width = 64;
+        final int height = 48;
+        int [] types = new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY};
+        for(int type : types) {
+            byte [] jpeg = createTestJpeg(width, height, type);
+            BufferedImage original = decodeTestJpeg(jpeg);
+            for(JpegTransformer.Transform transform : JpegTransformer.Transform.values()) {
+                Log.d(TAG, "type " + type + " transform " + transform);
+                byte [] result = JpegTransformer.transform(jpeg, transform);
+                assertNotNull(result);
+                BufferedImage image = decodeTestJpeg(result);
+                boolean transpose = transform == JpegTransformer.Transform.TRANSPOSE || transform == JpegTransformer.Transform.TRANSVERSE ||
+                        transform == JpegTransformer.Transform.ROTATE_90 || transform == JpegTransformer.Transform.ROTATE_270;
+                assertEquals(transpose ? height : width, image.getWidth());
+                assertEquals(transpose ? width : height, image.getHeight());
+                long total_diff = 0;
+                for(int i=0;i<image.getHeight();i++) {
+                    for(int j=0;j<image.getWidth();j++) {
+                        // find the source pixel
+                        int x = j, y = i;
+                        int out_w = image.getWidth(), out_h = image.getHeight();
+                        switch( transform ) {
+                            case FLIP_H: x = out_w-1-j; break;
+                            case FLIP_V: y = out_h-1-i; break;
+                            case TRANSPOSE: x = i; y = j; break;
+                            case TRANSVERSE: x = out_h-1-i; y = out_w-1-j; break;
+                            case ROTATE_90: x = i; y = out_w-1-j; break;
+                            case ROTATE_180: x = out_w-1-j; y = out_h-1-i; break;
+                            case ROTATE_270: x = out_h-1-i; y = j; break;
+                        }
+                        int expected = original.getRGB(x, y);
+                        int actual = image.getRGB(j, i);
+                        for(int shift=0;shift<24;shift+=8) {
+                            total_diff += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                        }
+                    }
+                }
+                // allow for differences in rounding and chroma upsampling
+                double mean_diff = total_diff / (3.0*width*height);
+                Log.d(TAG, "mean_diff: " + mean_diff);
+                assertTrue(mean_diff < 1.0);
+            }
+        }
+    }
+
+    /** Tests that a JpegTransformer transform followed by its inverse leaves the coefficients unchanged.
+     */
+    @Test
+    public void testJpegTransformerInverse() throws IOException {
+        Log.d(TAG, "testJpegTransformerInverse");
+
+        byte [] jpeg = createTestJpeg(64, 48, BufferedImage.TYPE_INT_RGB);
+        byte [] expected = JpegTransformer.transform(jpeg, JpegTransformer.Transform.NONE);
+        assertNotNull(expected);
+
+        byte [] result = JpegTransformer.transform(JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_90), JpegTransformer.Transform.ROTATE_270);
+        assertArrayEquals(expected, result);
+        result = JpegTransformer.transform(JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_180), JpegTransformer.Transform.ROTATE_180);
+        assertArrayEquals(expected, result);
+        result = JpegTransformer.transform(JpegTransformer.transform(jpeg, JpegTransformer.Transform.TRANSVERSE), JpegTransformer.Transform.TRANSVERSE);
+        assertArrayEquals(expected, result);
+        result = JpegTransformer.transform(JpegTransformer.transform(jpeg, JpegTransformer.Transform.FLIP_H), JpegTransformer.Transform.FLIP_H);
+        assertArrayEquals(expected, result);
+    }
+
+    /** Tests that JpegTransformer rejects transforms that would move partial MCUs, and invalid data.
+     */
+    @Test
+    public void testJpegTransformerNotPerfect() throws IOException {
+        Log.d(TAG, "testJpegTransformerNotPerfect");
+
+        // width isn't a multiple of the MCU size (16 pixels for 4:2:0)
+        byte [] jpeg = createTestJpeg(60, 48, BufferedImage.TYPE_INT_RGB);
+        assertNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.FLIP_H));
+        assertNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_180));
+        assertNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_270));
+        assertNotNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.FLIP_V));
+        assertNotNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_90));
+        assertNotNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.TRANSPOSE));
+
+        // truncated data
+        byte [] truncated = Arrays.copyOf(jpeg, jpeg.length/2);
+        assertNull(JpegTransformer.transform(truncated, JpegTransformer.Transform.NONE));
+        assertNull(JpegTransformer.transform(new byte[16], JpegTransformer.Transform.NONE));
+    }
+
+    /** Tests JpegTransformer.replaceRegion().
+     */
+    @Test
+    public void testJpegTransformerReplaceRegion() throws IOException {
+        Log.d(TAG, "testJpegTransformerReplaceRegion");
+
+        final int width = 64;
+        final int height = 48;
+        byte [] jpeg = createTestJpeg(width, height, BufferedImage.TYPE_INT_RGB);
+        JpegTransformer.Info info = JpegTransformer.readInfo(jpeg);
+        assertNotNull(info);
+        assertEquals(width, info.width);
+        assertEquals(height, info.height);
+        assertEquals(16, info.mcu_width);
+        assertEquals(16, info.mcu_height);
+
+        // patch at the bottom right, of a flat colour
+        final int patch_x = 32;
+        final int patch_y = 32;
+        final int patch_color = 0xc04080;
+        BufferedImage patch_image = new BufferedImage(width - patch_x, height - patch_y, BufferedImage.TYPE_INT_RGB);
+        for(int i=0;i<patch_image.getHeight();i++) {
+            for(int j=0;j<patch_image.getWidth();j++) {
+                patch_image.setRGB(j, i, patch_color);
+            }
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(patch_image, "jpg", stream));
+        byte [] patch = stream.toByteArray();
+
+        byte [] result = JpegTransformer.replaceRegion(jpeg, patch, patch_x, patch_y);
+        assertNotNull(result);
+        BufferedImage original = decodeTestJpeg(jpeg);
+        BufferedImage image = decodeTestJpeg(result);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                // allow for chroma upsampling across the edge of the patch
+                boolean in_patch = j >= patch_x && i >= patch_y;
+                boolean near_edge = Math.abs(j - patch_x) <= 1 || Math.abs(i - patch_y) <= 1;
+                if( near_edge )
+                    continue;
+                int expected = in_patch ? patch_color : original.getRGB(j, i);
+                int actual = image.getRGB(j, i);
+                for(int shift=0;shift<24;shift+=8) {
+                    int diff = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                    assertTrue(diff <= (in_patch ? 4 : 0));
+                }
+            }
+        }
+
+        // not aligned to MCUs
+        assertNull(JpegTransformer.replaceRegion(jpeg, patch, 24, patch_y));
+        // outside of the image
+        assertNull(JpegTransformer.replaceRegion(jpeg, patch, 48, patch_y));
+        // different components
+        byte [] grey_patch = createTestJpeg(16, 16, BufferedImage.TYPE_BYTE_GRAY);
+        assertNull(JpegTransformer.replaceRegion(jpeg, grey_patch, 0, 0));
+    }
+
+    /** Tests replacing a region for a stamp that isn't aligned to MCUs, in the same way as
+     *  ImageSaver.stampImageRegion(): the region is expanded with JpegTransformer.Info.alignRegion(),
+     *  and the patch is the decoded region with the stamp drawn on it.
+     */
+    @Test
+    public void testJpegTransformerReplaceUnalignedRegion() throws IOException {
+        Log.d(TAG, "testJpegTransformerReplaceUnalignedRegion");
+
+        // not a whole number of MCUs, so regions at the right and bottom end in partial MCUs
+        final int width = 72;
+        final int height = 56;
+        byte [] jpeg = createTestJpeg(width, height, BufferedImage.TYPE_INT_RGB);
+        JpegTransformer.Info info = JpegTransformer.readInfo(jpeg);
+        assertNotNull(info);
+        assertEquals(16, info.mcu_width);
+        assertEquals(16, info.mcu_height);
+
+        assertArrayEquals(new int[]{16, 16, 48, 48}, info.alignRegion(20, 21, 41, 37));
+        assertArrayEquals(new int[]{0, 0, 16, 16}, info.alignRegion(-3, -1, 5, 16));
+        assertArrayEquals(new int[]{32, 32, 48, 48}, info.alignRegion(32, 32, 48, 48));
+        assertArrayEquals(new int[]{48, 48, 72, 56}, info.alignRegion(50, 50, 70, 56));
+        assertArrayEquals(new int[]{64, 48, 72, 56}, info.alignRegion(70, 50, 80, 60));
+
+        BufferedImage original = decodeTestJpeg(jpeg);
+        final int stamp_color = 0xc04080;
+        // left, top, right, bottom
+        int [][] stamps = new int[][]{{20, 21, 41, 37}, {50, 50, 70, 56}};
+        for(int [] stamp : stamps) {
+            int [] region = info.alignRegion(stamp[0], stamp[1], stamp[2], stamp[3]);
+            BufferedImage patch_image = new BufferedImage(region[2] - region[0], region[3] - region[1], BufferedImage.TYPE_INT_RGB);
+            for(int i=0;i<patch_image.getHeight();i++) {
+                for(int j=0;j<patch_image.getWidth();j++) {
+                    int x = region[0] + j;
+                    int y = region[1] + i;
+                    boolean in_stamp = x >= stamp[0] && x < stamp[2] && y >= stamp[1] && y < stamp[3];
+                    patch_image.setRGB(j, i, in_stamp ? stamp_color : original.getRGB(x, y));
+                }
+            }
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertTrue(ImageIO.write(patch_image, "jpg", stream));
+            byte [] patch = stream.toByteArray();
+
+            byte [] result = JpegTransformer.replaceRegion(jpeg, patch, region[0], region[1]);
+            assertNotNull(result);
+            BufferedImage image = decodeTestJpeg(result);
+            assertEquals(width, image.getWidth());
+            assertEquals(height, image.getHeight());
+            for(int i=0;i<height;i++) {
+                for(int j=0;j<width;j++) {
+                    boolean in_region = j >= region[0] && j < region[2] && i >= region[1] && i < region[3];
+                    boolean in_stamp = j >= stamp[0] && j < stamp[2] && i >= stamp[1] && i < stamp[3];
+                    // allow for chroma upsampling across the edges of the region and the stamp
+                    boolean near_region_edge = Math.abs(j - region[0]) <= 1 || Math.abs(j - region[2]) <= 1 || Math.abs(i - region[1]) <= 1 || Math.abs(i - region[3]) <= 1;
+                    boolean near_stamp_edge = Math.abs(j - stamp[0]) <= 2 || Math.abs(j - stamp[2]) <= 2 || Math.abs(i - stamp[1]) <= 2 || Math.abs(i - stamp[3]) <= 2;
+                    if( near_region_edge || ( in_region && near_stamp_edge ) )
+                        continue;
+                    int expected = in_stamp ? stamp_color : original.getRGB(j, i);
+                    int actual = image.getRGB(j, i);
+                    // the rest of the image is unchanged, including the part of the region outside
+                    // of the stamp (up to the loss from re-encoding the patch)
+                    int tolerance = in_region ? 48 : 0;
+                    for(int shift=0;shift<24;shift+=8) {
+                        int diff = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                        assertTrue(diff <= tolerance);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Tests that ParallelJpegEncoder produces JPEGs that can be decoded by a standard decoder, and
+     *  that the output doesn't depend on the number of threads.
+     */
+    @Test
+    public void testParallelJpegEncoder() throws IOException {
+        Log.d(TAG, "testParallelJpegEncoder");
+
+        // include sizes that aren't a whole number of MCUs, and enough rows for several bands
+        int [] widths = new int[]{16, 100, 257};
+        int [] heights = new int[]{16, 75, 301};
+        for(int test=0;test<widths.length;test++) {
+            int width = widths[test];
+            int height = heights[test];
+            int [] pixels = new int[width*height];
+            for(int i=0;i<height;i++) {
+                for(int j=0;j<width;j++) {
+                    int r = (255*j)/width;
+                    int g = (255*i)/height;
+                    int b = ((i/8 + j/8) % 2) == 0 ? 64 : 192;
+                    pixels[i*width+j] = 0xff000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+
+            // ImageIO's default quality is 75
+            byte [] jpeg = new ParallelJpegEncoder(new ForkJoinPool(4)).encode(pixels, width, height, 75);
+            byte [] jpeg_single = new ParallelJpegEncoder(new ForkJoinPool(1)).encode(pixels, width, height, 75);
+            assertArrayEquals(jpeg, jpeg_single);
+
+            BufferedImage image = decodeTestJpeg(jpeg);
+            assertEquals(width, image.getWidth());
+            assertEquals(height, image.getHeight());
+            // compare the error with that from ImageIO's encoder (createTestJpeg() uses the same test pattern)
+            BufferedImage reference = decodeTestJpeg(createTestJpeg(width, height, BufferedImage.TYPE_INT_RGB));
+            long total_diff = 0;
+            long total_reference_diff = 0;
+            for(int i=0;i<height;i++) {
+                for(int j=0;j<width;j++) {
+                    int expected = pixels[i*width+j];
+                    int actual = image.getRGB(j, i);
+                    int actual_reference = reference.getRGB(j, i);
+                    for(int shift=0;shift<24;shift+=8) {
+                        total_diff += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                        total_reference_diff += Math.abs(((expected >> shift) & 0xff) - ((actual_reference >> shift) & 0xff));
+                    }
+                }
+            }
+            double mean_diff = total_diff / (3.0*width*height);
+            double reference_mean_diff = total_reference_diff / (3.0*width*height);
+            Log.d(TAG, "size " + width + " x " + height + " mean_diff: " + mean_diff + " reference_mean_diff: " + reference_mean_diff);
+            assertTrue(mean_diff < reference_mean_diff + 0.5);
+
+            // the output should be a valid input for JpegTransformer (which checks the restart markers)
+            assertNotNull(JpegTransformer.transform(jpeg, JpegTransformer.Transform.NONE));
+        }
+    }
+
+    /** Tests that ParallelJpegEncoder honours the quality.
+     */
+    @Test
+    public void testParallelJpegEncoderQuality() throws IOException {
+        Log.d(TAG, "testParallelJpegEncoderQuality");
+
+        final int width = 128;
+        final int height = 96;
+        Random random = new Random(0);
+        int [] pixels = new int[width*height];
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(new ForkJoinPool(2));
+        int [] qualities = new int[]{1, 50, 90, 100};
+        int last_length = 0;
+        for(int quality : qualities) {
+            byte [] jpeg = encoder.encode(pixels, width, height, quality);
+            Log.d(TAG, "quality " + quality + " length: " + jpeg.length);
+            decodeTestJpeg(jpeg);
+            assertTrue(jpeg.length > last_length);
+            last_length = jpeg.length;
+        }
+    }
+
+    /** Tests splitting a JPEG with restart markers into bands that can be decoded independently.
+     */
+    @Test
+    public void testJpegSplitIntoBands() throws IOException {
+        Log.d(TAG, "testJpegSplitIntoBands");
+
+        // 301 rows is 19 MCU rows, so 5 restart intervals of 4 MCU rows from ParallelJpegEncoder,
+        // with a partial MCU row at the bottom
+        final int width = 257;
+        final int height = 301;
+        int [] pixels = new int[width*height];
+        for(int i=0;i<height;i++) {
+            for(int j=0;j<width;j++) {
+                int r = (255*j)/width;
+                int g = (255*i)/height;
+                int b = ((i/8 + j/8) % 2) == 0 ? 64 : 192;
+                pixels[i*width+j] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        byte [] jpeg = new ParallelJpegEncoder(new ForkJoinPool(1)).encode(pixels, width, height, 90);
+        BufferedImage full = decodeTestJpeg(jpeg);
+
+        assertNull(JpegTransformer.splitIntoBands(jpeg, 1));
+        // no restart markers
+        assertNull(JpegTransformer.splitIntoBands(createTestJpeg(width, height, BufferedImage.TYPE_INT_RGB), 4));
+
+        int [] max_bands_values = new int[]{2, 3, 5, 8};
+        int [] expected_n_bands = new int[]{2, 3, 5, 5};
+        for(int test=0;test<max_bands_values.length;test++) {
+            List<JpegTransformer.Band> bands = JpegTransformer.splitIntoBands(jpeg, max_bands_values[test]);
+            assertNotNull(bands);
+            assertEquals(expected_n_bands[test], bands.size());
+            int y = 0;
+            long total_diff = 0;
+            for(JpegTransformer.Band band : bands) {
+                assertEquals(y, band.y);
+                assertEquals(0, band.y % 64);
+                BufferedImage image = decodeTestJpeg(band.jpeg);
+                assertEquals(width, image.getWidth());
+                assertEquals(band.height, image.getHeight());
+                for(int i=0;i<band.height;i++) {
+                    // chroma upsampling may differ next to the edges of the band
+                    boolean interior = (i > 0 || band.y == 0) && (i < band.height-1 || band.y + band.height == height);
+                    for(int j=0;j<width;j++) {
+                        int expected = full.getRGB(j, band.y + i);
+                        int actual = image.getRGB(j, i);
+                        if( interior ) {
+                            assertEquals(expected, actual);
+                        }
+                        for(int shift=0;shift<24;shift+=8) {
+                            total_diff += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                        }
+                    }
+                }
+                y += band.height;
+            }
+            assertEquals(height, y);
+            double mean_diff = total_diff / (3.0*width*height);
+            Log.d(TAG, "max_bands " + max_bands_values[test] + " mean_diff: " + mean_diff);
+            assertTrue(mean_diff < 0.5);
+
+            // splitting straight from a direct buffer (as for pooled ImageBuffers) gives the same bands
+            ByteBuffer direct = ByteBuffer.allocateDirect(jpeg.length);
+            direct.put(jpeg);
+            direct.position(jpeg.length/2); // the position should be ignored
+            List<JpegTransformer.Band> direct_bands = JpegTransformer.splitIntoBands(direct, max_bands_values[test]);
+            assertNotNull(direct_bands);
+            assertEquals(bands.size(), direct_bands.size());
+            for(int i=0;i<bands.size();i++) {
+                assertEquals(bands.get(i).y, direct_bands.get(i).y);
+                assertEquals(bands.get(i).height, direct_bands.get(i).height);
+                assertArrayEquals(bands.get(i).jpeg, direct_bands.get(i).jpeg);
+            }
+            assertEquals(jpeg.length/2, direct.position());
+            JpegTransformer.Info direct_info = JpegTransformer.readInfo(direct);
+            assertNotNull(direct_info);
+            assertEquals(width, direct_info.width);
+            assertEquals(height, direct_info.height);
+        }
+    }
+
+    @Test
+    public void testFrameTimeCounter() {
+        Log.d(TAG, "testFrameTimeCounter");
+
+        final long interval_ns = 16000000L;
+        FrameTimeCounter counter = new FrameTimeCounter();
+        assertEquals(0, counter.getNFrames());
+        assertEquals(0, counter.getAverageDrawTimeNs());
+
+        long time_ns = 1000000000L;
+        // regular frames, taking 2ms to draw
+        for(int i=0;i<10;i++) {
+            counter.onFrame(time_ns, time_ns + 2000000L, interval_ns);
+            time_ns += interval_ns;
+        }
+        assertEquals(10, counter.getNFrames());
+        assertEquals(0, counter.getNSlowFrames());
+        assertEquals(0, counter.getNDroppedFrames());
+        assertEquals(2000000L, counter.getAverageDrawTimeNs());
+        assertEquals(2000000L, counter.getMaxDrawTimeNs());
+
+        // a slow frame, that causes the next two frames to be missed
+        counter.onFrame(time_ns, time_ns + 40000000L, interval_ns);
+        time_ns += 3*interval_ns;
+        counter.onFrame(time_ns, time_ns + 2000000L, interval_ns);
+        assertEquals(12, counter.getNFrames());
+        assertEquals(1, counter.getNSlowFrames());
+        assertEquals(2, counter.getNDroppedFrames());
+        assertEquals(40000000L, counter.getMaxDrawTimeNs());
+
+        // a small amount of jitter shouldn't count as a dropped frame
+        time_ns += interval_ns + interval_ns/4;
+        counter.onFrame(time_ns, time_ns + 2000000L, interval_ns);
+        assertEquals(2, counter.getNDroppedFrames());
+
+        // a long gap means drawing was paused, rather than frames being dropped
+        time_ns += 5000000000L;
+        counter.onFrame(time_ns, time_ns + 2000000L, interval_ns);
+        assertEquals(14, counter.getNFrames());
+        assertEquals(2, counter.getNDroppedFrames());
+
+        counter.reset();
+        assertEquals(0, counter.getNFrames());
+        assertEquals(0, counter.getNSlowFrames());
+        assertEquals(0, counter.getNDroppedFrames());
+        assertEquals(0, counter.getMaxDrawTimeNs());
+        // first frame after reset shouldn't be compared to the last frame before the reset
+        counter.onFrame(time_ns + 100*interval_ns, time_ns + 100*interval_ns + 2000000L, interval_ns);
+        assertEquals(0, counter.getNDroppedFrames());
+    }
+
+    @Test
+    public void testRequestUpdateScheduler() {
+        Log.d(TAG, "testRequestUpdateScheduler");
+
+        final int [] n_posted = new int[1];
+        final long [] posted_delay_ms = new long[1];
+        final boolean [] settings_changed = new boolean[]{true};
+        RequestUpdateScheduler scheduler = new RequestUpdateScheduler(new RequestUpdateScheduler.Callback() {
+            @Override
+            public void postFlush(long delay_ms) {
+                n_posted[0]++;
+                posted_delay_ms[0] = delay_ms;
+            }
+
+            @Override
+            public boolean issueRequest() {
+                return settings_changed[0];
+            }
+        });
+        final long interval_ns = 33000000L;
+        scheduler.setFrameIntervalNs(interval_ns);
+        assertEquals(interval_ns, scheduler.getFrameIntervalNs());
+
+        // first update is sent straight away
+        long time_ns = 1000000000L;
+        scheduler.requestUpdate(time_ns);
+        assertEquals(1, scheduler.getNIssued());
+        assertEquals(0, n_posted[0]);
+        assertFalse(scheduler.isPending());
+
+        // further updates in the same frame are held back, and only one flush is posted
+        for(int i=0;i<5;i++) {
+            scheduler.requestUpdate(time_ns + (i+1)*1000000L);
+        }
+        assertEquals(1, scheduler.getNIssued());
+        assertEquals(4, scheduler.getNCoalesced());
+        assertEquals(1, n_posted[0]);
+        assertEquals(32, posted_delay_ms[0]);
+        assertTrue(scheduler.isPending());
+
+        time_ns += interval_ns;
+        scheduler.flush(time_ns);
+        assertEquals(2, scheduler.getNIssued());
+        assertFalse(scheduler.isPending());
+        // flushing again does nothing
+        scheduler.flush(time_ns);
+        assertEquals(2, scheduler.getNIssued());
+
+        // update after the frame has passed is sent straight away, but is skipped if unchanged
+        time_ns += 2*interval_ns;
+        settings_changed[0] = false;
+        scheduler.requestUpdate(time_ns);
+        assertEquals(2, scheduler.getNIssued());
+        assertEquals(1, scheduler.getNUnchanged());
+        assertEquals(1, n_posted[0]);
+
+        // cancelling discards the waiting update
+        scheduler.requestUpdate(time_ns + 1000000L);
+        assertTrue(scheduler.isPending());
+        scheduler.cancel();
+        assertFalse(scheduler.isPending());
+        scheduler.flush(time_ns + interval_ns);
+        assertEquals(2, scheduler.getNIssued());
+        assertEquals(1, scheduler.getNUnchanged());
+
+        assertEquals(8, scheduler.getNRequested());
+        assertEquals(4, scheduler.getNCoalesced());
+
+        // frame interval is clamped
+        scheduler.setFrameIntervalNs(0);
+        assertEquals(RequestUpdateScheduler.default_frame_interval_ns_c, scheduler.getFrameIntervalNs());
+        scheduler.setFrameIntervalNs(1000000000L);
+        assertTrue(scheduler.getFrameIntervalNs() < 1000000000L);
+    }
 }
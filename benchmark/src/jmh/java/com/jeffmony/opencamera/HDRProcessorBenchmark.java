@@ -0,0 +1,44 @@
+package com.jeffmony.opencamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Benchmarks for the parameter estimation done by HDRProcessor, which is independent of the
+ *  image resolution.
+ */
+@State(Scope.Benchmark)
+public class HDRProcessorBenchmark {
+    private final List<Double> x_samples = new ArrayList<>();
+    private final List<Double> y_samples = new ArrayList<>();
+    private final List<Double> weights = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        // equivalent to the 100 samples taken by HDRProcessor.createFunctionFromBitmaps(), for a
+        // darker exposure being mapped to the base exposure
+        Random random = new Random(0);
+        for(int i=0;i<100;i++) {
+            double x = random.nextInt(128);
+            double y = Math.min(255.0, 2.0*x + 5.0 + random.nextGaussian());
+            x_samples.add(x);
+            y_samples.add(y);
+            weights.add(x <= 64.0 ? x : 128.0 - x);
+        }
+    }
+
+    @Benchmark
+    public HDRProcessor.BrightenFactors computeBrightenFactors() {
+        return HDRProcessor.computeBrightenFactors(true, 1600, 1000000000L/12, 42, 170);
+    }
+
+    @Benchmark
+    public HDRProcessor.ResponseFunction fitResponseFunction() {
+        return new HDRProcessor.ResponseFunction(null, 0, x_samples, y_samples, weights);
+    }
+}
@@ -0,0 +1,42 @@
+package com.jeffmony.opencamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for the pure Java parts of the ImageSaver post-processing.
+ */
+@State(Scope.Benchmark)
+public class ImageSaverBenchmark {
+    @Param({"12MP", "50MP"})
+    public String frame_size;
+
+    private int width;
+    private int height;
+    private final int [] crop = new int[2];
+    private int angle_index;
+    private static final double [] level_angles_c = {0.5, -2.0, 7.5, -15.0, 30.0, 44.0};
+
+    @Setup
+    public void setup() {
+        int [] dimensions = SyntheticImages.frameDimensions(frame_size);
+        width = dimensions[0];
+        height = dimensions[1];
+    }
+
+    @Benchmark
+    public int [] autoStabiliseCrop() {
+        double level_angle = level_angles_c[angle_index];
+        angle_index = (angle_index+1) % level_angles_c.length;
+        // as in ImageSaver.autoStabilise(), w0 and h0 are the dimensions of the rotated bitmap
+        double level_angle_rad_abs = Math.abs( Math.toRadians(level_angle) );
+        double cos = Math.cos(level_angle_rad_abs);
+        double sin = Math.sin(level_angle_rad_abs);
+        double w0 = width * cos + height * sin;
+        double h0 = width * sin + height * cos;
+        ImageSaver.autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, width, height, (int)w0, (int)h0);
+        return crop;
+    }
+}
@@ -0,0 +1,49 @@
+package com.jeffmony.opencamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks the pure Java HDR merge on a 3 image exposure bracket.
+ */
+@State(Scope.Benchmark)
+public class JavaHDRMergerBenchmark {
+    @Param({"12MP", "50MP"})
+    public String frame_size;
+
+    @Param({"TONEMAPALGORITHM_REINHARD", "TONEMAPALGORITHM_FU2"})
+    public HDRProcessor.TonemappingAlgorithm tonemapping_algorithm;
+
+    private int width;
+    private int height;
+    private int [][] inputs;
+    private int [] output;
+    private final int [] offsets_x = {-3, 0, 2};
+    private final int [] offsets_y = {1, 0, -4};
+    private final float [] parameter_A = {2.0f, 1.0f, 0.5f};
+    private final float [] parameter_B = {3.0f, 0.0f, 1.0f};
+    private JavaHDRMerger.TonemapParameters tonemap_parameters;
+    private final JavaHDRMerger merger = new JavaHDRMerger();
+
+    @Setup
+    public void setup() {
+        int [] dimensions = SyntheticImages.frameDimensions(frame_size);
+        width = dimensions[0];
+        height = dimensions[1];
+        inputs = new int[][]{
+                SyntheticImages.createFrame(width, height, 0.5f, 0),
+                SyntheticImages.createFrame(width, height, 1.0f, 1),
+                SyntheticImages.createFrame(width, height, 2.0f, 2)
+        };
+        output = new int[width*height];
+        tonemap_parameters = new JavaHDRMerger.TonemapParameters(tonemapping_algorithm, 255.0f, 2.0f, JavaHDRMerger.fu2_exposure_bias_c * 510.0f);
+    }
+
+    @Benchmark
+    public int [] merge() {
+        merger.merge(inputs, width, height, 1, false, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_parameters, output);
+        return output;
+    }
+}
@@ -0,0 +1,79 @@
+package com.jeffmony.opencamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Benchmarks the feature matching in PanoramaProcessor.autoAlignmentByFeature(), as done by
+ *  JavaFeatureMatcher.
+ */
+@State(Scope.Benchmark)
+public class PanoramaProcessorBenchmark {
+    @Param({"12MP", "50MP"})
+    public String frame_size;
+
+    // values as in PanoramaProcessor.autoAlignmentByFeature()
+    private static final int feature_descriptor_radius = 3;
+    private static final int total_max_corners = 200;
+
+    private final int [][] points_x = new int[2][total_max_corners];
+    private final int [][] points_y = new int[2][total_max_corners];
+    private int max_match_dist2;
+    private int [] patches0;
+    private int [] patches1;
+    private JavaFeatureMatcher.Candidates candidates;
+    private JavaFeatureMatcher.Descriptors descriptors0;
+    private JavaFeatureMatcher.Descriptors descriptors1;
+    private final JavaFeatureMatcher matcher = new JavaFeatureMatcher();
+
+    @Setup
+    public void setup() {
+        int [] dimensions = SyntheticImages.frameDimensions(frame_size);
+        int width = dimensions[0];
+        int height = dimensions[1];
+        Random random = new Random(0);
+
+        // random corner positions, and candidate matches chosen as in autoAlignmentByFeature()
+        for(int i=0;i<2;i++) {
+            for(int j=0;j<total_max_corners;j++) {
+                points_x[i][j] = random.nextInt(width);
+                points_y[i][j] = random.nextInt(height);
+            }
+        }
+        final int max_match_dist_x = width;
+        final int max_match_dist_y = height/16;
+        max_match_dist2 = max_match_dist_x*max_match_dist_x + max_match_dist_y*max_match_dist_y;
+        candidates = JavaFeatureMatcher.findCandidates(points_x[0], points_y[0], points_x[1], points_y[1], max_match_dist2);
+
+        // ARGB patches, as read from the bitmaps
+        final int wid = 2*feature_descriptor_radius+1;
+        final int wid2 = wid*wid;
+        patches0 = new int[total_max_corners*wid2];
+        patches1 = new int[total_max_corners*wid2];
+        for(int i=0;i<patches0.length;i++) {
+            patches0[i] = 0xff000000 | random.nextInt(0x1000000);
+            patches1[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        descriptors0 = JavaFeatureMatcher.createDescriptors(patches0, total_max_corners, feature_descriptor_radius);
+        descriptors1 = JavaFeatureMatcher.createDescriptors(patches1, total_max_corners, feature_descriptor_radius);
+    }
+
+    @Benchmark
+    public JavaFeatureMatcher.Candidates findCandidates() {
+        return JavaFeatureMatcher.findCandidates(points_x[0], points_y[0], points_x[1], points_y[1], max_match_dist2);
+    }
+
+    @Benchmark
+    public JavaFeatureMatcher.Descriptors createDescriptors() {
+        return JavaFeatureMatcher.createDescriptors(patches0, total_max_corners, feature_descriptor_radius);
+    }
+
+    @Benchmark
+    public float [] computeDistances() {
+        return matcher.computeDistances(candidates, descriptors0, descriptors1);
+    }
+}
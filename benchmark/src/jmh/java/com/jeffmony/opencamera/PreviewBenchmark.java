@@ -0,0 +1,36 @@
+package com.jeffmony.opencamera;
+
+import com.jeffmony.opencamera.preview.Preview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Benchmarks for the pure Java parts of Preview.
+ */
+@State(Scope.Benchmark)
+public class PreviewBenchmark {
+    private final List<int []> fps_ranges = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        // typical set of ranges reported by a Camera2 device
+        fps_ranges.add(new int[]{15000, 15000});
+        fps_ranges.add(new int[]{7000, 20000});
+        fps_ranges.add(new int[]{20000, 20000});
+        fps_ranges.add(new int[]{7000, 30000});
+        fps_ranges.add(new int[]{15000, 30000});
+        fps_ranges.add(new int[]{24000, 24000});
+        fps_ranges.add(new int[]{30000, 30000});
+        fps_ranges.add(new int[]{60000, 60000});
+    }
+
+    @Benchmark
+    public int [] chooseBestPreviewFps() {
+        return Preview.chooseBestPreviewFps(fps_ranges);
+    }
+}
@@ -0,0 +1,42 @@
+package com.jeffmony.opencamera;
+
+import java.util.Random;
+
+/** Helpers for generating the synthetic test data used by the benchmarks.
+ */
+class SyntheticImages {
+    /** Returns the {width, height} for a frame size parameter, e.g. "12MP".
+     */
+    static int [] frameDimensions(String frame_size) {
+        switch( frame_size ) {
+            case "12MP":
+                return new int[]{4000, 3000};
+            case "50MP":
+                return new int[]{8160, 6120};
+            default:
+                throw new IllegalArgumentException("unknown frame size: " + frame_size);
+        }
+    }
+
+    /** Creates an ARGB frame of a smooth gradient with noise, scaled by the supplied exposure
+     *  factor, to approximate one image of an exposure bracket.
+     */
+    static int [] createFrame(int width, int height, float exposure, long seed) {
+        Random random = new Random(seed);
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                float base = 255.0f * (x + y) / (float)(width + height);
+                int r = clamp((int)(exposure * base) + random.nextInt(9) - 4);
+                int g = clamp((int)(exposure * base * 0.9f) + random.nextInt(9) - 4);
+                int b = clamp((int)(exposure * base * 0.8f) + random.nextInt(9) - 4);
+                pixels[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}